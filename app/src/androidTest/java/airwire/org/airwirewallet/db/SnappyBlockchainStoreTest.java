@@ -0,0 +1,192 @@
+package airwire.org.airwirewallet.db;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.snappydb.DB;
+import com.snappydb.DBFactory;
+
+import org.airwirej.core.Block;
+import org.airwirej.core.Context;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.core.Transaction;
+import org.airwirej.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import airwire.org.airwirewallet.module.store.SnappyBlockchainStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+public class SnappyBlockchainStoreTest {
+
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Context CONTEXT = new Context(PARAMS);
+    private static final String FILENAME = "blockstore_test";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "snappy_blockstore_test");
+        destroy();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        destroy();
+    }
+
+    private void destroy() throws Exception {
+        DB db = DBFactory.open(directory.getAbsolutePath(), FILENAME);
+        db.destroy();
+    }
+
+    private static StoredBlock genesis() {
+        Block genesis = PARAMS.getGenesisBlock().cloneAsHeader();
+        return new StoredBlock(genesis, genesis.getWork(), 0);
+    }
+
+    /** Headers on top of the given one, a minute apart from its time */
+    private static List<StoredBlock> chain(StoredBlock first, int count, long firstTimeSeconds) {
+        List<StoredBlock> chain = new ArrayList<>(count);
+        StoredBlock block = first;
+        for (int i = 0; i < count; i++) {
+            Block header = new Block(
+                    PARAMS,
+                    Block.BLOCK_VERSION_GENESIS,
+                    block.getHeader().getHash(),
+                    Sha256Hash.ZERO_HASH,
+                    firstTimeSeconds + i * 60,
+                    Block.EASIEST_DIFFICULTY_TARGET,
+                    0,
+                    Collections.<Transaction>emptyList()
+            );
+            block = block.build(header);
+            chain.add(block);
+        }
+        return chain;
+    }
+
+    private static List<StoredBlock> oldChain(StoredBlock first, int count) {
+        return chain(first, count, first.getHeader().getTimeSeconds() + 60);
+    }
+
+    @Test
+    public void legacyHexKeyedStoreIsRead() throws Exception {
+        List<StoredBlock> chain = oldChain(genesis(), 10);
+        // the layout of the stores before the raw keys, no key format marker
+        DB db = DBFactory.open(directory.getAbsolutePath(), FILENAME);
+        for (StoredBlock block : chain) {
+            db.put(block.getHeader().getHash().toString(), compact(block));
+        }
+        db.put("chainhead", chain.get(9).getHeader().getHash().getBytes());
+        db.close();
+
+        SnappyBlockchainStore store = new SnappyBlockchainStore(CONTEXT, directory, FILENAME, 100);
+        assertEquals(chain.get(9), store.getChainHead());
+        for (StoredBlock block : chain) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        // new blocks on top with the raw keys, the old ones still readable
+        List<StoredBlock> more = oldChain(chain.get(9), 5);
+        for (StoredBlock block : more) {
+            store.put(block);
+        }
+        store.setChainHead(more.get(4));
+        store.close();
+
+        store = new SnappyBlockchainStore(CONTEXT, directory, FILENAME, 100);
+        assertEquals(more.get(4), store.getChainHead());
+        assertEquals(chain.get(0), store.get(chain.get(0).getHeader().getHash()));
+        assertEquals(more.get(0), store.get(more.get(0).getHeader().getHash()));
+
+        // pruning finds the hex keys too
+        store.pruneBelow(more.get(0));
+        assertNull(store.get(chain.get(5).getHeader().getHash()));
+        assertEquals(more.get(0), store.get(more.get(0).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void batchIsWrittenWhenFullOrOnARecentHead() throws Exception {
+        SnappyBlockchainStore store = new SnappyBlockchainStore(CONTEXT, directory, FILENAME, 10);
+        List<StoredBlock> chain = oldChain(store.getChainHead(), 15);
+        for (int i = 0; i < 9; i++) {
+            store.put(chain.get(i));
+        }
+        store.setChainHead(chain.get(8));
+        // far behind, still buffered
+        assertEquals(9, store.getPendingPuts());
+        store.put(chain.get(9));
+        assertEquals(0, store.getPendingPuts());
+
+        store.put(chain.get(10));
+        assertEquals(1, store.getPendingPuts());
+        // a block of now, the chain is synced
+        StoredBlock recent = chain(chain.get(10), 1, System.currentTimeMillis() / 1000).get(0);
+        store.put(recent);
+        store.setChainHead(recent);
+        assertEquals(0, store.getPendingPuts());
+        store.close();
+    }
+
+    @Test
+    public void closeWritesTheBatchAndTheHead() throws Exception {
+        SnappyBlockchainStore store = new SnappyBlockchainStore(CONTEXT, directory, FILENAME, 100);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = oldChain(genesis, 20);
+        for (StoredBlock block : chain) {
+            store.put(block);
+        }
+        store.setChainHead(chain.get(19));
+        assertEquals(20, store.getPendingPuts());
+        store.close();
+
+        store = new SnappyBlockchainStore(CONTEXT, directory, FILENAME, 100);
+        assertEquals(chain.get(19), store.getChainHead());
+        assertEquals(chain.get(19).getChainWork(), store.getChainHead().getChainWork());
+        for (StoredBlock block : chain) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void pruningKeepsTheBlockAndAbove() throws Exception {
+        SnappyBlockchainStore store = new SnappyBlockchainStore(CONTEXT, directory, FILENAME, 100);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = oldChain(genesis, 1200);
+        for (StoredBlock block : chain) {
+            store.put(block);
+        }
+        store.setChainHead(chain.get(1199));
+        // more than a chunk of deletes
+        store.pruneBelow(chain.get(1000));
+        assertNull(store.get(genesis.getHeader().getHash()));
+        assertNull(store.get(chain.get(0).getHeader().getHash()));
+        assertNull(store.get(chain.get(999).getHeader().getHash()));
+        assertEquals(chain.get(1000), store.get(chain.get(1000).getHeader().getHash()));
+        assertEquals(chain.get(1199), store.getChainHead());
+        store.close();
+    }
+
+    private static byte[] compact(StoredBlock block) {
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(buffer);
+        return buffer.array();
+    }
+}
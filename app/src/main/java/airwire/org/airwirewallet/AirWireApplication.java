@@ -6,8 +6,17 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.FileProvider;
+import android.support.v4.content.LocalBroadcastManager;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.acra.ACRA;
 import org.acra.ReportingInteractionMode;
@@ -23,6 +32,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
@@ -48,7 +59,12 @@ import airwire.org.airwirewallet.utils.AppConf;
 import airwire.org.airwirewallet.utils.CentralFormats;
 import airwire.org.airwirewallet.utils.CrashReporter;
 
+import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_NOTIFICATION;
+import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_RESCAN_BLOCKCHAIN;
 import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_RESET_BLOCKCHAIN;
+import static airwire.org.airwirewallet.service.IntentsConstants.DATA_RESCAN_HEIGHT;
+import static airwire.org.airwirewallet.service.IntentsConstants.INTENT_BROADCAST_DATA_TYPE;
+import static airwire.org.airwirewallet.service.IntentsConstants.INTENT_BROADCAST_DATA_WALLET_LOADED;
 import static airwire.org.airwirewallet.utils.AndroidUtils.shareText;
 
 /**
@@ -68,6 +84,14 @@ public class AirWireApplication extends Application implements ContextWrapper {
     private long lastTimeRequestBackup;
 
     private AirWireModule airwireModule;
+    private final Executor mainThreadExecutor = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
     private AppConf appConf;
     private NetworkConf networkConf;
 
@@ -147,8 +171,23 @@ public class AirWireApplication extends Application implements ContextWrapper {
             //walletConfiguration.saveTrustedNode(HardcodedConstants.TESTNET_HOST,0);
             //AddressStore addressStore = new SnappyStore(getDirPrivateMode("address_store").getAbsolutePath());
             ContactsStore contactsStore = new ContactsStore(this);
-            airwireModule = new AirWireModuleImp(this, walletConfiguration,contactsStore,new RateDb(this),new WalletBackupHelper());
-            airwireModule.start();
+            AirWireModuleImp module = new AirWireModuleImp(this, walletConfiguration,contactsStore,new RateDb(this),new WalletBackupHelper());
+            airwireModule = module;
+            // off the main thread, the screens wait for the keys only and refresh once the history is in
+            module.startAsync();
+            Futures.addCallback(module.getWalletReadyFuture(), new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    Intent intent = new Intent(ACTION_NOTIFICATION);
+                    intent.putExtra(INTENT_BROADCAST_DATA_TYPE, INTENT_BROADCAST_DATA_WALLET_LOADED);
+                    LocalBroadcastManager.getInstance(AirWireApplication.this).sendBroadcast(intent);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    log.error("wallet loading failed", t);
+                }
+            }, MoreExecutors.directExecutor());
 
         } catch (Exception e){
             e.printStackTrace();
@@ -207,10 +246,63 @@ public class AirWireApplication extends Application implements ContextWrapper {
         log.setLevel(Level.INFO);
     }
 
+    /**
+     * Completes once the wallet keys are loaded and {@link #getModule()} can be used, fails if they could not be
+     * loaded. The screens and the service wait for it instead of blocking the main thread.
+     */
+    public ListenableFuture<Void> getModuleReadyFuture() {
+        if (airwireModule == null)
+            return Futures.immediateFailedFuture(new IllegalStateException("wallet module not created"));
+        return ((AirWireModuleImp) airwireModule).getKeysReadyFuture();
+    }
+
+    /**
+     * Whether the wallet keys are loaded, false while loading and if they failed to load.
+     */
+    public boolean isModuleReady() {
+        ListenableFuture<Void> ready = getModuleReadyFuture();
+        if (!ready.isDone())
+            return false;
+        try {
+            ready.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The module once the wallet keys are loaded, the transaction history may still be loading. Doesn't wait for
+     * the keys, see {@link #getModuleReadyFuture()}.
+     *
+     * @throws IllegalStateException if the keys are not loaded yet or could not be loaded.
+     */
     public AirWireModule getModule(){
+        ListenableFuture<Void> ready = getModuleReadyFuture();
+        if (!ready.isDone())
+            throw new IllegalStateException("wallet keys not loaded yet");
+        try {
+            // done, doesn't block
+            ready.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("wallet keys not loaded", e.getCause());
+        }
         return airwireModule;
     }
 
+    /**
+     * Runs the callbacks of the wallet futures on the main thread.
+     */
+    public Executor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+
     public AppConf getAppConf(){
         return appConf;
     }
@@ -236,6 +328,12 @@ public class AirWireApplication extends Application implements ContextWrapper {
         return memoryClass<=airwireModule.getConf().getMinMemoryNeeded();
     }
 
+    @Override
+    public boolean isNetworkMetered() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        return connectivityManager != null && connectivityManager.isActiveNetworkMetered();
+    }
+
     @Override
     public String getVersionName() {
         return info.versionName;
@@ -248,6 +346,16 @@ public class AirWireApplication extends Application implements ContextWrapper {
         startService(intent);
     }
 
+    /**
+     * Download the blocks again from the given height, -1 for the wallet last seen block.
+     */
+    public void rescanBlockchain(int height) {
+        Intent intent = new Intent(this,AirWireWalletService.class);
+        intent.setAction(ACTION_RESCAN_BLOCKCHAIN);
+        intent.putExtra(DATA_RESCAN_HEIGHT, height);
+        startService(intent);
+    }
+
     public NetworkConf getNetworkConf() {
         return networkConf;
     }
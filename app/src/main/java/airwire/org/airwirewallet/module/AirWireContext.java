@@ -3,6 +3,7 @@ package airwire.org.airwirewallet.module;
 import android.os.Environment;
 import android.text.format.DateUtils;
 
+import org.airwirej.core.Coin;
 import org.airwirej.core.Context;
 import org.airwirej.core.NetworkParameters;
 import org.airwirej.params.MainNetParams;
@@ -71,6 +72,25 @@ public class AirWireContext {
     /** Minimum memory */
     public static final int MEMORY_CLASS_LOWEND = 48;
 
+    /** Amount of recent blocks kept in memory by the block store */
+    public static final int BLOCK_CACHE_SIZE = 1000;
+
+    /** Amount of recent blocks kept in the block store, older ones are pruned (around a week) */
+    public static final int BLOCK_STORE_KEEP_BLOCKS = 10000;
+
+    /** Public keys of the release team trusted to sign header snapshots, hex encoded */
+    public static final String[] HEADER_SNAPSHOT_SIGNERS = {};
+
+    /** Target false positive rate of the bloom filter, the library default, the filter is retuned when the observed one drifts */
+    public static final double BLOOM_FILTER_FP_RATE = 0.00001;
+
+    /** Default daily data budgets, 0 is unlimited, a budget is opt in */
+    public static final long METERED_DAILY_BUDGET_BYTES = 0;
+    public static final long UNMETERED_DAILY_BUDGET_BYTES = 0;
+
+    /** The most a consolidation of small unspents pays in fees */
+    public static final Coin CONSOLIDATION_FEE_BUDGET = Coin.CENT;
+
     public static final int PEER_DISCOVERY_TIMEOUT_MS = 10 * (int) DateUtils.SECOND_IN_MILLIS;
     public static final int PEER_TIMEOUT_MS = 15 * (int) DateUtils.SECOND_IN_MILLIS;
 
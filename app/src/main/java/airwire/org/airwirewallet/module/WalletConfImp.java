@@ -2,8 +2,14 @@ package airwire.org.airwirewallet.module;
 
 import android.content.SharedPreferences;
 
+import org.airwirej.core.Coin;
 import org.airwirej.core.Context;
+import org.airwirej.core.ECKey;
 import org.airwirej.core.NetworkParameters;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import global.WalletConfiguration;
 import airwire.org.airwirewallet.utils.Configurations;
@@ -25,6 +31,10 @@ public class WalletConfImp extends Configurations implements WalletConfiguration
 
     private static final String PREF_TRUSTED_NODE = "trusted_node";
     private static final String PREFS_KEY_SCHEDULE_BLOCKCHAIN_SERVICE = "sch_block_serv";
+    private static final String PREFS_KEY_IDLE_SYNC_COUNT = "idle_sync_count";
+    private static final String PREFS_KEY_METERED_DAILY_BUDGET = "metered_daily_budget";
+    private static final String PREFS_KEY_UNMETERED_DAILY_BUDGET = "unmetered_daily_budget";
+    private static final String PREFS_KEY_AUTO_CONSOLIDATION = "auto_consolidation";
     private static final String PREF_CURRENCY_RATE = "currency_code";
 
 
@@ -52,6 +62,16 @@ public class WalletConfImp extends Configurations implements WalletConfiguration
         return getLong(PREFS_KEY_SCHEDULE_BLOCKCHAIN_SERVICE,0);
     }
 
+    @Override
+    public int getIdleSyncCount() {
+        return getInt(PREFS_KEY_IDLE_SYNC_COUNT,0);
+    }
+
+    @Override
+    public void saveIdleSyncCount(int count) {
+        save(PREFS_KEY_IDLE_SYNC_COUNT,count);
+    }
+
     @Override
     public int getTrustedNodePort() {
         return AirWireContext.NETWORK_PARAMETERS.getPort();
@@ -112,6 +132,58 @@ public class WalletConfImp extends Configurations implements WalletConfiguration
         return AirWireContext.MEMORY_CLASS_LOWEND;
     }
 
+    @Override
+    public int getBlockCacheSize() {
+        return AirWireContext.BLOCK_CACHE_SIZE;
+    }
+
+    @Override
+    public int getBlockStoreKeepBlocks() {
+        return AirWireContext.BLOCK_STORE_KEEP_BLOCKS;
+    }
+
+    @Override
+    public List<ECKey> getHeaderSnapshotSigners() {
+        List<ECKey> signers = new ArrayList<>();
+        for (String pubKey : AirWireContext.HEADER_SNAPSHOT_SIGNERS) {
+            signers.add(ECKey.fromPublicOnly(Hex.decode(pubKey)));
+        }
+        return signers;
+    }
+
+    @Override
+    public double getBloomFilterFalsePositiveRate() {
+        return AirWireContext.BLOOM_FILTER_FP_RATE;
+    }
+
+    @Override
+    public long getDailyBandwidthBudget(boolean metered) {
+        return metered ?
+                getLong(PREFS_KEY_METERED_DAILY_BUDGET,AirWireContext.METERED_DAILY_BUDGET_BYTES)
+                :
+                getLong(PREFS_KEY_UNMETERED_DAILY_BUDGET,AirWireContext.UNMETERED_DAILY_BUDGET_BYTES);
+    }
+
+    @Override
+    public void saveDailyBandwidthBudget(boolean metered, long bytes) {
+        save(metered ? PREFS_KEY_METERED_DAILY_BUDGET : PREFS_KEY_UNMETERED_DAILY_BUDGET,bytes);
+    }
+
+    @Override
+    public boolean isAutoConsolidationEnabled() {
+        return getBoolean(PREFS_KEY_AUTO_CONSOLIDATION,false);
+    }
+
+    @Override
+    public void saveAutoConsolidationEnabled(boolean enabled) {
+        save(PREFS_KEY_AUTO_CONSOLIDATION,enabled);
+    }
+
+    @Override
+    public Coin getConsolidationFeeBudget() {
+        return AirWireContext.CONSOLIDATION_FEE_BUDGET;
+    }
+
     @Override
     public long getBackupMaxChars() {
         return AirWireContext.BACKUP_MAX_CHARS;
@@ -11,47 +11,79 @@ import org.airwirej.core.Context;
 import org.airwirej.core.NetworkParameters;
 import org.airwirej.core.Sha256Hash;
 import org.airwirej.core.StoredBlock;
-import org.airwirej.store.BlockStore;
 import org.airwirej.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import chain.store.PrunableBlockStore;
 
 /**
  * Created by akshaynexus on 10/17/17.
+ *
+ * Block store over SnappyDB.
+ *
+ * Blocks are keyed by the raw 32 bytes of the hash (SnappyDB only takes String keys, so every byte is carried
+ * as one ISO-8859-1 char) and puts are buffered in memory while the chain is far behind, then written in batches.
+ * The chain head is kept in memory and only persisted when a batch is flushed, so the stored head never
+ * points to a block that is not on disk.
+ *
+ * Old blocks can be pruned, they are deleted in small chunks so the chain is not held while the store shrinks.
  */
 
-public class SnappyBlockchainStore implements BlockStore{
+public class SnappyBlockchainStore implements PrunableBlockStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SnappyBlockchainStore.class);
 
     private static final String CHAIN_HEAD_KEY_STRING = "chainhead";
+    /** Present on stores written with raw hash keys, stores without it still have the old hex keys */
+    private static final String KEY_FORMAT_KEY_STRING = "keyformat";
+    private static final byte[] KEY_FORMAT_RAW = new byte[]{1};
+
+    private static final Charset KEY_CHARSET = Charset.forName("ISO-8859-1");
+
+    /** Amount of blocks buffered before writing them to disk */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    /** Amount of blocks deleted while holding the store lock */
+    private static final int PRUNE_CHUNK_SIZE = 500;
+    /** Blocks newer than this are written as soon as they arrive, the chain is considered synced */
+    private static final long FLUSH_IMMEDIATELY_BLOCK_AGE_MS = TimeUnit.HOURS.toMillis(2);
 
     private final Context context;
     private DB db;
-    private final ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
-    private final ByteBuffer zerocoinBuffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE_ZEROCOIN);
     private final File path;
     private final String filename;
 
+    private final int batchSize;
+    /** Blocks waiting to be written, key -> compact serialized block */
+    private final Map<String,byte[]> pendingPuts = new LinkedHashMap<>();
+    private StoredBlock chainHead;
+    private boolean chainHeadDirty;
+    /** True if the store was created before the raw keys, old blocks are looked up by hex key as fallback */
+    private boolean legacyKeys;
 
-    /** Creates a LevelDB SPV block store using the given factory, which is useful if you want a pure Java version. */
+
+    /** Creates a SnappyDB SPV block store in the given directory */
     public SnappyBlockchainStore(Context context, File directory,String filename) throws BlockStoreException {
+        this(context,directory,filename,DEFAULT_BATCH_SIZE);
+    }
+
+    public SnappyBlockchainStore(Context context, File directory,String filename,int batchSize) throws BlockStoreException {
         this.context = context;
         this.path = directory;
         this.filename = filename;
+        this.batchSize = batchSize;
         try {
             tryOpen(directory, filename);
         } catch (IOException e) {
             throw new BlockStoreException(e);
-            /*try {
-                dbFactory.repair(directory, options);
-                tryOpen(directory, dbFactory, options);
-            } catch (IOException e1) {
-                throw new BlockStoreException(e1);
-            }*/
         }
     }
 
@@ -66,76 +98,138 @@ public class SnappyBlockchainStore implements BlockStore{
 
     private synchronized void initStoreIfNeeded() throws BlockStoreException {
         try {
-            if (db.getBytes(CHAIN_HEAD_KEY_STRING) != null)
-                return;   // Already initialised.
+            if (db.exists(CHAIN_HEAD_KEY_STRING)) {
+                // Already initialised.
+                legacyKeys = !db.exists(KEY_FORMAT_KEY_STRING);
+                if (legacyKeys)
+                    log.info("block store with hex keys, reading old blocks with the legacy format");
+                return;
+            }
+            db.put(KEY_FORMAT_KEY_STRING, KEY_FORMAT_RAW);
         } catch (SnappydbException e) {
-            // not initialized
-            Block genesis = context.getParams().getGenesisBlock().cloneAsHeader();
-            StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
-            put(storedGenesis);
-            setChainHead(storedGenesis);
+            throw new BlockStoreException(e);
         }
+        // not initialized
+        Block genesis = context.getParams().getGenesisBlock().cloneAsHeader();
+        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+        put(storedGenesis);
+        setChainHead(storedGenesis);
+        flush();
     }
 
     @Override
     public synchronized void put(StoredBlock block) throws BlockStoreException {
-        try {
-            //System.out.println("### trying to save something..");
-            ByteBuffer buffer;
-            buffer = block.getHeader().isZerocoin() ? zerocoinBuffer : this.buffer;
-            buffer.clear();
-            //System.out.println("Block information: " + block.toString());
-            block.serializeCompact(buffer);
-            Sha256Hash blockHash = block.getHeader().getHash();
-            //System.out.println("### block hash to save: " + blockHash.toString());
-            //byte[] hash = blockHash.getBytes();
-            byte[] dbBuffer = buffer.array();
-            db.put(blockHash.toString(), dbBuffer);
-            // just for now to check something:
-            StoredBlock dbBlock = get(blockHash);
-
-            assert Arrays.equals(dbBlock.getHeader().getHash().getBytes(), blockHash.getBytes()) : "put is different than get in db.. " + block.getHeader().getHashAsString() + ", db: " + dbBlock.getHeader().getHashAsString();
-        } catch (SnappydbException e) {
-            e.printStackTrace();
-            throw new BlockStoreException(e);
-        }
+        byte[] bytes = new byte[block.getHeader().isZerocoin() ? StoredBlock.COMPACT_SERIALIZED_SIZE_ZEROCOIN : StoredBlock.COMPACT_SERIALIZED_SIZE];
+        block.serializeCompact(ByteBuffer.wrap(bytes));
+        pendingPuts.put(toKey(block.getHeader().getHash()), bytes);
+        if (pendingPuts.size() >= batchSize)
+            flush();
     }
 
     @Override @Nullable
     public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        if (chainHead != null && chainHead.getHeader().getHash().equals(hash))
+            return chainHead;
+        String key = toKey(hash);
+        byte[] bits = pendingPuts.get(key);
         try {
-            String blockToGet = hash.toString();
-            if (!db.exists(blockToGet)) {
-                //System.out.println("Block to get doesn't exists: "+blockToGet);
-                return null;
-            }
-            byte[] bits = db.getBytes(blockToGet);
             if (bits == null)
-                return null;
-            return StoredBlock.deserializeCompact(context.getParams(), ByteBuffer.wrap(bits));
+                bits = read(key);
+            if (bits == null && legacyKeys)
+                bits = read(hash.toString());
         } catch (SnappydbException e) {
-            e.printStackTrace();
-            return null;
+            throw new BlockStoreException(e);
         }
+        if (bits == null)
+            return null;
+        return StoredBlock.deserializeCompact(context.getParams(), ByteBuffer.wrap(bits));
     }
 
     @Override
     public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        if (chainHead == null) {
+            try {
+                chainHead = get(Sha256Hash.wrap(db.getBytes(CHAIN_HEAD_KEY_STRING)));
+            } catch (SnappydbException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead;
+        this.chainHeadDirty = true;
+        // once the chain is synced there is nothing to batch, write every block
+        long blockAge = System.currentTimeMillis() - chainHead.getHeader().getTimeSeconds() * 1000;
+        if (blockAge < FLUSH_IMMEDIATELY_BLOCK_AGE_MS)
+            flush();
+    }
+
+    /**
+     * Write the buffered blocks and the chain head.
+     * Blocks go first, the chain head is the last thing written.
+     */
+    public synchronized void flush() throws BlockStoreException {
         try {
-            System.out.println("Calling get Method from chain head");
-            return get(Sha256Hash.wrap(db.getBytes(CHAIN_HEAD_KEY_STRING)));
+            if (!pendingPuts.isEmpty()) {
+                for (Map.Entry<String, byte[]> entry : pendingPuts.entrySet()) {
+                    db.put(entry.getKey(), entry.getValue());
+                }
+                pendingPuts.clear();
+            }
+            if (chainHeadDirty) {
+                db.put(CHAIN_HEAD_KEY_STRING, chainHead.getHeader().getHash().getBytes());
+                chainHeadDirty = false;
+            }
         } catch (SnappydbException e) {
-            e.printStackTrace();
             throw new BlockStoreException(e);
         }
     }
 
+    /** Blocks buffered in memory, not written yet */
+    public synchronized int getPendingPuts() {
+        return pendingPuts.size();
+    }
+
     @Override
-    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+    public long pruneBelow(StoredBlock oldestKept) throws BlockStoreException {
+        flush();
+        long reclaimed = 0;
+        Sha256Hash hash = oldestKept.getHeader().getPrevBlockHash();
+        while (hash != null) {
+            long[] chunkReclaimed = new long[1];
+            hash = pruneChunk(hash, chunkReclaimed);
+            reclaimed += chunkReclaimed[0];
+        }
+        if (reclaimed > 0)
+            log.info("block store pruned below height {}, {} bytes reclaimed", oldestKept.getHeight(), reclaimed);
+        return reclaimed;
+    }
+
+    /**
+     * Delete up to {@link #PRUNE_CHUNK_SIZE} blocks walking back from the given hash.
+     *
+     * @return hash of the next block to delete, null once there is nothing else below.
+     */
+    private synchronized Sha256Hash pruneChunk(Sha256Hash hash, long[] reclaimed) throws BlockStoreException {
         try {
-            db.put(CHAIN_HEAD_KEY_STRING, chainHead.getHeader().getHash().getBytes());
+            for (int i = 0; i < PRUNE_CHUNK_SIZE; i++) {
+                String key = toKey(hash);
+                byte[] bits = read(key);
+                if (bits == null && legacyKeys) {
+                    key = hash.toString();
+                    bits = read(key);
+                }
+                if (bits == null)
+                    return null;
+                db.del(key);
+                reclaimed[0] += key.length() + bits.length;
+                hash = StoredBlock.deserializeCompact(context.getParams(), ByteBuffer.wrap(bits)).getHeader().getPrevBlockHash();
+            }
+            return hash;
         } catch (SnappydbException e) {
-            e.printStackTrace();
             throw new BlockStoreException(e);
         }
     }
@@ -143,7 +237,8 @@ public class SnappyBlockchainStore implements BlockStore{
     @Override
     public synchronized void close() throws BlockStoreException {
         try {
-            db.destroy();
+            flush();
+            db.close();
         } catch (SnappydbException e) {
             throw new BlockStoreException(e);
         }
@@ -157,42 +252,33 @@ public class SnappyBlockchainStore implements BlockStore{
         return filename;
     }
 
-    /** Erases the contents of the database (but NOT the underlying files themselves) and then reinitialises with the genesis block.
-    public synchronized void reset() throws BlockStoreException {
-        try {
-            WriteBatch batch = db.createWriteBatch();
-            try {
-                DBIterator it = db.iterator();
-                try {
-                    it.seekToFirst();
-                    while (it.hasNext())
-                        batch.delete(it.next().getKey());
-                    db.write(batch);
-                } finally {
-                    it.close();
-                }
-            } finally {
-                batch.close();
-            }
-            initStoreIfNeeded();
-        } catch (IOException e) {
-            throw new BlockStoreException(e);
-        }
-    }
-
-    public synchronized void destroy() throws IOException {
-
-        JniDBFactory.factory.destroy(path, new Options());
-    }*/
-
-
-
     @Override
     public NetworkParameters getParams() {
         return context.getParams();
     }
 
-    public void truncate() throws SnappydbException {
+    public synchronized void truncate() throws SnappydbException {
+        pendingPuts.clear();
+        chainHead = null;
+        chainHeadDirty = false;
         db.destroy();
     }
+
+    /**
+     * Read a value, a missing key returns null.
+     * The value is read directly, exists is only checked when the read fails.
+     */
+    private byte[] read(String key) throws SnappydbException {
+        try {
+            return db.getBytes(key);
+        } catch (SnappydbException e) {
+            if (!db.exists(key))
+                return null;
+            throw e;
+        }
+    }
+
+    private static String toKey(Sha256Hash hash){
+        return new String(hash.getBytes(), KEY_CHARSET);
+    }
 }
@@ -13,13 +13,18 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.LocalBroadcastManager;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
 import org.airwirej.core.Block;
 import org.airwirej.core.Coin;
 import org.airwirej.core.FilteredBlock;
@@ -38,20 +43,25 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import chain.BlockProcessingExecutor;
 import chain.BlockchainManager;
 import chain.BlockchainState;
 import chain.Impediment;
+import chain.SyncSchedulePolicy;
 import pivtrum.listeners.AddressListener;
 import airwire.org.airwirewallet.AirWireApplication;
 import airwire.org.airwirewallet.R;
 import airwire.org.airwirewallet.module.AirWireContext;
 import global.AirWireModuleImp;
+import global.WalletConfiguration;
 import airwire.org.airwirewallet.module.store.SnappyBlockchainStore;
 import airwire.org.airwirewallet.rate.CoinMarketCapApiClient;
 import airwire.org.airwirewallet.rate.RequestAirWireRateException;
@@ -65,8 +75,10 @@ import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_ADDRESS_
 import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_BROADCAST_TRANSACTION;
 import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_CANCEL_COINS_RECEIVED;
 import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_NOTIFICATION;
+import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_RESCAN_BLOCKCHAIN;
 import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_RESET_BLOCKCHAIN;
 import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_SCHEDULE_SERVICE;
+import static airwire.org.airwirewallet.service.IntentsConstants.DATA_RESCAN_HEIGHT;
 import static airwire.org.airwirewallet.service.IntentsConstants.DATA_TRANSACTION_HASH;
 import static airwire.org.airwirewallet.service.IntentsConstants.INTENT_BROADCAST_DATA_BLOCKCHAIN_STATE;
 import static airwire.org.airwirewallet.service.IntentsConstants.INTENT_BROADCAST_DATA_ON_COIN_RECEIVED;
@@ -98,6 +110,8 @@ public class AirWireWalletService extends Service{
 
 
     private SnappyBlockchainStore blockchainStore;
+    /** Worker for the sync and wallet callbacks, keeps them off the network thread */
+    private BlockProcessingExecutor blockProcessingExecutor;
     private boolean resetBlockchainOnShutdown = false;
     /** Created service time (just for checks) */
     private long serviceCreatedAt;
@@ -110,6 +124,10 @@ public class AirWireWalletService extends Service{
 
     private volatile long lastUpdateTime = System.currentTimeMillis();
     private volatile long lastMessageTime = System.currentTimeMillis();
+    /** Coins received or sent while the service was up, resets the sync backoff */
+    private volatile boolean walletActivity = false;
+    /** Commands received before the wallet keys loaded */
+    private final List<Intent> pendingCommands = new ArrayList<>();
 
     public class AirWireBinder extends Binder {
         public AirWireWalletService getService() {
@@ -174,6 +192,9 @@ public class AirWireWalletService extends Service{
                     airwireApplication.getAppConf().setLastBestChainBlockTime(block.getTime().getTime());
                     broadcastBlockchainState(true);
                 }
+                // the unspents are final once at the tip
+                if (blocksLeft == 0)
+                    consolidateUnspents();
             }catch (Exception e){
                 e.printStackTrace();
                 CrashReporter.saveBackgroundTrace(e,airwireApplication.getPackageInfo());
@@ -239,6 +260,7 @@ public class AirWireWalletService extends Service{
         public void onCoinsReceived(Wallet wallet, Transaction transaction, Coin coin, Coin coin1) {
             //todo: acá falta una validación para saber si la transaccion es mia.
             org.airwirej.core.Context.propagate(CONTEXT);
+            walletActivity = true;
 
             try {
 
@@ -323,16 +345,39 @@ public class AirWireWalletService extends Service{
     public void onCreate() {
         serviceCreatedAt = System.currentTimeMillis();
         super.onCreate();
+        log.info("AirWire service started");
+        // Android stuff
+        final String lockName = getPackageName() + " blockchain sync";
+        final PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, lockName);
+        nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        broadcastManager = LocalBroadcastManager.getInstance(this);
+        airwireApplication = AirWireApplication.getInstance();
+        // started with the process the wallet keys could still be loading, the commands wait for them
+        Futures.addCallback(airwireApplication.getModuleReadyFuture(), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                if (destroyed)
+                    return;
+                init();
+                for (Intent intent : pendingCommands) {
+                    onCommand(intent);
+                }
+                pendingCommands.clear();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.error("wallet keys not loaded, service stopped", t);
+                pendingCommands.clear();
+                stopSelf();
+            }
+        }, airwireApplication.getMainThreadExecutor());
+    }
+
+    private void init() {
         try {
-            log.info("AirWire service started");
-            // Android stuff
-            final String lockName = getPackageName() + " blockchain sync";
-            final PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-            wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, lockName);
-            nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-            broadcastManager = LocalBroadcastManager.getInstance(this);
             // AirWire
-            airwireApplication = AirWireApplication.getInstance();
             module = (AirWireModuleImp) airwireApplication.getModule();
             blockchainManager = module.getBlockchainManager();
             // connect to pivtrum node
@@ -341,7 +386,7 @@ public class AirWireWalletService extends Service{
             module.setPivtrumPeergroup(pivtrumPeergroup);*/
 
             // Schedule service
-            tryScheduleService();
+            tryScheduleService(false);
 
             peerConnectivityListener = new PeerConnectivityListener();
 
@@ -356,8 +401,9 @@ public class AirWireWalletService extends Service{
                     fileExists
             );
 
-            module.addCoinsReceivedEventListener(coinReceiverListener);
-            module.addOnTransactionConfidenceChange(transactionConfidenceEventListener);
+            blockProcessingExecutor = new BlockProcessingExecutor();
+            module.addCoinsReceivedEventListener(blockProcessingExecutor, coinReceiverListener);
+            module.addOnTransactionConfidenceChange(blockProcessingExecutor, transactionConfidenceEventListener);
 
             final IntentFilter intentFilter = new IntentFilter();
             intentFilter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
@@ -388,6 +434,15 @@ public class AirWireWalletService extends Service{
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         log.info("AirWire service onStartCommand");
+        if (module == null && intent != null) {
+            log.info("wallet keys loading, command queued: " + intent);
+            pendingCommands.add(intent);
+        } else
+            onCommand(intent);
+        return START_NOT_STICKY;
+    }
+
+    private void onCommand(Intent intent) {
         try {
             if (intent != null) {
                 try {
@@ -408,7 +463,10 @@ public class AirWireWalletService extends Service{
                     log.info("will remove blockchain on service shutdown");
                     resetBlockchainOnShutdown = true;
                     stopSelf();
+                } else if (ACTION_RESCAN_BLOCKCHAIN.equals(action)) {
+                    rescanBlockchain(intent.getIntExtra(DATA_RESCAN_HEIGHT, -1));
                 } else if (ACTION_BROADCAST_TRANSACTION.equals(action)) {
+                    walletActivity = true;
                     blockchainManager.broadcastTransaction(intent.getByteArrayExtra(DATA_TRANSACTION_HASH));
                 }
             } else {
@@ -417,13 +475,16 @@ public class AirWireWalletService extends Service{
         }catch (Exception e){
             e.printStackTrace();
         }
-        return START_NOT_STICKY;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         log.info(".onDestroy()");
+        destroyed = true;
+        // the wallet keys never loaded, nothing was started
+        if (module == null)
+            return;
         try {
             // todo: notify module about this shutdown...
             unregisterReceiver(connectivityReceiver);
@@ -441,6 +502,8 @@ public class AirWireWalletService extends Service{
                 }
             }*/
             blockchainManager.destroy(resetBlockchainOnShutdown);
+            if (blockProcessingExecutor != null)
+                blockProcessingExecutor.shutdown();
 
             /*if (pivtrumPeergroup.isRunning()) {
                 pivtrumPeergroup.shutdown();
@@ -452,23 +515,40 @@ public class AirWireWalletService extends Service{
             }
 
             log.info("service was up for " + ((System.currentTimeMillis() - serviceCreatedAt) / 1000 / 60) + " minutes");
-            // schedule service it is not scheduled yet
-            tryScheduleService();
+            // schedule the next sync, this one counts for the backoff
+            tryScheduleService(true);
         }catch (Exception e){
             e.printStackTrace();
         }
     }
 
     /**
-     * Schedule service for later
+     * Schedule service for later, when the sync policy says
+     *
+     * @param syncFinished whether a sync session just ended
      */
-    private void tryScheduleService() {
-        boolean isSchedule = System.currentTimeMillis()<module.getConf().getScheduledBLockchainService();
-
-        if (!isSchedule){
-            log.info("scheduling service");
+    private void tryScheduleService(boolean syncFinished) {
+        WalletConfiguration conf = module.getConf();
+        boolean isSchedule = System.currentTimeMillis()<conf.getScheduledBLockchainService();
+
+        // a finished sync replaces the alarm, the policy knows more now
+        if (!isSchedule || syncFinished){
+            SyncSchedulePolicy policy = new SyncSchedulePolicy(conf.getIdleSyncCount());
+            if (syncFinished) {
+                policy.onSyncFinished(walletActivity);
+                conf.saveIdleSyncCount(policy.getIdleSyncs());
+            }
+            long now = System.currentTimeMillis();
+            long delay = policy.getNextSyncDelayMs(
+                    now,
+                    module.getLastActivityTime(),
+                    blockchainManager.getChainHeadTime(),
+                    module.getNewestPendingOutgoingTxTime(),
+                    airwireApplication.isNetworkMetered()
+            );
+            log.info("scheduling service in " + (delay / 1000) + " seconds, idle syncs " + policy.getIdleSyncs());
             AlarmManager alarm = (AlarmManager)getSystemService(ALARM_SERVICE);
-            long scheduleTime = System.currentTimeMillis() + 2000*60;//(1000 * 60 * 60); // One hour from now
+            long scheduleTime = now + delay;
 
             Intent intent = new Intent(this, AirWireWalletService.class);
             intent.setAction(ACTION_SCHEDULE_SERVICE);
@@ -487,7 +567,7 @@ public class AirWireWalletService extends Service{
                     PendingIntent.getService(this, 0,intent , 0)
             );
             // save
-            module.getConf().saveScheduleBlockchainService(scheduleTime);
+            conf.saveScheduleBlockchainService(scheduleTime);
         }
     }
 
@@ -530,12 +610,40 @@ public class AirWireWalletService extends Service{
     }
 
     private AtomicBoolean isChecking = new AtomicBoolean(false);
+    private AtomicBoolean isWaitingForWallet = new AtomicBoolean(false);
+    private volatile boolean destroyed;
 
     /**
      * Check and download the blockchain if it needed
      */
     private void check() {
         log.info("check");
+        if (!module.getWalletReadyFuture().isDone()) {
+            // a sync before the wallet history is in would miss its transactions
+            if (!isWaitingForWallet.getAndSet(true)) {
+                log.info("wallet still loading, check deferred");
+                final Handler handler = new Handler(Looper.getMainLooper());
+                module.getWalletReadyFuture().addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        isWaitingForWallet.set(false);
+                        if (!destroyed)
+                            check();
+                    }
+                }, new Executor() {
+                    @Override
+                    public void execute(Runnable runnable) {
+                        handler.post(runnable);
+                    }
+                });
+            }
+            return;
+        }
+        if (!module.isWalletLoaded()) {
+            // a sync would move the keys only wallet past its transactions and save it over them
+            log.error("wallet history failed to load, not syncing");
+            return;
+        }
         try {
             if (!isChecking.getAndSet(true)) {
                 blockchainManager.check(
@@ -543,11 +651,12 @@ public class AirWireWalletService extends Service{
                         peerConnectivityListener,
                         peerConnectivityListener,
                         blockchainDownloadListener,
-                        null
+                        blockProcessingExecutor
                         );
                 //todo: ver si conviene esto..
                 broadcastBlockchainState(true);
                 isChecking.set(false);
+                pruneBlockStore();
             }
         }catch (Exception e){
             e.printStackTrace();
@@ -556,6 +665,83 @@ public class AirWireWalletService extends Service{
         }
     }
 
+    /**
+     * Rewind the chain to the given height in background and download again from there
+     *
+     * @param height height to rescan from, -1 for the wallet last seen block
+     */
+    private void rescanBlockchain(final int height) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    org.airwirej.core.Context.propagate(AirWireContext.CONTEXT);
+                    // the rewind needs the wallet history
+                    module.getWalletReadyFuture().get();
+                    int chainHeight = blockchainManager.rescanFrom(height);
+                    log.info("rescanning from height " + chainHeight);
+                    check();
+                } catch (IllegalArgumentException e) {
+                    // below the pruned blocks, only a reset can go there
+                    log.warn(e.getMessage());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    CrashReporter.appendSavedBackgroundTraces(e);
+                }
+            }
+        },"blockchain-rescan").start();
+    }
+
+    private AtomicBoolean isPruning = new AtomicBoolean(false);
+
+    /**
+     * Drop the old blocks of the store in background
+     */
+    private void pruneBlockStore() {
+        if (isPruning.getAndSet(true))
+            return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    org.airwirej.core.Context.propagate(AirWireContext.CONTEXT);
+                    long reclaimed = blockchainManager.pruneBlockStore();
+                    if (reclaimed > 0)
+                        log.info("block store pruned, " + reclaimed + " bytes reclaimed, " + blockchainManager.getPrunedBytes() + " since start");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    isPruning.set(false);
+                }
+            }
+        },"block-store-pruning").start();
+    }
+
+    /** Consolidation already done in this run of the service */
+    private AtomicBoolean isConsolidated = new AtomicBoolean(false);
+
+    /**
+     * Merge the small unspents in background, once per run and only if the user enabled it
+     */
+    private void consolidateUnspents() {
+        if (!module.getConf().isAutoConsolidationEnabled() || isConsolidated.getAndSet(true))
+            return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    org.airwirej.core.Context.propagate(AirWireContext.CONTEXT);
+                    List<Transaction> sent = module.consolidate();
+                    if (!sent.isEmpty())
+                        log.info("unspents consolidated in " + sent.size() + " transactions");
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    CrashReporter.saveBackgroundTrace(e,airwireApplication.getPackageInfo());
+                }
+            }
+        },"unspents-consolidation").start();
+    }
+
     private void broadcastBlockchainState(boolean isCheckOk) {
         boolean showNotif = false;
         if (!impediments.isEmpty()) {
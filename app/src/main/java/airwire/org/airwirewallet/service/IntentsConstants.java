@@ -21,6 +21,8 @@ public class IntentsConstants {
     public static final String ACTION_SCHEDULE_SERVICE = "schedule_service";
     public static final String ACTION_CANCEL_COINS_RECEIVED = "cancel_coins";
     public static final String ACTION_RESET_BLOCKCHAIN = "reset_blockchain";
+    /** Rewind the chain and download again from {@link #DATA_RESCAN_HEIGHT} */
+    public static final String ACTION_RESCAN_BLOCKCHAIN = "rescan_blockchain";
     public static final String ACTION_BROADCAST_TRANSACTION = "broad_tx";
 
     public static final String ACTION_NOTIFICATION = "service_not";
@@ -30,9 +32,13 @@ public class IntentsConstants {
 
     // Data
     public static final String DATA_TRANSACTION_HASH = "tx_hash";
+    /** Height to rescan from, the wallet last seen block if missing */
+    public static final String DATA_RESCAN_HEIGHT = "rescan_height";
     public static final String INTENT_EXTRA_BLOCKCHAIN_STATE = "blockchain_state_data";
 
     // Notifications types
     public static final String INTENT_BROADCAST_DATA_ON_COIN_RECEIVED = "on_coin_received";
+    /** Wallet transaction history loaded at startup */
+    public static final String INTENT_BROADCAST_DATA_WALLET_LOADED = "wallet_loaded";
 
 }
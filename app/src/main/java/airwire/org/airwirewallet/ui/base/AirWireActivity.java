@@ -13,6 +13,7 @@ import airwire.org.airwirewallet.AirWireApplication;
 import airwire.org.airwirewallet.R;
 import global.AirWireModule;
 import airwire.org.airwirewallet.ui.base.dialogs.SimpleTextDialog;
+import airwire.org.airwirewallet.ui.initial.InitialActivity;
 import airwire.org.airwirewallet.utils.DialogsUtil;
 
 import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_STORED_BLOCKCHAIN_ERROR;
@@ -47,12 +48,23 @@ public class AirWireActivity extends AppCompatActivity {
         }
     };
 
+    /**
+     * Subclasses return right after this if {@link #isFinishing()}: the wallet keys are not loaded, the activity
+     * was restored after the process died, and the launch screen is opened instead to wait for them.
+     */
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
         airwireApplication = AirWireApplication.getInstance();
-        airwireModule = airwireApplication.getModule();
         localBroadcastManager = LocalBroadcastManager.getInstance(this);
+        if (!airwireApplication.isModuleReady()) {
+            // no saved state, the fragments would need the module
+            super.onCreate(null);
+            startActivity(new Intent(this, InitialActivity.class));
+            finish();
+            return;
+        }
+        super.onCreate(savedInstanceState);
+        airwireModule = airwireApplication.getModule();
     }
 
     @Override
@@ -25,6 +25,8 @@ public abstract class BaseActivity extends AirWireActivity {
     @Override
     protected final void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (isFinishing())
+            return;
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
         if (isFullScreen()) {
             requestWindowFeature(Window.FEATURE_NO_TITLE);
@@ -71,6 +71,8 @@ public class BaseDrawerActivity extends AirWireActivity implements NavigationVie
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        if (isFinishing())
+            return;
         beforeCreate();
         setContentView(R.layout.activity_main);
         toolbar = (Toolbar) findViewById(R.id.toolbar);
@@ -249,6 +249,9 @@ public class CrashPopupActivity extends AppCompatActivity implements View.OnClic
 
     @Nullable
     protected CharSequence collectWalletDump() throws IOException{
+        // the crash could be the keys failing to load
+        if (!airwireApplication.isModuleReady())
+            return null;
         return ((AirWireModuleImp)airwireApplication.getModule()).getWallet().toString(false,true,true,null);
     }
 }
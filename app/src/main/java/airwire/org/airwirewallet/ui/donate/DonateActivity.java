@@ -79,6 +79,7 @@ public class DonateActivity extends BaseDrawerActivity {
     
             Transaction transaction = airwireModule.buildSendTx(addressStr, amount, memo,airwireModule.getReceiveAddress());
             // send it
+            transaction = airwireModule.signTx(transaction);
             airwireModule.commitTx(transaction);
             Intent intent = new Intent(DonateActivity.this, AirWireWalletService.class);
             intent.setAction(ACTION_BROADCAST_TRANSACTION);
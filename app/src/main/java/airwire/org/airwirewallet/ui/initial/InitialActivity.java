@@ -4,6 +4,10 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
+import android.widget.ProgressBar;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 
 import airwire.org.airwirewallet.AirWireApplication;
 import airwire.org.airwirewallet.ui.splash_activity.SplashActivity;
@@ -12,6 +16,8 @@ import airwire.org.airwirewallet.utils.AppConf;
 
 /**
  * Created by akshaynexus on 8/19/17.
+ *
+ * Launch screen, waits for the wallet keys before any screen using the module is opened.
  */
 
 public class InitialActivity extends AppCompatActivity {
@@ -20,7 +26,25 @@ public class InitialActivity extends AppCompatActivity {
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         AirWireApplication airwireApplication = AirWireApplication.getInstance();
-        AppConf appConf = airwireApplication.getAppConf();
+        if (!airwireApplication.getModuleReadyFuture().isDone())
+            setContentView(new ProgressBar(this));
+        Futures.addCallback(airwireApplication.getModuleReadyFuture(), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                if (!isFinishing())
+                    start();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // nothing works without the keys, reported as a crash
+                throw new IllegalStateException("wallet keys not loaded", t);
+            }
+        }, airwireApplication.getMainThreadExecutor());
+    }
+
+    private void start() {
+        AppConf appConf = AirWireApplication.getInstance().getAppConf();
         // show report dialog if something happen with the previous process
         Intent intent;
         if (!appConf.isAppInit() || appConf.isSplashSoundEnabled()){
@@ -25,6 +25,7 @@ import java.util.List;
 
 import airwire.org.airwirewallet.R;
 import global.AddressLabel;
+import global.airwire.TxSizeEstimator;
 import airwire.org.airwirewallet.ui.base.BaseFragment;
 import airwire.org.airwirewallet.ui.base.tools.adapter.BaseRecyclerAdapter;
 import airwire.org.airwirewallet.ui.base.tools.adapter.BaseRecyclerViewHolder;
@@ -150,7 +151,8 @@ public class FragmentTxDetail extends BaseFragment implements View.OnClickListen
 
         txt_confirmations.setText(String.valueOf(transactionWrapper.getTransaction().getConfidence().getDepthInBlocks()));
 
-        txt_tx_weight.setText(transactionWrapper.getTransaction().unsafeBitcoinSerialize().length+" bytes");
+        // unsigned until the send is confirmed
+        txt_tx_weight.setText(TxSizeEstimator.estimateSignedSize(transactionWrapper.getTransaction())+" bytes");
 
         txt_inputs.setText(getString(R.string.tx_detail_inputs,transactionWrapper.getTransaction().getInputs().size()));
 
@@ -1,6 +1,7 @@
 package airwire.org.airwirewallet.ui.transaction_send_activity;
 
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.Nullable;
 import android.text.Editable;
 import android.text.TextWatcher;
@@ -14,11 +15,15 @@ import android.widget.TextView;
 import android.widget.ViewFlipper;
 
 import org.airwirej.core.Coin;
+import org.airwirej.core.Transaction;
 
 import java.math.BigDecimal;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import airwire.org.airwirewallet.R;
 import global.AirWireRate;
+import global.airwire.FeePreview;
 import airwire.org.airwirewallet.ui.base.BaseFragment;
 
 /**
@@ -27,15 +32,23 @@ import airwire.org.airwirewallet.ui.base.BaseFragment;
 
 public class AmountInputFragment extends BaseFragment implements View.OnClickListener {
 
+    /** Typing pause before the fee is estimated */
+    private static final long FEE_PREVIEW_DELAY_MS = 300;
+
     private View root;
 
     private EditText edit_amount, editCurrency;
-    private TextView txt_currency_amount, txtShowPiv,txt_local_currency;
+    private TextView txt_currency_amount, txtShowPiv,txt_local_currency,txt_fee_preview;
     private ImageButton btnSwap;
     private ViewFlipper amountSwap;
     private AirWireRate airwireRate;
     private boolean inCCC = true;
 
+    private final Handler handler = new Handler();
+    private ExecutorService executor;
+    /** Amount of the last preview asked, older results are dropped */
+    private volatile Coin previewAmount;
+
     @Nullable
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
@@ -45,6 +58,7 @@ public class AmountInputFragment extends BaseFragment implements View.OnClickLis
         editCurrency = (EditText) root.findViewById(R.id.edit_amount_currency);
         txt_currency_amount = (TextView) root.findViewById(R.id.txt_currency_amount);
         txt_local_currency = (TextView) root.findViewById(R.id.txt_local_currency);
+        txt_fee_preview = (TextView) root.findViewById(R.id.txt_fee_preview);
         txtShowPiv = (TextView) root.findViewById(R.id.txt_show_piv) ;
         //Swap type of ammounts
         amountSwap = (ViewFlipper) root.findViewById( R.id.viewFlipper );
@@ -128,12 +142,102 @@ public class AmountInputFragment extends BaseFragment implements View.OnClickLis
                     else
                         txt_local_currency.setText(R.string.no_rate);
                 }
+                updateFeePreview(s.toString());
             }
         });
 
         return root;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        handler.removeCallbacksAndMessages(null);
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Fee the amount would pay, estimated without building the transaction so it can follow the typing. Once the
+     * typing pauses and off the main thread, the selection sorts all the unspents.
+     */
+    private void updateFeePreview(String valueStr) {
+        handler.removeCallbacksAndMessages(null);
+        previewAmount = null;
+        // the fragment is used to request too
+        if (!(getActivity() instanceof SendActivity) || valueStr.length() == 0) {
+            txt_fee_preview.setVisibility(View.GONE);
+            return;
+        }
+        final Coin amount;
+        try {
+            if (valueStr.charAt(0) == '.') {
+                valueStr = "0" + valueStr;
+            }
+            amount = Coin.parseCoin(valueStr);
+        } catch (Exception e) {
+            // not an amount yet
+            txt_fee_preview.setVisibility(View.GONE);
+            return;
+        }
+        if (amount.isLessThan(Transaction.MIN_NONDUST_OUTPUT)) {
+            txt_fee_preview.setVisibility(View.GONE);
+            return;
+        }
+        final Coin feePerKb = ((SendActivity) getActivity()).getFee();
+        previewAmount = amount;
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (executor == null)
+                    return;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        FeePreview preview = null;
+                        try {
+                            preview = airwireModule.previewFee(amount, feePerKb);
+                        } catch (Exception e) {
+                            // wallet not ready, nothing shown
+                        }
+                        final FeePreview feePreview = preview;
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // typed again meanwhile
+                                if (amount != previewAmount || getActivity() == null)
+                                    return;
+                                showFeePreview(feePreview);
+                            }
+                        });
+                    }
+                });
+            }
+        }, FEE_PREVIEW_DELAY_MS);
+    }
+
+    private void showFeePreview(FeePreview feePreview) {
+        if (feePreview == null) {
+            txt_fee_preview.setVisibility(View.GONE);
+            return;
+        }
+        if (feePreview.isEnough())
+            txt_fee_preview.setText(getString(R.string.fee_preview, feePreview.getFee().toFriendlyString(), feePreview.getSize()));
+        else
+            txt_fee_preview.setText(getString(R.string.fee_preview_missing, feePreview.getMissing().toFriendlyString()));
+        txt_fee_preview.setVisibility(View.VISIBLE);
+    }
+
     public String getAmountStr() throws Exception {
         if (edit_amount == null && editCurrency == null){
             throw new Exception("Fragment is not attached");
@@ -32,6 +32,7 @@ import org.airwirej.core.Address;
 import org.airwirej.core.Coin;
 import org.airwirej.core.InsufficientMoneyException;
 import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
 import org.airwirej.core.Transaction;
 import org.airwirej.core.TransactionInput;
 import org.airwirej.core.TransactionOutput;
@@ -542,6 +543,10 @@ public class SendActivity extends BaseActivity implements View.OnClickListener {
                     CrashReporter.saveBackgroundTrace(e,airwireApplication.getPackageInfo());
                     showErrorDialog(R.string.commit_tx_fail);
                 }
+            }else if (transaction!=null){
+                // cancelled, its outputs are free for the next one
+                airwireModule.releaseTx(transaction);
+                transaction = null;
             }
         }else if(requestCode == MULTIPLE_ADDRESSES_SEND_RESULT){
             if (resultCode == RESULT_OK){
@@ -719,7 +724,6 @@ public class SendActivity extends BaseActivity implements View.OnClickListener {
                 // check if there is a need to change the change address
                 if (changeToOrigin){
                     transaction = changeChangeAddressToOriginAddress(transaction,changeAddressTemp);
-                    transaction = airwireModule.completeTx(transaction);
                 }
             }else {
                 transaction = new Transaction(params);
@@ -776,7 +780,6 @@ public class SendActivity extends BaseActivity implements View.OnClickListener {
                 // check if there is a need to change the change address
                 if (changeToOrigin){
                     transaction = changeChangeAddressToOriginAddress(transaction,changeAddressTemp);
-                    transaction = airwireModule.completeTx(transaction);
                 }
             }
 
@@ -824,6 +827,7 @@ public class SendActivity extends BaseActivity implements View.OnClickListener {
         if (!airwireModule.isAddressUsed(originAddress)) throw new IllegalStateException("origin address is not on the wallet: "+originAddress);
 
         // Now i just have to re organize the outputs.
+        Sha256Hash completedHash = transaction.getHash();
         TransactionOutput changeOutput = null;
         List<TransactionOutput> outputs = new ArrayList<>();
         for (TransactionOutput transactionOutput : transaction.getOutputs()) {
@@ -839,6 +843,9 @@ public class SendActivity extends BaseActivity implements View.OnClickListener {
         }
         // now the new change address with the same value
         transaction.addOutput(changeOutput.getValue(),originAddress);
+        // its inputs are claimed by the hash it was completed with
+        if (!airwireModule.moveClaims(completedHash, transaction))
+            throw new IllegalArgumentException("Inputs already used by another send, please try again");
         return transaction;
     }
 
@@ -876,6 +883,14 @@ public class SendActivity extends BaseActivity implements View.OnClickListener {
             showErrorDialog(R.string.commit_tx_fail);
             return;
         }
+        // signed only now, the fee was estimated while it was built
+        try {
+            transaction = airwireModule.signTx(transaction);
+        } catch (IllegalStateException e) {
+            logger.error("cannot sign the transaction", e);
+            showErrorDialog(R.string.commit_tx_fail);
+            return;
+        }
         airwireModule.commitTx(transaction);
         Intent intent = new Intent(SendActivity.this, AirWireWalletService.class);
         intent.setAction(ACTION_BROADCAST_TRANSACTION);
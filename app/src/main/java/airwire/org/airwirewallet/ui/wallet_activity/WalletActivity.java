@@ -53,6 +53,7 @@ import airwire.org.airwirewallet.utils.scanner.ScanActivity;
 import static android.Manifest.permission.CAMERA;
 import static airwire.org.airwirewallet.service.IntentsConstants.ACTION_NOTIFICATION;
 import static airwire.org.airwirewallet.service.IntentsConstants.INTENT_BROADCAST_DATA_ON_COIN_RECEIVED;
+import static airwire.org.airwirewallet.service.IntentsConstants.INTENT_BROADCAST_DATA_WALLET_LOADED;
 import static airwire.org.airwirewallet.service.IntentsConstants.INTENT_BROADCAST_DATA_TYPE;
 import static airwire.org.airwirewallet.ui.transaction_send_activity.SendActivity.INTENT_ADDRESS;
 import static airwire.org.airwirewallet.ui.transaction_send_activity.SendActivity.INTENT_EXTRA_TOTAL_AMOUNT;
@@ -89,7 +90,8 @@ public class WalletActivity extends BaseDrawerActivity {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (action.equals(ACTION_NOTIFICATION)){
-                if(intent.getStringExtra(INTENT_BROADCAST_DATA_TYPE).equals(INTENT_BROADCAST_DATA_ON_COIN_RECEIVED)){
+                String type = intent.getStringExtra(INTENT_BROADCAST_DATA_TYPE);
+                if(type.equals(INTENT_BROADCAST_DATA_ON_COIN_RECEIVED) || type.equals(INTENT_BROADCAST_DATA_WALLET_LOADED)){
                     // Check if the app is on foreground to update the view.
                     if (!isOnForeground)return;
                     updateBalance();
@@ -251,29 +251,34 @@ public class CrashReporter {
 		report.append(
 				"Time of backup: " + (lastBackupTime > 0 ? String.format(Locale.US, "%tF %tT %tZ", calendar, calendar, calendar) : "none") + "\n");
 		report.append("Network: " + AirWireContext.NETWORK_PARAMETERS.getId() + "\n");
-		final Wallet wallet = ((AirWireModuleImp)application.getModule()).getWallet();
-		report.append("Encrypted: " + wallet.isEncrypted() + "\n");
-		report.append("Keychain size: " + wallet.getKeyChainGroupSize() + "\n");
-
-		final Set<Transaction> transactions = wallet.getTransactions(true);
-		int numInputs = 0;
-		int numOutputs = 0;
-		int numSpentOutputs = 0;
-		for (final Transaction tx : transactions)
-		{
-			numInputs += tx.getInputs().size();
-			final List<TransactionOutput> outputs = tx.getOutputs();
-			numOutputs += outputs.size();
-			for (final TransactionOutput txout : outputs)
+		// the crash could be the keys failing to load
+		if (application.isModuleReady()) {
+			final Wallet wallet = ((AirWireModuleImp)application.getModule()).getWallet();
+			report.append("Encrypted: " + wallet.isEncrypted() + "\n");
+			report.append("Keychain size: " + wallet.getKeyChainGroupSize() + "\n");
+
+			final Set<Transaction> transactions = wallet.getTransactions(true);
+			int numInputs = 0;
+			int numOutputs = 0;
+			int numSpentOutputs = 0;
+			for (final Transaction tx : transactions)
 			{
-				if (!txout.isAvailableForSpending())
-					numSpentOutputs++;
+				numInputs += tx.getInputs().size();
+				final List<TransactionOutput> outputs = tx.getOutputs();
+				numOutputs += outputs.size();
+				for (final TransactionOutput txout : outputs)
+				{
+					if (!txout.isAvailableForSpending())
+						numSpentOutputs++;
+				}
 			}
+			report.append("Transactions: " + transactions.size() + "\n");
+			report.append("Inputs: " + numInputs + "\n");
+			report.append("Outputs: " + numOutputs + " (spent: " + numSpentOutputs + ")\n");
+			report.append("Last block seen: " + wallet.getLastBlockSeenHeight() + " (" + wallet.getLastBlockSeenHash() + ")\n");
+		} else {
+			report.append("Wallet: not loaded\n");
 		}
-		report.append("Transactions: " + transactions.size() + "\n");
-		report.append("Inputs: " + numInputs + "\n");
-		report.append("Outputs: " + numOutputs + " (spent: " + numSpentOutputs + ")\n");
-		report.append("Last block seen: " + wallet.getLastBlockSeenHeight() + " (" + wallet.getLastBlockSeenHash() + ")\n");
 
 		report.append("Databases:");
 		for (final String db : application.databaseList())
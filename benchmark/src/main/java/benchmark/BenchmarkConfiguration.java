@@ -0,0 +1,175 @@
+package benchmark;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.Context;
+import org.airwirej.core.ECKey;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.params.MainNetParams;
+
+import java.util.Collections;
+import java.util.List;
+
+import global.WalletConfiguration;
+
+/**
+ * Mainnet configuration with the wallet files under fixed names, nothing is synced.
+ */
+public class BenchmarkConfiguration implements WalletConfiguration {
+
+    public static final NetworkParameters NETWORK_PARAMETERS = MainNetParams.get();
+    public static final Context CONTEXT = new Context(NETWORK_PARAMETERS);
+
+    public static final String WALLET_FILENAME = "wallet-protobuf";
+    /** The BIP39 english word list shipped in airwirej */
+    public static final String WORDLIST_RESOURCE = "org/airwirej/crypto/mnemonic/wordlist/english.txt";
+
+    @Override
+    public int getTrustedNodePort() {
+        return 0;
+    }
+
+    @Override
+    public String getTrustedNodeHost() {
+        return null;
+    }
+
+    @Override
+    public void saveTrustedNode(String host, int port) {
+
+    }
+
+    @Override
+    public void saveScheduleBlockchainService(long time) {
+
+    }
+
+    @Override
+    public long getScheduledBLockchainService() {
+        return 0;
+    }
+
+    @Override
+    public int getIdleSyncCount() {
+        return 0;
+    }
+
+    @Override
+    public void saveIdleSyncCount(int count) {
+
+    }
+
+    @Override
+    public String getMnemonicFilename() {
+        return WORDLIST_RESOURCE;
+    }
+
+    @Override
+    public String getWalletProtobufFilename() {
+        return WALLET_FILENAME;
+    }
+
+    @Override
+    public NetworkParameters getNetworkParams() {
+        return NETWORK_PARAMETERS;
+    }
+
+    @Override
+    public String getKeyBackupProtobuf() {
+        return "key-backup-protobuf";
+    }
+
+    @Override
+    public long getWalletAutosaveDelayMs() {
+        return 5000;
+    }
+
+    @Override
+    public Context getWalletContext() {
+        return CONTEXT;
+    }
+
+    @Override
+    public String getBlockchainFilename() {
+        return null;
+    }
+
+    @Override
+    public String getCheckpointFilename() {
+        return null;
+    }
+
+    @Override
+    public int getPeerTimeoutMs() {
+        return 0;
+    }
+
+    @Override
+    public long getPeerDiscoveryTimeoutMs() {
+        return 0;
+    }
+
+    @Override
+    public int getMinMemoryNeeded() {
+        return 0;
+    }
+
+    @Override
+    public int getBlockCacheSize() {
+        return 0;
+    }
+
+    @Override
+    public int getBlockStoreKeepBlocks() {
+        return 0;
+    }
+
+    @Override
+    public List<ECKey> getHeaderSnapshotSigners() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public double getBloomFilterFalsePositiveRate() {
+        return 0;
+    }
+
+    @Override
+    public long getDailyBandwidthBudget(boolean metered) {
+        return 0;
+    }
+
+    @Override
+    public void saveDailyBandwidthBudget(boolean metered, long bytes) {
+
+    }
+
+    @Override
+    public boolean isAutoConsolidationEnabled() {
+        return false;
+    }
+
+    @Override
+    public void saveAutoConsolidationEnabled(boolean enabled) {
+
+    }
+
+    @Override
+    public Coin getConsolidationFeeBudget() {
+        return Coin.ZERO;
+    }
+
+    @Override
+    public long getBackupMaxChars() {
+        return 0;
+    }
+
+    @Override
+    public boolean isTest() {
+        return false;
+    }
+
+    @Override
+    public int getProtocolVersion() {
+        return 0;
+    }
+}
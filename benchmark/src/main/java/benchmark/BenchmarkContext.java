@@ -0,0 +1,92 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import global.ContextWrapper;
+
+/**
+ * Files of a benchmark kept in one directory, the assets are read from the classpath.
+ */
+public class BenchmarkContext implements ContextWrapper {
+
+    private final File dir;
+
+    public BenchmarkContext(File dir) {
+        this.dir = dir;
+        dir.mkdirs();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    @Override
+    public FileOutputStream openFileOutputPrivateMode(String name) throws IOException {
+        return new FileOutputStream(new File(dir, name));
+    }
+
+    @Override
+    public FileOutputStream openFileOutput(String name, int mode) throws IOException {
+        return openFileOutputPrivateMode(name);
+    }
+
+    @Override
+    public FileInputStream openFileInput(String name) throws IOException {
+        return new FileInputStream(new File(dir, name));
+    }
+
+    @Override
+    public File getFileStreamPath(String name) throws IOException {
+        return new File(dir, name);
+    }
+
+    @Override
+    public File getDir(String name, int mode) {
+        File file = new File(dir, name);
+        file.mkdirs();
+        return file;
+    }
+
+    @Override
+    public File getDirPrivateMode(String name) {
+        return getDir(name, 0);
+    }
+
+    @Override
+    public InputStream openAssestsStream(String name) throws IOException {
+        InputStream stream = BenchmarkContext.class.getResourceAsStream("/" + name);
+        if (stream == null)
+            throw new FileNotFoundException(name);
+        return stream;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "benchmark";
+    }
+
+    @Override
+    public boolean isMemoryLow() {
+        return false;
+    }
+
+    @Override
+    public boolean isNetworkMetered() {
+        return false;
+    }
+
+    @Override
+    public String getVersionName() {
+        return "benchmark";
+    }
+
+    @Override
+    public void stopBlockchain() {
+
+    }
+}
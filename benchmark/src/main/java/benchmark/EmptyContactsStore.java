@@ -0,0 +1,74 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import global.AddressLabel;
+import global.store.ContactsStoreDao;
+
+/**
+ * Contacts store without contacts, the transaction list is measured without the database.
+ */
+public class EmptyContactsStore implements ContactsStoreDao<AddressLabel> {
+
+    @Override
+    public AddressLabel getContact(String address) {
+        return null;
+    }
+
+    @Override
+    public void delete(AddressLabel data) {
+
+    }
+
+    @Override
+    public List<AddressLabel> getMyAddresses() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<AddressLabel> getContacts() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public long insert(AddressLabel obj) {
+        return 0;
+    }
+
+    @Override
+    public ArrayList<AddressLabel> list() {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public AddressLabel get(String whereColumn, Object whereObjValue) {
+        return null;
+    }
+
+    @Override
+    public void updateFieldByKey(String whereColumn, String whereValue, String updateColumn, boolean updateValue) {
+
+    }
+
+    @Override
+    public void updateByKey(String whereColumn, String whereValue, AddressLabel addressLabel) {
+
+    }
+
+    @Override
+    public int updateFieldByKey(String whereColumn, String whereValue, String updateColumn, String updateValue) {
+        return 0;
+    }
+
+    @Override
+    public int numberOfRows() {
+        return 0;
+    }
+
+    @Override
+    public Integer delete(String keyColumn, String columnValue) {
+        return 0;
+    }
+}
@@ -0,0 +1,169 @@
+package benchmark;
+
+import org.airwirej.core.Address;
+import org.airwirej.core.Coin;
+import org.airwirej.core.Context;
+import org.airwirej.core.ECKey;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionConfidence;
+import org.airwirej.core.TransactionInput;
+import org.airwirej.core.TransactionOutPoint;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.script.ScriptBuilder;
+import org.airwirej.wallet.DeterministicKeyChain;
+import org.airwirej.wallet.DeterministicSeed;
+import org.airwirej.wallet.Wallet;
+import org.airwirej.wallet.WalletTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic wallets of a given size: the same arguments always give the same transactions.
+ *
+ * The history is made of payments received to the wallet addresses and of payments sent, each spending one of the
+ * outputs received before. Every transaction is confirmed, a few of them per block, and the inputs carry a
+ * signature sized script so the file is as big as a real wallet of that size.
+ */
+public final class SyntheticWallets {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyntheticWallets.class);
+
+    /** BIP39 test vector, the keys are the same on every run */
+    private static final List<String> MNEMONIC = Arrays.asList(
+            "abandon", "abandon", "abandon", "abandon", "abandon", "abandon",
+            "abandon", "abandon", "abandon", "abandon", "abandon", "about");
+    private static final long CREATION_TIME_SECS = 1514764800L;
+
+    private static final int RECEIVE_ADDRESSES = 100;
+    private static final int FOREIGN_ADDRESSES = 20;
+    private static final int TRANSACTIONS_PER_BLOCK = 4;
+    private static final int FIRST_HEIGHT = 100000;
+    private static final long BLOCK_TIME_SECS = 60;
+    private static final Coin FEE = Coin.valueOf(10000);
+
+    private SyntheticWallets() {
+    }
+
+    /**
+     * File of the synthetic wallet, written only if it is not there yet.
+     */
+    public static void ensure(File file, NetworkParameters params, int txCount, int unspentCount) throws IOException {
+        if (file.exists())
+            return;
+        long start = System.currentTimeMillis();
+        Wallet wallet = create(params, txCount, unspentCount);
+        file.getParentFile().mkdirs();
+        wallet.saveToFile(file);
+        LOG.info("synthetic wallet {} written, {} bytes, took {} ms", file, file.length(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @param txCount transactions in the history.
+     * @param unspentCount received outputs left unspent, at most txCount. Rounded up by one when needed for the
+     *                     spends to pair with the receives.
+     */
+    public static Wallet create(NetworkParameters params, int txCount, int unspentCount) {
+        if (txCount <= 0 || unspentCount < 0 || unspentCount > txCount)
+            throw new IllegalArgumentException("bad wallet size, txCount: " + txCount + ", unspentCount: " + unspentCount);
+        Context.propagate(new Context(params));
+        Random random = new Random(31L * txCount + unspentCount);
+
+        Wallet wallet = Wallet.fromSeed(params, new DeterministicSeed(MNEMONIC, null, "", CREATION_TIME_SECS), DeterministicKeyChain.KeyChainType.BIP44_SEND_ONLY);
+        List<Address> receiveAddresses = new ArrayList<>(RECEIVE_ADDRESSES);
+        for (int i = 0; i < RECEIVE_ADDRESSES; i++) {
+            receiveAddresses.add(wallet.freshReceiveAddress());
+        }
+        List<Address> foreignAddresses = new ArrayList<>(FOREIGN_ADDRESSES);
+        for (int i = 0; i < FOREIGN_ADDRESSES; i++) {
+            foreignAddresses.add(ECKey.fromPrivate(BigInteger.valueOf(1000 + i)).toAddress(params));
+        }
+
+        int spendsLeft = (txCount - unspentCount + 1) / 2;
+        int receivesLeft = txCount - spendsLeft;
+        int tipHeight = FIRST_HEIGHT + (txCount - 1) / TRANSACTIONS_PER_BLOCK;
+        List<Transaction> receives = new ArrayList<>(receivesLeft);
+        List<Transaction> spends = new ArrayList<>(spendsLeft);
+        List<TransactionOutput> unspent = new ArrayList<>();
+
+        for (int i = 0; i < txCount; i++) {
+            int height = FIRST_HEIGHT + i / TRANSACTIONS_PER_BLOCK;
+            boolean spend = !unspent.isEmpty() && (receivesLeft == 0 || random.nextInt(spendsLeft + receivesLeft) < spendsLeft);
+            Transaction transaction = new Transaction(params);
+            if (spend) {
+                TransactionOutput output = takeRandom(unspent, random);
+                TransactionInput input = new TransactionInput(params, transaction, signatureScript(random), output.getOutPointFor(), output.getValue());
+                transaction.addInput(input);
+                transaction.addOutput(output.getValue().subtract(FEE), foreignAddresses.get(random.nextInt(FOREIGN_ADDRESSES)));
+                output.markAsSpent(input);
+                spends.add(transaction);
+                spendsLeft--;
+            } else {
+                TransactionOutPoint outPoint = new TransactionOutPoint(params, random.nextInt(2), randomHash(random));
+                transaction.addInput(new TransactionInput(params, transaction, signatureScript(random), outPoint));
+                Coin value = Coin.CENT.multiply(1 + random.nextInt(10000));
+                // the sender change first, half of the time
+                if (random.nextBoolean())
+                    transaction.addOutput(Coin.CENT.multiply(1 + random.nextInt(10000)), foreignAddresses.get(random.nextInt(FOREIGN_ADDRESSES)));
+                unspent.add(transaction.addOutput(value, receiveAddresses.get(random.nextInt(RECEIVE_ADDRESSES))));
+                receives.add(transaction);
+                receivesLeft--;
+            }
+            TransactionConfidence confidence = transaction.getConfidence();
+            confidence.setSource(TransactionConfidence.Source.NETWORK);
+            confidence.setAppearedAtChainHeight(height);
+            confidence.setDepthInBlocks(tipHeight - height + 1);
+            transaction.setUpdateTime(new Date((CREATION_TIME_SECS + (height - FIRST_HEIGHT) * BLOCK_TIME_SECS) * 1000));
+        }
+
+        // pools once every spend is known, the hashes are final by now
+        for (Transaction transaction : receives) {
+            boolean spent = true;
+            for (TransactionOutput output : transaction.getOutputs()) {
+                if (output.isAvailableForSpending() && output.isMine(wallet))
+                    spent = false;
+            }
+            wallet.addWalletTransaction(new WalletTransaction(spent ? WalletTransaction.Pool.SPENT : WalletTransaction.Pool.UNSPENT, transaction));
+        }
+        for (Transaction transaction : spends) {
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, transaction));
+        }
+        wallet.setLastBlockSeenHeight(tipHeight);
+        wallet.setLastBlockSeenHash(randomHash(random));
+        wallet.setLastBlockSeenTimeSecs(CREATION_TIME_SECS + (tipHeight - FIRST_HEIGHT) * BLOCK_TIME_SECS);
+        return wallet;
+    }
+
+    private static TransactionOutput takeRandom(List<TransactionOutput> outputs, Random random) {
+        int index = random.nextInt(outputs.size());
+        TransactionOutput last = outputs.remove(outputs.size() - 1);
+        if (index == outputs.size())
+            return last;
+        return outputs.set(index, last);
+    }
+
+    /** Pay to address input script: a DER signature and a compressed public key */
+    private static byte[] signatureScript(Random random) {
+        byte[] signature = new byte[72];
+        byte[] pubKey = new byte[33];
+        random.nextBytes(signature);
+        random.nextBytes(pubKey);
+        return new ScriptBuilder().data(signature).data(pubKey).build().getProgram();
+    }
+
+    private static Sha256Hash randomHash(Random random) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+}
@@ -0,0 +1,83 @@
+package benchmark;
+
+import org.airwirej.core.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import wallet.WalletManager;
+
+/**
+ * Wallet startup and full save by history size: {@link WalletManager#initKeys()} alone, the whole
+ * {@link WalletManager#init()}, and {@link WalletManager#saveWallet()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class WalletLoadBenchmark {
+
+    @Param({"1000", "10000", "50000", "200000"})
+    public int txCount;
+
+    /** Share of the history still unspent, in percent */
+    @Param({"5", "50"})
+    public int unspentPercent;
+
+    private BenchmarkContext context;
+    private BenchmarkConfiguration conf;
+    /** Loaded once for the save benchmark */
+    private WalletManager loaded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        conf = new BenchmarkConfiguration();
+        Context.propagate(conf.getWalletContext());
+        context = new BenchmarkContext(new File("wallets", "load-" + txCount + "-" + unspentPercent));
+        SyntheticWallets.ensure(context.getFileStreamPath(conf.getWalletProtobufFilename()), conf.getNetworkParams(), txCount, txCount * unspentPercent / 100);
+        loaded = new WalletManager(context, conf);
+        loaded.init();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        loaded.close();
+    }
+
+    @Benchmark
+    public int loadKeys() throws IOException {
+        WalletManager walletManager = new WalletManager(context, conf);
+        walletManager.initKeys();
+        walletManager.close();
+        return walletManager.getLastBlockSeenHeight();
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        WalletManager walletManager = new WalletManager(context, conf);
+        walletManager.init();
+        walletManager.close();
+        return walletManager.getLastBlockSeenHeight();
+    }
+
+    @Benchmark
+    public void save() {
+        loaded.saveWallet();
+    }
+}
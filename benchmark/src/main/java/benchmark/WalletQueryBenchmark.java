@@ -0,0 +1,72 @@
+package benchmark;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import global.AirWireModuleImp;
+import global.wrappers.TransactionWrapper;
+
+/**
+ * What the screens ask the module on a loaded wallet: the balance and the transaction list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class WalletQueryBenchmark {
+
+    @Param({"1000", "10000", "50000", "200000"})
+    public int txCount;
+
+    /** Share of the history still unspent, in percent */
+    @Param({"5", "50"})
+    public int unspentPercent;
+
+    private AirWireModuleImp module;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkConfiguration conf = new BenchmarkConfiguration();
+        Context.propagate(conf.getWalletContext());
+        BenchmarkContext context = new BenchmarkContext(new File("wallets", "query-" + txCount + "-" + unspentPercent));
+        SyntheticWallets.ensure(context.getFileStreamPath(conf.getWalletProtobufFilename()), conf.getNetworkParams(), txCount, txCount * unspentPercent / 100);
+        // the rates and the backups are not used by these calls
+        module = new AirWireModuleImp(context, conf, new EmptyContactsStore(), null, null);
+        module.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        module.close();
+    }
+
+    @Benchmark
+    public Coin balance() {
+        return module.getAvailableBalanceCoin();
+    }
+
+    @Benchmark
+    public List<TransactionWrapper> listTx() {
+        return module.listTx();
+    }
+}
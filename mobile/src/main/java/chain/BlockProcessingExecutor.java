@@ -0,0 +1,148 @@
+package chain;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single worker with a bounded queue for the sync listeners and wallet callbacks, off the network thread.
+ *
+ * Tasks run in submission order on the worker while the queue has room. When it is full the submitting thread
+ * runs the task itself, ahead of the queued ones, that slows the download down to the pace of the worker instead
+ * of queueing without limit. The submitter can't wait for room instead: the wallet submits its listeners holding
+ * its lock and they take it too. Tasks submitted after the shutdown are dropped and logged.
+ */
+public class BlockProcessingExecutor implements Executor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BlockProcessingExecutor.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    private final ThreadPoolExecutor executor;
+    private final int queueSize;
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong queueWaitNanos = new AtomicLong();
+
+    public BlockProcessingExecutor() {
+        this(DEFAULT_QUEUE_SIZE);
+    }
+
+    public BlockProcessingExecutor(int queueSize) {
+        this.queueSize = queueSize;
+        this.executor = new ThreadPoolExecutor(
+                1,
+                1,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "block-processing");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            rejected.incrementAndGet();
+                            LOG.warn("block processing executor stopped, task dropped: {}", runnable);
+                            return;
+                        }
+                        // backpressure, the producer does the work
+                        callerRuns.incrementAndGet();
+                        runnable.run();
+                    }
+                });
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        final long queuedAt = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                queueWaitNanos.addAndGet(System.nanoTime() - queuedAt);
+                executed.incrementAndGet();
+                command.run();
+            }
+
+            @Override
+            public String toString() {
+                return command.toString();
+            }
+        });
+        int depth = executor.getQueue().size();
+        int max;
+        while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth));
+    }
+
+    /** Tasks waiting to run */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** Highest amount of tasks waiting at the same time */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /** Tasks run by the submitting thread because the queue was full, out of order */
+    public long getCallerRuns() {
+        return callerRuns.get();
+    }
+
+    /** Tasks dropped, submitted after the shutdown */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    /** Average time a task waited before running */
+    public double getAverageQueueWaitMs() {
+        long count = executed.get();
+        return count == 0 ? 0 : queueWaitNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * Run the queued tasks and stop the worker.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        LOG.info("block processing executor stopped, {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return "BlockProcessingExecutor{" +
+                "queueDepth=" + getQueueDepth() +
+                ", maxQueueDepth=" + getMaxQueueDepth() +
+                ", queueSize=" + queueSize +
+                ", executed=" + getExecuted() +
+                ", callerRuns=" + getCallerRuns() +
+                ", rejected=" + getRejected() +
+                ", averageQueueWaitMs=" + String.format("%.2f", getAverageQueueWaitMs()) +
+                '}';
+    }
+}
@@ -1,17 +1,28 @@
 package chain;
 
+import com.google.common.base.Function;
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import global.utils.Io;
+import org.airwirej.core.Block;
 import org.airwirej.core.BlockChain;
 import org.airwirej.core.CheckpointManager;
+import org.airwirej.core.ECKey;
+import org.airwirej.core.FilteredBlock;
+import org.airwirej.core.GetDataMessage;
+import org.airwirej.core.Message;
 import org.airwirej.core.Peer;
+import org.airwirej.core.PeerAddress;
 import org.airwirej.core.PeerGroup;
 import org.airwirej.core.Sha256Hash;
 import org.airwirej.core.StoredBlock;
 import org.airwirej.core.Transaction;
 import org.airwirej.core.TransactionBroadcast;
+import org.airwirej.core.listeners.BlocksDownloadedEventListener;
 import org.airwirej.core.listeners.PeerConnectedEventListener;
 import org.airwirej.core.listeners.PeerDataEventListener;
 import org.airwirej.core.listeners.PeerDisconnectedEventListener;
@@ -25,21 +36,36 @@ import org.airwirej.store.BlockStore;
 import org.airwirej.store.BlockStoreException;
 import org.airwirej.store.LevelDBBlockStore;
 import org.airwirej.store.SPVBlockStore;
+import org.airwirej.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
+import chain.checkpoint.CompiledCheckpoints;
+import chain.store.CachingBlockStore;
+import chain.store.HeaderSnapshot;
+import chain.store.HeightIndexedBlockStore;
+import chain.store.HeightIndexedStore;
+import chain.store.PrunableBlockStore;
+import chain.store.RingBufferBlockStore;
+import global.BandwidthBudget;
 import global.ContextWrapper;
 import global.PivtrumGlobalData;
 import global.WalletConfiguration;
@@ -55,6 +81,9 @@ public class BlockchainManager {
     public static final int BLOCKCHAIN_STATE_OFF = 10;
     public static final int BLOCKCHAIN_STATE_ON = 11;
 
+    /** Blocks below the chain head never pruned, deeper than any reorg */
+    static final int MIN_PRUNE_KEEP_BLOCKS = 500;
+
     /** User-agent to use for network access. */
     public final String USER_AGENT;
 
@@ -72,6 +101,30 @@ public class BlockchainManager {
 
     private List<BlockchainManagerListener> blockchainManagerListeners;
 
+    private volatile long prunedBytes;
+    /** Height the store was pruned to, the blocks below it are gone */
+    private volatile int prunedHeight;
+
+    private CompiledCheckpoints compiledCheckpoints;
+    /** The compiled checkpoints were looked for and are not shipped */
+    private boolean compiledCheckpointsMissing;
+
+    private final SyncMetrics syncMetrics = new SyncMetrics();
+    /** Tunes the bloom filter of the current peer group, null if tuning is disabled */
+    private BloomFilterManager bloomFilterManager;
+    /** Peers that worked before, used by the discovery */
+    private PeerAddressCache peerAddressCache;
+    /** Data usage of the day against the budget of the current network */
+    private BandwidthBudget bandwidthBudget;
+    /** Listener registered for the chain download, wraps the given one when it runs on an executor */
+    private PeerDataEventListener downloadListener;
+    /** The chain download of the current peer group was stopped because the data budget is spent */
+    private volatile boolean downloadPaused;
+    /** The wallet is behind the chain and the rewind waits for the budget, the chain download is paused until then */
+    private volatile boolean rescanDeferred;
+    /** Store under the height index and the cache */
+    private BlockStore baseStore;
+
 
     public BlockchainManager(ContextWrapper contextWrapper,WalletManager walletManager, WalletConfiguration conf) {
         this.walletManager = walletManager;
@@ -90,38 +143,54 @@ public class BlockchainManager {
             else {
                 blockChainFile = blockStoreDir;
             }
+            if (blockStoreInit == null && blockChainFile.isDirectory()) {
+                // old LevelDB store, the default store is a single file now
+                blockStoreInit = migrateLevelDbStore();
+            }
             final boolean blockChainFileExists = blockChainFile.exists();
 
             if (!blockChainFileExists) {
                 LOG.info("blockchain does not exist, resetting wallet");
                 walletManager.reset();
+                getPrunedHeightFile().delete();
             }
+            prunedHeight = readPrunedHeight();
 
             // Create the blockstore
             try {
-                this.blockStore = (blockStoreInit!=null) ? blockStoreInit : new LevelDBBlockStore(conf.getWalletContext(), blockChainFile);
+                this.blockStore = (blockStoreInit!=null) ? blockStoreInit : new RingBufferBlockStore(conf.getNetworkParams(), blockChainFile);
+                baseStore = blockStore;
+                if (!(blockStore instanceof HeightIndexedStore))
+                    this.blockStore = new HeightIndexedBlockStore(blockStore, getHeightIndexFile());
+                if (conf.getBlockCacheSize() > 0)
+                    this.blockStore = new CachingBlockStore(blockStore, conf.getBlockCacheSize());
                 blockStore.getChainHead(); // detect corruptions as early as possible
 
                 final long earliestKeyCreationTime = walletManager.getEarliestKeyCreationTime();
 
                 if (!blockChainFileExists && earliestKeyCreationTime > 0 && !(conf.getNetworkParams() instanceof RegTestParams)) {
                     try {
-                        String filename = conf.getCheckpointFilename();
-                        String suffix = conf.getNetworkParams() instanceof MainNetParams ? "":"-testnet";
-                        final Stopwatch watch = Stopwatch.createStarted();
-                        final InputStream checkpointsInputStream =  context.openAssestsStream(filename+suffix);
-                        CheckpointManager.checkpoint(conf.getNetworkParams(), checkpointsInputStream, blockStore, earliestKeyCreationTime);
-                        watch.stop();
-                        LOG.info("checkpoints loaded from '{}', took {}", conf.getCheckpointFilename(), watch);
+                        checkpoint(earliestKeyCreationTime);
+                        // the ring must not overwrite the block the chain starts from
+                        pinBlock(blockStore.getChainHead());
                     }catch (final IOException x) {
                         LOG.error("problem reading checkpoints, continuing without", x);
                     }catch (Exception e){
                         LOG.error("problem reading checkpoints, continuing without", e);
                     }
+                    File snapshotFile = getHeaderSnapshotFile();
+                    if (snapshotFile.exists()) {
+                        try {
+                            importHeaderSnapshot(snapshotFile, earliestKeyCreationTime);
+                        } catch (final IOException x) {
+                            LOG.error("problem reading the header snapshot, continuing without", x);
+                        }
+                    }
                 }
 
             } catch (final BlockStoreException x) {
                 blockChainFile.delete();
+                getHeightIndexFile().delete();
 
                 final String msg = "blockstore cannot be created";
                 LOG.error(msg, x);
@@ -140,6 +209,204 @@ public class BlockchainManager {
 
     }
 
+    /**
+     * Copy the headers of an old LevelDB store to a ring buffer store in its place. The old store is removed only
+     * once they are copied, if they can't be the old store keeps being used. One that can't be opened is removed.
+     *
+     * @return the store to use, null if the old store was already removed.
+     */
+    private BlockStore migrateLevelDbStore() {
+        File ringFile = new File(blockChainFile.getPath() + ".ring");
+        ringFile.delete();
+        LevelDBBlockStore levelDbStore = null;
+        try {
+            levelDbStore = new LevelDBBlockStore(conf.getWalletContext(), blockChainFile);
+            final Stopwatch watch = Stopwatch.createStarted();
+            RingBufferBlockStore ringStore = new RingBufferBlockStore(conf.getNetworkParams(), ringFile);
+            int copied = ringStore.copyFrom(levelDbStore);
+            ringStore.close();
+            levelDbStore.close();
+            levelDbStore = null;
+            Io.delete(blockChainFile);
+            if (!ringFile.renameTo(blockChainFile))
+                throw new IOException("cannot rename " + ringFile + " to " + blockChainFile);
+            LOG.info("old LevelDB block store migrated, {} headers, took {}", copied, watch.stop());
+            return null;
+        } catch (BlockStoreException | IOException e) {
+            ringFile.delete();
+            if (levelDbStore != null) {
+                LOG.error("cannot migrate the old block store, using it as is", e);
+                return levelDbStore;
+            }
+            // it can't be opened or it was half removed, the chain is synced again
+            LOG.error("cannot migrate the old block store, removing it", e);
+            try {
+                Io.delete(blockChainFile);
+            } catch (IOException x) {
+                LOG.error("cannot remove old block store", x);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Start the block store at the last checkpoint before the given time, from the compiled checkpoints when
+     * they are shipped or parsing the checkpoints file otherwise.
+     */
+    private void checkpoint(long timeSecs) throws IOException, BlockStoreException {
+        String filename = conf.getCheckpointFilename();
+        String suffix = conf.getNetworkParams() instanceof MainNetParams ? "":"-testnet";
+        final Stopwatch watch = Stopwatch.createStarted();
+        CompiledCheckpoints compiledCheckpoints = getCompiledCheckpoints();
+        if (compiledCheckpoints != null) {
+            compiledCheckpoints.checkpoint(blockStore, timeSecs);
+            LOG.info("{} compiled checkpoints loaded from '{}', took {}", compiledCheckpoints.size(), filename + suffix + CompiledCheckpoints.FILE_SUFFIX, watch.stop());
+        } else {
+            final InputStream checkpointsInputStream = context.openAssestsStream(filename + suffix);
+            CheckpointManager.checkpoint(conf.getNetworkParams(), checkpointsInputStream, blockStore, timeSecs);
+            LOG.info("checkpoints loaded from '{}', took {}", filename + suffix, watch.stop());
+        }
+    }
+
+    /**
+     * Compiled checkpoints of the network, loaded once.
+     *
+     * @return the checkpoints or null if they are not shipped.
+     */
+    public synchronized CompiledCheckpoints getCompiledCheckpoints() {
+        if (compiledCheckpoints == null && !compiledCheckpointsMissing) {
+            String filename = conf.getCheckpointFilename() + (conf.getNetworkParams() instanceof MainNetParams ? "" : "-testnet") + CompiledCheckpoints.FILE_SUFFIX;
+            try {
+                compiledCheckpoints = CompiledCheckpoints.read(conf.getNetworkParams(), context.openAssestsStream(filename));
+            } catch (IOException e) {
+                compiledCheckpointsMissing = true;
+                LOG.warn("compiled checkpoints '{}' not available", filename);
+            }
+        }
+        return compiledCheckpoints;
+    }
+
+    /**
+     * Bootstrap the block store from a header snapshot. Only the headers a week older than the given time are
+     * imported, the wallet has to see the rest from peers.
+     */
+    private void importHeaderSnapshot(File snapshotFile, long earliestKeyCreationTime) throws IOException, BlockStoreException {
+        final Stopwatch watch = Stopwatch.createStarted();
+        StoredBlock chainHead = HeaderSnapshot.importInto(
+                blockStore,
+                snapshotFile,
+                getCompiledCheckpoints(),
+                getHeaderSnapshotSigners(),
+                // proof of stake starts before the zerocoin blocks
+                (int) conf.getNetworkParams().getZerocoinStartedHeight() - 1,
+                earliestKeyCreationTime - TimeUnit.DAYS.toSeconds(7)
+        );
+        if (chainHead != null)
+            LOG.info("header snapshot '{}' loaded up to height {}, took {}", snapshotFile, chainHead.getHeight(), watch.stop());
+    }
+
+    /**
+     * Export the best chain headers from the given height, to bootstrap other stores.
+     *
+     * @param signingKey key signing the snapshot, null for an unsigned one.
+     * @return amount of headers written.
+     */
+    public int exportHeaderSnapshot(File file, int fromHeight, ECKey signingKey) throws IOException, BlockStoreException {
+        if (!(blockStore instanceof HeightIndexedStore))
+            throw new BlockStoreException("block store can't resolve heights");
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            return HeaderSnapshot.export((HeightIndexedStore) blockStore, fromHeight, outputStream, signingKey);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Keep the headers of a store about to be removed in a snapshot, signed by the key of this device, the new
+     * store is bootstrapped from it instead of downloading them again.
+     */
+    private void keepHeaderSnapshot() {
+        File file = getHeaderSnapshotFile();
+        try {
+            int fromHeight = getSnapshotStartHeight();
+            if (fromHeight < 0) {
+                LOG.info("no checkpoint left in the block store, headers not kept");
+                return;
+            }
+            final Stopwatch watch = Stopwatch.createStarted();
+            int count = exportHeaderSnapshot(file, fromHeight, getHeaderSnapshotKey());
+            LOG.info("{} headers kept in '{}', took {}", count, file, watch.stop());
+        } catch (IOException | BlockStoreException e) {
+            file.delete();
+            LOG.error("cannot keep the headers of the block store", e);
+        }
+    }
+
+    /**
+     * @return height of the newest checkpoint the store still has, the genesis block or -1 if there is none.
+     */
+    private int getSnapshotStartHeight() throws BlockStoreException {
+        if (!(blockStore instanceof HeightIndexedStore))
+            return -1;
+        HeightIndexedStore store = (HeightIndexedStore) blockStore;
+        CompiledCheckpoints checkpoints = getCompiledCheckpoints();
+        if (checkpoints != null) {
+            List<StoredBlock> after = checkpoints.getCheckpointsAfter(0, Long.MAX_VALUE);
+            for (int i = after.size() - 1; i >= 0; i--) {
+                StoredBlock checkpoint = after.get(i);
+                if (checkpoint.getHeader().getHash().equals(store.getHashAtHeight(checkpoint.getHeight())))
+                    return checkpoint.getHeight();
+            }
+        }
+        return conf.getNetworkParams().getGenesisBlock().getHash().equals(store.getHashAtHeight(0)) ? 0 : -1;
+    }
+
+    /** Release keys plus the key this device signs its own snapshots with */
+    private List<ECKey> getHeaderSnapshotSigners() {
+        List<ECKey> signers = new ArrayList<>(conf.getHeaderSnapshotSigners());
+        if (getHeaderSnapshotKeyFile().exists()) {
+            try {
+                signers.add(getHeaderSnapshotKey());
+            } catch (IOException e) {
+                LOG.warn("cannot read the header snapshot key", e);
+            }
+        }
+        return signers;
+    }
+
+    /** Key of this device for its header snapshots, created the first time */
+    private ECKey getHeaderSnapshotKey() throws IOException {
+        File file = getHeaderSnapshotKeyFile();
+        if (file.exists()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                byte[] privKeyBytes = new byte[32];
+                in.readFully(privKeyBytes);
+                return ECKey.fromPrivate(privKeyBytes);
+            } finally {
+                in.close();
+            }
+        }
+        ECKey key = new ECKey();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(key.getPrivKeyBytes());
+        } finally {
+            out.close();
+        }
+        return key;
+    }
+
+    private File getHeaderSnapshotKeyFile() {
+        return new File(blockChainFile.getPath() + ".snapshot-key");
+    }
+
+    /** Snapshot next to the block store used to bootstrap a new store */
+    public File getHeaderSnapshotFile() {
+        return new File(blockChainFile.getPath() + ".snapshot");
+    }
+
     public void addDiscuonnectedEventListener(PeerDisconnectedEventListener listener){
         peerGroup.addDisconnectedEventListener(listener);
     }
@@ -170,13 +437,28 @@ public class BlockchainManager {
     }
 
     /**
+     * Broadcast a committed transaction once the wallet has it on disk, a crash after the peers got it
+     * would otherwise lose the change output.
      *
      * @param transactionHash
      */
     public ListenableFuture<Transaction> broadcastTransaction(byte[] transactionHash) {
         final Sha256Hash hash = Sha256Hash.wrap(transactionHash);
         final Transaction tx = walletManager.getTransaction(hash);
-        return broadcastTransaction(tx);
+        ListenableFuture<Void> saved = Futures.catching(walletManager.flushWallet(), Exception.class, new Function<Exception, Void>() {
+            @Override
+            public Void apply(Exception e) {
+                LOG.warn("broadcasting {} without the wallet synced", hash, e);
+                return null;
+            }
+        }, MoreExecutors.directExecutor());
+        return Futures.transformAsync(saved, new AsyncFunction<Void, Transaction>() {
+            @Override
+            public ListenableFuture<Transaction> apply(Void saved) {
+                ListenableFuture<Transaction> broadcast = broadcastTransaction(tx);
+                return broadcast != null ? broadcast : Futures.<Transaction>immediateFuture(null);
+            }
+        }, MoreExecutors.directExecutor());
     }
     public ListenableFuture<Transaction> broadcastTransaction(Transaction tx){
         if (peerGroup != null) {
@@ -204,17 +486,33 @@ public class BlockchainManager {
             if (peerGroup.isRunning())
                 peerGroup.stopAsync();
             peerGroup = null;
-            LOG.info("peergroup stopped");
+            LOG.info("peergroup stopped, sync {}", syncMetrics.getSnapshot());
+            if (peerAddressCache != null)
+                peerAddressCache.save();
+            if (bandwidthBudget != null) {
+                bandwidthBudget.save();
+                LOG.info("data usage: {}", bandwidthBudget);
+            }
+            if (bloomFilterManager != null)
+                LOG.info("bloom filter: {}", bloomFilterManager);
         }
 
+        if (resetBlockchainOnShutdown)
+            keepHeaderSnapshot();
+
         try {
+            if (blockStore instanceof CachingBlockStore)
+                LOG.info("block store cache: {}", blockStore);
             blockStore.close();
         } catch (final BlockStoreException x) {
             throw new RuntimeException(x);
         }
 
-        // save the wallet
-        walletManager.saveWallet();
+        // save the wallet, unless its history never loaded and it would be saved without it
+        if (walletManager.isHistoryLoaded())
+            walletManager.saveWallet();
+        else
+            LOG.warn("wallet history not loaded, wallet not saved");
 
         if (resetBlockchainOnShutdown) {
             LOG.info("removing blockchain");
@@ -227,19 +525,19 @@ public class BlockchainManager {
                     throw new RuntimeException(e);
                 }
             }
+            getHeightIndexFile().delete();
         }
     }
 
     public void check(Set<Impediment> impediments, PeerConnectedEventListener peerConnectivityListener, PeerDisconnectedEventListener peerDisconnectedEventListener , PeerDataEventListener blockchainDownloadListener, Executor executor){
         synchronized (this) {
             //final Wallet wallet = walletManager.getWallet();
+            BandwidthBudget bandwidthBudget = getBandwidthBudget();
+            // sampled on every check, the service checks again on each connectivity change
+            bandwidthBudget.setNetworkType(context.isNetworkMetered() ? BandwidthBudget.NetworkType.METERED : BandwidthBudget.NetworkType.UNMETERED);
 
             if (impediments.isEmpty() && peerGroup == null) {
 
-                for (BlockchainManagerListener blockchainManagerListener : blockchainManagerListeners) {
-                    blockchainManagerListener.checkStart();
-                }
-
                 // consistency check
                 final int walletLastBlockSeenHeight = walletManager.getLastBlockSeenHeight();
                 final int bestChainHeight = blockChain.getBestChainHeight();
@@ -247,12 +545,48 @@ public class BlockchainManager {
                     final String message = "wallet/blockchain out of sync: " + walletLastBlockSeenHeight + "/" + bestChainHeight;
                     LOG.error(message);
 //                CrashReporter.saveBackgroundTrace(new RuntimeException(message), application.packageInfoWrapper());
+                    // the wallet missed some blocks, download them again instead of the whole chain
+                    if (walletLastBlockSeenHeight < bestChainHeight && !bandwidthBudget.allowRescan()) {
+                        // syncing forward would move the wallet last seen block over the missed ones, the peers
+                        // still connect for the broadcasts
+                        LOG.info("rescan deferred, chain download paused until the data budget allows it, {}", bandwidthBudget);
+                        rescanDeferred = true;
+                    } else if (walletLastBlockSeenHeight < bestChainHeight) {
+                        try {
+                            rewindChain(walletLastBlockSeenHeight);
+                        } catch (BlockStoreException e) {
+                            LOG.error("cannot rescan from the wallet last seen block", e);
+                        }
+                    }
+                }
+
+                for (BlockchainManagerListener blockchainManagerListener : blockchainManagerListeners) {
+                    blockchainManagerListener.checkStart();
                 }
+
                 LOG.info("starting peergroup");
                 peerGroup = new PeerGroup(conf.getNetworkParams(), blockChain);
                 peerGroup.setDownloadTxDependencies(0); // recursive implementation causes StackOverflowError
                 walletManager.addWalletFrom(peerGroup);
                 peerGroup.setUserAgent(USER_AGENT, context.getVersionName());
+                // counting only, cheap enough for the network thread
+                syncMetrics.reset();
+                peerGroup.addChainDownloadStartedEventListener(Threading.SAME_THREAD, syncMetrics);
+                peerGroup.addBlocksDownloadedEventListener(Threading.SAME_THREAD, syncMetrics);
+                peerGroup.addPreMessageReceivedEventListener(Threading.SAME_THREAD, syncMetrics);
+                peerGroup.addPreMessageReceivedEventListener(Threading.SAME_THREAD, bandwidthBudget);
+                peerGroup.addBlocksDownloadedEventListener(Threading.SAME_THREAD, budgetEnforcer);
+                peerGroup.addConnectedEventListener(Threading.SAME_THREAD, downloadGate);
+                peerGroup.addDisconnectedEventListener(Threading.SAME_THREAD, downloadGate);
+                if (conf.getBloomFilterFalsePositiveRate() > 0) {
+                    bloomFilterManager = new BloomFilterManager(peerGroup, walletManager, conf.getBloomFilterFalsePositiveRate());
+                    // looks up the wallet, not on the network thread
+                    peerGroup.addBlocksDownloadedEventListener(executor != null ? executor : Threading.USER_THREAD, bloomFilterManager);
+                }
+                if (peerAddressCache == null)
+                    peerAddressCache = new PeerAddressCache(getPeerAddressCacheFile());
+                peerGroup.addConnectedEventListener(executor != null ? executor : Threading.SAME_THREAD, peerAddressCache);
+                peerGroup.addDisconnectedEventListener(executor != null ? executor : Threading.SAME_THREAD, peerAddressCache);
                 if (executor != null) {
                     peerGroup.addConnectedEventListener(executor, peerConnectivityListener);
                     peerGroup.addDisconnectedEventListener(executor, peerDisconnectedEventListener);
@@ -261,13 +595,24 @@ public class BlockchainManager {
                     peerGroup.addDisconnectedEventListener(peerDisconnectedEventListener);
                 }
 
-                // Memory check
-                final int maxConnectedPeers = context.isMemoryLow() ? 4 : 6 ;
+                // Memory check, fewer peers when the data budget is tight
+                final int maxConnectedPeers = getMaxConnectedPeers();
+                if (bandwidthBudget.isTight())
+                    LOG.info("data budget tight, {} peers, {}", maxConnectedPeers, bandwidthBudget);
 
                 final String trustedPeerHost = conf.getTrustedNodeHost();
                 final boolean hasTrustedPeer = trustedPeerHost != null;
 
                 final boolean connectTrustedPeerOnly = trustedPeerHost != null;//hasTrustedPeer && config.getTrustedPeerOnly();
+                if (!hasTrustedPeer) {
+                    // peers that worked before go first, ranked by latency. The group only runs the discovery once
+                    // none of them is left to try. No priority in this PeerGroup: the queue follows the insertion
+                    // time, so the rank holds as far as the clock tells the additions apart.
+                    for (InetSocketAddress address : peerAddressCache.getRankedAddresses(maxConnectedPeers)) {
+                        peerGroup.addAddress(new PeerAddress(conf.getNetworkParams(), address));
+                    }
+                }
+                // addAddress raises the max connections by one per address
                 peerGroup.setMaxConnections(connectTrustedPeerOnly ? 1 : maxConnectedPeers);
                 peerGroup.setConnectTimeoutMillis(conf.getPeerTimeoutMs());
                 peerGroup.setPeerDiscoveryTimeoutMillis(conf.getPeerDiscoveryTimeoutMs());
@@ -317,6 +662,7 @@ public class BlockchainManager {
                                     needsTrimPeersWorkaround = false;
                                 }*/
                             }else {
+                                // the cached peers are queued already, this runs when they are used up
                                 for (PivtrumPeerData pivtrumPeerData : PivtrumGlobalData.listTrustedHosts()) {
                                     peers.add(new InetSocketAddress(pivtrumPeerData.getHost(), pivtrumPeerData.getTcpPort()));
                                 }
@@ -350,21 +696,34 @@ public class BlockchainManager {
                 // init peergroup
                 //peerGroup.addBlocksDownloadedEventListener(blockchainDownloadListener);
                 peerGroup.startAsync();
-                peerGroup.startBlockChainDownload(blockchainDownloadListener);
-
+                // progress callbacks go to the block processing worker, not to the shared user thread
+                downloadListener = (executor != null && blockchainDownloadListener != null) ?
+                        new ExecutorPeerDataEventListener(executor, blockchainDownloadListener) : blockchainDownloadListener;
+                if (rescanDeferred) {
+                    // connected for the broadcasts only, the next check rewinds once the budget allows it
+                    downloadPaused = true;
+                } else if (bandwidthBudget.isExhausted()) {
+                    // connected for the broadcasts only, the chain waits for more budget
+                    downloadPaused = true;
+                    LOG.info("data budget spent, chain download paused, {}", bandwidthBudget);
+                } else
+                    peerGroup.startBlockChainDownload(downloadListener);
+
+            } else if (impediments.isEmpty() && peerGroup != null && rescanDeferred && bandwidthBudget.allowRescan()) {
+                // the rewind needs the peer group stopped, it starts again right away on the rewound chain
+                LOG.info("restarting peergroup for the deferred rescan, {}", bandwidthBudget);
+                peerGroup.removeDisconnectedEventListener(peerDisconnectedEventListener);
+                peerGroup.removeConnectedEventListener(peerConnectivityListener);
+                stopPeerGroup(EnumSet.noneOf(Impediment.class));
+                check(impediments, peerConnectivityListener, peerDisconnectedEventListener, blockchainDownloadListener, executor);
+            } else if (impediments.isEmpty() && peerGroup != null) {
+                // running, the network or the budget could have changed since it started
+                applyBandwidthBudget();
             } else if (!impediments.isEmpty() && peerGroup != null) {
                 LOG.info("stopping peergroup");
                 peerGroup.removeDisconnectedEventListener(peerDisconnectedEventListener);
                 peerGroup.removeConnectedEventListener(peerConnectivityListener);
-                walletManager.removeWalletFrom(peerGroup);
-                peerGroup.stopAsync();
-                peerGroup = null;
-
-                for (BlockchainManagerListener blockchainManagerListener : blockchainManagerListeners) {
-                    blockchainManagerListener.checkEnd();
-                }
-
-                notifyBlockchainStateOff(impediments);
+                stopPeerGroup(impediments);
             }
         }
 
@@ -374,6 +733,169 @@ public class BlockchainManager {
 
     }
 
+    private int getMaxConnectedPeers() {
+        return getBandwidthBudget().getMaxPeers(context.isMemoryLow() ? 4 : 6);
+    }
+
+    /**
+     * Peers and chain download of the running peer group for the current network and budget. A spent budget keeps
+     * the peers for the broadcasts but stops downloading blocks, more budget or an unmetered network resumes it.
+     * A deferred rescan keeps the download paused, {@link #check} rewinds first.
+     */
+    private void applyBandwidthBudget() {
+        BandwidthBudget bandwidthBudget = getBandwidthBudget();
+        if (conf.getTrustedNodeHost() == null)
+            peerGroup.setMaxConnections(getMaxConnectedPeers());
+        if (bandwidthBudget.isExhausted()) {
+            Peer downloadPeer = peerGroup.getDownloadPeer();
+            if (downloadPeer != null)
+                pauseDownload(downloadPeer);
+        } else if (downloadPaused && !rescanDeferred) {
+            downloadPaused = false;
+            LOG.info("chain download resumed, {}", bandwidthBudget);
+            peerGroup.startBlockChainDownload(downloadListener);
+        }
+    }
+
+    private void pauseDownload(Peer peer) {
+        peer.setDownloadData(false);
+        if (!downloadPaused) {
+            downloadPaused = true;
+            LOG.info("data budget spent, chain download paused, {}", getBandwidthBudget());
+        }
+    }
+
+    /**
+     * Keeps a paused chain download paused when the peer group picks a download peer, which downloads the announced
+     * blocks otherwise. On the network thread, right after the pick.
+     */
+    private final DownloadGate downloadGate = new DownloadGate();
+
+    private final class DownloadGate implements PeerConnectedEventListener, PeerDisconnectedEventListener {
+
+        @Override
+        public void onPeerConnected(Peer peer, int peerCount) {
+            closeIfPaused();
+        }
+
+        @Override
+        public void onPeerDisconnected(Peer peer, int peerCount) {
+            closeIfPaused();
+        }
+
+        private void closeIfPaused() {
+            PeerGroup group = peerGroup;
+            Peer downloadPeer = group != null ? group.getDownloadPeer() : null;
+            if (downloadPaused && downloadPeer != null)
+                downloadPeer.setDownloadData(false);
+        }
+    }
+
+    /** Stops the chain download as soon as the budget runs out in the middle of a sync, on the network thread */
+    private final BlocksDownloadedEventListener budgetEnforcer = new BlocksDownloadedEventListener() {
+        @Override
+        public void onBlocksDownloaded(Peer peer, Block block, FilteredBlock filteredBlock, int blocksLeft) {
+            if (bandwidthBudget.isExhausted())
+                pauseDownload(peer);
+        }
+    };
+
+    /**
+     * Rewind the chain to the given height and download the blocks above it again, a cheap fix for a wallet that
+     * missed some blocks. The peer group is stopped, the next {@link #check} downloads from the new chain head.
+     *
+     * @param height height to rescan from, -1 for the wallet last seen block.
+     * @return the new chain head height.
+     * @throws IllegalArgumentException if the height is below the pruned blocks.
+     */
+    public int rescanFrom(int height) throws BlockStoreException {
+        synchronized (this) {
+            int target = height < 0 ? walletManager.getLastBlockSeenHeight() : height;
+            if (target < prunedHeight)
+                throw new IllegalArgumentException("cannot rescan from height " + target + ", the blocks below height " + prunedHeight + " were pruned");
+            if (peerGroup != null) {
+                LOG.info("stopping peergroup for the rescan");
+                stopPeerGroup(EnumSet.noneOf(Impediment.class));
+            }
+            rewindChain(target);
+            return blockChain.getBestChainHeight();
+        }
+    }
+
+    /**
+     * Move the chain head down to the given height. The wallet forgets the blocks above it, their transactions go
+     * back to pending until the blocks are received again.
+     *
+     * If some block down there is not in the store any more the wallet can't be rewound block by block, its
+     * transactions are dropped and the chain goes back to the checkpoint before the wallet keys, a full rescan.
+     */
+    private void rewindChain(int height) throws BlockStoreException {
+        StoredBlock chainHead = blockChain.getChainHead();
+        if (height < 0 || height >= chainHead.getHeight())
+            return;
+        List<StoredBlock> rewound = new ArrayList<>(chainHead.getHeight() - height);
+        StoredBlock block = chainHead;
+        while (block != null && block.getHeight() > height) {
+            rewound.add(block);
+            block = block.getPrev(blockStore);
+        }
+        // the old chain must not deliver blocks to the wallet any more
+        walletManager.removeWalletFrom(blockChain);
+        if (block != null) {
+            walletManager.rewind(block, rewound);
+        } else {
+            block = getRescanCheckpoint();
+            LOG.warn("block at height {} is not in the store, rescanning from the checkpoint at height {}", height, block.getHeight());
+            walletManager.resetTo(block);
+            blockStore.put(block);
+            pinBlock(block);
+            // the blocks above the checkpoint are downloaded again
+            prunedHeight = 0;
+            savePrunedHeight(0);
+        }
+        blockStore.setChainHead(block);
+        // the chain keeps its head in memory
+        blockChain = new BlockChain(conf.getNetworkParams(), blockStore);
+        walletManager.addWalletFrom(blockChain);
+        LOG.info("chain rewound from height {} to {}", chainHead.getHeight(), block.getHeight());
+    }
+
+    /** Last checkpoint a week before the wallet keys, the genesis block without checkpoints */
+    private StoredBlock getRescanCheckpoint() {
+        long earliestKeyCreationTime = walletManager.getEarliestKeyCreationTime();
+        CompiledCheckpoints checkpoints = getCompiledCheckpoints();
+        if (checkpoints != null && earliestKeyCreationTime > 0)
+            return checkpoints.getCheckpointBefore(earliestKeyCreationTime - TimeUnit.DAYS.toSeconds(7));
+        Block genesis = conf.getNetworkParams().getGenesisBlock().cloneAsHeader();
+        return new StoredBlock(genesis, genesis.getWork(), 0);
+    }
+
+    /** Keep the block the chain starts from, the ring store would overwrite it */
+    private void pinBlock(StoredBlock block) {
+        if (baseStore instanceof RingBufferBlockStore) {
+            try {
+                ((RingBufferBlockStore) baseStore).pin(block);
+            } catch (BlockStoreException e) {
+                LOG.warn("cannot pin the block at height " + block.getHeight(), e);
+            }
+        }
+    }
+
+    /** Stop the peer group and tell the listeners the chain is off */
+    private void stopPeerGroup(Set<Impediment> impediments) {
+        walletManager.removeWalletFrom(peerGroup);
+        peerGroup.stopAsync();
+        peerGroup = null;
+        downloadPaused = false;
+        rescanDeferred = false;
+
+        for (BlockchainManagerListener blockchainManagerListener : blockchainManagerListeners) {
+            blockchainManagerListener.checkEnd();
+        }
+
+        notifyBlockchainStateOff(impediments);
+    }
+
     private void notifyBlockchainStateOff(Set<Impediment> impediments) {
         for (BlockchainManagerListener blockchainManagerListener : blockchainManagerListeners) {
             blockchainManagerListener.onBlockchainOff(impediments);
@@ -417,14 +939,273 @@ public class BlockchainManager {
         return blocks;
     }
 
+    /**
+     * Best chain block at the given height.
+     *
+     * @return the block or null if the height is above the chain head or below the stored blocks.
+     */
+    public StoredBlock getBlockByHeight(int height) {
+        try {
+            if (blockStore instanceof HeightIndexedStore)
+                return ((HeightIndexedStore) blockStore).getByHeight(height);
+        } catch (BlockStoreException e) {
+            LOG.warn("cannot get block at height " + height, e);
+        }
+        return null;
+    }
+
+    /**
+     * Hash of the best chain block at the given height, null if it is not known.
+     */
+    public Sha256Hash getBlockHashByHeight(int height) {
+        try {
+            if (blockStore instanceof HeightIndexedStore)
+                return ((HeightIndexedStore) blockStore).getHashAtHeight(height);
+        } catch (BlockStoreException e) {
+            LOG.warn("cannot get block hash at height " + height, e);
+        }
+        return null;
+    }
+
+    /**
+     * Drop the blocks older than the configured recent window, {@link WalletConfiguration#getBlockStoreKeepBlocks()}.
+     * The blocks from the wallet birthday onwards and the checkpoint before it are kept, so the wallet can still be
+     * rescanned. Meant to run in background, the chain keeps working while the store deletes.
+     *
+     * @return approximate amount of bytes reclaimed.
+     */
+    public long pruneBlockStore() {
+        int keepBlocks = conf.getBlockStoreKeepBlocks();
+        if (keepBlocks <= 0 || !(blockStore instanceof PrunableBlockStore) || blockChain == null)
+            return 0;
+        StoredBlock chainHead = blockChain.getChainHead();
+        int keepHeight = getKeepHeight(chainHead.getHeight(), keepBlocks, getBirthdayHeight());
+        if (keepHeight <= 0 || keepHeight <= prunedHeight)
+            return 0;
+        try {
+            long reclaimed = pruneBelowHeight((PrunableBlockStore) blockStore, chainHead, keepHeight);
+            if (reclaimed < 0)
+                return 0;
+            prunedBytes += reclaimed;
+            prunedHeight = keepHeight;
+            savePrunedHeight(keepHeight);
+            return reclaimed;
+        } catch (BlockStoreException e) {
+            LOG.error("cannot prune the block store", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Height of the oldest block to keep: the recent window, never inside the depth a reorg could reach, and
+     * nothing from the wallet birthday on. 0 if the birthday is not known, nothing can be pruned then.
+     */
+    static int getKeepHeight(int headHeight, int keepBlocks, int birthdayHeight) {
+        if (birthdayHeight <= 0)
+            return 0;
+        return Math.max(0, Math.min(headHeight - Math.max(keepBlocks, MIN_PRUNE_KEEP_BLOCKS), birthdayHeight));
+    }
+
+    /**
+     * Prune the store below the block of the given height on the chain of the head.
+     *
+     * @return approximate amount of bytes reclaimed, -1 if the block is not in the store.
+     */
+    static long pruneBelowHeight(PrunableBlockStore store, StoredBlock chainHead, int keepHeight) throws BlockStoreException {
+        StoredBlock oldestKept = store instanceof HeightIndexedStore ? ((HeightIndexedStore) store).getByHeight(keepHeight) : null;
+        if (oldestKept == null) {
+            // not indexed, walk back to it
+            oldestKept = chainHead;
+            while (oldestKept != null && oldestKept.getHeight() > keepHeight) {
+                oldestKept = oldestKept.getPrev(store);
+            }
+        }
+        if (oldestKept == null)
+            return -1;
+        return store.pruneBelow(oldestKept);
+    }
+
+    /**
+     * Lowest height the store has to keep for the wallet: the first block of the week before the oldest key and
+     * the checkpoint before it, 0 if it is not known.
+     */
+    private int getBirthdayHeight() {
+        long earliestKeyCreationTime = walletManager.getEarliestKeyCreationTime();
+        if (earliestKeyCreationTime <= 0 || !(blockStore instanceof HeightIndexedStore))
+            return 0;
+        // the same week of margin as the checkpointing
+        long birthday = earliestKeyCreationTime - TimeUnit.DAYS.toSeconds(7);
+        CompiledCheckpoints checkpoints = getCompiledCheckpoints();
+        int checkpointHeight = checkpoints != null ? checkpoints.getCheckpointBefore(birthday).getHeight() : 0;
+        return findBirthdayHeight((HeightIndexedStore) blockStore, blockChain.getBestChainHeight(), birthday, checkpointHeight);
+    }
+
+    /**
+     * First block at the birthday, or the checkpoint before it if that is lower.
+     */
+    static int findBirthdayHeight(HeightIndexedStore store, int bestHeight, long birthday, int checkpointHeight) {
+        // the height index has no gaps between the oldest block and the head
+        int low = 0;
+        int high = bestHeight;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            StoredBlock block = null;
+            try {
+                block = store.getByHeight(mid);
+            } catch (BlockStoreException e) {
+                LOG.warn("cannot get block at height " + mid, e);
+            }
+            if (block == null || block.getHeader().getTimeSeconds() < birthday)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        if (checkpointHeight > 0)
+            low = Math.min(low, checkpointHeight);
+        return low;
+    }
+
+    /** Height below which the blocks were pruned, 0 if the store was never pruned */
+    public int getPrunedHeight() {
+        return prunedHeight;
+    }
+
+    private File getPrunedHeightFile() {
+        return new File(blockChainFile.getPath() + ".pruned");
+    }
+
+    private int readPrunedHeight() {
+        File file = getPrunedHeightFile();
+        if (!file.exists())
+            return 0;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                return in.readInt();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("cannot read the pruned height", e);
+            return 0;
+        }
+    }
+
+    private void savePrunedHeight(int height) {
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(getPrunedHeightFile()));
+            try {
+                out.writeInt(height);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("cannot save the pruned height", e);
+        }
+    }
+
+    /** Bytes reclaimed by {@link #pruneBlockStore()} since this manager was created */
+    public long getPrunedBytes() {
+        return prunedBytes;
+    }
+
+    private File getPeerAddressCacheFile() {
+        return new File(blockChainFile.getPath() + ".peers");
+    }
+
+    private File getHeightIndexFile() {
+        return new File(blockChainFile.getPath() + ".heights");
+    }
+
+    /**
+     * Metrics of the current (or last) sync session.
+     */
+    public SyncMetrics.Snapshot getSyncMetrics() {
+        return syncMetrics.getSnapshot();
+    }
+
+    /**
+     * Data usage of the day, shared with the Electrum peers.
+     */
+    public synchronized BandwidthBudget getBandwidthBudget() {
+        if (bandwidthBudget == null)
+            bandwidthBudget = new BandwidthBudget(
+                    new File(blockChainFile.getPath() + ".bandwidth"),
+                    conf.getDailyBandwidthBudget(false),
+                    conf.getDailyBandwidthBudget(true)
+            );
+        return bandwidthBudget;
+    }
+
+    /**
+     * Bloom filter tuning of the current (or last) peer group, null if it is disabled.
+     */
+    public BloomFilterManager getBloomFilterManager() {
+        return bloomFilterManager;
+    }
+
     public int getChainHeadHeight() {
         return blockChain!=null? blockChain.getChainHead().getHeight():0;
     }
 
+    /** Time of the chain head block in milliseconds, 0 if there is no chain */
+    public long getChainHeadTime() {
+        return blockChain!=null? blockChain.getChainHead().getHeader().getTimeSeconds() * 1000:0;
+    }
+
 
     public void removeBlockchainDownloadListener(PeerDataEventListener blockchainDownloadListener) {
-        if (peerGroup!=null)
-            peerGroup.removeBlocksDownloadedEventListener(blockchainDownloadListener);
+        if (peerGroup!=null) {
+            PeerDataEventListener listener = blockchainDownloadListener;
+            if (downloadListener instanceof ExecutorPeerDataEventListener && ((ExecutorPeerDataEventListener) downloadListener).listener == blockchainDownloadListener)
+                listener = downloadListener;
+            peerGroup.removeBlocksDownloadedEventListener(listener);
+        }
+    }
+
+    /**
+     * Runs the download progress callbacks on an executor. Message interception and data requests stay on
+     * the network thread, their result is needed right away.
+     */
+    private static final class ExecutorPeerDataEventListener implements PeerDataEventListener {
+
+        private final Executor executor;
+        private final PeerDataEventListener listener;
+
+        ExecutorPeerDataEventListener(Executor executor, PeerDataEventListener listener) {
+            this.executor = executor;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onBlocksDownloaded(final Peer peer, final Block block, final FilteredBlock filteredBlock, final int blocksLeft) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onBlocksDownloaded(peer, block, filteredBlock, blocksLeft);
+                }
+            });
+        }
+
+        @Override
+        public void onChainDownloadStarted(final Peer peer, final int blocksLeft) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onChainDownloadStarted(peer, blocksLeft);
+                }
+            });
+        }
+
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            return listener.onPreMessageReceived(peer, m);
+        }
+
+        @Override
+        public List<Message> getData(Peer peer, GetDataMessage m) {
+            return listener.getData(peer, m);
+        }
     }
 
     public List<Peer> listConnectedPeers() {
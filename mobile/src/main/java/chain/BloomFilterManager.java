@@ -0,0 +1,187 @@
+package chain;
+
+import org.airwirej.core.Block;
+import org.airwirej.core.FilteredBlock;
+import org.airwirej.core.Peer;
+import org.airwirej.core.PeerGroup;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.VerificationException;
+import org.airwirej.core.listeners.BlocksDownloadedEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import wallet.WalletManager;
+
+/**
+ * Keeps the bloom filter false positive rate close to a target.
+ *
+ * Every filtered block is checked against the wallet: matched transactions the wallet doesn't have are false
+ * positives. The filter rate is per queried element and peers query it with several elements of each transaction
+ * (its hash, outpoints and script pushes), so the observed rate is the false positives over the elements queried.
+ *
+ * A window closes after {@link #EVALUATION_BLOCKS} blocks once it holds enough evidence: as many false positives
+ * as the target predicts for {@link #MIN_FALSE_POSITIVES}, or that many seen. Only a rate outside
+ * [target / {@link #DRIFT_FACTOR}, target * {@link #DRIFT_FACTOR}] retunes the filter, never looser than the target
+ * and at most once each {@link #RETUNE_COOLDOWN_MS}, every retune sends the filter to the peers again.
+ *
+ * The bandwidth saved is estimated against the rate observed in the first evaluation window.
+ */
+public class BloomFilterManager implements BlocksDownloadedEventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BloomFilterManager.class);
+
+    /** Blocks of each evaluation window */
+    public static final int EVALUATION_BLOCKS = 500;
+    /** False positives, expected or seen, needed in a window to trust its rate */
+    static final int MIN_FALSE_POSITIVES = 10;
+    /** Elements peers query the filter with for each transaction, a two inputs two outputs payment */
+    static final int ELEMENTS_PER_TX = 9;
+    /** Observed / target ratio that triggers a retune, in both directions */
+    static final double DRIFT_FACTOR = 2;
+    /** The filter is tightened at most this much below the target */
+    private static final double MAX_TIGHTENING = 16;
+    static final long RETUNE_COOLDOWN_MS = TimeUnit.HOURS.toMillis(1);
+    /** Average transaction size, to turn transactions into bytes */
+    private static final int AVERAGE_TX_BYTES = 250;
+
+    private final PeerGroup peerGroup;
+    private final WalletManager walletManager;
+    private final double targetRate;
+    /** Rate the filter is built with */
+    private double filterRate;
+    private long lastRetuneTime;
+
+    // current window
+    private int windowBlocks;
+    private long windowTxs;
+    private long windowFalsePositives;
+
+    /** Rate observed in the first window, -1 until it closes */
+    private double baselineRate = -1;
+    private double lastObservedRate = -1;
+    private long totalTxs;
+    private long totalFalsePositives;
+    private double savedTxs;
+    private int recalculations;
+
+    public BloomFilterManager(PeerGroup peerGroup, WalletManager walletManager, double targetRate) {
+        this.peerGroup = peerGroup;
+        this.walletManager = walletManager;
+        this.targetRate = targetRate;
+        this.filterRate = targetRate;
+        if (peerGroup != null)
+            peerGroup.setBloomFilterFalsePositiveRate(filterRate);
+    }
+
+    @Override
+    public void onBlocksDownloaded(Peer peer, Block block, FilteredBlock filteredBlock, int blocksLeft) {
+        if (filteredBlock == null)
+            return;
+        List<Sha256Hash> matched;
+        try {
+            matched = filteredBlock.getTransactionHashes();
+        } catch (VerificationException e) {
+            return;
+        }
+        int falsePositives = 0;
+        for (Sha256Hash hash : matched) {
+            // the chain already gave the block to the wallet, a match it doesn't have is a false positive
+            if (walletManager.getTransaction(hash) == null)
+                falsePositives++;
+        }
+        if (onBlock(filteredBlock.getTransactionCount(), falsePositives, System.currentTimeMillis())) {
+            double rate = getFilterRate();
+            LOG.info("bloom filter false positive rate {} with target {}, rebuilding the filter with rate {}",
+                    getObservedRate(), targetRate, rate);
+            peerGroup.setBloomFilterFalsePositiveRate(rate);
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+        }
+    }
+
+    /**
+     * Count a filtered block.
+     *
+     * @return true if the filter rate changed and the filter must be sent again.
+     */
+    synchronized boolean onBlock(long txs, int falsePositives, long now) {
+        windowBlocks++;
+        windowTxs += txs;
+        windowFalsePositives += falsePositives;
+        totalTxs += txs;
+        totalFalsePositives += falsePositives;
+        long queries = windowTxs * ELEMENTS_PER_TX;
+        if (windowBlocks < EVALUATION_BLOCKS
+                || (queries * filterRate < MIN_FALSE_POSITIVES && windowFalsePositives < MIN_FALSE_POSITIVES))
+            return false;
+        double observedRate = (double) windowFalsePositives / queries;
+        if (baselineRate < 0)
+            baselineRate = observedRate;
+        else if (observedRate < baselineRate)
+            savedTxs += (baselineRate - observedRate) * queries;
+        lastObservedRate = observedRate;
+        windowBlocks = 0;
+        windowTxs = 0;
+        windowFalsePositives = 0;
+
+        if (lastRetuneTime > 0 && now - lastRetuneTime < RETUNE_COOLDOWN_MS)
+            return false;
+        double newFilterRate = filterRate;
+        if (observedRate > targetRate * DRIFT_FACTOR)
+            newFilterRate = Math.max(filterRate / DRIFT_FACTOR, targetRate / MAX_TIGHTENING);
+        else if (observedRate < targetRate / DRIFT_FACTOR && filterRate < targetRate)
+            // tighter than needed, give some privacy back
+            newFilterRate = Math.min(filterRate * DRIFT_FACTOR, targetRate);
+        if (newFilterRate == filterRate)
+            return false;
+        filterRate = newFilterRate;
+        lastRetuneTime = now;
+        recalculations++;
+        return true;
+    }
+
+    public double getTargetRate() {
+        return targetRate;
+    }
+
+    public synchronized double getFilterRate() {
+        return filterRate;
+    }
+
+    /** False positive rate per queried element of the last evaluation window, -1 before the first one closes */
+    public synchronized double getObservedRate() {
+        return lastObservedRate;
+    }
+
+    public synchronized long getFalsePositives() {
+        return totalFalsePositives;
+    }
+
+    public synchronized long getFalsePositiveBytes() {
+        return totalFalsePositives * AVERAGE_TX_BYTES;
+    }
+
+    /** Estimated bytes not downloaded thanks to the retunes */
+    public synchronized long getBandwidthSavedBytes() {
+        return (long) (savedTxs * AVERAGE_TX_BYTES);
+    }
+
+    public synchronized int getRecalculations() {
+        return recalculations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BloomFilterManager{" +
+                "targetRate=" + targetRate +
+                ", filterRate=" + filterRate +
+                ", observedRate=" + lastObservedRate +
+                ", txs=" + totalTxs +
+                ", falsePositives=" + totalFalsePositives +
+                ", bandwidthSavedBytes=" + getBandwidthSavedBytes() +
+                ", recalculations=" + recalculations +
+                '}';
+    }
+}
@@ -0,0 +1,277 @@
+package chain;
+
+import org.airwirej.core.Peer;
+import org.airwirej.core.listeners.PeerConnectedEventListener;
+import org.airwirej.core.listeners.PeerDisconnectedEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Addresses of the peers the wallet connected to, with their latency and uptime, saved between runs.
+ *
+ * They are queued in the peer group, best ranked first, before it starts: the group only asks the seeds once
+ * none of them is left to try, so a new start connects to a known good peer right away. The latency is the
+ * ping time measured by the peer group, standing in for the handshake latency, it is only known once a peer
+ * answered a ping. Addresses not seen for {@link #MAX_AGE_MS} or that keep failing are forgotten.
+ *
+ * File format: one peer per line, "host port latencyMs uptimeMs lastSeenMs attempts".
+ */
+public class PeerAddressCache implements PeerConnectedEventListener, PeerDisconnectedEventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PeerAddressCache.class);
+
+    public static final int MAX_ENTRIES = 64;
+    public static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(14);
+    /** Times an address can be handed out without connecting before it is dropped */
+    public static final int MAX_FAILED_ATTEMPTS = 5;
+    /** Weight of the last measure in the latency average */
+    private static final double LATENCY_SMOOTHING = 0.3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final class Entry {
+        final String host;
+        final int port;
+        long latencyMs = -1;
+        long uptimeMs;
+        long lastSeen;
+        int attempts;
+        /** Connection time in this run, 0 if not connected */
+        long connectedAt;
+
+        Entry(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        String key() {
+            return host + ":" + port;
+        }
+    }
+
+    /** Known peers first, then the lowest latency, then the longest uptime */
+    private static final Comparator<Entry> RANKING = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            if (o1.attempts != o2.attempts)
+                return o1.attempts < o2.attempts ? -1 : 1;
+            long latency1 = o1.latencyMs < 0 ? Long.MAX_VALUE : o1.latencyMs;
+            long latency2 = o2.latencyMs < 0 ? Long.MAX_VALUE : o2.latencyMs;
+            if (latency1 != latency2)
+                return latency1 < latency2 ? -1 : 1;
+            return o1.uptimeMs > o2.uptimeMs ? -1 : (o1.uptimeMs == o2.uptimeMs ? 0 : 1);
+        }
+    };
+
+    private final File file;
+    private final Map<String,Entry> entries = new HashMap<>();
+
+    public PeerAddressCache(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Best ranked addresses, each one counts as a connection attempt until the peer connects.
+     */
+    public List<InetSocketAddress> getRankedAddresses(int max) {
+        return getRankedAddresses(max, System.currentTimeMillis());
+    }
+
+    synchronized List<InetSocketAddress> getRankedAddresses(int max, long now) {
+        expire(now);
+        List<Entry> ranked = new ArrayList<>(entries.values());
+        Collections.sort(ranked, RANKING);
+        List<InetSocketAddress> addresses = new ArrayList<>(Math.min(max, ranked.size()));
+        for (Entry entry : ranked) {
+            if (addresses.size() >= max)
+                break;
+            InetSocketAddress address = new InetSocketAddress(entry.host, entry.port);
+            if (address.isUnresolved())
+                continue;
+            entry.attempts++;
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    @Override
+    public void onPeerConnected(Peer peer, int peerCount) {
+        InetSocketAddress address = peer.getAddress().getSocketAddress();
+        if (address == null || address.getAddress() == null)
+            return;
+        connected(address.getAddress().getHostAddress(), address.getPort(), System.currentTimeMillis());
+    }
+
+    @Override
+    public void onPeerDisconnected(Peer peer, int peerCount) {
+        InetSocketAddress address = peer.getAddress().getSocketAddress();
+        if (address == null || address.getAddress() == null)
+            return;
+        if (disconnected(address.getAddress().getHostAddress(), address.getPort(), peer.getPingTime(), System.currentTimeMillis()))
+            save();
+    }
+
+    synchronized void connected(String host, int port, long now) {
+        Entry entry = entries.get(host + ":" + port);
+        if (entry == null) {
+            entry = new Entry(host, port);
+            entries.put(entry.key(), entry);
+        }
+        entry.attempts = 0;
+        entry.lastSeen = now;
+        entry.connectedAt = now;
+    }
+
+    /**
+     * @return false if the peer is not in the cache
+     */
+    synchronized boolean disconnected(String host, int port, long pingTime, long now) {
+        Entry entry = entries.get(host + ":" + port);
+        if (entry == null)
+            return false;
+        update(entry, pingTime, now);
+        entry.connectedAt = 0;
+        return true;
+    }
+
+    private void update(Entry entry, long pingTime, long now) {
+        // Long.MAX_VALUE until the first pong
+        if (pingTime > 0 && pingTime < Long.MAX_VALUE)
+            entry.latencyMs = entry.latencyMs < 0 ? pingTime : (long) (LATENCY_SMOOTHING * pingTime + (1 - LATENCY_SMOOTHING) * entry.latencyMs);
+        if (entry.connectedAt > 0) {
+            entry.uptimeMs = Math.max(entry.uptimeMs, now - entry.connectedAt);
+            entry.lastSeen = now;
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.connectedAt == 0 && (now - entry.lastSeen > MAX_AGE_MS || entry.attempts > MAX_FAILED_ATTEMPTS))
+                iterator.remove();
+        }
+        if (entries.size() > MAX_ENTRIES) {
+            List<Entry> ranked = new ArrayList<>(entries.values());
+            Collections.sort(ranked, RANKING);
+            for (Entry entry : ranked.subList(MAX_ENTRIES, ranked.size())) {
+                entries.remove(entry.key());
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized void load() {
+        if (!file.exists())
+            return;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 6)
+                    continue;
+                try {
+                    Entry entry = new Entry(fields[0], Integer.parseInt(fields[1]));
+                    entry.latencyMs = Long.parseLong(fields[2]);
+                    entry.uptimeMs = Long.parseLong(fields[3]);
+                    entry.lastSeen = Long.parseLong(fields[4]);
+                    entry.attempts = Integer.parseInt(fields[5]);
+                    entries.put(entry.key(), entry);
+                } catch (NumberFormatException e) {
+                    LOG.warn("invalid peer address cache line: {}", line);
+                }
+            }
+            LOG.info("{} peer addresses loaded from cache", entries.size());
+        } catch (IOException e) {
+            LOG.warn("cannot read the peer address cache", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the cache, the peers still connected are saved with their current uptime.
+     */
+    public void save() {
+        save(System.currentTimeMillis());
+    }
+
+    synchronized void save(long now) {
+        expire(now);
+        List<Entry> snapshot = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            if (entry.connectedAt > 0)
+                entry.uptimeMs = Math.max(entry.uptimeMs, now - entry.connectedAt);
+            snapshot.add(entry);
+        }
+        Collections.sort(snapshot, RANKING);
+        StringBuilder content = new StringBuilder();
+        for (Entry entry : snapshot) {
+            content.append(entry.host).append(' ')
+                    .append(entry.port).append(' ')
+                    .append(entry.latencyMs).append(' ')
+                    .append(entry.uptimeMs).append(' ')
+                    .append(entry.lastSeen).append(' ')
+                    .append(entry.attempts).append('\n');
+        }
+        write(content.toString());
+    }
+
+    private void write(String content) {
+        // write a temp file and rename it, a crash never leaves half a cache
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+            writer.write(content);
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    LOG.warn("cannot replace the peer address cache {}", file);
+            }
+        } catch (IOException e) {
+            LOG.warn("cannot write the peer address cache", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // nothing
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package chain;
+
+import org.airwirej.core.Block;
+import org.airwirej.core.FilteredBlock;
+import org.airwirej.core.Message;
+import org.airwirej.core.Peer;
+import org.airwirej.core.VerificationException;
+import org.airwirej.core.listeners.BlocksDownloadedEventListener;
+import org.airwirej.core.listeners.ChainDownloadStartedEventListener;
+import org.airwirej.core.listeners.PreMessageReceivedEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blockchain sync telemetry: download rate, filtered transactions, bytes received per peer, stalls and ETA.
+ *
+ * It is registered on the peer group as a listener and only counts, nothing is computed on the network thread
+ * besides a few additions. The numbers are read with {@link #getSnapshot()} and logged every
+ * {@link #LOG_INTERVAL_MS} while blocks are arriving.
+ *
+ * The bytes are the messages as sent on the wire, the {@link #MESSAGE_HEADER_BYTES} header of each included.
+ */
+public class SyncMetrics implements BlocksDownloadedEventListener, ChainDownloadStartedEventListener, PreMessageReceivedEventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyncMetrics.class);
+
+    /** Interval between two metrics lines in the log */
+    public static final long LOG_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+    /** A gap between blocks longer than this while blocks are left is counted as stall time */
+    public static final long STALL_THRESHOLD_MS = TimeUnit.SECONDS.toMillis(5);
+    /** Magic, command, length and checksum before the payload of every message */
+    public static final int MESSAGE_HEADER_BYTES = 4 + 12 + 4 + 4;
+    /** Window the current download rate is measured over */
+    static final long RATE_WINDOW_MS = TimeUnit.SECONDS.toMillis(10);
+    /** Weight of the last window in the smoothed rate */
+    static final double RATE_SMOOTHING = 0.5;
+
+    private static class PeerCounters {
+        final long firstMessageTime;
+        long bytes;
+        long blocks;
+
+        PeerCounters(long firstMessageTime) {
+            this.firstMessageTime = firstMessageTime;
+        }
+    }
+
+    private long startTime;
+    private long lastBlockTime;
+    private long lastLogTime;
+    private int blocks;
+    private int blocksLeft = -1;
+    private int filteredTxs;
+    private long bytes;
+    private long stallMs;
+
+    private long windowStart;
+    private int windowBlocks;
+    private double blocksPerSecond;
+
+    private final Map<String,PeerCounters> peers = new HashMap<>();
+
+    public SyncMetrics() {
+        reset();
+    }
+
+    /** Start counting again, on every new sync session */
+    public void reset() {
+        reset(System.currentTimeMillis());
+    }
+
+    synchronized void reset(long now) {
+        startTime = now;
+        lastBlockTime = now;
+        lastLogTime = now;
+        windowStart = now;
+        blocks = 0;
+        blocksLeft = -1;
+        filteredTxs = 0;
+        bytes = 0;
+        stallMs = 0;
+        windowBlocks = 0;
+        blocksPerSecond = 0;
+        peers.clear();
+    }
+
+    @Override
+    public synchronized void onChainDownloadStarted(Peer peer, int blocksLeft) {
+        this.blocksLeft = blocksLeft;
+        LOG.info("chain download started from {}, {} blocks left", peer, blocksLeft);
+    }
+
+    @Override
+    public void onBlocksDownloaded(Peer peer, Block block, FilteredBlock filteredBlock, int blocksLeft) {
+        int filteredTxs = 0;
+        if (filteredBlock != null) {
+            try {
+                filteredTxs = filteredBlock.getTransactionHashes().size();
+            } catch (VerificationException e) {
+                // the chain rejects it as well, nothing to count
+            }
+        }
+        onBlock(String.valueOf(peer.getAddress()), filteredTxs, blocksLeft, System.currentTimeMillis());
+    }
+
+    synchronized void onBlock(String peer, int filteredTxs, int blocksLeft, long now) {
+        long gap = now - lastBlockTime;
+        if (gap > STALL_THRESHOLD_MS && this.blocksLeft > 0)
+            stallMs += gap;
+        lastBlockTime = now;
+        boolean finished = blocksLeft == 0 && this.blocksLeft > 0;
+        this.blocksLeft = blocksLeft;
+        blocks++;
+        windowBlocks++;
+        this.filteredTxs += filteredTxs;
+        peer(peer, now).blocks++;
+
+        long windowMs = now - windowStart;
+        if (windowMs >= RATE_WINDOW_MS) {
+            double windowRate = windowBlocks * 1000d / windowMs;
+            blocksPerSecond = blocksPerSecond == 0 ? windowRate : RATE_SMOOTHING * windowRate + (1 - RATE_SMOOTHING) * blocksPerSecond;
+            windowStart = now;
+            windowBlocks = 0;
+        }
+        if (now - lastLogTime >= LOG_INTERVAL_MS || finished) {
+            lastLogTime = now;
+            LOG.info("sync {}", getSnapshot(now));
+        }
+    }
+
+    @Override
+    public Message onPreMessageReceived(Peer peer, Message message) {
+        // the payload size, the header is not in it
+        onMessage(String.valueOf(peer.getAddress()), MESSAGE_HEADER_BYTES + message.getMessageSize(), System.currentTimeMillis());
+        return message;
+    }
+
+    synchronized void onMessage(String peer, int size, long now) {
+        PeerCounters counters = peer(peer, now);
+        counters.bytes += size;
+        bytes += size;
+    }
+
+    private PeerCounters peer(String key, long now) {
+        PeerCounters counters = peers.get(key);
+        if (counters == null) {
+            counters = new PeerCounters(now);
+            peers.put(key, counters);
+        }
+        return counters;
+    }
+
+    public Snapshot getSnapshot() {
+        return getSnapshot(System.currentTimeMillis());
+    }
+
+    synchronized Snapshot getSnapshot(long now) {
+        long currentStallMs = blocksLeft > 0 ? now - lastBlockTime : 0;
+        if (currentStallMs <= STALL_THRESHOLD_MS)
+            currentStallMs = 0;
+        // before the first rate window closes use the session average
+        long elapsedMs = now - startTime;
+        double rate = blocksPerSecond != 0 ? blocksPerSecond : (elapsedMs > 0 ? blocks * 1000d / elapsedMs : 0);
+        long etaMs = blocksLeft > 0 && rate > 0 ? (long) (blocksLeft / rate * 1000) : (blocksLeft == 0 ? 0 : -1);
+
+        Map<String,Double> peerBytesPerSecond = new HashMap<>(peers.size());
+        Map<String,Long> peerBlocks = new HashMap<>(peers.size());
+        for (Map.Entry<String, PeerCounters> entry : peers.entrySet()) {
+            PeerCounters counters = entry.getValue();
+            long peerElapsedMs = Math.max(now - counters.firstMessageTime, 1);
+            peerBytesPerSecond.put(entry.getKey(), counters.bytes * 1000d / peerElapsedMs);
+            peerBlocks.put(entry.getKey(), counters.blocks);
+        }
+        return new Snapshot(elapsedMs, blocks, blocksLeft, filteredTxs, bytes, rate, stallMs + currentStallMs, etaMs,
+                peerBytesPerSecond, peerBlocks);
+    }
+
+    /**
+     * Metrics at a point in time.
+     */
+    public static class Snapshot {
+
+        private final long elapsedMs;
+        private final int blocks;
+        private final int blocksLeft;
+        private final int filteredTxs;
+        private final long bytes;
+        private final double blocksPerSecond;
+        private final long stallMs;
+        private final long etaMs;
+        private final Map<String,Double> peerBytesPerSecond;
+        private final Map<String,Long> peerBlocks;
+
+        Snapshot(long elapsedMs, int blocks, int blocksLeft, int filteredTxs, long bytes, double blocksPerSecond,
+                 long stallMs, long etaMs, Map<String, Double> peerBytesPerSecond, Map<String, Long> peerBlocks) {
+            this.elapsedMs = elapsedMs;
+            this.blocks = blocks;
+            this.blocksLeft = blocksLeft;
+            this.filteredTxs = filteredTxs;
+            this.bytes = bytes;
+            this.blocksPerSecond = blocksPerSecond;
+            this.stallMs = stallMs;
+            this.etaMs = etaMs;
+            this.peerBytesPerSecond = Collections.unmodifiableMap(peerBytesPerSecond);
+            this.peerBlocks = Collections.unmodifiableMap(peerBlocks);
+        }
+
+        /** Time since the sync session started */
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        /** Blocks downloaded in the session */
+        public int getBlocks() {
+            return blocks;
+        }
+
+        /** Blocks left to download, -1 if unknown */
+        public int getBlocksLeft() {
+            return blocksLeft;
+        }
+
+        /** Transactions matched by the bloom filter */
+        public int getFilteredTxs() {
+            return filteredTxs;
+        }
+
+        /** Bytes received from every peer, the message headers included */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getBlocksPerSecond() {
+            return blocksPerSecond;
+        }
+
+        /** Time spent without blocks while blocks were left, including the current stall */
+        public long getStallMs() {
+            return stallMs;
+        }
+
+        /** Estimated time to finish the download, 0 when synced and -1 if unknown */
+        public long getEtaMs() {
+            return etaMs;
+        }
+
+        /** Peer address -> bytes per second received since its first message */
+        public Map<String, Double> getPeerBytesPerSecond() {
+            return peerBytesPerSecond;
+        }
+
+        /** Peer address -> blocks downloaded from it */
+        public Map<String, Long> getPeerBlocks() {
+            return peerBlocks;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder peersRates = new StringBuilder();
+            for (Map.Entry<String, Double> entry : peerBytesPerSecond.entrySet()) {
+                if (peersRates.length() > 0) peersRates.append(", ");
+                peersRates.append(entry.getKey()).append('=').append(String.format("%.0f", entry.getValue())).append("B/s");
+            }
+            return "SyncMetrics{" +
+                    "blocks=" + blocks +
+                    ", blocksLeft=" + blocksLeft +
+                    ", blocksPerSecond=" + String.format("%.2f", blocksPerSecond) +
+                    ", filteredTxs=" + filteredTxs +
+                    ", bytes=" + bytes +
+                    ", stallMs=" + stallMs +
+                    ", etaMs=" + etaMs +
+                    ", elapsedMs=" + elapsedMs +
+                    ", peers=[" + peersRates + "]" +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package chain;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the next background sync runs.
+ *
+ * A wallet with recent activity or with an outgoing transaction waiting for a block, sent less than
+ * {@link #PENDING_MAX_MS} ago, syncs every {@link #MIN_INTERVAL_MS}. Otherwise the interval doubles with every sync that found nothing new, up to
+ * {@link #MAX_INTERVAL_MS}, and it is doubled again on metered networks. A chain head older than
+ * {@link #STALE_CHAIN_MS} keeps the interval short until the wallet catches up.
+ *
+ * It holds no Android state, the service feeds it and schedules what it returns.
+ */
+public class SyncSchedulePolicy {
+
+    public static final long MIN_INTERVAL_MS = TimeUnit.MINUTES.toMillis(2);
+    public static final long MAX_INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+    /** Transactions newer than this keep the wallet on the minimum interval */
+    public static final long RECENT_ACTIVITY_MS = TimeUnit.HOURS.toMillis(1);
+    /** A payment that doesn't confirm in this time may never do, it stops keeping the interval short */
+    public static final long PENDING_MAX_MS = TimeUnit.HOURS.toMillis(2);
+    /** A chain head older than this means the last syncs didn't finish */
+    public static final long STALE_CHAIN_MS = TimeUnit.HOURS.toMillis(6);
+    /** Longest interval while the chain is stale */
+    public static final long STALE_MAX_INTERVAL_MS = TimeUnit.MINUTES.toMillis(15);
+    private static final int METERED_FACTOR = 2;
+
+    /** Syncs in a row without wallet activity */
+    private int idleSyncs;
+
+    /**
+     * @param idleSyncs idle syncs in a row so far, saved from the previous run.
+     */
+    public SyncSchedulePolicy(int idleSyncs) {
+        this.idleSyncs = Math.max(idleSyncs, 0);
+    }
+
+    /**
+     * Record a finished sync, any wallet activity resets the backoff.
+     */
+    public synchronized void onSyncFinished(boolean walletActivity) {
+        if (walletActivity)
+            idleSyncs = 0;
+        else if (MIN_INTERVAL_MS << idleSyncs < MAX_INTERVAL_MS)
+            idleSyncs++;
+    }
+
+    public synchronized int getIdleSyncs() {
+        return idleSyncs;
+    }
+
+    /**
+     * Time to wait before the next sync.
+     *
+     * @param now current time.
+     * @param lastActivityTime time of the last wallet transaction, 0 if there is none.
+     * @param chainHeadTime time of the chain head block, 0 if unknown.
+     * @param pendingOutgoingTime time the newest transaction sent by the wallet and not in a block yet was sent, 0 if there is none.
+     * @param metered whether the current network is metered.
+     */
+    public synchronized long getNextSyncDelayMs(long now, long lastActivityTime, long chainHeadTime, long pendingOutgoingTime, boolean metered) {
+        // a payment waiting for its block, the user wants to see it confirmed
+        if (pendingOutgoingTime > 0 && now - pendingOutgoingTime < PENDING_MAX_MS)
+            return MIN_INTERVAL_MS;
+        if (lastActivityTime > 0 && now - lastActivityTime < RECENT_ACTIVITY_MS)
+            return MIN_INTERVAL_MS;
+        long delay = Math.min(MIN_INTERVAL_MS << idleSyncs, MAX_INTERVAL_MS);
+        if (metered)
+            delay = Math.min(delay * METERED_FACTOR, MAX_INTERVAL_MS);
+        if (chainHeadTime > 0 && now - chainHeadTime > STALE_CHAIN_MS)
+            delay = Math.min(delay, STALE_MAX_INTERVAL_MS);
+        return delay;
+    }
+}
@@ -0,0 +1,219 @@
+package chain.checkpoint;
+
+import org.airwirej.core.Block;
+import org.airwirej.core.CheckpointManager;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.params.MainNetParams;
+import org.airwirej.params.TestNet3Params;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Build time tool that turns a checkpoints file (binary or textual bitcoinj format) into the
+ * {@link CompiledCheckpoints} format, so the wallet doesn't parse and hash every checkpoint on first start.
+ *
+ * Records are read by their header version and not by height, checkpoints without a valid header or older
+ * than the network genesis block are dropped.
+ *
+ * Usage: CheckpointCompiler &lt;main|test&gt; &lt;checkpoints file&gt; &lt;output file&gt;
+ */
+public class CheckpointCompiler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CheckpointCompiler.class);
+
+    private static final String BINARY_MAGIC = "CHECKPOINTS 1";
+    private static final String TEXTUAL_MAGIC = "TXT CHECKPOINTS 1";
+    private static final int SIGNATURE_BYTES = 65;
+    private static final int MAX_SIGNATURES = 256;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static class Entry {
+        final long time;
+        final int height;
+        final byte[] chainWork;
+        final byte[] header;
+
+        Entry(long time, int height, byte[] chainWork, byte[] header) {
+            this.time = time;
+            this.height = height;
+            this.chainWork = chainWork;
+            this.header = header;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: CheckpointCompiler <main|test> <checkpoints file> <output file>");
+            System.exit(1);
+        }
+        NetworkParameters params = "test".equals(args[0]) ? TestNet3Params.get() : MainNetParams.get();
+        File output = new File(args[2]);
+        InputStream inputStream = new FileInputStream(args[1]);
+        OutputStream outputStream = new FileOutputStream(output);
+        try {
+            int count = compile(params, inputStream, outputStream);
+            System.out.println("compiled " + count + " checkpoints into " + output);
+        } finally {
+            inputStream.close();
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Compile the checkpoints of the input stream into the output stream, none of them is closed.
+     *
+     * @return amount of checkpoints written.
+     */
+    public static int compile(NetworkParameters params, InputStream inputStream, OutputStream outputStream) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(inputStream);
+        in.mark(TEXTUAL_MAGIC.length());
+        byte[] magic = new byte[TEXTUAL_MAGIC.length()];
+        int read = in.read(magic);
+        in.reset();
+        List<byte[]> records;
+        if (read >= BINARY_MAGIC.length() && BINARY_MAGIC.equals(new String(magic, 0, BINARY_MAGIC.length(), US_ASCII)))
+            records = readBinary(in);
+        else if (read == TEXTUAL_MAGIC.length() && TEXTUAL_MAGIC.equals(new String(magic, US_ASCII)))
+            records = readTextual(in);
+        else
+            throw new IOException("unknown checkpoints format");
+
+        List<Entry> entries = parse(params, records);
+        write(params, entries, outputStream);
+        return entries.size();
+    }
+
+    private static List<byte[]> readBinary(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        in.readFully(new byte[BINARY_MAGIC.length()]);
+        int numSignatures = in.readInt();
+        if (numSignatures < 0 || numSignatures > MAX_SIGNATURES)
+            throw new IOException("invalid amount of signatures " + numSignatures);
+        in.readFully(new byte[numSignatures * SIGNATURE_BYTES]);
+        int numCheckpoints = in.readInt();
+        List<byte[]> records = new ArrayList<>(Math.max(numCheckpoints, 0));
+        for (int i = 0; i < numCheckpoints; i++) {
+            // the header size is given by its version, read up to it first
+            byte[] prefix = new byte[StoredBlock.CHAIN_WORK_BYTES + 4 + 4];
+            in.readFully(prefix);
+            int headerSize = Block.getHeaderSizeByVersion(readUint32LE(prefix, prefix.length - 4));
+            byte[] record = Arrays.copyOf(prefix, StoredBlock.CHAIN_WORK_BYTES + 4 + headerSize);
+            in.readFully(record, prefix.length, record.length - prefix.length);
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static List<byte[]> readTextual(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, US_ASCII));
+        reader.readLine();
+        int numSignatures = Integer.parseInt(readLine(reader).trim());
+        for (int i = 0; i < numSignatures; i++) {
+            readLine(reader);
+        }
+        int numCheckpoints = Integer.parseInt(readLine(reader).trim());
+        List<byte[]> records = new ArrayList<>(Math.max(numCheckpoints, 0));
+        for (int i = 0; i < numCheckpoints; i++) {
+            records.add(CheckpointManager.BASE64.decode(readLine(reader).trim()));
+        }
+        return records;
+    }
+
+    private static List<Entry> parse(NetworkParameters params, List<byte[]> records) {
+        long genesisTime = params.getGenesisBlock().getTimeSeconds();
+        List<Entry> entries = new ArrayList<>(records.size());
+        int skipped = 0;
+        for (byte[] record : records) {
+            int headerOffset = StoredBlock.CHAIN_WORK_BYTES + 4;
+            int headerSize = record.length - headerOffset;
+            if (headerSize != Block.HEADER_SIZE && headerSize != CompiledCheckpoints.MAX_HEADER_SIZE) {
+                skipped++;
+                continue;
+            }
+            int height = ByteBuffer.wrap(record, StoredBlock.CHAIN_WORK_BYTES, 4).getInt();
+            byte[] header = Arrays.copyOfRange(record, headerOffset, record.length);
+            Block block;
+            try {
+                block = params.getDefaultSerializer().makeBlock(Arrays.copyOf(header, header.length + 1));
+            } catch (RuntimeException e) {
+                LOG.warn("invalid checkpoint header at height {}", height, e);
+                skipped++;
+                continue;
+            }
+            if (height <= 0 || block.getTimeSeconds() < genesisTime) {
+                skipped++;
+                continue;
+            }
+            entries.add(new Entry(block.getTimeSeconds(), height, Arrays.copyOf(record, StoredBlock.CHAIN_WORK_BYTES), header));
+        }
+        if (skipped > 0 && entries.isEmpty())
+            LOG.error("none of the {} checkpoints is valid for network {}, they are older than its genesis block or have no valid header", skipped, params.getId());
+        else if (skipped > 0)
+            LOG.warn("{} checkpoints skipped, not valid for network {}", skipped, params.getId());
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return o1.height < o2.height ? -1 : (o1.height == o2.height ? 0 : 1);
+            }
+        });
+        // lookups search by time and by height, both have to grow together
+        List<Entry> sorted = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            Entry last = sorted.isEmpty() ? null : sorted.get(sorted.size() - 1);
+            if (last == null || (entry.height > last.height && entry.time > last.time))
+                sorted.add(entry);
+        }
+        return sorted;
+    }
+
+    private static void write(NetworkParameters params, List<Entry> entries, OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(CompiledCheckpoints.MAGIC);
+        out.writeInt(CompiledCheckpoints.VERSION);
+        out.writeInt(entries.size());
+        out.writeInt(CompiledCheckpoints.ENTRY_BYTES);
+        out.write(params.getGenesisBlock().getHash().getBytes());
+        for (Entry entry : entries) {
+            out.writeInt((int) entry.time);
+            out.writeInt(entry.height);
+            out.write(entry.chainWork);
+            out.write(Arrays.copyOf(entry.header, CompiledCheckpoints.MAX_HEADER_SIZE));
+        }
+        out.flush();
+    }
+
+    private static String readLine(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) throw new EOFException("unexpected end of checkpoints file");
+        return line;
+    }
+
+    private static long readUint32LE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xffL)
+                | (bytes[offset + 1] & 0xffL) << 8
+                | (bytes[offset + 2] & 0xffL) << 16
+                | (bytes[offset + 3] & 0xffL) << 24;
+    }
+}
@@ -0,0 +1,216 @@
+package chain.checkpoint;
+
+import org.airwirej.core.Block;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.store.BlockStore;
+import org.airwirej.store.BlockStoreException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checkpoints compiled by {@link CheckpointCompiler}: a sorted table of fixed size entries.
+ *
+ * Nothing is parsed on load, a lookup is a binary search over the table and the deserialization of the
+ * single checkpoint found.
+ *
+ * File layout (big endian):
+ * <pre>
+ *   int magic, int version, int count, int entry size, 32 bytes genesis hash
+ *   count * entry: int time secs, int height, 12 bytes chain work, header (80 or 112 bytes, zero padded)
+ * </pre>
+ */
+public class CompiledCheckpoints {
+
+    /** Suffix of the compiled file next to the checkpoints source */
+    public static final String FILE_SUFFIX = ".idx";
+
+    static final int MAGIC = 0x41574350; // "AWCP"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 48;
+    static final int MAX_HEADER_SIZE = 112;
+    static final int ENTRY_BYTES = 4 + 4 + StoredBlock.CHAIN_WORK_BYTES + MAX_HEADER_SIZE;
+
+    private static final int TIME_OFFSET = 0;
+    private static final int HEIGHT_OFFSET = 4;
+    private static final int CHAIN_WORK_OFFSET = 8;
+    private static final int BLOCK_OFFSET = CHAIN_WORK_OFFSET + StoredBlock.CHAIN_WORK_BYTES;
+
+    private final NetworkParameters params;
+    private final ByteBuffer buffer;
+    private final int count;
+
+    private CompiledCheckpoints(NetworkParameters params, ByteBuffer buffer) throws IOException {
+        this.params = params;
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+            throw new IOException("not a compiled checkpoints file");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("unknown compiled checkpoints version " + buffer.getInt(4));
+        if (buffer.getInt(12) != ENTRY_BYTES)
+            throw new IOException("unexpected compiled checkpoints entry size " + buffer.getInt(12));
+        byte[] genesisHash = new byte[32];
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(16);
+        dup.get(genesisHash);
+        if (!Arrays.equals(genesisHash, params.getGenesisBlock().getHash().getBytes()))
+            throw new IOException("compiled checkpoints of another network");
+        this.count = buffer.getInt(8);
+        if (buffer.limit() < HEADER_BYTES + (long) count * ENTRY_BYTES)
+            throw new IOException("truncated compiled checkpoints file");
+    }
+
+    /**
+     * Memory-map a compiled checkpoints file.
+     */
+    public static CompiledCheckpoints open(NetworkParameters params, File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            return new CompiledCheckpoints(params, buffer);
+        } finally {
+            // the mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Load compiled checkpoints from a stream (assets can't be mapped), the stream is closed.
+     */
+    public static CompiledCheckpoints read(NetworkParameters params, InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = inputStream.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            return new CompiledCheckpoints(params, ByteBuffer.wrap(out.toByteArray()));
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Last checkpoint before the given time, the genesis block if there is none.
+     */
+    public StoredBlock getCheckpointBefore(long timeSecs) {
+        int low = 0;
+        int high = count - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long time = getTime(mid);
+            if (time <= timeSecs) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found == -1) {
+            Block genesis = params.getGenesisBlock().cloneAsHeader();
+            return new StoredBlock(genesis, genesis.getWork(), 0);
+        }
+        return getCheckpoint(found);
+    }
+
+    /**
+     * Checkpoint at the exact height, null if there is no checkpoint there.
+     */
+    public StoredBlock getCheckpointAtHeight(int height) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midHeight = getHeight(mid);
+            if (midHeight == height)
+                return getCheckpoint(mid);
+            if (midHeight < height)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return null;
+    }
+
+    /**
+     * Checkpoints above the given height and not newer than the given time, by height.
+     */
+    public List<StoredBlock> getCheckpointsAfter(int height, long maxTimeSecs) {
+        List<StoredBlock> checkpoints = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (getHeight(i) > height && getTime(i) <= maxTimeSecs)
+                checkpoints.add(getCheckpoint(i));
+        }
+        return checkpoints;
+    }
+
+    /**
+     * Highest checkpoint height, -1 if there are no checkpoints.
+     */
+    public int getLastHeight() {
+        return count == 0 ? -1 : getHeight(count - 1);
+    }
+
+    /**
+     * Same as {@link org.airwirej.core.CheckpointManager#checkpoint}: start the store at the checkpoint one week
+     * before the given time.
+     */
+    public void checkpoint(BlockStore store, long timeSecs) throws BlockStoreException {
+        // one week back, in case the clock of the key creation was wrong
+        timeSecs -= 60 * 60 * 24 * 7;
+        StoredBlock checkpoint = getCheckpointBefore(timeSecs);
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+    }
+
+    StoredBlock getCheckpoint(int index) {
+        int offset = entryOffset(index);
+        ByteBuffer entry = buffer.duplicate();
+        byte[] chainWork = new byte[StoredBlock.CHAIN_WORK_BYTES];
+        entry.position(offset + CHAIN_WORK_OFFSET);
+        entry.get(chainWork);
+        int headerSize = Block.getHeaderSizeByVersion(readVersion(entry, offset + BLOCK_OFFSET));
+        // one extra zero byte, the transactions count of a header
+        byte[] header = new byte[headerSize + 1];
+        entry.position(offset + BLOCK_OFFSET);
+        entry.get(header, 0, headerSize);
+        Block block = params.getDefaultSerializer().makeBlock(header);
+        return new StoredBlock(block, new BigInteger(1, chainWork), getHeight(index));
+    }
+
+    private long getTime(int index) {
+        return buffer.getInt(entryOffset(index) + TIME_OFFSET) & 0xffffffffL;
+    }
+
+    private int getHeight(int index) {
+        return buffer.getInt(entryOffset(index) + HEIGHT_OFFSET);
+    }
+
+    private static long readVersion(ByteBuffer buffer, int offset) {
+        // block headers are little endian
+        return (buffer.get(offset) & 0xffL)
+                | (buffer.get(offset + 1) & 0xffL) << 8
+                | (buffer.get(offset + 2) & 0xffL) << 16
+                | (buffer.get(offset + 3) & 0xffL) << 24;
+    }
+
+    private static int entryOffset(int index) {
+        return HEADER_BYTES + index * ENTRY_BYTES;
+    }
+}
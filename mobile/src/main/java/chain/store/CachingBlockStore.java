@@ -0,0 +1,158 @@
+package chain.store;
+
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.store.BlockStore;
+import org.airwirej.store.BlockStoreException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link BlockStore} decorator that keeps the most recently used blocks in memory.
+ *
+ * Writes go through to the wrapped store and into the cache, reads are served from the cache when possible.
+ * Recent-chain walks and reorgs touch the same few blocks again and again, with this they are memory lookups
+ * instead of store reads and deserializations.
+ *
+ * Height lookups are resolved by the wrapped store when it is a {@link HeightIndexedStore}, the block itself
+ * is then read through the cache. Pruning is forwarded to the wrapped store when it supports it.
+ */
+public class CachingBlockStore implements HeightIndexedStore, PrunableBlockStore {
+
+    private final BlockStore store;
+    private final int maxSize;
+    /** Access ordered map, the eldest entry is the least recently used one */
+    private final LinkedHashMap<Sha256Hash,StoredBlock> cache;
+
+    private StoredBlock chainHead;
+
+    private long hits;
+    private long misses;
+
+    public CachingBlockStore(BlockStore store, final int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("cache size must be positive");
+        this.store = store;
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<Sha256Hash,StoredBlock>(maxSize * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
+                return size() > CachingBlockStore.this.maxSize;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+        cache.put(block.getHeader().getHash(), block);
+    }
+
+    @Override
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        StoredBlock block = cache.get(hash);
+        if (block != null) {
+            hits++;
+            return block;
+        }
+        misses++;
+        block = store.get(hash);
+        if (block != null)
+            cache.put(hash, block);
+        return block;
+    }
+
+    @Override
+    public Sha256Hash getHashAtHeight(int height) throws BlockStoreException {
+        if (store instanceof HeightIndexedStore)
+            return ((HeightIndexedStore) store).getHashAtHeight(height);
+        return null;
+    }
+
+    @Override
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        Sha256Hash hash = getHashAtHeight(height);
+        return hash != null ? get(hash) : null;
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        if (chainHead == null)
+            chainHead = store.getChainHead();
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+        this.chainHead = chainHead;
+        cache.put(chainHead.getHeader().getHash(), chainHead);
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        cache.clear();
+        chainHead = null;
+        store.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    @Override
+    public long pruneBelow(StoredBlock oldestKept) throws BlockStoreException {
+        if (!(store instanceof PrunableBlockStore))
+            return 0;
+        long reclaimed = ((PrunableBlockStore) store).pruneBelow(oldestKept);
+        invalidate();
+        return reclaimed;
+    }
+
+    /** Drop every cached block, the next reads go to the wrapped store */
+    public synchronized void invalidate() {
+        cache.clear();
+        chainHead = null;
+    }
+
+    public BlockStore getWrappedStore() {
+        return store;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return hits / lookups, 0 if there was no lookup yet.
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CachingBlockStore{" +
+                "size=" + cache.size() +
+                ", maxSize=" + maxSize +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", hitRate=" + String.format("%.2f", getHitRate()) +
+                '}';
+    }
+}
@@ -0,0 +1,311 @@
+package chain.store;
+
+import org.airwirej.core.Block;
+import org.airwirej.core.ECKey;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.core.VerificationException;
+import org.airwirej.store.BlockStore;
+import org.airwirej.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+import chain.checkpoint.CompiledCheckpoints;
+
+/**
+ * Best chain headers exported to a file, to bootstrap a block store without downloading them from peers.
+ *
+ * The snapshot starts at the genesis block or at a compiled checkpoint and every header must link to the
+ * previous one, headers at checkpoint heights must match the checkpoints. Only the chain work below the first
+ * header is exported, the rest is rebuilt from the headers on import. The content is closed by its SHA-256 digest and signed,
+ * unsigned snapshots can be written but are never imported.
+ *
+ * Layout (big endian):
+ * <pre>
+ *   int magic, int version, 32 bytes genesis hash, int start height, 12 bytes start chain work, int count
+ *   count * header (80 or 112 bytes by header version)
+ *   32 bytes SHA-256 of everything above
+ *   int signature length, DER signature of the digest and 33 bytes signer public key (length 0 when unsigned)
+ * </pre>
+ */
+public class HeaderSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HeaderSnapshot.class);
+
+    private static final int MAGIC = 0x41574853; // "AWHS"
+    private static final int VERSION = 1;
+
+    private static final int MAX_SIGNATURE_BYTES = 80;
+    private static final int PUB_KEY_BYTES = 33;
+
+    /** Blocks the retarget averages, it moves the target at most three times, some more for the compact encoding */
+    private static final int DIFFICULTY_PAST_BLOCKS = 24;
+    private static final BigInteger MAX_TARGET_CHANGE = BigInteger.valueOf(4);
+
+    /**
+     * Write the best chain blocks from the given height to the chain head.
+     *
+     * @param signingKey key signing the snapshot, null for an unsigned one.
+     * @return amount of headers written.
+     */
+    public static int export(HeightIndexedStore store, int fromHeight, OutputStream outputStream, ECKey signingKey) throws IOException, BlockStoreException {
+        StoredBlock chainHead = store.getChainHead();
+        StoredBlock start = store.getByHeight(fromHeight);
+        if (start == null || fromHeight > chainHead.getHeight())
+            throw new BlockStoreException("block at height " + fromHeight + " is not in the store");
+        int count = chainHead.getHeight() - fromHeight + 1;
+
+        MessageDigest digest = Sha256Hash.newDigest();
+        DataOutputStream out = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(outputStream), digest));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(store.getParams().getGenesisBlock().getHash().getBytes());
+        out.writeInt(fromHeight);
+        out.write(toChainWorkBytes(start.getChainWork().subtract(start.getHeader().getWork())));
+        out.writeInt(count);
+        for (int height = fromHeight; height <= chainHead.getHeight(); height++) {
+            StoredBlock block = store.getByHeight(height);
+            if (block == null)
+                throw new BlockStoreException("block at height " + height + " is not in the store");
+            out.write(headerBytes(block.getHeader()));
+        }
+        out.flush();
+
+        // the digest and signature are not part of the digested content
+        DataOutputStream trailer = new DataOutputStream(outputStream);
+        Sha256Hash hash = Sha256Hash.wrap(digest.digest());
+        trailer.write(hash.getBytes());
+        if (signingKey != null) {
+            byte[] signature = signingKey.sign(hash).encodeToDER();
+            trailer.writeInt(signature.length);
+            trailer.write(signature);
+            trailer.write(signingKey.getPubKey());
+        } else {
+            trailer.writeInt(0);
+        }
+        trailer.flush();
+        LOG.info("header snapshot exported, heights {} to {}", fromHeight, chainHead.getHeight());
+        return count;
+    }
+
+    /**
+     * Verify a snapshot and put its headers in the store.
+     *
+     * The file is read twice, the first time only to verify it: its digest, its signature and every header, linked
+     * to the previous one, with a difficulty the retarget could reach and the proof of work it claims up to the given
+     * height. Nothing is written to the store unless all of it is right. The chain head doesn't move if the store
+     * already has a chain with more work.
+     *
+     * @param checkpoints compiled checkpoints the snapshot must agree with, null to only accept snapshots from genesis.
+     * @param trustedSigners keys one of which must have signed the snapshot, unsigned snapshots are never accepted.
+     * @param lastPowHeight headers up to this height must meet their target, the later ones are proof of stake blocks.
+     * @param maxTimeSecs headers newer than this are verified but not imported, the wallet must see those blocks
+     *                    from peers to find its transactions.
+     * @return the new chain head or null if the store was not changed.
+     */
+    public static StoredBlock importInto(BlockStore store, File file, CompiledCheckpoints checkpoints, List<ECKey> trustedSigners,
+                                         int lastPowHeight, long maxTimeSecs) throws IOException, BlockStoreException {
+        if (trustedSigners.isEmpty())
+            throw new IOException("no trusted header snapshot signers");
+        Sha256Hash[] verified = new Sha256Hash[1];
+        read(store.getParams(), file, checkpoints, trustedSigners, lastPowHeight, maxTimeSecs, null, verified);
+        Sha256Hash[] imported = new Sha256Hash[1];
+        StoredBlock lastImported = read(store.getParams(), file, checkpoints, trustedSigners, lastPowHeight, maxTimeSecs, store, imported);
+        // the headers written are not on the store chain until the head moves
+        if (!verified[0].equals(imported[0]))
+            throw new IOException("header snapshot changed while importing it");
+
+        if (lastImported == null || !lastImported.moreWorkThan(store.getChainHead()))
+            return null;
+        store.setChainHead(lastImported);
+        LOG.info("header snapshot imported up to height {}", lastImported.getHeight());
+        return lastImported;
+    }
+
+    /**
+     * Read and verify the whole snapshot, putting the headers not newer than the given time in the store if there is one.
+     *
+     * @param digest receives the snapshot digest.
+     * @return the last header not newer than the given time.
+     */
+    private static StoredBlock read(NetworkParameters params, File file, CompiledCheckpoints checkpoints, List<ECKey> trustedSigners,
+                                    int lastPowHeight, long maxTimeSecs, BlockStore store, Sha256Hash[] digest) throws IOException, BlockStoreException {
+        MessageDigest messageDigest = Sha256Hash.newDigest();
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            DataInputStream in = new DataInputStream(new DigestInputStream(bufferedInputStream, messageDigest));
+            if (in.readInt() != MAGIC)
+                throw new IOException("not a header snapshot");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unknown header snapshot version " + version);
+            byte[] genesisHash = new byte[32];
+            in.readFully(genesisHash);
+            if (!Arrays.equals(genesisHash, params.getGenesisBlock().getHash().getBytes()))
+                throw new IOException("header snapshot of another network");
+            int startHeight = in.readInt();
+            byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
+            in.readFully(chainWorkBytes);
+            int count = in.readInt();
+            if (startHeight < 0 || count < 1)
+                throw new IOException("empty header snapshot");
+
+            Deque<BigInteger> pastTargets = new ArrayDeque<>(DIFFICULTY_PAST_BLOCKS);
+            StoredBlock prev = null;
+            StoredBlock lastImported = null;
+            for (int i = 0; i < count; i++) {
+                Block header = readHeader(params, in);
+                int height = startHeight + i;
+                StoredBlock block;
+                try {
+                    if (prev == null) {
+                        block = new StoredBlock(header, new BigInteger(1, chainWorkBytes).add(header.getWork()), height);
+                        checkAnchor(params, checkpoints, block);
+                    } else {
+                        if (!header.getPrevBlockHash().equals(prev.getHeader().getHash()))
+                            throw new IOException("header snapshot broken at height " + height);
+                        checkWork(params, pastTargets, header, height, lastPowHeight);
+                        block = prev.build(header);
+                        checkCheckpoint(checkpoints, block);
+                    }
+                } catch (VerificationException e) {
+                    throw new IOException("invalid header in snapshot at height " + height, e);
+                }
+                pastTargets.addLast(header.getDifficultyTargetAsInteger());
+                if (pastTargets.size() > DIFFICULTY_PAST_BLOCKS)
+                    pastTargets.removeFirst();
+                if (header.getTimeSeconds() <= maxTimeSecs) {
+                    if (store != null)
+                        store.put(block);
+                    lastImported = block;
+                }
+                prev = block;
+            }
+
+            Sha256Hash hash = Sha256Hash.wrap(messageDigest.digest());
+            DataInputStream trailer = new DataInputStream(bufferedInputStream);
+            byte[] expectedHash = new byte[32];
+            trailer.readFully(expectedHash);
+            if (!Arrays.equals(expectedHash, hash.getBytes()))
+                throw new IOException("header snapshot digest mismatch");
+            checkSignature(trailer, hash, trustedSigners);
+            digest[0] = hash;
+            return lastImported;
+        } finally {
+            bufferedInputStream.close();
+        }
+    }
+
+    /**
+     * The target must be one the retarget could reach from the targets of the previous blocks and a proof of work
+     * header must meet it.
+     */
+    private static void checkWork(NetworkParameters params, Deque<BigInteger> pastTargets, Block header, int height, int lastPowHeight) throws IOException {
+        BigInteger target = header.getDifficultyTargetAsInteger();
+        if (target.signum() <= 0 || target.compareTo(params.getMaxTarget()) > 0)
+            throw new IOException("header snapshot target out of range at height " + height);
+        // the first blocks are mined at the easiest target
+        if (height > DIFFICULTY_PAST_BLOCKS) {
+            BigInteger easiest = Collections.max(pastTargets).multiply(MAX_TARGET_CHANGE);
+            BigInteger hardest = Collections.min(pastTargets).divide(MAX_TARGET_CHANGE);
+            if (target.compareTo(easiest) > 0 || target.compareTo(hardest) < 0)
+                throw new IOException("header snapshot difficulty jumps at height " + height);
+        }
+        if (height <= lastPowHeight && header.getHash().toBigInteger().compareTo(target) > 0)
+            throw new IOException("header snapshot proof of work too low at height " + height);
+    }
+
+    /** The first header must be the genesis block or a checkpoint */
+    private static void checkAnchor(NetworkParameters params, CompiledCheckpoints checkpoints, StoredBlock block) throws IOException {
+        Sha256Hash anchor = null;
+        if (block.getHeight() == 0) {
+            if (!block.getChainWork().equals(block.getHeader().getWork()))
+                throw new IOException("header snapshot chain work doesn't match the genesis block");
+            anchor = params.getGenesisBlock().getHash();
+        } else if (checkpoints != null) {
+            StoredBlock checkpoint = checkpoints.getCheckpointAtHeight(block.getHeight());
+            if (checkpoint != null) {
+                if (!checkpoint.getChainWork().equals(block.getChainWork()))
+                    throw new IOException("header snapshot chain work doesn't match the checkpoint at height " + block.getHeight());
+                anchor = checkpoint.getHeader().getHash();
+            }
+        }
+        if (anchor == null || !anchor.equals(block.getHeader().getHash()))
+            throw new IOException("header snapshot doesn't start at a known checkpoint");
+    }
+
+    private static void checkCheckpoint(CompiledCheckpoints checkpoints, StoredBlock block) throws IOException {
+        if (checkpoints == null)
+            return;
+        StoredBlock checkpoint = checkpoints.getCheckpointAtHeight(block.getHeight());
+        if (checkpoint != null && !checkpoint.getHeader().getHash().equals(block.getHeader().getHash()))
+            throw new IOException("header snapshot disagrees with the checkpoint at height " + block.getHeight());
+    }
+
+    private static void checkSignature(DataInputStream in, Sha256Hash hash, List<ECKey> trustedSigners) throws IOException {
+        int signatureLength = in.readInt();
+        if (signatureLength < 0 || signatureLength > MAX_SIGNATURE_BYTES)
+            throw new IOException("invalid header snapshot signature");
+        if (signatureLength == 0)
+            throw new IOException("header snapshot is not signed");
+        byte[] signature = new byte[signatureLength];
+        in.readFully(signature);
+        byte[] pubKey = new byte[PUB_KEY_BYTES];
+        in.readFully(pubKey);
+        for (ECKey signer : trustedSigners) {
+            if (Arrays.equals(signer.getPubKey(), pubKey)) {
+                if (ECKey.verify(hash.getBytes(), signature, pubKey))
+                    return;
+                break;
+            }
+        }
+        throw new IOException("header snapshot not signed by a trusted key");
+    }
+
+    private static Block readHeader(NetworkParameters params, DataInputStream in) throws IOException {
+        // the version tells the header size
+        byte[] versionBytes = new byte[4];
+        in.readFully(versionBytes);
+        long version = (versionBytes[0] & 0xffL)
+                | (versionBytes[1] & 0xffL) << 8
+                | (versionBytes[2] & 0xffL) << 16
+                | (versionBytes[3] & 0xffL) << 24;
+        // one extra zero byte, the transactions count of a header
+        byte[] header = new byte[Block.getHeaderSizeByVersion(version) + 1];
+        System.arraycopy(versionBytes, 0, header, 0, 4);
+        in.readFully(header, 4, header.length - 5);
+        return params.getDefaultSerializer().makeBlock(header);
+    }
+
+    private static byte[] headerBytes(Block block) {
+        return Arrays.copyOf(block.cloneAsHeader().bitcoinSerialize(), block.getHeaderSize());
+    }
+
+    private static byte[] toChainWorkBytes(BigInteger chainWork) {
+        byte[] bytes = chainWork.toByteArray();
+        byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
+        // big integers have a sign byte, drop it if there is no room for it
+        int length = Math.min(bytes.length, StoredBlock.CHAIN_WORK_BYTES);
+        System.arraycopy(bytes, bytes.length - length, chainWorkBytes, StoredBlock.CHAIN_WORK_BYTES - length, length);
+        return chainWorkBytes;
+    }
+}
@@ -0,0 +1,317 @@
+package chain.store;
+
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.store.BlockStore;
+import org.airwirej.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * {@link BlockStore} decorator that keeps a persistent height -> hash index of the best chain.
+ *
+ * The index is a flat file of 32 byte hashes starting at the first indexed height, so a lookup is a single
+ * positional read. It is updated on every {@link #setChainHead(StoredBlock)}: the new head is written and the
+ * chain is walked back only while the index disagrees with it, which is one step on a normal block and the
+ * reorg depth on a reorg. Heights above the new head are dropped.
+ *
+ * Pruning is forwarded to the wrapped store when it supports it, the index then starts at the oldest kept block.
+ */
+public class HeightIndexedBlockStore implements HeightIndexedStore, PrunableBlockStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HeightIndexedBlockStore.class);
+
+    private static final int MAGIC = 0x41574849; // "AWHI"
+    private static final int VERSION = 1;
+
+    // file prologue
+    private static final int BASE_HEIGHT_OFFSET = 8;
+    private static final int TOP_HEIGHT_OFFSET = 12;
+    private static final int PROLOGUE_BYTES = 16;
+
+    private static final int HASH_BYTES = 32;
+    private static final byte[] EMPTY_HASH = new byte[HASH_BYTES];
+    /** Entries read or written at once when the index is rebuilt or moved */
+    private static final int CHUNK_ENTRIES = 1024;
+
+    private final BlockStore store;
+    private final File indexFile;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    /** Lowest indexed height, -1 if the index is empty */
+    private int baseHeight = -1;
+    /** Highest indexed height (the chain head), -1 if the index is empty */
+    private int topHeight = -1;
+
+    private final ByteBuffer hashBuffer = ByteBuffer.allocate(HASH_BYTES);
+    private final ByteBuffer intBuffer = ByteBuffer.allocate(4);
+
+    public HeightIndexedBlockStore(BlockStore store, File indexFile) throws BlockStoreException {
+        this.store = store;
+        this.indexFile = indexFile;
+        try {
+            open();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void open() throws IOException, BlockStoreException {
+        boolean exists = indexFile.exists() && indexFile.length() >= PROLOGUE_BYTES;
+        randomAccessFile = new RandomAccessFile(indexFile, "rw");
+        channel = randomAccessFile.getChannel();
+        if (exists && readInt(0) == MAGIC && readInt(4) == VERSION) {
+            baseHeight = readInt(BASE_HEIGHT_OFFSET);
+            topHeight = readInt(TOP_HEIGHT_OFFSET);
+        } else {
+            writeInt(0, MAGIC);
+            writeInt(4, VERSION);
+            reset();
+        }
+        // the index must end at the store chain head, otherwise it belongs to another chain
+        StoredBlock chainHead = store.getChainHead();
+        Sha256Hash indexedHead = getHashAtHeight(chainHead.getHeight());
+        if (indexedHead == null || !indexedHead.equals(chainHead.getHeader().getHash())) {
+            if (topHeight != -1)
+                LOG.warn("height index out of sync with the block store, rebuilding it from the chain head");
+            rebuild(chainHead);
+        }
+        updateIndex(chainHead);
+    }
+
+    /**
+     * Index the chain ending in the given head, walking back as far as the store has it.
+     */
+    private void rebuild(StoredBlock head) throws IOException, BlockStoreException {
+        reset();
+        // addressed from zero while walking, moved to the lowest block found at the end
+        baseHeight = 0;
+        topHeight = head.getHeight();
+        writeInt(BASE_HEIGHT_OFFSET, baseHeight);
+        writeInt(TOP_HEIGHT_OFFSET, topHeight);
+        // entries are found top down and written bottom up, a chunk at a time
+        byte[] chunk = new byte[CHUNK_ENTRIES * HASH_BYTES];
+        int chunkTop = topHeight;
+        int lowest = topHeight;
+        StoredBlock block = head;
+        while (block != null) {
+            lowest = block.getHeight();
+            int index = CHUNK_ENTRIES - 1 - (chunkTop - lowest);
+            System.arraycopy(block.getHeader().getHash().getBytes(), 0, chunk, index * HASH_BYTES, HASH_BYTES);
+            if (index == 0) {
+                channel.write(ByteBuffer.wrap(chunk), entryOffset(lowest));
+                chunkTop = lowest - 1;
+            }
+            block = lowest > 0 ? block.getPrev(store) : null;
+        }
+        if (chunkTop >= lowest) {
+            int count = chunkTop - lowest + 1;
+            channel.write(ByteBuffer.wrap(chunk, (CHUNK_ENTRIES - count) * HASH_BYTES, count * HASH_BYTES), entryOffset(lowest));
+        }
+        if (lowest > 0)
+            clearBelow(lowest - 1);
+        LOG.info("height index rebuilt from height {} to {}", lowest, topHeight);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    @Override
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+        updateIndex(chainHead);
+    }
+
+    @Override
+    public synchronized Sha256Hash getHashAtHeight(int height) throws BlockStoreException {
+        if (topHeight == -1 || height < baseHeight || height > topHeight)
+            return null;
+        try {
+            hashBuffer.clear();
+            if (channel.read(hashBuffer, entryOffset(height)) != HASH_BYTES)
+                return null;
+            byte[] hash = hashBuffer.array();
+            if (Arrays.equals(hash, EMPTY_HASH))
+                return null;
+            return Sha256Hash.wrap(hash.clone());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        Sha256Hash hash = getHashAtHeight(height);
+        return hash != null ? store.get(hash) : null;
+    }
+
+    @Override
+    public long pruneBelow(StoredBlock oldestKept) throws BlockStoreException {
+        if (!(store instanceof PrunableBlockStore))
+            return 0;
+        // the wrapped store locks by itself, lookups keep working while it deletes
+        long reclaimed = ((PrunableBlockStore) store).pruneBelow(oldestKept);
+        synchronized (this) {
+            int height = oldestKept.getHeight();
+            if (topHeight != -1 && height > baseHeight && height <= topHeight) {
+                reclaimed += (long) (height - baseHeight) * HASH_BYTES;
+                try {
+                    clearBelow(height - 1);
+                } catch (IOException e) {
+                    throw new BlockStoreException(e);
+                }
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Make the index follow the chain that ends in the given head.
+     */
+    private void updateIndex(StoredBlock head) throws BlockStoreException {
+        try {
+            int headHeight = head.getHeight();
+            // a head far above the index without its parent in the store (a checkpoint), nothing to link it with
+            boolean gap = topHeight != -1 && headHeight > topHeight + 1 && store.get(head.getHeader().getPrevBlockHash()) == null;
+            if (topHeight == -1 || headHeight < baseHeight || gap) {
+                // nothing to walk back to, start the index at the head
+                reset();
+                baseHeight = headHeight;
+                writeInt(BASE_HEIGHT_OFFSET, baseHeight);
+            }
+            if (headHeight < topHeight)
+                channel.truncate(entryOffset(headHeight + 1));
+            topHeight = headHeight;
+            writeInt(TOP_HEIGHT_OFFSET, topHeight);
+
+            int height = headHeight;
+            Sha256Hash hash = head.getHeader().getHash();
+            if (hash.equals(getHashAtHeight(height)))
+                return;
+            Sha256Hash prevHash = head.getHeader().getPrevBlockHash();
+            while (true) {
+                writeHash(height, hash);
+                height--;
+                if (height < baseHeight)
+                    break;
+                if (prevHash == null) {
+                    // the previous block is not in the store, anything below belongs to the same chain or is unknown
+                    clearBelow(height);
+                    break;
+                }
+                hash = prevHash;
+                // the index agrees below a new block, it is read from the store only on a reorg
+                if (hash.equals(getHashAtHeight(height)))
+                    break;
+                StoredBlock prev = store.get(prevHash);
+                prevHash = prev != null ? prev.getHeader().getPrevBlockHash() : null;
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Forget heights from the given one down to the base, the index starts above them */
+    private void clearBelow(int height) throws IOException {
+        // entries are addressed from the base, move them to the start of the file a chunk at a time
+        long shift = (long) (height + 1 - baseHeight) * HASH_BYTES;
+        long length = (long) (topHeight - height) * HASH_BYTES;
+        ByteBuffer entries = ByteBuffer.allocate(CHUNK_ENTRIES * HASH_BYTES);
+        for (long moved = 0; moved < length; moved += entries.limit()) {
+            entries.clear();
+            entries.limit((int) Math.min(entries.capacity(), length - moved));
+            while (entries.hasRemaining() && channel.read(entries, PROLOGUE_BYTES + shift + moved + entries.position()) > 0);
+            // past the end of the file, the entries were never written
+            while (entries.hasRemaining()) entries.put((byte) 0);
+            entries.flip();
+            channel.write(entries, PROLOGUE_BYTES + moved);
+        }
+        channel.truncate(PROLOGUE_BYTES + length);
+        baseHeight = height + 1;
+        writeInt(BASE_HEIGHT_OFFSET, baseHeight);
+    }
+
+    private void reset() throws IOException {
+        baseHeight = -1;
+        topHeight = -1;
+        channel.truncate(PROLOGUE_BYTES);
+        writeInt(BASE_HEIGHT_OFFSET, baseHeight);
+        writeInt(TOP_HEIGHT_OFFSET, topHeight);
+    }
+
+    private void writeHash(int height, Sha256Hash hash) throws IOException {
+        channel.write(ByteBuffer.wrap(hash.getBytes()), entryOffset(height));
+    }
+
+    private long entryOffset(int height) {
+        return PROLOGUE_BYTES + (long) (height - baseHeight) * HASH_BYTES;
+    }
+
+    private int readInt(long position) throws IOException {
+        intBuffer.clear();
+        channel.read(intBuffer, position);
+        intBuffer.flip();
+        return intBuffer.getInt();
+    }
+
+    private void writeInt(long position, int value) throws IOException {
+        intBuffer.clear();
+        intBuffer.putInt(value);
+        intBuffer.flip();
+        channel.write(intBuffer, position);
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        try {
+            if (channel != null) {
+                channel.force(false);
+                randomAccessFile.close();
+                channel = null;
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    public BlockStore getWrappedStore() {
+        return store;
+    }
+
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    /** Lowest height that can be resolved, -1 if the index is empty */
+    public synchronized int getBaseHeight() {
+        return baseHeight;
+    }
+}
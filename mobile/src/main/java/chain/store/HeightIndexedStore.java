@@ -0,0 +1,23 @@
+package chain.store;
+
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.store.BlockStore;
+import org.airwirej.store.BlockStoreException;
+
+/**
+ * Block store that can resolve best chain blocks by height without walking back from the chain head.
+ */
+public interface HeightIndexedStore extends BlockStore {
+
+    /**
+     * @return hash of the best chain block at the given height or null if the height is not indexed.
+     */
+    Sha256Hash getHashAtHeight(int height) throws BlockStoreException;
+
+    /**
+     * @return best chain block at the given height or null if the height is not indexed.
+     */
+    StoredBlock getByHeight(int height) throws BlockStoreException;
+
+}
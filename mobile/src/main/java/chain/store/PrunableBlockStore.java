@@ -0,0 +1,20 @@
+package chain.store;
+
+import org.airwirej.core.StoredBlock;
+import org.airwirej.store.BlockStore;
+import org.airwirej.store.BlockStoreException;
+
+/**
+ * Block store that can drop the old part of the chain.
+ */
+public interface PrunableBlockStore extends BlockStore {
+
+    /**
+     * Remove the ancestors of the given block, the block itself and everything above it is kept.
+     * Blocks of forks below it are not reachable from the chain and may be left in the store.
+     *
+     * @return approximate amount of bytes reclaimed.
+     */
+    long pruneBelow(StoredBlock oldestKept) throws BlockStoreException;
+
+}
@@ -0,0 +1,407 @@
+package chain.store;
+
+import org.airwirej.core.Block;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.store.BlockStore;
+import org.airwirej.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Header store backed by a memory-mapped ring buffer of fixed size slots.
+ *
+ * Every slot holds the block hash followed by the compact serialized block, sized for the biggest record
+ * ({@link StoredBlock#COMPACT_SERIALIZED_SIZE_ZEROCOIN}) so both header versions fit. When the ring is full
+ * the oldest slot is overwritten, the file size never changes.
+ *
+ * The hash and height indexes live in memory and point to slots, they are rebuilt from the file on open.
+ * The height index only follows the best chain, it is updated on every {@link #setChainHead(StoredBlock)}.
+ *
+ * The chain head and the blocks {@link #pin(StoredBlock) pinned} (the checkpoint the store started from) are never
+ * overwritten, the ring skips their slots. A big import or a deep reorg can't leave the store without them.
+ */
+public class RingBufferBlockStore implements HeightIndexedStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RingBufferBlockStore.class);
+
+    /** Default amount of headers kept, around a week of blocks */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private static final int MAGIC = 0x41575242; // "AWRB"
+    private static final int VERSION = 1;
+
+    // file prologue
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int CURSOR_OFFSET = 12;
+    private static final int CHAIN_HEAD_OFFSET = 16;
+    /** slot + 1 of each pinned block, 0 for none */
+    private static final int PINNED_OFFSET = 48;
+    private static final int MAX_PINNED = 4;
+    private static final int PROLOGUE_BYTES = 64;
+
+    // slot layout
+    private static final int HASH_BYTES = 32;
+    private static final int RECORD_BYTES = StoredBlock.COMPACT_SERIALIZED_SIZE_ZEROCOIN;
+    static final int SLOT_BYTES = HASH_BYTES + RECORD_BYTES;
+    /** Offset of the height inside the compact record (after the chain work) */
+    private static final int HEIGHT_OFFSET = HASH_BYTES + StoredBlock.CHAIN_WORK_BYTES;
+
+    private static final byte[] EMPTY_HASH = new byte[HASH_BYTES];
+
+    private final NetworkParameters params;
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+
+    private int capacity;
+    /** Next slot to write */
+    private int cursor;
+    /** block hash -> slot */
+    private final Map<Sha256Hash,Integer> hashIndex;
+    /** height % capacity -> slot + 1 of the best chain block at that height, 0 if unknown */
+    private int[] heightIndex;
+    /** Highest height present in the height index */
+    private int indexedTopHeight = -1;
+
+    private StoredBlock chainHead;
+    private int chainHeadSlot = -1;
+    /** slot + 1 of the pinned blocks, 0 for none */
+    private final int[] pinned = new int[MAX_PINNED];
+
+    public RingBufferBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params,file,DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity amount of headers of a new file, an existing file keeps the capacity it was created with.
+     */
+    public RingBufferBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
+        if (capacity < MAX_PINNED + 2) throw new IllegalArgumentException("capacity must be at least " + (MAX_PINNED + 2));
+        this.params = params;
+        this.file = file;
+        this.capacity = capacity;
+        this.hashIndex = new HashMap<>(capacity * 4 / 3 + 1);
+        try {
+            open();
+        } catch (IOException e) {
+            close();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void open() throws IOException, BlockStoreException {
+        boolean exists = file.exists() && file.length() >= PROLOGUE_BYTES;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        if (exists) {
+            randomAccessFile.seek(MAGIC_OFFSET);
+            if (randomAccessFile.readInt() != MAGIC)
+                throw new BlockStoreException("file " + file + " is not a ring buffer block store");
+            randomAccessFile.seek(VERSION_OFFSET);
+            int version = randomAccessFile.readInt();
+            if (version != VERSION)
+                throw new BlockStoreException("unknown ring buffer block store version " + version);
+            randomAccessFile.seek(CAPACITY_OFFSET);
+            capacity = randomAccessFile.readInt();
+            if (capacity < MAX_PINNED + 2 || file.length() != fileSize(capacity))
+                throw new BlockStoreException("corrupted ring buffer block store, capacity " + capacity + ", file length " + file.length());
+        }
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+        heightIndex = new int[capacity];
+        if (exists) {
+            cursor = buffer.getInt(CURSOR_OFFSET);
+            for (int i = 0; i < MAX_PINNED; i++) {
+                pinned[i] = buffer.getInt(PINNED_OFFSET + i * 4);
+            }
+            rebuildIndexes();
+        } else {
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            buffer.putInt(CURSOR_OFFSET, 0);
+            Block genesis = params.getGenesisBlock().cloneAsHeader();
+            StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+            put(storedGenesis);
+            setChainHead(storedGenesis);
+        }
+    }
+
+    private void rebuildIndexes() throws BlockStoreException {
+        byte[] hashBytes = new byte[HASH_BYTES];
+        for (int slot = 0; slot < capacity; slot++) {
+            readHash(slot, hashBytes);
+            if (!Arrays.equals(hashBytes, EMPTY_HASH))
+                hashIndex.put(Sha256Hash.wrap(hashBytes.clone()), slot);
+        }
+        byte[] headHash = new byte[HASH_BYTES];
+        buffer.position(CHAIN_HEAD_OFFSET);
+        buffer.get(headHash);
+        StoredBlock head = get(Sha256Hash.wrap(headHash));
+        if (head == null)
+            throw new BlockStoreException("chain head not found in " + file);
+        setChainHead(head);
+        LOG.info("ring buffer block store opened, {} headers, chain head {}", hashIndex.size(), head.getHeight());
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = block.getHeader().getHash();
+        Integer slot = hashIndex.get(hash);
+        if (slot == null) {
+            slot = nextFreeSlot();
+            evict(slot);
+            cursor = (slot + 1) % capacity;
+            buffer.putInt(CURSOR_OFFSET, cursor);
+        }
+        int offset = slotOffset(slot);
+        buffer.position(offset);
+        buffer.put(hash.getBytes());
+        block.serializeCompact(buffer);
+        hashIndex.put(hash, slot);
+    }
+
+    @Override
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        if (chainHead != null && chainHead.getHeader().getHash().equals(hash))
+            return chainHead;
+        Integer slot = hashIndex.get(hash);
+        if (slot == null)
+            return null;
+        return readBlock(slot);
+    }
+
+    /**
+     * Best chain block at the given height, null if it is older than the ring or above the chain head.
+     */
+    @Override
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        int slot = heightSlot(height);
+        return slot != -1 ? readBlock(slot) : null;
+    }
+
+    @Override
+    public synchronized Sha256Hash getHashAtHeight(int height) throws BlockStoreException {
+        int slot = heightSlot(height);
+        if (slot == -1)
+            return null;
+        byte[] hashBytes = new byte[HASH_BYTES];
+        readHash(slot, hashBytes);
+        return Sha256Hash.wrap(hashBytes);
+    }
+
+    /** Slot of the best chain block at the given height, -1 if it is not in the ring */
+    private int heightSlot(int height) throws BlockStoreException {
+        checkOpen();
+        if (height < 0 || height > indexedTopHeight)
+            return -1;
+        int slot = heightIndex[height % capacity] - 1;
+        if (slot < 0 || buffer.getInt(slotOffset(slot) + HEIGHT_OFFSET) != height)
+            return -1;
+        return slot;
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        Integer headSlot = hashIndex.get(hash);
+        if (headSlot == null)
+            throw new BlockStoreException("chain head " + hash + " was not put in the store");
+        buffer.position(CHAIN_HEAD_OFFSET);
+        buffer.put(hash.getBytes());
+        this.chainHead = chainHead;
+        this.chainHeadSlot = headSlot;
+        updateHeightIndex(chainHead, headSlot);
+    }
+
+    /**
+     * Keep a block of the store from being overwritten, the checkpoint the chain was started from.
+     *
+     * @throws BlockStoreException if the block is not in the store or too many blocks are pinned.
+     */
+    public synchronized void pin(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        Integer slot = hashIndex.get(block.getHeader().getHash());
+        if (slot == null)
+            throw new BlockStoreException("block " + block.getHeader().getHash() + " was not put in the store");
+        int free = -1;
+        for (int i = 0; i < MAX_PINNED; i++) {
+            if (pinned[i] == slot + 1)
+                return;
+            if (pinned[i] == 0 && free == -1)
+                free = i;
+        }
+        if (free == -1)
+            throw new BlockStoreException("more than " + MAX_PINNED + " pinned blocks");
+        pinned[free] = slot + 1;
+        buffer.putInt(PINNED_OFFSET + free * 4, slot + 1);
+    }
+
+    public synchronized boolean isPinned(Sha256Hash hash) {
+        Integer slot = hashIndex.get(hash);
+        return slot != null && isPinnedSlot(slot);
+    }
+
+    /**
+     * Copy the best chain of another store, the most recent headers that fit. The oldest one copied is pinned as
+     * the checkpoint of the chain.
+     *
+     * @return amount of headers copied.
+     */
+    public synchronized int copyFrom(BlockStore source) throws BlockStoreException {
+        checkOpen();
+        // what fits besides the genesis and the pinned blocks
+        int fits = capacity - MAX_PINNED - 1;
+        LinkedList<StoredBlock> chain = new LinkedList<>();
+        StoredBlock block = source.getChainHead();
+        while (block != null && chain.size() < fits) {
+            chain.addFirst(block);
+            block = block.getPrev(source);
+        }
+        for (StoredBlock stored : chain) {
+            put(stored);
+        }
+        pin(chain.getFirst());
+        setChainHead(chain.getLast());
+        return chain.size();
+    }
+
+    /**
+     * Point the height index to the new best chain, walking back from the head until the index agrees
+     * with the chain (only the blocks of a reorg are walked).
+     */
+    private void updateHeightIndex(StoredBlock head, int headSlot) throws BlockStoreException {
+        int headHeight = head.getHeight();
+        for (int height = headHeight + 1; height <= indexedTopHeight; height++) {
+            heightIndex[height % capacity] = 0;
+        }
+        indexedTopHeight = headHeight;
+        StoredBlock block = head;
+        Integer slot = headSlot;
+        int walked = 0;
+        while (block != null && slot != null && walked < capacity) {
+            int position = block.getHeight() % capacity;
+            if (heightIndex[position] == slot + 1)
+                break;
+            heightIndex[position] = slot + 1;
+            walked++;
+            Sha256Hash prevHash = block.getHeader().getPrevBlockHash();
+            slot = hashIndex.get(prevHash);
+            block = slot != null ? readBlock(slot) : null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        try {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+                randomAccessFile = null;
+            }
+            hashIndex.clear();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /** Amount of headers currently in the ring */
+    public synchronized int size() {
+        return hashIndex.size();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Next slot from the cursor that is not the chain head nor pinned */
+    private int nextFreeSlot() throws BlockStoreException {
+        for (int i = 0; i < capacity; i++) {
+            int slot = (cursor + i) % capacity;
+            if (slot != chainHeadSlot && !isPinnedSlot(slot))
+                return slot;
+        }
+        throw new BlockStoreException("no free slot in " + file);
+    }
+
+    private boolean isPinnedSlot(int slot) {
+        for (int pinnedSlot : pinned) {
+            if (pinnedSlot == slot + 1)
+                return true;
+        }
+        return false;
+    }
+
+    private void evict(int slot) {
+        byte[] hashBytes = new byte[HASH_BYTES];
+        readHash(slot, hashBytes);
+        if (Arrays.equals(hashBytes, EMPTY_HASH))
+            return;
+        Sha256Hash evicted = Sha256Hash.wrap(hashBytes);
+        hashIndex.remove(evicted);
+        int height = buffer.getInt(slotOffset(slot) + HEIGHT_OFFSET);
+        if (height >= 0 && heightIndex[height % capacity] == slot + 1)
+            heightIndex[height % capacity] = 0;
+    }
+
+    private StoredBlock readBlock(int slot) throws BlockStoreException {
+        ByteBuffer record = buffer.duplicate();
+        record.position(slotOffset(slot) + HASH_BYTES);
+        return StoredBlock.deserializeCompact(params, record);
+    }
+
+    private void readHash(int slot, byte[] dest) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(slotOffset(slot));
+        record.get(dest);
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("store closed");
+    }
+
+    private static int slotOffset(int slot) {
+        return PROLOGUE_BYTES + slot * SLOT_BYTES;
+    }
+
+    private static long fileSize(int capacity) {
+        return PROLOGUE_BYTES + (long) capacity * SLOT_BYTES;
+    }
+}
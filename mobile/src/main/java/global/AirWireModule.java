@@ -23,6 +23,7 @@ import java.util.Set;
 
 import global.exceptions.UpgradeException;
 import global.wrappers.InputWrapper;
+import global.airwire.FeePreview;
 import global.wrappers.TransactionWrapper;
 import global.exceptions.CantSweepBalanceException;
 import global.exceptions.ContactAlreadyExistException;
@@ -117,6 +118,18 @@ public interface AirWireModule {
 
     void commitTx(Transaction transaction);
 
+    /** Release the outputs of a transaction built and not committed, so other sends can use them */
+    void releaseTx(Transaction transaction);
+
+    /** Keep the outputs of a transaction built claimed once its outputs were changed, false if another send has them */
+    boolean moveClaims(Sha256Hash previousHash, Transaction transaction);
+
+    /** Sign a transaction built, once the user confirmed it */
+    Transaction signTx(Transaction transaction);
+
+    /** Fee and size of sending the amount, estimated without building the transaction */
+    FeePreview previewFee(Coin amount, Coin feePerKb);
+
     List<Peer> listConnectedPeers();
 
     int getChainHeight();
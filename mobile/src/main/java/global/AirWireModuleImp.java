@@ -1,6 +1,7 @@
 package global;
 
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import org.airwirej.core.Address;
 import org.airwirej.core.Coin;
@@ -36,6 +37,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -43,7 +45,9 @@ import chain.BlockchainManager;
 import global.exceptions.UpgradeException;
 import global.store.ContactsStoreDao;
 import global.store.RateDbDao;
-import global.airwire.DefaultCoinSelector;
+import global.airwire.CoinSelectionEngine;
+import global.airwire.ConsolidationPlanner;
+import global.airwire.FeePreview;
 import global.wrappers.InputWrapper;
 import global.wrappers.TransactionWrapper;
 import global.exceptions.CantSweepBalanceException;
@@ -80,6 +84,22 @@ public class AirWireModuleImp implements AirWireModule {
     // OS dependent helper.
     private BackupHelper backupHelper;
 
+    /** How the inputs of the sends are chosen */
+    private CoinSelectionEngine.Mode coinSelectionMode = CoinSelectionEngine.Mode.EXACT_FIRST;
+    /** Created on first use */
+    private PayoutQueue payoutQueue;
+    /** Selector of the fee previews and the unspents it sorted, kept while they don't change */
+    private final Object previewLock = new Object();
+    private CoinSelectionEngine previewSelector;
+    private CoinSelectionEngine.Mode previewMode;
+    private Coin previewFeePerKb;
+    private List<TransactionOutput> previewUnspents;
+
+    /** Wallet keys loaded, addresses and signing work */
+    private final SettableFuture<Void> keysReady = SettableFuture.create();
+    /** Transaction history loaded and cleaned up, the blockchain can sync */
+    private final SettableFuture<Void> walletReady = SettableFuture.create();
+
     public AirWireModuleImp(ContextWrapper contextWrapper, WalletConfiguration walletConfiguration,ContactsStoreDao contactsStore,RateDbDao rateDb,BackupHelper backupHelper) {
         this.context = contextWrapper;
         this.walletConfiguration = walletConfiguration;
@@ -92,13 +112,69 @@ public class AirWireModuleImp implements AirWireModule {
 
     public void start() throws IOException{
         walletManager.init();
+        keysReady.set(null);
+        walletReady.set(null);
+    }
+
+    /**
+     * Load the wallet in stages on a background thread, the keys first and then the transaction history.
+     * Progress is reported through {@link #getKeysReadyFuture()} and {@link #getWalletReadyFuture()}.
+     */
+    public void startAsync() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    walletManager.initKeys();
+                    keysReady.set(null);
+                    logger.info("wallet keys loaded, took {} ms", System.currentTimeMillis() - start);
+                } catch (Exception e) {
+                    logger.error("cannot load the wallet keys", e);
+                    keysReady.setException(e);
+                    walletReady.setException(e);
+                    return;
+                }
+                try {
+                    walletManager.initHistory();
+                    walletReady.set(null);
+                    logger.info("wallet loaded, took {} ms", System.currentTimeMillis() - start);
+                } catch (Exception e) {
+                    logger.error("cannot load the wallet history", e);
+                    walletReady.setException(e);
+                }
+            }
+        }, "wallet-loader").start();
     }
 
-    // todo: clean this.
-//    public void setPivtrumPeergroup(PivtrumPeergroup peergroup){
-//        //peergroup.setAddressStore(addressstiew);
-//        peergroup.setWalletManager(walletManager);
-//    }
+    public ListenableFuture<Void> getKeysReadyFuture() {
+        return keysReady;
+    }
+
+    public ListenableFuture<Void> getWalletReadyFuture() {
+        return walletReady;
+    }
+
+    /**
+     * Release the wallet threads and listeners, for a module thrown away without stopping the process.
+     */
+    public void close() {
+        walletManager.close();
+    }
+
+    /**
+     * Whether the wallet history loaded, the wallet ready future is also done when it failed.
+     */
+    public boolean isWalletLoaded() {
+        return walletManager.isHistoryLoaded();
+    }
+
+    /** Hook the electrum peer group to the wallet and to the same data budget as the chain sync */
+    public void setPivtrumPeergroup(PivtrumPeergroup peergroup){
+        //peergroup.setAddressStore(addressstiew);
+        peergroup.setWalletManager(walletManager);
+        peergroup.setBandwidthBudget(blockchainManager.getBandwidthBudget());
+    }
 
     @Override
     public void createWallet() {
@@ -235,13 +311,14 @@ public class AirWireModuleImp implements AirWireModule {
 
         SendRequest sendRequest = SendRequest.to(address,amount);
         sendRequest.memo = memo;
-        sendRequest.signInputs = true;
+        sendRequest.signInputs = false; // signed once confirmed, see signTx
         sendRequest.shuffleOutputs = false; // don't shuffle outputs to know the contact
         if (feePerKb!=null)
             sendRequest.feePerKb = feePerKb;
         if (changeAddress!=null){
             sendRequest.changeAddress = changeAddress;
         }
+        sendRequest.coinSelector = new CoinSelectionEngine(new ArrayList<TransactionOutput>(), coinSelectionMode, sendRequest.feePerKb);
         walletManager.completeSend(sendRequest);
 
         return sendRequest.tx;
@@ -250,20 +327,20 @@ public class AirWireModuleImp implements AirWireModule {
     @Override
     public Transaction completeTx(Transaction transaction,Address changeAddress,Coin feePerKb) throws InsufficientMoneyException {
         SendRequest sendRequest = SendRequest.forTx(transaction);
-        if (transaction.getInputs()!=null && !transaction.getInputs().isEmpty()){
-            List<TransactionOutput> unspent = new ArrayList<>();
+        List<TransactionOutput> unspent = new ArrayList<>();
+        if (transaction.getInputs()!=null){
             for (TransactionInput input : transaction.getInputs()) {
                 unspent.add(input.getConnectedOutput());
             }
-            sendRequest.coinSelector = new DefaultCoinSelector(unspent);
         }
-        sendRequest.signInputs = true;
+        sendRequest.signInputs = false; // signed once confirmed, see signTx
         sendRequest.shuffleOutputs = false; // don't shuffle outputs to know the contact
         if (changeAddress!=null){
             sendRequest.changeAddress = changeAddress;
         }
         if (feePerKb!=null)
             sendRequest.feePerKb = feePerKb;
+        sendRequest.coinSelector = new CoinSelectionEngine(unspent, coinSelectionMode, sendRequest.feePerKb);
         //sendRequest.changeAddress -> add the change address with address that i know instead of give this job to the wallet.
         walletManager.completeSend(sendRequest);
 
@@ -275,7 +352,7 @@ public class AirWireModuleImp implements AirWireModule {
         sendRequest.changeAddress = null;
         sendRequest.signInputs = true;
         sendRequest.shuffleOutputs = false;
-        walletManager.getWallet().completeTx(sendRequest);
+        walletManager.completeSend(sendRequest);
         //walletManager.getWallet().signTransaction(sendRequest);
         return sendRequest.tx;
     }
@@ -458,6 +535,58 @@ public class AirWireModuleImp implements AirWireModule {
         walletManager.commitTx(transaction);
     }
 
+    @Override
+    public void releaseTx(Transaction transaction) {
+        walletManager.releaseTx(transaction);
+    }
+
+    @Override
+    public boolean moveClaims(Sha256Hash previousHash, Transaction transaction) {
+        return walletManager.moveClaims(previousHash, transaction);
+    }
+
+    @Override
+    public Transaction signTx(Transaction transaction) {
+        SendRequest sendRequest = SendRequest.forTx(transaction);
+        walletManager.signTx(sendRequest);
+        return sendRequest.tx;
+    }
+
+    @Override
+    public FeePreview previewFee(Coin amount, Coin feePerKb) {
+        Transaction payments = new Transaction(walletConfiguration.getNetworkParams());
+        // any pay to address output has the same size
+        payments.addOutput(amount, walletManager.getCurrentAddress());
+        return previewFee(payments, feePerKb);
+    }
+
+    /**
+     * Fee and size of a send of the outputs of the transaction, without building it. The unspents are sorted again
+     * only once they change, not on every amount typed.
+     */
+    public FeePreview previewFee(Transaction payments, Coin feePerKb) {
+        List<TransactionOutput> unspents = walletManager.listUnclaimedUnspent();
+        synchronized (previewLock) {
+            if (previewSelector == null || previewMode != coinSelectionMode || !feePerKb.equals(previewFeePerKb) || !sameOutputs(unspents, previewUnspents)) {
+                previewSelector = new CoinSelectionEngine(new ArrayList<TransactionOutput>(), coinSelectionMode, feePerKb);
+                previewMode = coinSelectionMode;
+                previewFeePerKb = feePerKb;
+                previewUnspents = unspents;
+            }
+            return FeePreview.estimate(payments, feePerKb, previewSelector, previewUnspents);
+        }
+    }
+
+    private static boolean sameOutputs(List<TransactionOutput> a, List<TransactionOutput> b) {
+        if (b == null || a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i))
+                return false;
+        }
+        return true;
+    }
+
     @Override
     public List<Peer> listConnectedPeers() {
         return blockchainManager.listConnectedPeers();
@@ -469,6 +598,137 @@ public class AirWireModuleImp implements AirWireModule {
     }
 
 
+    /** Time of the newest wallet transaction, 0 if there are none */
+    public long getLastActivityTime() {
+        return walletManager.getLastActivityTime();
+    }
+
+    /** Payments sent that are not in a block yet */
+    public int getPendingOutgoingTxCount() {
+        return walletManager.getPendingOutgoingCount();
+    }
+
+    /** Time the newest payment not in a block yet was sent, 0 if there are none */
+    public long getNewestPendingOutgoingTxTime() {
+        return walletManager.getNewestPendingOutgoingTime();
+    }
+
+    public void setCoinSelectionMode(CoinSelectionEngine.Mode coinSelectionMode) {
+        this.coinSelectionMode = coinSelectionMode;
+    }
+
+    /**
+     * Queue of the programmatic payments, sent in batches at the default fee.
+     */
+    public synchronized PayoutQueue getPayoutQueue() {
+        if (payoutQueue == null) {
+            File file = null;
+            try {
+                file = context.getFileStreamPath("payout_queue");
+            } catch (IOException e) {
+                logger.warn("payout queue kept in memory", e);
+            }
+            payoutQueue = new PayoutQueue(walletConfiguration.getNetworkParams(), new PayoutQueue.Sender() {
+                @Override
+                public Address getChangeAddress() {
+                    return walletManager.newFreshReceiveAddress();
+                }
+
+                @Override
+                public Transaction complete(Transaction transaction, Coin feePerKb, Address changeAddress) throws InsufficientMoneyException {
+                    SendRequest sendRequest = SendRequest.forTx(transaction);
+                    sendRequest.signInputs = true;
+                    sendRequest.shuffleOutputs = false; // the output index of each payment
+                    sendRequest.feePerKb = feePerKb;
+                    sendRequest.changeAddress = changeAddress;
+                    sendRequest.coinSelector = new CoinSelectionEngine(new ArrayList<TransactionOutput>(), coinSelectionMode, feePerKb);
+                    walletManager.completeSend(sendRequest);
+                    return sendRequest.tx;
+                }
+
+                @Override
+                public void send(Transaction transaction) {
+                    walletManager.commitTx(transaction);
+                    // once it is on disk
+                    blockchainManager.broadcastTransaction(transaction.getHash().getBytes());
+                }
+
+                @Override
+                public void release(Transaction transaction) {
+                    walletManager.releaseTx(transaction);
+                }
+            }, Transaction.DEFAULT_TX_FEE, file);
+        }
+        return payoutQueue;
+    }
+
+    /**
+     * Self-sends merging the small unspents at the minimum fee, within the configured budget.
+     */
+    public ConsolidationPlanner.Plan planConsolidation() {
+        ConsolidationPlanner planner = new ConsolidationPlanner(
+                walletConfiguration.getNetworkParams(),
+                Transaction.REFERENCE_DEFAULT_MIN_TX_FEE,
+                walletConfiguration.getConsolidationFeeBudget()
+        );
+        return planner.plan(walletManager.listUnspent());
+    }
+
+    /**
+     * Signed transaction of a batch, spending its inputs to a fresh address of the wallet. Its inputs stay claimed
+     * until it is committed or released.
+     *
+     * @throws IllegalStateException if a send being built has some of the inputs.
+     */
+    public Transaction buildConsolidationTx(ConsolidationPlanner.Batch batch) {
+        Transaction transaction = new Transaction(walletConfiguration.getNetworkParams());
+        for (TransactionOutput input : batch.getInputs()) {
+            transaction.addInput(input);
+        }
+        transaction.addOutput(batch.getOutputValue(), walletManager.newFreshReceiveAddress());
+        if (!walletManager.claimInputs(transaction))
+            throw new IllegalStateException("inputs already claimed by another send");
+        SendRequest sendRequest = SendRequest.forTx(transaction);
+        sendRequest.shuffleOutputs = false;
+        try {
+            walletManager.signTx(sendRequest);
+        } catch (RuntimeException e) {
+            walletManager.releaseTx(transaction);
+            throw e;
+        }
+        return sendRequest.tx;
+    }
+
+    /**
+     * Plan, sign, commit and broadcast the consolidation. Nothing is done for a watch only or encrypted wallet, the
+     * keys are not at hand, or while a payment sent is still unconfirmed.
+     *
+     * @return the transactions sent, empty if there was nothing to merge.
+     */
+    public List<Transaction> consolidate() {
+        List<Transaction> sent = new ArrayList<>();
+        if (walletManager.isWatchOnly() || isWalletLocked() || getPendingOutgoingTxCount() > 0)
+            return sent;
+        ConsolidationPlanner.Plan plan = planConsolidation();
+        if (plan.isEmpty())
+            return sent;
+        logger.info("consolidating {} unspents in {} transactions, fee {}", plan.getMergedOutputs(), plan.getBatches().size(), plan.getFee().toFriendlyString());
+        for (ConsolidationPlanner.Batch batch : plan.getBatches()) {
+            Transaction transaction;
+            try {
+                transaction = buildConsolidationTx(batch);
+            } catch (IllegalStateException e) {
+                logger.info("consolidation batch skipped, {}", e.getMessage());
+                continue;
+            }
+            walletManager.commitTx(transaction);
+            // once it is on disk
+            blockchainManager.broadcastTransaction(transaction.getHash().getBytes());
+            sent.add(transaction);
+        }
+        return sent;
+    }
+
     public BlockchainManager getBlockchainManager() {
         return blockchainManager;
     }
@@ -477,6 +737,10 @@ public class AirWireModuleImp implements AirWireModule {
         walletManager.addCoinsReceivedEventListener(coinReceiverListener);
     }
 
+    public void addCoinsReceivedEventListener(Executor executor, WalletCoinsReceivedEventListener coinReceiverListener) {
+        walletManager.addCoinsReceivedEventListener(executor, coinReceiverListener);
+    }
+
     public void removeCoinsReceivedEventListener(WalletCoinsReceivedEventListener coinReceiverListener) {
         walletManager.removeCoinsReceivedEventListener(coinReceiverListener);
     }
@@ -485,6 +749,10 @@ public class AirWireModuleImp implements AirWireModule {
         walletManager.addOnTransactionsConfidenceChange(transactionConfidenceEventListener);
     }
 
+    public void addOnTransactionConfidenceChange(Executor executor, TransactionConfidenceEventListener transactionConfidenceEventListener) {
+        walletManager.addOnTransactionsConfidenceChange(executor, transactionConfidenceEventListener);
+    }
+
     public void removeTransactionsConfidenceChange(TransactionConfidenceEventListener transactionConfidenceEventListener) {
         walletManager.removeTransactionConfidenceChange(transactionConfidenceEventListener);
     }
@@ -496,9 +764,13 @@ public class AirWireModuleImp implements AirWireModule {
     @Override
     public List<InputWrapper> listUnspentWrappers() {
         List<InputWrapper> inputWrappers = new ArrayList<>();
+        // many unspents share an address, one contacts query for each
+        Map<String,AddressLabel> labels = new HashMap<>();
         for (TransactionOutput transactionOutput : walletManager.listUnspent()) {
-            Address address = transactionOutput.getScriptPubKey().getToAddress(getConf().getNetworkParams(),true);
-            AddressLabel addressLabel = contactsStore.getContact(address.toBase58());
+            String address = transactionOutput.getScriptPubKey().getToAddress(getConf().getNetworkParams(),true).toBase58();
+            if (!labels.containsKey(address))
+                labels.put(address, contactsStore.getContact(address));
+            AddressLabel addressLabel = labels.get(address);
             inputWrappers.add(
                     new InputWrapper(
                             transactionOutput,
@@ -669,12 +941,14 @@ public class AirWireModuleImp implements AirWireModule {
     public boolean encrypt(String password) throws UnsupportedEncodingException {
         password = new String(Base64.encode(password.getBytes("UTF-8")), StandardCharsets.UTF_8);
         walletManager.getWallet().encrypt(password);
+        walletManager.requestSave();
         logger.info("Wallet encrypted");
         return true;
     }
 
     public boolean encrypt(KeyCrypter keyCrypter,KeyParameter keyParameter) {
         walletManager.getWallet().encrypt(keyCrypter, keyParameter);
+        walletManager.requestSave();
         logger.info("Wallet encrypted");
         return true;
     }
@@ -683,6 +957,7 @@ public class AirWireModuleImp implements AirWireModule {
     public boolean decrypt(String password) throws UnsupportedEncodingException {
         password = new String(Base64.encode(password.getBytes("UTF-8")), StandardCharsets.UTF_8);
         walletManager.getWallet().decrypt(password);
+        walletManager.requestSave();
         logger.info("Wallet decrypted");
         return true;
     }
@@ -690,6 +965,7 @@ public class AirWireModuleImp implements AirWireModule {
 
     public boolean decrypt(KeyParameter keyParameter) {
         walletManager.getWallet().decrypt(keyParameter);
+        walletManager.requestSave();
         logger.info("Wallet decrypted");
         return true;
     }
@@ -0,0 +1,218 @@
+package global;
+
+import org.airwirej.core.Message;
+import org.airwirej.core.Peer;
+import org.airwirej.core.listeners.PreMessageReceivedEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import chain.SyncMetrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Daily data usage of the wallet by network type, against a configurable budget for each.
+ *
+ * P2P traffic is counted from the messages the peers send, Electrum traffic from the messages sent and received
+ * by the pivtrum peers. When the budget of the current network gets tight the sync connects fewer peers and
+ * the automatic rescans wait, once it is spent a single peer is kept for the wallet to stay usable.
+ *
+ * The usage of the day is saved between runs, format "day meteredBytes unmeteredBytes".
+ */
+public class BandwidthBudget implements PreMessageReceivedEventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BandwidthBudget.class);
+
+    public enum NetworkType {
+        /** Wi-Fi or ethernet */
+        UNMETERED,
+        /** Cellular or a metered hotspot */
+        METERED
+    }
+
+    /** Remaining fraction of the budget below which it is tight */
+    private static final double TIGHT_FRACTION = 0.25;
+    private static final int TIGHT_MAX_PEERS = 2;
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    /** Daily budget by network type, 0 is unlimited */
+    private final long[] budgets = new long[NetworkType.values().length];
+    private final long[] used = new long[NetworkType.values().length];
+    private long day;
+    private volatile NetworkType networkType = NetworkType.UNMETERED;
+
+    /**
+     * @param file where the usage of the day is kept, null to keep it in memory.
+     */
+    public BandwidthBudget(File file, long unmeteredDailyBytes, long meteredDailyBytes) {
+        this(file, unmeteredDailyBytes, meteredDailyBytes, System.currentTimeMillis());
+    }
+
+    BandwidthBudget(File file, long unmeteredDailyBytes, long meteredDailyBytes, long now) {
+        this.file = file;
+        budgets[NetworkType.UNMETERED.ordinal()] = unmeteredDailyBytes;
+        budgets[NetworkType.METERED.ordinal()] = meteredDailyBytes;
+        day = now / DAY_MS;
+        load();
+    }
+
+    public void setNetworkType(NetworkType networkType) {
+        this.networkType = networkType;
+    }
+
+    public NetworkType getNetworkType() {
+        return networkType;
+    }
+
+    /**
+     * Count bytes sent or received on the current network.
+     */
+    public void record(long bytes) {
+        record(bytes, System.currentTimeMillis());
+    }
+
+    synchronized void record(long bytes, long now) {
+        rollDay(now);
+        used[networkType.ordinal()] += bytes;
+    }
+
+    /** Counted with the message header, as {@link SyncMetrics} does */
+    @Override
+    public Message onPreMessageReceived(Peer peer, Message message) {
+        record(SyncMetrics.MESSAGE_HEADER_BYTES + message.getMessageSize());
+        return message;
+    }
+
+    public long getUsedToday(NetworkType type) {
+        return getUsedToday(type, System.currentTimeMillis());
+    }
+
+    synchronized long getUsedToday(NetworkType type, long now) {
+        rollDay(now);
+        return used[type.ordinal()];
+    }
+
+    /** Bytes left today on the current network, Long.MAX_VALUE without a budget */
+    public long getRemaining() {
+        return getRemaining(System.currentTimeMillis());
+    }
+
+    synchronized long getRemaining(long now) {
+        rollDay(now);
+        long budget = budgets[networkType.ordinal()];
+        return budget == 0 ? Long.MAX_VALUE : Math.max(budget - used[networkType.ordinal()], 0);
+    }
+
+    public boolean isTight() {
+        return isTight(System.currentTimeMillis());
+    }
+
+    synchronized boolean isTight(long now) {
+        long budget = budgets[networkType.ordinal()];
+        return budget > 0 && getRemaining(now) < budget * TIGHT_FRACTION;
+    }
+
+    public boolean isExhausted() {
+        return isExhausted(System.currentTimeMillis());
+    }
+
+    synchronized boolean isExhausted(long now) {
+        return getRemaining(now) == 0;
+    }
+
+    /**
+     * Peers to connect given the wanted amount.
+     */
+    public int getMaxPeers(int wanted) {
+        if (isExhausted())
+            return 1;
+        if (isTight())
+            return Math.min(wanted, TIGHT_MAX_PEERS);
+        return wanted;
+    }
+
+    /** Whether the rescans that can wait should run now */
+    public boolean allowRescan() {
+        return !isTight();
+    }
+
+    private void rollDay(long now) {
+        long today = now / DAY_MS;
+        if (today != day) {
+            day = today;
+            used[0] = 0;
+            used[1] = 0;
+        }
+    }
+
+    private synchronized void load() {
+        if (file == null || !file.exists())
+            return;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            String line = reader.readLine();
+            String[] fields = line != null ? line.trim().split(" ") : new String[0];
+            if (fields.length == 3 && Long.parseLong(fields[0]) == day) {
+                used[NetworkType.METERED.ordinal()] = Long.parseLong(fields[1]);
+                used[NetworkType.UNMETERED.ordinal()] = Long.parseLong(fields[2]);
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOG.warn("cannot read the bandwidth usage", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing
+                }
+            }
+        }
+    }
+
+    public void save() {
+        save(System.currentTimeMillis());
+    }
+
+    synchronized void save(long now) {
+        if (file == null)
+            return;
+        rollDay(now);
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+            writer.write(day + " " + used[NetworkType.METERED.ordinal()] + " " + used[NetworkType.UNMETERED.ordinal()] + "\n");
+        } catch (IOException e) {
+            LOG.warn("cannot write the bandwidth usage", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // nothing
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BandwidthBudget{" +
+                "networkType=" + networkType +
+                ", meteredBytes=" + used[NetworkType.METERED.ordinal()] + "/" + budgets[NetworkType.METERED.ordinal()] +
+                ", unmeteredBytes=" + used[NetworkType.UNMETERED.ordinal()] + "/" + budgets[NetworkType.UNMETERED.ordinal()] +
+                '}';
+    }
+}
@@ -30,6 +30,9 @@ public interface ContextWrapper {
 
     boolean isMemoryLow();
 
+    /** Whether the active network is metered (cellular, metered hotspot) */
+    boolean isNetworkMetered();
+
     String getVersionName();
 
     void stopBlockchain();
@@ -0,0 +1,525 @@
+package global;
+
+import org.airwirej.core.Address;
+import org.airwirej.core.Coin;
+import org.airwirej.core.InsufficientMoneyException;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.Transaction;
+import org.airwirej.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Payments queued and sent together, one transaction with an output for each instead of one transaction each.
+ *
+ * A batch goes once {@link #getMaxOutputs()} payments are waiting or the oldest one waited {@link #getMaxDelayMs()}.
+ * The inputs, the change and the fee are the wallet's job through the {@link Sender}. If the balance is not enough
+ * for the batch, or it is too big, half of it is tried and the rest waits, a payment failing alone is failed.
+ *
+ * The payments are saved on every change, one per line "id status queuedAt amount address txHash outputIndex error",
+ * the hash "-" before the payment is in a transaction. A payment whose transaction was being sent when the process
+ * died is loaded as {@link Status#UNKNOWN}, never queued again.
+ */
+public class PayoutQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PayoutQueue.class);
+
+    public static final int DEFAULT_MAX_OUTPUTS = 100;
+    public static final long DEFAULT_MAX_DELAY_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Builds and sends the batches.
+     */
+    public interface Sender {
+
+        /** Address for the change, asked once per flush */
+        Address getChangeAddress();
+
+        /**
+         * Add the inputs, the change and the fee to a transaction with the payment outputs, and sign it. The
+         * outputs keep their order.
+         */
+        Transaction complete(Transaction transaction, Coin feePerKb, Address changeAddress) throws InsufficientMoneyException;
+
+        /** Commit and broadcast */
+        void send(Transaction transaction);
+
+        /** Give back the inputs claimed by a completed transaction, after a send failure */
+        void release(Transaction transaction);
+    }
+
+    public interface Listener {
+
+        void onPaymentStatusChanged(Payment payment);
+    }
+
+    public enum Status {
+        PENDING,
+        /** In a transaction committed and broadcast */
+        SENT,
+        /** In a transaction whose send failed, it may be committed, check it before paying again */
+        UNKNOWN,
+        FAILED,
+        CANCELLED
+    }
+
+    public static final class Payment {
+
+        private final long id;
+        private final Address address;
+        private final Coin amount;
+        private final long queuedAt;
+        private volatile Status status = Status.PENDING;
+        private volatile Sha256Hash txHash;
+        private volatile int outputIndex = -1;
+        private volatile String error;
+
+        private Payment(long id, Address address, Coin amount, long queuedAt) {
+            this.id = id;
+            this.address = address;
+            this.amount = amount;
+            this.queuedAt = queuedAt;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+
+        public Coin getAmount() {
+            return amount;
+        }
+
+        public long getQueuedAt() {
+            return queuedAt;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /** Transaction paying it, null before it is in one */
+        public Sha256Hash getTxHash() {
+            return txHash;
+        }
+
+        /** Output of the transaction paying it, -1 before it is in one */
+        public int getOutputIndex() {
+            return outputIndex;
+        }
+
+        /** Why it failed, null if it didn't */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Payment{" + id + ", " + amount.toFriendlyString() + " to " + address + ", " + status + "}";
+        }
+    }
+
+    private final NetworkParameters params;
+    private final Sender sender;
+    private final Coin feePerKb;
+    private final int maxOutputs;
+    private final long maxDelayMs;
+    private final File file;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Payments by id, in the order queued, the ones done included */
+    private final Map<Long, Payment> payments = new LinkedHashMap<>();
+    private final List<Payment> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                LOG.error("payout batch failed", e);
+            }
+        }
+    };
+
+    /**
+     * @param file where the payments are kept, null to keep them in memory.
+     */
+    public PayoutQueue(NetworkParameters params, Sender sender, Coin feePerKb, File file) {
+        this(params, sender, feePerKb, DEFAULT_MAX_OUTPUTS, DEFAULT_MAX_DELAY_MS, file);
+    }
+
+    public PayoutQueue(NetworkParameters params, Sender sender, Coin feePerKb, int maxOutputs, long maxDelayMs) {
+        this(params, sender, feePerKb, maxOutputs, maxDelayMs, null);
+    }
+
+    /**
+     * @param maxOutputs payments waiting that send a batch.
+     * @param maxDelayMs time a payment waits for others.
+     * @param file where the payments are kept, null to keep them in memory.
+     */
+    public PayoutQueue(NetworkParameters params, Sender sender, Coin feePerKb, int maxOutputs, long maxDelayMs, File file) {
+        if (maxOutputs < 1)
+            throw new IllegalArgumentException("maxOutputs must be positive: " + maxOutputs);
+        this.params = params;
+        this.sender = sender;
+        this.feePerKb = feePerKb;
+        this.maxOutputs = maxOutputs;
+        this.maxDelayMs = maxDelayMs;
+        this.file = file;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "payout-queue");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (file != null)
+            load();
+    }
+
+    public int getMaxOutputs() {
+        return maxOutputs;
+    }
+
+    public long getMaxDelayMs() {
+        return maxDelayMs;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Queue a payment, it goes in the next batch.
+     *
+     * @throws IllegalArgumentException if the amount is dust.
+     */
+    public synchronized Payment enqueue(Address address, Coin amount) {
+        if (amount.isLessThan(Transaction.MIN_NONDUST_OUTPUT))
+            throw new IllegalArgumentException("Amount must be greater than " + Transaction.MIN_NONDUST_OUTPUT.toFriendlyString());
+        Payment payment = new Payment(nextId.getAndIncrement(), address, amount, System.currentTimeMillis());
+        payments.put(payment.id, payment);
+        pending.add(payment);
+        save();
+        if (pending.size() >= maxOutputs) {
+            schedule(0);
+        } else if (scheduledFlush == null) {
+            schedule(maxDelayMs);
+        }
+        return payment;
+    }
+
+    /**
+     * Remove a payment not sent yet.
+     *
+     * @return false if it is in a batch already.
+     */
+    public boolean cancel(long id) {
+        Payment payment;
+        synchronized (this) {
+            payment = payments.get(id);
+            if (payment == null || !pending.remove(payment))
+                return false;
+            payment.status = Status.CANCELLED;
+            save();
+        }
+        notifyChanged(payment);
+        return true;
+    }
+
+    public synchronized Payment getPayment(long id) {
+        return payments.get(id);
+    }
+
+    public synchronized List<Payment> listPending() {
+        return new ArrayList<>(pending);
+    }
+
+    /** Every payment queued, in order */
+    public synchronized List<Payment> listPayments() {
+        return new ArrayList<>(payments.values());
+    }
+
+    /**
+     * Forget the payments sent, failed or cancelled.
+     */
+    public synchronized void purgeDone() {
+        payments.values().retainAll(pending);
+        save();
+    }
+
+    /**
+     * Send the payments waiting now, in batches of up to {@link #getMaxOutputs()}. On the caller thread, the
+     * triggers run it on the queue thread.
+     *
+     * @return the transactions sent.
+     */
+    public List<Transaction> flush() {
+        List<Transaction> sent = new ArrayList<>();
+        // one change address for all the batches and retries, not a fresh one each
+        Address changeAddress = null;
+        while (true) {
+            List<Payment> batch;
+            synchronized (this) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                    scheduledFlush = null;
+                }
+                batch = new ArrayList<>(pending.subList(0, Math.min(maxOutputs, pending.size())));
+                // the ones in a batch can't be cancelled anymore
+                pending.removeAll(batch);
+            }
+            if (batch.isEmpty())
+                break;
+            int size = batch.size();
+            Transaction transaction = null;
+            boolean insufficient = false;
+            boolean stop = false;
+            while (transaction == null && size > 0) {
+                try {
+                    if (changeAddress == null)
+                        changeAddress = sender.getChangeAddress();
+                    transaction = sender.complete(toTransaction(batch.subList(0, size)), feePerKb, changeAddress);
+                } catch (InsufficientMoneyException e) {
+                    insufficient = true;
+                    if (size == 1) {
+                        fail(batch.get(0), "Insufficient balance, missing " + (e.missing != null ? e.missing.toFriendlyString() : "coins"));
+                        // the balance is not there for the rest either
+                        stop = true;
+                    }
+                    size /= 2;
+                } catch (Wallet.CompletionException e) {
+                    // too big or a dust output, a smaller batch may go
+                    if (size == 1)
+                        fail(batch.get(0), e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+                    size /= 2;
+                } catch (RuntimeException e) {
+                    // not the payments' fault, they wait for the next flush
+                    LOG.error("cannot build a payout batch of {}", size, e);
+                    size = 0;
+                    stop = true;
+                }
+            }
+            if (transaction == null) {
+                requeue(batch.get(0).status == Status.FAILED ? batch.subList(1, batch.size()) : batch);
+                if (stop)
+                    break;
+                continue;
+            }
+            requeue(batch.subList(size, batch.size()));
+            synchronized (this) {
+                for (int i = 0; i < size; i++) {
+                    Payment payment = batch.get(i);
+                    payment.txHash = transaction.getHash();
+                    payment.outputIndex = i;
+                }
+                // before the commit, a crash while sending can't queue them again
+                save();
+            }
+            try {
+                sender.send(transaction);
+            } catch (RuntimeException e) {
+                // maybe committed already, paying them again could pay twice
+                LOG.error("cannot send the payout batch {}", transaction.getHash(), e);
+                sender.release(transaction);
+                for (Payment payment : batch.subList(0, size)) {
+                    setStatus(payment, Status.UNKNOWN, String.valueOf(e.getMessage()));
+                }
+                break;
+            }
+            sent.add(transaction);
+            LOG.info("payout batch sent, {} payments, tx {}", size, transaction.getHash());
+            for (Payment payment : batch.subList(0, size)) {
+                setStatus(payment, Status.SENT, null);
+            }
+            if (insufficient)
+                break;
+        }
+        synchronized (this) {
+            if (!pending.isEmpty() && scheduledFlush == null)
+                schedule(maxDelayMs);
+        }
+        return sent;
+    }
+
+    /**
+     * Stop the queue thread, the payments pending stay queued.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private Transaction toTransaction(List<Payment> batch) {
+        Transaction transaction = new Transaction(params);
+        for (Payment payment : batch) {
+            transaction.addOutput(payment.amount, payment.address);
+        }
+        return transaction;
+    }
+
+    /** Back to the head of the queue, in order */
+    private synchronized void requeue(List<Payment> batch) {
+        pending.addAll(0, batch);
+    }
+
+    private void fail(Payment payment, String error) {
+        LOG.warn("payout {} failed, {}", payment, error);
+        setStatus(payment, Status.FAILED, error);
+    }
+
+    private void setStatus(Payment payment, Status status, String error) {
+        synchronized (this) {
+            payment.error = error;
+            payment.status = status;
+            save();
+        }
+        notifyChanged(payment);
+    }
+
+    private void schedule(long delayMs) {
+        if (scheduledFlush != null)
+            scheduledFlush.cancel(false);
+        scheduledFlush = executor.schedule(flushTask, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void load() {
+        if (!file.exists())
+            return;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 8);
+                if (fields.length < 7)
+                    continue;
+                try {
+                    Payment payment = new Payment(
+                            Long.parseLong(fields[0]),
+                            Address.fromBase58(params, fields[4]),
+                            Coin.valueOf(Long.parseLong(fields[3])),
+                            Long.parseLong(fields[2])
+                    );
+                    payment.status = Status.valueOf(fields[1]);
+                    payment.txHash = fields[5].equals("-") ? null : Sha256Hash.wrap(fields[5]);
+                    payment.outputIndex = Integer.parseInt(fields[6]);
+                    payment.error = fields.length > 7 ? fields[7] : null;
+                    if (payment.status == Status.PENDING && payment.txHash != null) {
+                        // died while its transaction was sent
+                        payment.status = Status.UNKNOWN;
+                        payment.error = "Interrupted while sending";
+                    }
+                    payments.put(payment.id, payment);
+                    if (payment.status == Status.PENDING)
+                        pending.add(payment);
+                    nextId.set(Math.max(nextId.get(), payment.id + 1));
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("invalid payout queue line: {}", line);
+                }
+            }
+            LOG.info("{} payouts loaded, {} pending", payments.size(), pending.size());
+        } catch (IOException e) {
+            LOG.warn("cannot read the payout queue", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing
+                }
+            }
+        }
+        if (!pending.isEmpty()) {
+            long waited = System.currentTimeMillis() - pending.get(0).queuedAt;
+            schedule(pending.size() >= maxOutputs ? 0 : Math.max(0, maxDelayMs - waited));
+        }
+    }
+
+    private synchronized void save() {
+        if (file == null)
+            return;
+        StringBuilder content = new StringBuilder();
+        for (Payment payment : payments.values()) {
+            content.append(payment.id).append(' ')
+                    .append(payment.status).append(' ')
+                    .append(payment.queuedAt).append(' ')
+                    .append(payment.amount.value).append(' ')
+                    .append(payment.address.toBase58()).append(' ')
+                    .append(payment.txHash != null ? payment.txHash.toString() : "-").append(' ')
+                    .append(payment.outputIndex);
+            if (payment.error != null)
+                content.append(' ').append(payment.error.replace('\n', ' '));
+            content.append('\n');
+        }
+        // write a temp file and rename it, a crash never leaves half a queue
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF_8);
+            writer.write(content.toString());
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    LOG.warn("cannot replace the payout queue {}", file);
+            }
+        } catch (IOException e) {
+            LOG.warn("cannot write the payout queue", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // nothing
+                }
+            }
+        }
+    }
+
+    private void notifyChanged(Payment payment) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onPaymentStatusChanged(payment);
+            } catch (RuntimeException e) {
+                LOG.error("payout listener failed", e);
+            }
+        }
+    }
+}
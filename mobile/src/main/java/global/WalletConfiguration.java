@@ -1,8 +1,12 @@
 package global;
 
+import org.airwirej.core.Coin;
 import org.airwirej.core.Context;
+import org.airwirej.core.ECKey;
 import org.airwirej.core.NetworkParameters;
 
+import java.util.List;
+
 /**
  * Created by akshaynexus on 6/4/17.
  */
@@ -20,6 +24,11 @@ public interface WalletConfiguration {
 
     long getScheduledBLockchainService();
 
+    /** Background syncs in a row that found no wallet activity, drives the sync backoff */
+    int getIdleSyncCount();
+
+    void saveIdleSyncCount(int count);
+
     /**************   Constants   ***************/
 
     String getMnemonicFilename();
@@ -44,6 +53,31 @@ public interface WalletConfiguration {
 
     int getMinMemoryNeeded();
 
+    /** Amount of blocks kept in memory by the block store cache, 0 disables it */
+    int getBlockCacheSize();
+
+    /** Amount of recent blocks kept when the block store is pruned, 0 disables pruning */
+    int getBlockStoreKeepBlocks();
+
+    /** Release keys trusted to sign header snapshots besides the key of the device, unsigned snapshots are never accepted */
+    List<ECKey> getHeaderSnapshotSigners();
+
+    /** Target false positive rate of the bloom filter per queried element, 0 disables the tuning */
+    double getBloomFilterFalsePositiveRate();
+
+    /** Bytes the wallet can use per day on a metered or unmetered network, 0 is unlimited */
+    long getDailyBandwidthBudget(boolean metered);
+
+    void saveDailyBandwidthBudget(boolean metered, long bytes);
+
+    /** Whether small unspents are merged by self-sends after a sync */
+    boolean isAutoConsolidationEnabled();
+
+    void saveAutoConsolidationEnabled(boolean enabled);
+
+    /** The most a consolidation pays in fees */
+    Coin getConsolidationFeeBudget();
+
     long getBackupMaxChars();
 
     boolean isTest();
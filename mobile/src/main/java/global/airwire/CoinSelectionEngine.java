@@ -0,0 +1,372 @@
+package global.airwire;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.core.Utils;
+import org.airwirej.wallet.CoinSelection;
+import org.airwirej.wallet.CoinSelector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CoinSelector} looking for the inputs that make the smallest transaction instead of the highest priority.
+ *
+ * A branch and bound search for a set of inputs matching the target without change, up to the cost of creating
+ * and later spending a change output, and the knapsack: the best subset of the outputs smaller than the target,
+ * or the smallest output bigger than it. The one with the least waste wins, waste being the fee of the inputs plus
+ * the change given to the fee or the cost of the change output. Both stop once the time budget is spent and
+ * return the best found so far, the wallet calls the selector a few times for each transaction.
+ *
+ * The candidates are sorted once by value and by coin days, both precomputed, and kept while the selector is asked
+ * again with the same list, which must not change in between. The knapsack draws from a fixed seed on each call:
+ * the same target and candidates always give the same inputs, a fee preview is the fee of the send built after it.
+ */
+public class CoinSelectionEngine extends DefaultCoinSelector {
+
+    public enum Mode {
+        /** Exact match without change first, the knapsack otherwise */
+        EXACT_FIRST,
+        /**
+         * The outputs to the same address are spent together, up to {@link #MAX_GROUP_SIZE}: an address is not
+         * linked again by a later send and its small outputs go away.
+         */
+        CONSOLIDATE
+    }
+
+    /** Bytes of a signed pay to address input */
+    public static final int INPUT_BYTES = 148;
+    /** Bytes of a pay to address output */
+    public static final int OUTPUT_BYTES = 34;
+    public static final int MAX_GROUP_SIZE = 100;
+    public static final long DEFAULT_TIME_BUDGET_MS = 25;
+    public static final long DEFAULT_SEED = 1;
+
+    private static final int BNB_MAX_TRIES = 100000;
+    private static final int KNAPSACK_ROUNDS = 1000;
+    /** The knapsack avoids a change under this, the wallet asks for the reference fee then */
+    private static final long MIN_CHANGE = Coin.CENT.value;
+
+    private static final Comparator<Candidate> BIGGEST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            if (a.value != b.value)
+                return a.value > b.value ? -1 : 1;
+            return Double.compare(b.coinDays, a.coinDays);
+        }
+    };
+
+    private static final class Candidate {
+
+        private final List<TransactionOutput> outputs;
+        private long value;
+        /** value * depth */
+        private double coinDays;
+
+        private Candidate() {
+            outputs = new ArrayList<>(1);
+        }
+
+        private void add(TransactionOutput output) {
+            outputs.add(output);
+            value += output.getValue().value;
+            coinDays += (double) output.getValue().value * output.getParentTransactionDepthInBlocks();
+        }
+    }
+
+    private final Mode mode;
+    private final long costOfChange;
+    private final long inputCost;
+    private final long timeBudgetNanos;
+    private final long seed;
+
+    /** Pool of the last candidates list */
+    private List<TransactionOutput> preparedCandidates;
+    private Candidate[] preparedPool;
+
+    /**
+     * @param usedOutputs outputs already in the transaction.
+     * @param feePerKb fee of the transaction, for the cost of a change output.
+     */
+    public CoinSelectionEngine(List<TransactionOutput> usedOutputs, Mode mode, Coin feePerKb) {
+        this(usedOutputs, mode, feePerKb, DEFAULT_TIME_BUDGET_MS, DEFAULT_SEED);
+    }
+
+    CoinSelectionEngine(List<TransactionOutput> usedOutputs, Mode mode, Coin feePerKb, long timeBudgetMs, long seed) {
+        super(usedOutputs);
+        this.mode = mode;
+        this.costOfChange = Math.max(
+                Transaction.MIN_NONDUST_OUTPUT.value,
+                feePerKb.value * (OUTPUT_BYTES + INPUT_BYTES) / 1000
+        );
+        this.inputCost = Math.max(1, feePerKb.value * INPUT_BYTES / 1000);
+        this.timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(timeBudgetMs);
+        this.seed = seed;
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        Candidate[] pool;
+        synchronized (this) {
+            if (candidates != preparedCandidates) {
+                preparedPool = prepare(candidates);
+                preparedCandidates = candidates;
+            }
+            pool = preparedPool;
+        }
+        long available = 0;
+        for (Candidate candidate : pool) {
+            available += candidate.value;
+        }
+        // not enough, or everything asked as for the balance
+        if (available <= target.value)
+            return toSelection(pool, null);
+        boolean[] exact = branchAndBound(pool, target.value, deadline);
+        boolean[] chosen = knapsack(pool, target.value, deadline, new Random(seed));
+        if (exact != null && waste(pool, exact, target.value) <= waste(pool, chosen, target.value))
+            chosen = exact;
+        return toSelection(pool, chosen);
+    }
+
+    /**
+     * Selectable candidates biggest first, grouped by address in the consolidation mode.
+     */
+    private Candidate[] prepare(List<TransactionOutput> outputs) {
+        List<Candidate> list = new ArrayList<>(outputs.size());
+        Map<String, Candidate> groups = mode == Mode.CONSOLIDATE ? new LinkedHashMap<String, Candidate>() : null;
+        for (TransactionOutput output : outputs) {
+            if (!shouldSelect(output) || !shouldSelect(output.getParentTransaction()))
+                continue;
+            if (groups == null) {
+                Candidate candidate = new Candidate();
+                candidate.add(output);
+                list.add(candidate);
+                continue;
+            }
+            String script = Utils.HEX.encode(output.getScriptBytes());
+            Candidate group = groups.get(script);
+            if (group == null || group.outputs.size() == MAX_GROUP_SIZE) {
+                // a full group stays a candidate on its own
+                if (group != null)
+                    list.add(group);
+                group = new Candidate();
+                groups.put(script, group);
+            }
+            group.add(output);
+        }
+        if (groups != null)
+            list.addAll(groups.values());
+        Candidate[] pool = list.toArray(new Candidate[list.size()]);
+        Arrays.sort(pool, BIGGEST_FIRST);
+        return pool;
+    }
+
+    /**
+     * Candidates summing from the target to the target plus the cost of change with the least waste. Null if there
+     * is none or the search ran out of time before finding one.
+     */
+    private boolean[] branchAndBound(Candidate[] pool, long target, long deadline) {
+        int n = pool.length;
+        long remaining = 0;
+        for (Candidate candidate : pool) {
+            remaining += candidate.value;
+        }
+        // the branch taken at each depth
+        boolean[] selection = new boolean[n];
+        int depth = 0;
+        long value = 0;
+        // fee of the inputs selected
+        long cost = 0;
+        boolean[] best = null;
+        long bestWaste = Long.MAX_VALUE;
+
+        for (int tries = 0; tries < BNB_MAX_TRIES; tries++) {
+            if ((tries & 1023) == 0 && tries > 0 && System.nanoTime() > deadline)
+                break;
+            boolean backtrack = false;
+            // more inputs only add to the waste
+            if (value + remaining < target || value > target + costOfChange || cost >= bestWaste) {
+                backtrack = true;
+            } else if (value >= target) {
+                long waste = cost + value - target;
+                if (waste < bestWaste) {
+                    best = new boolean[n];
+                    System.arraycopy(selection, 0, best, 0, depth);
+                    bestWaste = waste;
+                }
+                backtrack = true;
+            }
+            if (backtrack) {
+                // back to the last candidate included, its omission branch is next
+                while (depth > 0 && !selection[depth - 1]) {
+                    depth--;
+                    remaining += pool[depth].value;
+                }
+                if (depth == 0)
+                    break;
+                selection[depth - 1] = false;
+                value -= pool[depth - 1].value;
+                cost -= pool[depth - 1].outputs.size() * inputCost;
+            } else {
+                Candidate candidate = pool[depth];
+                remaining -= candidate.value;
+                // excluding it is the same branch as excluding the previous one of the same value
+                if (depth > 0 && !selection[depth - 1] && candidate.value == pool[depth - 1].value) {
+                    selection[depth] = false;
+                } else {
+                    selection[depth] = true;
+                    value += candidate.value;
+                    cost += candidate.outputs.size() * inputCost;
+                }
+                depth++;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Best subset of the candidates smaller than the target, or the smallest bigger than it if that is closer.
+     * The pool must be worth more than the target.
+     */
+    private boolean[] knapsack(Candidate[] pool, long target, long deadline, Random random) {
+        int n = pool.length;
+        int lowestLarger = -1;
+        List<Integer> lower = new ArrayList<>();
+        long lowerTotal = 0;
+        for (int i = 0; i < n; i++) {
+            long value = pool[i].value;
+            if (value == target) {
+                boolean[] chosen = new boolean[n];
+                chosen[i] = true;
+                return chosen;
+            } else if (value < target + MIN_CHANGE) {
+                lower.add(i);
+                lowerTotal += value;
+            } else if (lowestLarger == -1 || value < pool[lowestLarger].value) {
+                lowestLarger = i;
+            }
+        }
+        if (lowerTotal < target)
+            return single(n, lowestLarger);
+
+        long[] values = new long[lower.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = pool[lower.get(i)].value;
+        }
+        boolean[] subset = approximateBestSubset(values, target, deadline, random);
+        long subsetValue = sum(values, subset);
+        // no exact match, leave a change worth keeping
+        if (subsetValue != target && lowerTotal >= target + MIN_CHANGE) {
+            subset = approximateBestSubset(values, target + MIN_CHANGE, deadline, random);
+            subsetValue = sum(values, subset);
+        }
+        if (lowestLarger != -1 && ((subsetValue != target && subsetValue < target + MIN_CHANGE) || pool[lowestLarger].value <= subsetValue))
+            return single(n, lowestLarger);
+
+        boolean[] chosen = new boolean[n];
+        for (int i = 0; i < values.length; i++) {
+            if (subset[i])
+                chosen[lower.get(i)] = true;
+        }
+        return chosen;
+    }
+
+    /**
+     * Fee of the inputs plus the excess, or the cost of the change output when the excess is worth one.
+     */
+    private long waste(Candidate[] pool, boolean[] chosen, long target) {
+        long value = 0;
+        long cost = 0;
+        for (int i = 0; i < pool.length; i++) {
+            if (chosen[i]) {
+                value += pool[i].value;
+                cost += pool[i].outputs.size() * inputCost;
+            }
+        }
+        return cost + Math.min(value - target, costOfChange);
+    }
+
+    /** Biggest first until the target, a starting point for when there is no time for anything else */
+    private static boolean[] greedy(long[] values, long target) {
+        boolean[] included = new boolean[values.length];
+        long total = 0;
+        for (int i = 0; i < values.length && total < target; i++) {
+            included[i] = true;
+            total += values[i];
+        }
+        return included;
+    }
+
+    /**
+     * Random subsets reaching the target, keeps the smallest. The values must reach it.
+     */
+    private boolean[] approximateBestSubset(long[] values, long target, long deadline, Random random) {
+        boolean[] best = greedy(values, target);
+        long bestValue = sum(values, best);
+        boolean[] included = new boolean[values.length];
+        for (int round = 0; round < KNAPSACK_ROUNDS && bestValue != target; round++) {
+            if (System.nanoTime() > deadline)
+                break;
+            Arrays.fill(included, false);
+            long total = 0;
+            boolean reached = false;
+            for (int pass = 0; pass < 2 && !reached; pass++) {
+                for (int i = 0; i < values.length; i++) {
+                    // random on the first pass, everything left on the second
+                    if (pass == 0 ? random.nextBoolean() : !included[i]) {
+                        total += values[i];
+                        included[i] = true;
+                        if (total >= target) {
+                            reached = true;
+                            if (total < bestValue) {
+                                bestValue = total;
+                                best = included.clone();
+                            }
+                            total -= values[i];
+                            included[i] = false;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private static long sum(long[] values, boolean[] included) {
+        long total = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (included[i])
+                total += values[i];
+        }
+        return total;
+    }
+
+    private static boolean[] single(int n, int index) {
+        boolean[] chosen = new boolean[n];
+        chosen[index] = true;
+        return chosen;
+    }
+
+    /**
+     * @param chosen null for every candidate.
+     */
+    private static CoinSelection toSelection(Candidate[] pool, boolean[] chosen) {
+        List<TransactionOutput> gathered = new ArrayList<>();
+        long total = 0;
+        for (int i = 0; i < pool.length; i++) {
+            if (chosen == null || chosen[i]) {
+                gathered.addAll(pool[i].outputs);
+                total += pool[i].value;
+            }
+        }
+        return new CoinSelection(Coin.valueOf(total), gathered);
+    }
+}
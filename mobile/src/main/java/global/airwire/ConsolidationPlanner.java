@@ -0,0 +1,203 @@
+package global.airwire;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionConfidence;
+import org.airwirej.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Plans self-sends merging the small unspents of the wallet, so later sends need fewer inputs.
+ *
+ * Only confirmed outputs are merged: {@link #MIN_DEPTH} blocks deep, the staking rewards and the coinbase ones once
+ * they can be spent. An output worth less than the fee of spending it stays where it is. The smallest go first, in
+ * batches of up to {@link #MAX_INPUTS} inputs paying one output, until the fee budget is spent.
+ */
+public class ConsolidationPlanner {
+
+    /** Outputs under this are merged */
+    public static final Coin DEFAULT_SMALL_OUTPUT = Coin.COIN;
+    /** Fewer small outputs than this are not worth a transaction */
+    public static final int MIN_OUTPUTS = 20;
+    /** Inputs of one transaction, ~30 kB, under the standard size */
+    public static final int MAX_INPUTS = 200;
+    public static final int MIN_DEPTH = 6;
+
+    /** Version, locktime and the input and output counts */
+    private static final int TX_OVERHEAD_BYTES = 10;
+
+    private static final Comparator<TransactionOutput> SMALLEST_FIRST = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput o1, TransactionOutput o2) {
+            return o1.getValue().compareTo(o2.getValue());
+        }
+    };
+
+    /**
+     * Self-send of a few small outputs to a single one.
+     */
+    public static final class Batch {
+
+        private final List<TransactionOutput> inputs;
+        private final Coin value;
+        private final Coin fee;
+
+        private Batch(List<TransactionOutput> inputs, Coin value, Coin fee) {
+            this.inputs = Collections.unmodifiableList(inputs);
+            this.value = value;
+            this.fee = fee;
+        }
+
+        public List<TransactionOutput> getInputs() {
+            return inputs;
+        }
+
+        /** Sum of the inputs */
+        public Coin getValue() {
+            return value;
+        }
+
+        public Coin getFee() {
+            return fee;
+        }
+
+        /** Value of the merged output */
+        public Coin getOutputValue() {
+            return value.subtract(fee);
+        }
+    }
+
+    public static final class Plan {
+
+        private final List<Batch> batches;
+        private final Coin fee;
+        private final int merged;
+
+        private Plan(List<Batch> batches) {
+            this.batches = Collections.unmodifiableList(batches);
+            Coin fee = Coin.ZERO;
+            int merged = 0;
+            for (Batch batch : batches) {
+                fee = fee.add(batch.getFee());
+                merged += batch.getInputs().size();
+            }
+            this.fee = fee;
+            this.merged = merged;
+        }
+
+        public List<Batch> getBatches() {
+            return batches;
+        }
+
+        public boolean isEmpty() {
+            return batches.isEmpty();
+        }
+
+        public Coin getFee() {
+            return fee;
+        }
+
+        /** Outputs spent by the plan, each batch leaves one in their place */
+        public int getMergedOutputs() {
+            return merged;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final Coin feePerKb;
+    private final Coin feeBudget;
+    private final Coin smallOutput;
+
+    /**
+     * @param feePerKb fee of the self-sends, the low one: they can wait.
+     * @param feeBudget the most the whole plan can pay.
+     */
+    public ConsolidationPlanner(NetworkParameters params, Coin feePerKb, Coin feeBudget) {
+        this(params, feePerKb, feeBudget, DEFAULT_SMALL_OUTPUT);
+    }
+
+    public ConsolidationPlanner(NetworkParameters params, Coin feePerKb, Coin feeBudget, Coin smallOutput) {
+        this.params = params;
+        this.feePerKb = feePerKb;
+        this.feeBudget = feeBudget;
+        this.smallOutput = smallOutput;
+    }
+
+    /**
+     * @param unspents outputs of the wallet, as {@link wallet.WalletManager#listUnspent()}.
+     * @return the batches, empty if there is not enough to merge.
+     */
+    public Plan plan(List<TransactionOutput> unspents) {
+        List<TransactionOutput> candidates = new ArrayList<>();
+        for (TransactionOutput output : unspents) {
+            if (isCandidate(output))
+                candidates.add(output);
+        }
+        List<Batch> batches = new ArrayList<>();
+        if (candidates.size() < MIN_OUTPUTS)
+            return new Plan(batches);
+        Collections.sort(candidates, SMALLEST_FIRST);
+
+        long budget = feeBudget.value;
+        int next = 0;
+        while (candidates.size() - next >= 2) {
+            int count = Math.min(MAX_INPUTS, candidates.size() - next);
+            // the last one, or the whole plan, as big as the budget allows
+            while (count >= 2 && fee(count) > budget) {
+                count--;
+            }
+            if (count < 2)
+                break;
+            List<TransactionOutput> inputs = new ArrayList<>(candidates.subList(next, next + count));
+            long value = 0;
+            for (TransactionOutput input : inputs) {
+                value += input.getValue().value;
+            }
+            long fee = fee(count);
+            if (value - fee < Transaction.MIN_NONDUST_OUTPUT.value)
+                break;
+            batches.add(new Batch(inputs, Coin.valueOf(value), Coin.valueOf(fee)));
+            budget -= fee;
+            next += count;
+            // a batch of the few left over saves less than it costs
+            if (candidates.size() - next < MIN_OUTPUTS)
+                break;
+        }
+        return new Plan(batches);
+    }
+
+    /**
+     * Fee of merging the given amount of inputs, the size as signed pay to address inputs.
+     */
+    public long fee(int inputs) {
+        long size = TX_OVERHEAD_BYTES + (long) inputs * CoinSelectionEngine.INPUT_BYTES + CoinSelectionEngine.OUTPUT_BYTES;
+        return Math.max(1, feePerKb.value * size / 1000);
+    }
+
+    private boolean isCandidate(TransactionOutput output) {
+        Transaction parent = output.getParentTransaction();
+        if (parent == null || output.getValue().compareTo(smallOutput) >= 0)
+            return false;
+        // worth less than spending it
+        long inputFee = feePerKb.value * CoinSelectionEngine.INPUT_BYTES / 1000;
+        if (output.getValue().value <= inputFee)
+            return false;
+        TransactionConfidence confidence = parent.getConfidence();
+        if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING || !parent.isMature())
+            return false;
+        int depth = confidence.getDepthInBlocks();
+        if (isReward(output))
+            return depth >= params.getSpendableCoinbaseDepth();
+        return depth >= MIN_DEPTH;
+    }
+
+    /** Staking reward, paid to a public key, or a coinbase output */
+    private static boolean isReward(TransactionOutput output) {
+        return output.getParentTransaction().isCoinBase() || output.getScriptPubKey().isSentToRawPubKey();
+    }
+}
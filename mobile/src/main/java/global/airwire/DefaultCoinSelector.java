@@ -91,7 +91,7 @@ public class DefaultCoinSelector implements CoinSelector {
      * @param output
      * @return
      */
-    private boolean shouldSelect(TransactionOutput output) {
+    protected boolean shouldSelect(TransactionOutput output) {
         return !usedOutputs.containsKey(new OutputIndex(output.getParentTransactionHash(),output.getIndex()));
     }
 
@@ -0,0 +1,102 @@
+package global.airwire;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.wallet.CoinSelection;
+import org.airwirej.wallet.CoinSelector;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Fee and size a send would have, from the inputs the selector picks and the scripts of the outputs. Nothing is
+ * built or signed, cheap enough to run as the amount is typed.
+ *
+ * Follows the wallet: the fee grows with the inputs it needs until the selection pays for itself, and a change worth
+ * less than dust goes to the fee.
+ */
+public final class FeePreview {
+
+    /** The fee needs a few more inputs at most once or twice */
+    private static final int MAX_ROUNDS = 5;
+
+    private final Coin fee;
+    private final int size;
+    private final int inputs;
+    private final Coin change;
+    private final Coin missing;
+
+    private FeePreview(Coin fee, int size, int inputs, Coin change, Coin missing) {
+        this.fee = fee;
+        this.size = size;
+        this.inputs = inputs;
+        this.change = change;
+        this.missing = missing;
+    }
+
+    /**
+     * @param payments transaction with the outputs to pay, no inputs.
+     * @param selector the one of the send, it sees the same unspents.
+     */
+    public static FeePreview estimate(Transaction payments, Coin feePerKb, CoinSelector selector, List<TransactionOutput> unspents) {
+        Coin amount = payments.getOutputSum();
+        List<TransactionOutput> outputs = payments.getOutputs();
+        Coin fee = Coin.ZERO;
+        for (int round = 0; ; round++) {
+            Coin target = amount.add(fee);
+            CoinSelection selection = selector.select(target, unspents);
+            Collection<TransactionOutput> gathered = selection.gathered;
+            Coin value = selection.valueGathered;
+
+            int sizeWithChange = TxSizeEstimator.estimateSize(gathered, outputs, 1);
+            Coin feeWithChange = TxSizeEstimator.fee(sizeWithChange, feePerKb);
+            Coin change = value.subtract(amount).subtract(feeWithChange);
+            if (!change.isLessThan(Transaction.MIN_NONDUST_OUTPUT))
+                return new FeePreview(feeWithChange, sizeWithChange, gathered.size(), change, Coin.ZERO);
+
+            int size = TxSizeEstimator.estimateSize(gathered, outputs, 0);
+            Coin required = TxSizeEstimator.fee(size, feePerKb);
+            Coin paid = value.subtract(amount);
+            // the dust change goes to the fee
+            if (!paid.isLessThan(required))
+                return new FeePreview(paid, size, gathered.size(), Coin.ZERO, Coin.ZERO);
+            // everything selected already, or no more rounds
+            if (value.isLessThan(target) || round == MAX_ROUNDS - 1)
+                return new FeePreview(required, size, gathered.size(), Coin.ZERO, required.subtract(paid));
+            fee = required;
+        }
+    }
+
+    public Coin getFee() {
+        return fee;
+    }
+
+    /** Bytes of the transaction signed */
+    public int getSize() {
+        return size;
+    }
+
+    public int getInputs() {
+        return inputs;
+    }
+
+    /** Zero if there is no change output */
+    public Coin getChange() {
+        return change;
+    }
+
+    /** What the balance lacks to pay the amount and the fee, zero if it's enough */
+    public Coin getMissing() {
+        return missing;
+    }
+
+    public boolean isEnough() {
+        return missing.isZero();
+    }
+
+    @Override
+    public String toString() {
+        return "FeePreview{fee=" + fee.toFriendlyString() + ", size=" + size + ", inputs=" + inputs + ", change=" + change.toFriendlyString() + (isEnough() ? "" : ", missing=" + missing.toFriendlyString()) + "}";
+    }
+}
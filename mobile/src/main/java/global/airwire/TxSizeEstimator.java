@@ -0,0 +1,100 @@
+package global.airwire;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionInput;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.core.VarInt;
+import org.airwirej.script.Script;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Size of a signed transaction from the scripts of its inputs and outputs, without signing it.
+ *
+ * The signatures are counted at their biggest, 72 bytes with the sighash byte, and the keys compressed as the ones of
+ * the wallet. A pay to script hash input can't be known without its redeem script, it counts as a pay to address one.
+ */
+public final class TxSizeEstimator {
+
+    /** Version and lock time */
+    private static final int TX_FIXED_BYTES = 8;
+    /** Outpoint and sequence */
+    private static final int INPUT_FIXED_BYTES = 36 + 4;
+    private static final int SIGNATURE_PUSH_BYTES = 1 + 72;
+    private static final int PUBKEY_PUSH_BYTES = 1 + 33;
+    private static final int VALUE_BYTES = 8;
+
+    /** Pay to address output, the change */
+    public static final int CHANGE_OUTPUT_BYTES = CoinSelectionEngine.OUTPUT_BYTES;
+
+    private TxSizeEstimator() {
+    }
+
+    /**
+     * Bytes of an input spending an output with the script, signed.
+     */
+    public static int inputBytes(Script scriptPubKey) {
+        int scriptSig;
+        if (scriptPubKey.isSentToRawPubKey()) {
+            // staking rewards
+            scriptSig = SIGNATURE_PUSH_BYTES;
+        } else if (scriptPubKey.isSentToMultiSig()) {
+            // OP_0 and the signatures
+            scriptSig = 1 + scriptPubKey.getNumberOfSignaturesRequiredToSpend() * SIGNATURE_PUSH_BYTES;
+        } else {
+            scriptSig = SIGNATURE_PUSH_BYTES + PUBKEY_PUSH_BYTES;
+        }
+        return INPUT_FIXED_BYTES + VarInt.sizeOf(scriptSig) + scriptSig;
+    }
+
+    public static int outputBytes(TransactionOutput output) {
+        int script = output.getScriptBytes().length;
+        return VALUE_BYTES + VarInt.sizeOf(script) + script;
+    }
+
+    /**
+     * @param changeOutputs change outputs to add to the outputs, pay to address.
+     */
+    public static int estimateSize(Collection<TransactionOutput> inputs, List<TransactionOutput> outputs, int changeOutputs) {
+        int size = TX_FIXED_BYTES + VarInt.sizeOf(inputs.size()) + VarInt.sizeOf(outputs.size() + changeOutputs);
+        for (TransactionOutput input : inputs) {
+            size += inputBytes(input.getScriptPubKey());
+        }
+        for (TransactionOutput output : outputs) {
+            size += outputBytes(output);
+        }
+        return size + changeOutputs * CHANGE_OUTPUT_BYTES;
+    }
+
+    /**
+     * Size the transaction will have signed, the same as serialized if it is already.
+     */
+    public static int estimateSignedSize(Transaction transaction) {
+        List<TransactionInput> inputs = transaction.getInputs();
+        List<TransactionOutput> outputs = transaction.getOutputs();
+        int size = TX_FIXED_BYTES + VarInt.sizeOf(inputs.size()) + VarInt.sizeOf(outputs.size());
+        for (TransactionInput input : inputs) {
+            int scriptSig = input.getScriptBytes().length;
+            if (scriptSig > 0) {
+                size += INPUT_FIXED_BYTES + VarInt.sizeOf(scriptSig) + scriptSig;
+            } else {
+                TransactionOutput connected = input.getConnectedOutput();
+                size += connected != null ? inputBytes(connected.getScriptPubKey()) : CoinSelectionEngine.INPUT_BYTES;
+            }
+        }
+        for (TransactionOutput output : outputs) {
+            size += outputBytes(output);
+        }
+        return size;
+    }
+
+    /**
+     * Fee the wallet asks for the size, never under the reference fee as the send requests ensure it.
+     */
+    public static Coin fee(int size, Coin feePerKb) {
+        Coin fee = feePerKb.multiply(size).divide(1000);
+        return fee.isLessThan(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE) ? Transaction.REFERENCE_DEFAULT_MIN_TX_FEE : fee;
+    }
+}
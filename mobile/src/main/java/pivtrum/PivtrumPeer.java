@@ -37,6 +37,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import global.BandwidthBudget;
 import pivtrum.exceptions.InvalidPeerVersion;
 import pivtrum.listeners.PeerDataListener;
 import pivtrum.listeners.PeerListener;
@@ -81,6 +82,8 @@ public class PivtrumPeer implements IoHandler{
     private ConcurrentMap<Long,BaseMsg> waitingRequests = new ConcurrentHashMap<>();
     /** Peer height */
     private long height;
+    /** Data usage accounting, null if not counted */
+    private volatile BandwidthBudget bandwidthBudget;
 
     /** Listeners */
     private CopyOnWriteArrayList<PeerListener> peerListeners = new CopyOnWriteArrayList<>();
@@ -101,6 +104,10 @@ public class PivtrumPeer implements IoHandler{
         peerDataListeners.add(peerDataListener);
     }
 
+    public void setBandwidthBudget(BandwidthBudget bandwidthBudget) {
+        this.bandwidthBudget = bandwidthBudget;
+    }
+
     /**
      * Connect
      * todo: add future.
@@ -256,7 +263,10 @@ public class PivtrumPeer implements IoHandler{
     private WriteRequest sendMsg(BaseMsg baseMsg, boolean singleRequest, WriteFuture writeFuture){
         if (session==null) throw new IllegalStateException("Not connected peer");
         if (session.isConnected()) {
-            WriteRequest writeRequest = new WriteRequestImp(buildMsg(baseMsg, singleRequest), writeFuture);
+            String msg = buildMsg(baseMsg, singleRequest);
+            if (bandwidthBudget != null)
+                bandwidthBudget.record(msg.length());
+            WriteRequest writeRequest = new WriteRequestImp(msg, writeFuture);
             waitingRequests.put(baseMsg.getId(), baseMsg);
             session.addWriteRequest(writeRequest);
             return writeRequest;
@@ -477,6 +487,8 @@ public class PivtrumPeer implements IoHandler{
     @Override
     public void messageReceived(IoSession ioSession, Object s) throws Exception {
         log.info("messageReceived: "+s.toString()+", session id:"+ioSession.getId());
+        if (bandwidthBudget != null)
+            bandwidthBudget.record(s.toString().length());
         msgArrived((JSONObject) s);
 
     }
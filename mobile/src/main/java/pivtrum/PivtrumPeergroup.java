@@ -28,6 +28,7 @@ import store.AddressNotFoundException;
 import store.AddressStore;
 import store.CantInsertAddressException;
 import store.DbException;
+import global.BandwidthBudget;
 import wallet.WalletManager;
 
 /**
@@ -81,6 +82,8 @@ public class PivtrumPeergroup implements PeerListener, PeerDataListener {
     /** Address balance listener */
     private CopyOnWriteArrayList<AddressListener> addressListeners = new CopyOnWriteArrayList<>();
     private CopyOnWriteArrayList<PeerListener> peerConnectionListeners = new CopyOnWriteArrayList<>();
+    /** Data usage accounting, null if not counted */
+    private BandwidthBudget bandwidthBudget;
 
     public PivtrumPeergroup(NetworkConf networkConf, WalletManager walletManager, AddressStore addressStore) throws IOException {
         this.peers = new CopyOnWriteArrayList<>();
@@ -110,6 +113,11 @@ public class PivtrumPeergroup implements PeerListener, PeerDataListener {
         this.addressStore = addressStore;
     }
 
+    /** Count the traffic of the peers connected from now on */
+    public void setBandwidthBudget(BandwidthBudget bandwidthBudget) {
+        this.bandwidthBudget = bandwidthBudget;
+    }
+
     public void addAddressListener(AddressListener addressListener) {
         this.addressListeners.add(addressListener);
     }
@@ -136,6 +144,7 @@ public class PivtrumPeergroup implements PeerListener, PeerDataListener {
             * Connect to the trusted node and get servers from it.
             */
             trustedPeer = new PivtrumPeer(networkConf.getTrustedServer(), ioManager,versionMsg);
+            trustedPeer.setBandwidthBudget(bandwidthBudget);
             trustedPeer.addPeerListener(this);
             trustedPeer.addPeerDataListener(this);
             trustedPeer.connect();
@@ -180,6 +189,7 @@ public class PivtrumPeergroup implements PeerListener, PeerDataListener {
                 for (InetSocketAddress inetSocketAddress : networkConf.getNetworkServers()) {
                     PivtrumPeerData peerData = new PivtrumPeerData(inetSocketAddress.getHostName(),inetSocketAddress.getPort(),0);
                     PivtrumPeer peer = new PivtrumPeer(peerData,ioManager,versionMsg);
+                    peer.setBandwidthBudget(bandwidthBudget);
                     peer.addPeerListener(this);
                     peer.addPeerDataListener(this);
                     pendingPeers.add(peer);
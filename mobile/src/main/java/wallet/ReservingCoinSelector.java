@@ -0,0 +1,56 @@
+package wallet;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.TransactionOutPoint;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.wallet.CoinSelection;
+import org.airwirej.wallet.CoinSelector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link CoinSelector} claiming what another one selects, the outputs claimed by other sends are not offered to it.
+ *
+ * If another send claims one of the selected outputs between the selection and the claim the selection runs again
+ * without it. The wallet selects a few times for each transaction, the outputs claimed and not used in the end are
+ * released once it is complete.
+ */
+class ReservingCoinSelector implements CoinSelector {
+
+    private final CoinSelector selector;
+    private final UnspentReservations reservations;
+    private final Object owner;
+
+    ReservingCoinSelector(CoinSelector selector, UnspentReservations reservations, Object owner) {
+        this.selector = selector;
+        this.reservations = reservations;
+        this.owner = owner;
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        List<TransactionOutput> available = unclaimed(candidates);
+        while (!available.isEmpty()) {
+            CoinSelection selection = selector.select(target, available);
+            List<TransactionOutPoint> outPoints = new ArrayList<>(selection.gathered.size());
+            for (TransactionOutput output : selection.gathered) {
+                outPoints.add(output.getOutPointFor());
+            }
+            if (reservations.claimAll(outPoints, owner))
+                return selection;
+            // lost the race for one of them
+            available = unclaimed(available);
+        }
+        return new CoinSelection(Coin.ZERO, new ArrayList<TransactionOutput>());
+    }
+
+    private List<TransactionOutput> unclaimed(List<TransactionOutput> candidates) {
+        List<TransactionOutput> list = new ArrayList<>(candidates.size());
+        for (TransactionOutput output : candidates) {
+            if (!reservations.isClaimedByOther(output.getOutPointFor(), owner))
+                list.add(output);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,267 @@
+package wallet;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionConfidence;
+import org.airwirej.core.TransactionInput;
+import org.airwirej.core.TransactionOutPoint;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.core.listeners.TransactionConfidenceEventListener;
+import org.airwirej.utils.Threading;
+import org.airwirej.wallet.Wallet;
+import org.airwirej.wallet.WalletTransaction;
+import org.airwirej.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.airwirej.wallet.listeners.WalletCoinsSentEventListener;
+import org.airwirej.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Unspent outputs of the wallet by outpoint and by value, kept up to date from the wallet events instead of
+ * copying {@link Wallet#getUnspents()} and scanning it on every query.
+ *
+ * Holds the same outputs as the wallet unspents: available, mine or watched, of a transaction in the unspent or
+ * pending pool. The selection skips the outputs claimed by a transaction being built, see {@link UnspentReservations}.
+ */
+public class UnspentIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UnspentIndex.class);
+
+    /** Biggest value first, then by outpoint for a stable order */
+    private static final Comparator<Entry> BY_VALUE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            if (o1.value != o2.value)
+                return o1.value > o2.value ? -1 : 1;
+            int hash = o1.hash.compareTo(o2.hash);
+            if (hash != 0)
+                return hash;
+            return o1.index < o2.index ? -1 : (o1.index == o2.index ? 0 : 1);
+        }
+    };
+
+    private static final class Entry {
+
+        private final TransactionOutput output;
+        private final Sha256Hash hash;
+        private final long index;
+        private final long value;
+
+        private Entry(TransactionOutput output) {
+            this.output = output;
+            this.hash = output.getParentTransactionHash();
+            this.index = output.getIndex();
+            this.value = output.getValue().value;
+        }
+    }
+
+    private final Map<TransactionOutPoint, Entry> byOutPoint = new HashMap<>();
+    private final TreeSet<Entry> byValue = new TreeSet<>(BY_VALUE);
+    private long total;
+    /** Events handled, a rebuild taken across one indexes again */
+    private long changes;
+
+    private final UnspentReservations reservations;
+    private Wallet wallet;
+
+    private final Listener listener = new Listener();
+
+    public UnspentIndex(UnspentReservations reservations) {
+        this.reservations = reservations;
+    }
+
+    /**
+     * Index the wallet unspents and follow its changes.
+     */
+    public void attach(Wallet wallet) {
+        detach();
+        this.wallet = wallet;
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, listener);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, listener);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, listener);
+        rebuild();
+    }
+
+    public void detach() {
+        Wallet wallet = this.wallet;
+        if (wallet == null)
+            return;
+        wallet.removeCoinsReceivedEventListener(listener);
+        wallet.removeCoinsSentEventListener(listener);
+        wallet.removeTransactionConfidenceEventListener(listener);
+        wallet.removeReorganizeEventListener(listener);
+        this.wallet = null;
+        synchronized (this) {
+            byOutPoint.clear();
+            byValue.clear();
+            total = 0;
+        }
+    }
+
+    /**
+     * Index again from the wallet. The wallet takes its lock to list the unspents and holds it while it delivers the
+     * events, so a snapshot is stale only if an event was handled since it was taken: then it is taken again.
+     */
+    public void rebuild() {
+        Wallet wallet = this.wallet;
+        if (wallet == null)
+            return;
+        List<TransactionOutput> unspents;
+        while (true) {
+            long before;
+            synchronized (this) {
+                before = changes;
+            }
+            unspents = wallet.getUnspents();
+            synchronized (this) {
+                if (changes != before)
+                    continue;
+                byOutPoint.clear();
+                byValue.clear();
+                total = 0;
+                for (TransactionOutput output : unspents) {
+                    add(output);
+                }
+                break;
+            }
+        }
+        LOG.info("unspent index built, {} outputs", unspents.size());
+    }
+
+    public synchronized int size() {
+        return byOutPoint.size();
+    }
+
+    /** Sum of the unspents, the claimed ones included */
+    public synchronized Coin getTotal() {
+        return Coin.valueOf(total);
+    }
+
+    public synchronized boolean contains(TransactionOutPoint outPoint) {
+        return byOutPoint.containsKey(outPoint);
+    }
+
+    public synchronized TransactionOutput get(TransactionOutPoint outPoint) {
+        Entry entry = byOutPoint.get(outPoint);
+        return entry != null ? entry.output : null;
+    }
+
+    /**
+     * Unspents biggest first, the claimed ones included.
+     */
+    public synchronized List<TransactionOutput> listByValue() {
+        List<TransactionOutput> list = new ArrayList<>(byValue.size());
+        for (Entry entry : byValue) {
+            list.add(entry.output);
+        }
+        return list;
+    }
+
+    /**
+     * Biggest unspents not claimed and not in the excluded outpoints until their sum goes over the amount.
+     *
+     * @return the outputs, all of the ones available if they don't reach the amount.
+     */
+    public synchronized List<TransactionOutput> select(Coin amount, Collection<TransactionOutPoint> excluded) {
+        Set<TransactionOutPoint> skip = excluded instanceof Set ? (Set<TransactionOutPoint>) excluded : new HashSet<>(excluded);
+        List<TransactionOutput> list = new ArrayList<>();
+        long sum = 0;
+        for (Entry entry : byValue) {
+            TransactionOutPoint outPoint = entry.output.getOutPointFor();
+            if ((!skip.isEmpty() && skip.contains(outPoint)) || reservations.isClaimed(outPoint))
+                continue;
+            list.add(entry.output);
+            sum += entry.value;
+            if (sum > amount.value)
+                break;
+        }
+        return list;
+    }
+
+    /**
+     * Update the outputs of the transaction and the ones it spends, on the wallet thread holding its lock.
+     */
+    private void refresh(Wallet wallet, Transaction transaction) {
+        synchronized (this) {
+            changes++;
+        }
+        boolean spendablePool = isInPool(wallet, transaction.getHash(), WalletTransaction.Pool.UNSPENT)
+                || isInPool(wallet, transaction.getHash(), WalletTransaction.Pool.PENDING);
+        for (TransactionOutput output : transaction.getOutputs()) {
+            update(output, spendablePool && output.isAvailableForSpending() && output.isMineOrWatched(wallet));
+        }
+        // spent now, or available again if the transaction died
+        for (TransactionInput input : transaction.getInputs()) {
+            TransactionOutPoint outPoint = input.getOutpoint();
+            Transaction parent = wallet.getTransaction(outPoint.getHash());
+            if (parent == null || outPoint.getIndex() >= parent.getOutputs().size())
+                continue;
+            TransactionOutput output = parent.getOutput(outPoint.getIndex());
+            boolean parentSpendable = isInPool(wallet, parent.getHash(), WalletTransaction.Pool.UNSPENT)
+                    || isInPool(wallet, parent.getHash(), WalletTransaction.Pool.PENDING);
+            update(output, parentSpendable && output.isAvailableForSpending() && output.isMineOrWatched(wallet));
+        }
+    }
+
+    private static boolean isInPool(Wallet wallet, Sha256Hash hash, WalletTransaction.Pool pool) {
+        return wallet.getTransactionPool(pool).containsKey(hash);
+    }
+
+    private synchronized void update(TransactionOutput output, boolean unspent) {
+        TransactionOutPoint outPoint = output.getOutPointFor();
+        Entry entry = byOutPoint.get(outPoint);
+        if (unspent && entry == null) {
+            add(output);
+        } else if (!unspent && entry != null) {
+            byOutPoint.remove(outPoint);
+            byValue.remove(entry);
+            total -= entry.value;
+        }
+    }
+
+    private void add(TransactionOutput output) {
+        Entry entry = new Entry(output);
+        byOutPoint.put(output.getOutPointFor(), entry);
+        byValue.add(entry);
+        total += entry.value;
+    }
+
+    private class Listener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+            TransactionConfidenceEventListener, WalletReorganizeEventListener {
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            refresh(wallet, tx);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            refresh(wallet, tx);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+            // every new block changes the depth of all of them, only dead or conflicted ones change the unspents
+            TransactionConfidence.ConfidenceType type = tx.getConfidence().getConfidenceType();
+            if (type == TransactionConfidence.ConfidenceType.DEAD || type == TransactionConfidence.ConfidenceType.IN_CONFLICT)
+                refresh(wallet, tx);
+        }
+
+        @Override
+        public void onReorganize(Wallet wallet) {
+            rebuild();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package wallet;
+
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.TransactionOutPoint;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Outputs claimed by the transactions being built, so two sends built at the same time don't spend the same ones.
+ *
+ * Lock free: a claim is a compare and set on the outpoint. It is held by an owner until released, on commit or
+ * failure, or until it times out, a send abandoned on the confirmation screen for example. An owner claiming again
+ * renews its claim. The owner is the transaction instance while it is built and then its hash, see
+ * {@link #transfer(Object, Object)}, so a copy read back from bytes can release it.
+ */
+public class UnspentReservations {
+
+    private static final class Claim {
+
+        private final Object owner;
+        private final long expiresAt;
+
+        private Claim(Object owner, long expiresAt) {
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+
+        /** Transactions by instance, their hash changes while they are built, hashes by value */
+        private boolean isOwnedBy(Object owner) {
+            return this.owner == owner || (this.owner instanceof Sha256Hash && this.owner.equals(owner));
+        }
+
+        private boolean isHeldBy(Object owner, long now) {
+            return isOwnedBy(owner) && expiresAt > now;
+        }
+    }
+
+    private final ConcurrentHashMap<TransactionOutPoint, Claim> claims = new ConcurrentHashMap<>();
+    private final long timeoutMs;
+
+    /**
+     * @param timeoutMs time a claim lasts without being released.
+     */
+    public UnspentReservations(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return false if another owner holds it.
+     */
+    public boolean claim(TransactionOutPoint outPoint, Object owner) {
+        long now = System.currentTimeMillis();
+        Claim claim = new Claim(owner, now + timeoutMs);
+        while (true) {
+            Claim current = claims.putIfAbsent(outPoint, claim);
+            if (current == null)
+                return true;
+            if (!current.isOwnedBy(owner) && current.expiresAt > now)
+                return false;
+            // ours already or expired, lost if someone else replaced it meanwhile
+            if (claims.replace(outPoint, current, claim))
+                return true;
+        }
+    }
+
+    /**
+     * Claim all of them or none, the ones the owner held before are kept either way.
+     */
+    public boolean claimAll(Collection<TransactionOutPoint> outPoints, Object owner) {
+        long now = System.currentTimeMillis();
+        List<TransactionOutPoint> claimed = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints) {
+            Claim current = claims.get(outPoint);
+            boolean held = current != null && current.isHeldBy(owner, now);
+            if (!claim(outPoint, owner)) {
+                for (TransactionOutPoint undo : claimed) {
+                    release(undo, owner);
+                }
+                return false;
+            }
+            if (!held)
+                claimed.add(outPoint);
+        }
+        return true;
+    }
+
+    /**
+     * Whether an owner other than the given one holds it.
+     */
+    public boolean isClaimedByOther(TransactionOutPoint outPoint, Object owner) {
+        Claim claim = claims.get(outPoint);
+        return claim != null && !claim.isOwnedBy(owner) && claim.expiresAt > System.currentTimeMillis();
+    }
+
+    public boolean isClaimed(TransactionOutPoint outPoint) {
+        return isClaimedByOther(outPoint, null);
+    }
+
+    public void release(TransactionOutPoint outPoint, Object owner) {
+        Claim claim = claims.get(outPoint);
+        if (claim != null && claim.isOwnedBy(owner))
+            claims.remove(outPoint, claim);
+    }
+
+    /**
+     * Release every claim of the owner but the kept ones.
+     *
+     * @param keep outpoints still claimed, null for none.
+     */
+    public void releaseAll(Object owner, Collection<TransactionOutPoint> keep) {
+        for (Map.Entry<TransactionOutPoint, Claim> entry : claims.entrySet()) {
+            Claim claim = entry.getValue();
+            if (claim.isOwnedBy(owner) && (keep == null || !keep.contains(entry.getKey())))
+                claims.remove(entry.getKey(), claim);
+        }
+    }
+
+    /**
+     * Hand the claims of an owner to another one, keeping their expiry. A transaction being built hands its claims
+     * to its hash once it is signed.
+     */
+    public void transfer(Object from, Object to) {
+        for (Map.Entry<TransactionOutPoint, Claim> entry : claims.entrySet()) {
+            Claim claim = entry.getValue();
+            if (claim.isOwnedBy(from))
+                claims.replace(entry.getKey(), claim, new Claim(to, claim.expiresAt));
+        }
+    }
+
+    /**
+     * Drop the claims timed out, they are ignored already but still take memory.
+     */
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<TransactionOutPoint, Claim> entry : claims.entrySet()) {
+            if (entry.getValue().expiresAt <= now)
+                claims.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** Claims held, the timed out ones not purged yet included */
+    public int size() {
+        return claims.size();
+    }
+}
@@ -0,0 +1,70 @@
+package wallet;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.Transaction;
+import org.airwirej.utils.Threading;
+import org.airwirej.wallet.Wallet;
+import org.airwirej.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.airwirej.wallet.listeners.WalletCoinsSentEventListener;
+
+import java.util.Date;
+
+/**
+ * Time of the newest wallet transaction, followed from the wallet events.
+ *
+ * The wallet transactions are scanned once when it's attached, later reads cost nothing and are safe from any thread.
+ */
+class WalletActivity {
+
+    private final Listener listener = new Listener();
+    private volatile Wallet wallet;
+    private long lastActivityTime;
+
+    public void attach(Wallet wallet) {
+        detach();
+        this.wallet = wallet;
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, listener);
+        long last = 0;
+        for (Transaction transaction : wallet.getTransactions(false)) {
+            if (transaction.getUpdateTime() != null)
+                last = Math.max(last, transaction.getUpdateTime().getTime());
+        }
+        synchronized (this) {
+            lastActivityTime = last;
+        }
+    }
+
+    public void detach() {
+        Wallet wallet = this.wallet;
+        if (wallet == null)
+            return;
+        wallet.removeCoinsReceivedEventListener(listener);
+        wallet.removeCoinsSentEventListener(listener);
+        this.wallet = null;
+    }
+
+    /** Time of the newest wallet transaction, 0 if there are none */
+    public synchronized long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    private synchronized void update(Transaction tx) {
+        Date updateTime = tx.getUpdateTime();
+        if (updateTime != null)
+            lastActivityTime = Math.max(lastActivityTime, updateTime.getTime());
+    }
+
+    private class Listener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener {
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            update(tx);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            update(tx);
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package wallet;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.ECKey;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionConfidence;
+import org.airwirej.core.TransactionInput;
+import org.airwirej.core.listeners.TransactionConfidenceEventListener;
+import org.airwirej.utils.Threading;
+import org.airwirej.wallet.Protos;
+import org.airwirej.wallet.Wallet;
+import org.airwirej.wallet.WalletProtobufSerializer;
+import org.airwirej.wallet.WalletTransaction;
+import org.airwirej.wallet.listeners.KeyChainEventListener;
+import org.airwirej.wallet.listeners.WalletChangeEventListener;
+import org.airwirej.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.airwirej.wallet.listeners.WalletCoinsSentEventListener;
+import org.airwirej.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static org.airwirej.wallet.WalletProtobufSerializer.hashToByteString;
+
+/**
+ * Append-only log of the wallet changes since its last full save.
+ *
+ * Writing the whole wallet protobuf for every received transaction or block gets slower as the history grows, so
+ * the changes are appended here instead as partial wallet protos: the transactions that changed, the key chain when
+ * keys were added or issued and the last block seen. Loading replays the journal over the snapshot, the last record
+ * of a transaction wins. Once the journal passes {@link #COMPACT_SIZE_BYTES}, on a reorganize and on every explicit
+ * save the wallet is written in full and the journal starts over. The files are only written from the
+ * {@link WalletSaver} thread, the events just serialize their record and queue it.
+ *
+ * Depth changes are journaled while the transaction is under the event horizon of the wallet context, deeper ones
+ * every block would rewrite the whole history, their depths are worked out again from the last block seen on replay.
+ * The transactions are encoded by {@link WalletProtobufSerializer}, the same bytes a full save writes.
+ *
+ * Record format: payload length, CRC32 of the payload, payload. A record that fails its checksum is skipped, a torn
+ * record at the end, left by a crash while appending, is dropped.
+ */
+public class WalletJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WalletJournal.class);
+
+    public static final long COMPACT_SIZE_BYTES = 512 * 1024;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    /** Transaction encoding of the serializer, which keeps it private */
+    static final Method MAKE_TX_PROTO = findMakeTxProto();
+    private static final WalletTransaction.Pool[] POOLS = {
+            WalletTransaction.Pool.UNSPENT,
+            WalletTransaction.Pool.SPENT,
+            WalletTransaction.Pool.PENDING,
+            WalletTransaction.Pool.DEAD
+    };
+
+    private final File walletFile;
+    private final File journalFile;
+    /** Journal being folded into the snapshot, kept until the snapshot is written */
+    private final File compactingFile;
+    private final WalletSaver saver;
+    private final Listener listener = new Listener();
+
+    private volatile Wallet wallet;
+    /** Only used from the saver thread */
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private long journalSize;
+    /** Confidence type last journaled by transaction */
+    private final Map<Sha256Hash, TransactionConfidence.ConfidenceType> journaledTypes = new HashMap<>();
+    /** Depth last journaled by building transaction */
+    private final Map<Sha256Hash, Integer> journaledDepths = new HashMap<>();
+    private Sha256Hash journaledLastSeen;
+    private volatile boolean keysChanged;
+
+    WalletJournal(File walletFile, WalletSaver saver) {
+        this.walletFile = walletFile;
+        this.saver = saver;
+        this.journalFile = new File(walletFile.getPath() + ".journal");
+        this.compactingFile = new File(walletFile.getPath() + ".journal.compacting");
+    }
+
+    /**
+     * The snapshot with the journaled changes applied.
+     */
+    public Protos.Wallet replay(Protos.Wallet snapshot) throws IOException {
+        Protos.Wallet.Builder builder = snapshot.toBuilder();
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        for (Protos.Transaction transaction : snapshot.getTransactionList()) {
+            transactions.put(transaction.getHash(), transaction);
+        }
+        int records = readRecords(compactingFile, builder, transactions, false) + readRecords(journalFile, builder, transactions, false);
+        if (records == 0)
+            return snapshot;
+        builder.clearTransaction();
+        int lastSeenHeight = builder.hasLastSeenBlockHeight() ? builder.getLastSeenBlockHeight() : -1;
+        for (Protos.Transaction transaction : transactions.values()) {
+            builder.addTransaction(updateDepth(transaction, lastSeenHeight));
+        }
+        LOG.info("replayed {} journal records over {}", records, walletFile);
+        return builder.build();
+    }
+
+    /**
+     * The snapshot with the journaled keys and last seen block applied, for a snapshot read without its transactions.
+     */
+    public Protos.Wallet replayKeys(Protos.Wallet snapshot) throws IOException {
+        Protos.Wallet.Builder builder = snapshot.toBuilder();
+        if (readRecords(compactingFile, builder, null, true) + readRecords(journalFile, builder, null, true) == 0)
+            return snapshot;
+        return builder.build();
+    }
+
+    /**
+     * A serialized wallet without its transactions. They are skipped unparsed, which is most of the work of reading
+     * a wallet with a long history.
+     */
+    static Protos.Wallet parseWithoutTransactions(byte[] bytes) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(bytes);
+        in.setSizeLimit(bytes.length);
+        ByteArrayOutputStream kept = new ByteArrayOutputStream(Math.min(bytes.length, 64 * 1024));
+        int copied = 0;
+        while (true) {
+            int start = in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0)
+                break;
+            in.skipField(tag);
+            if (WireFormat.getTagFieldNumber(tag) == Protos.Wallet.TRANSACTION_FIELD_NUMBER) {
+                kept.write(bytes, copied, start - copied);
+                copied = in.getTotalBytesRead();
+            }
+        }
+        kept.write(bytes, copied, bytes.length - copied);
+        return Protos.Wallet.parseFrom(kept.toByteArray());
+    }
+
+    /**
+     * Start journaling the changes of the wallet, its current state must already be in the snapshot or the journal.
+     */
+    public void attach(Wallet wallet) {
+        detach();
+        // read before taking the journal lock, the events take the wallet lock first
+        Sha256Hash lastSeen = wallet.getLastBlockSeenHash();
+        Set<Transaction> transactions = wallet.getTransactions(true);
+        synchronized (this) {
+            this.wallet = wallet;
+            journaledLastSeen = lastSeen;
+            for (Transaction transaction : transactions) {
+                if (transaction.hasConfidence())
+                    markJournaled(transaction);
+            }
+        }
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, listener);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, listener);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, listener);
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, listener);
+        wallet.addReorganizeEventListener(listener);
+    }
+
+    public synchronized void detach() {
+        if (wallet == null)
+            return;
+        wallet.removeCoinsReceivedEventListener(listener);
+        wallet.removeCoinsSentEventListener(listener);
+        wallet.removeTransactionConfidenceEventListener(listener);
+        wallet.removeChangeEventListener(listener);
+        wallet.removeKeyChainEventListener(listener);
+        wallet.removeReorganizeEventListener(listener);
+        wallet = null;
+        journaledTypes.clear();
+        journaledDepths.clear();
+    }
+
+    /**
+     * Forget the journal, the snapshot is going to be replaced. Queued after the records already appended.
+     */
+    public void reset() {
+        saver.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+                delete(journalFile);
+                delete(compactingFile);
+            }
+        });
+    }
+
+    /**
+     * Keys were issued outside of the wallet events, journal the key chain.
+     */
+    public void keysChanged() {
+        keysChanged = true;
+        append(Protos.Wallet.newBuilder());
+    }
+
+    /**
+     * Write the wallet in full and start a new journal, on the saver thread. The changes journaled while the wallet
+     * is written go to the new journal.
+     *
+     * @throws IllegalStateException if no wallet is attached, there is nothing to save.
+     */
+    void compact() throws IOException {
+        Wallet wallet = this.wallet;
+        if (wallet == null)
+            throw new IllegalStateException("no wallet attached, not saved");
+        closeOutput();
+        if (journalFile.exists()) {
+            // a failed compaction left its journal, both are needed until the snapshot is written
+            if (compactingFile.exists())
+                appendTo(journalFile, compactingFile);
+            else if (!journalFile.renameTo(compactingFile))
+                throw new IOException("cannot rename " + journalFile);
+            delete(journalFile);
+        }
+        // temp file and rename
+        wallet.saveToFile(walletFile);
+        delete(compactingFile);
+    }
+
+    /**
+     * Push the appended records to the disk, on the saver thread.
+     */
+    void sync() throws IOException {
+        if (out != null) {
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    private void journalTransaction(Wallet wallet, Transaction transaction) {
+        if (MAKE_TX_PROTO == null) {
+            saver.requestSave();
+            return;
+        }
+        Protos.Wallet.Builder record = Protos.Wallet.newBuilder();
+        addTransaction(record, wallet, transaction);
+        // the outputs it spends changed too
+        for (TransactionInput input : transaction.getInputs()) {
+            Transaction parent = wallet.getTransaction(input.getOutpoint().getHash());
+            if (parent != null)
+                addTransaction(record, wallet, parent);
+        }
+        append(record);
+    }
+
+    private void addTransaction(Protos.Wallet.Builder record, Wallet wallet, Transaction transaction) {
+        for (WalletTransaction.Pool pool : POOLS) {
+            if (wallet.getTransactionPool(pool).containsKey(transaction.getHash())) {
+                record.addTransaction(toProto(transaction, pool));
+                if (transaction.hasConfidence()) {
+                    synchronized (this) {
+                        markJournaled(transaction);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private void markJournaled(Transaction transaction) {
+        TransactionConfidence confidence = transaction.getConfidence();
+        journaledTypes.put(transaction.getHash(), confidence.getConfidenceType());
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+            journaledDepths.put(transaction.getHash(), confidence.getDepthInBlocks());
+        else
+            journaledDepths.remove(transaction.getHash());
+    }
+
+    private synchronized boolean isJournaled(Wallet wallet, Transaction transaction) {
+        if (!transaction.hasConfidence())
+            return false;
+        TransactionConfidence confidence = transaction.getConfidence();
+        if (journaledTypes.get(transaction.getHash()) != confidence.getConfidenceType())
+            return false;
+        if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING)
+            return true;
+        int depth = confidence.getDepthInBlocks();
+        Integer journaledDepth = journaledDepths.get(transaction.getHash());
+        return depth > wallet.getContext().getEventHorizon() || (journaledDepth != null && journaledDepth == depth);
+    }
+
+    /** Whether the last seen block changed since it was journaled, and remember it */
+    private synchronized boolean lastSeenChanged(Sha256Hash lastSeen) {
+        if (lastSeen == null || lastSeen.equals(journaledLastSeen))
+            return false;
+        journaledLastSeen = lastSeen;
+        return true;
+    }
+
+    private void append(Protos.Wallet.Builder record) {
+        Wallet wallet = this.wallet;
+        if (wallet == null)
+            return;
+        if (keysChanged) {
+            keysChanged = false;
+            record.clearKey().addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+        }
+        if (record.getTransactionCount() == 0 && record.getKeyCount() == 0 && !record.hasLastSeenBlockHash())
+            return;
+        final byte[] payload = record.setNetworkIdentifier(wallet.getParams().getId()).build().toByteArray();
+        saver.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(payload);
+            }
+        });
+    }
+
+    private void write(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        try {
+            if (out == null) {
+                fileOut = new FileOutputStream(journalFile, true);
+                out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                journalSize = journalFile.length();
+            }
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            out.flush();
+            journalSize += 8 + payload.length;
+            if (journalSize > COMPACT_SIZE_BYTES)
+                saver.requestSave();
+        } catch (IOException e) {
+            LOG.error("cannot append to the wallet journal, saving the wallet in full", e);
+            closeOutput();
+            saver.requestSave();
+        }
+    }
+
+    /**
+     * Apply the records of a journal file, their transactions are skipped if keysOnly.
+     */
+    private int readRecords(File file, Protos.Wallet.Builder builder, Map<ByteString, Protos.Transaction> transactions, boolean keysOnly) throws IOException {
+        if (!file.exists())
+            return 0;
+        int records = 0;
+        long validLength = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int first = in.read();
+                if (first == -1)
+                    break;
+                int length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+                long checksum = in.readInt() & 0xffffffffL;
+                if (length <= 0 || length > MAX_RECORD_BYTES)
+                    throw new EOFException("bad record length " + length);
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                validLength += 8 + length;
+                if (crc.getValue() != checksum) {
+                    // the length was sane, the next record starts after it
+                    LOG.warn("skipping a record of {} with a bad checksum after {} records", file, records);
+                    continue;
+                }
+                Protos.Wallet record;
+                try {
+                    record = keysOnly ? parseWithoutTransactions(payload) : Protos.Wallet.parseFrom(payload);
+                } catch (InvalidProtocolBufferException e) {
+                    LOG.warn("skipping an unreadable record of " + file + " after " + records + " records", e);
+                    continue;
+                }
+                apply(record, builder, transactions);
+                records++;
+            }
+        } catch (EOFException e) {
+            LOG.warn("dropping the torn end of {} after {} records: {}", file, records, e.toString());
+            RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+            try {
+                truncate.setLength(validLength);
+            } finally {
+                truncate.close();
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    private static void apply(Protos.Wallet record, Protos.Wallet.Builder builder, Map<ByteString, Protos.Transaction> transactions) {
+        if (transactions != null) {
+            for (Protos.Transaction transaction : record.getTransactionList()) {
+                transactions.put(transaction.getHash(), transaction);
+            }
+        }
+        if (record.getKeyCount() > 0)
+            builder.clearKey().addAllKey(record.getKeyList());
+        if (record.hasLastSeenBlockHash()) {
+            builder.setLastSeenBlockHash(record.getLastSeenBlockHash())
+                    .setLastSeenBlockHeight(record.getLastSeenBlockHeight())
+                    .setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+        }
+    }
+
+    private static Protos.Transaction updateDepth(Protos.Transaction transaction, int lastSeenHeight) {
+        if (lastSeenHeight < 0 || !transaction.hasConfidence())
+            return transaction;
+        Protos.TransactionConfidence confidence = transaction.getConfidence();
+        if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasAppearedAtHeight())
+            return transaction;
+        int depth = Math.max(lastSeenHeight - confidence.getAppearedAtHeight() + 1, 1);
+        if (confidence.getDepth() == depth)
+            return transaction;
+        return transaction.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+    }
+
+    /**
+     * Encoded by {@link WalletProtobufSerializer} itself, null if its transaction encoding was not found.
+     */
+    private static Method findMakeTxProto() {
+        try {
+            Method method = WalletProtobufSerializer.class.getDeclaredMethod("makeTxProto", WalletTransaction.class);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException | SecurityException e) {
+            LOG.warn("transaction encoding of the wallet serializer not found, the wallet will be saved in full", e);
+            return null;
+        }
+    }
+
+    static Protos.Transaction toProto(Transaction tx, WalletTransaction.Pool pool) {
+        try {
+            return (Protos.Transaction) MAKE_TX_PROTO.invoke(null, new WalletTransaction(pool, tx));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void closeOutput() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.warn("cannot close the wallet journal", e);
+            }
+            out = null;
+            fileOut = null;
+        }
+    }
+
+    private static void appendTo(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        OutputStream os = new FileOutputStream(target, true);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            os.close();
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete())
+            LOG.warn("cannot delete {}", file);
+    }
+
+    private class Listener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+            TransactionConfidenceEventListener, WalletChangeEventListener, KeyChainEventListener,
+            WalletReorganizeEventListener {
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            journalTransaction(wallet, tx);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            journalTransaction(wallet, tx);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+            // every block deepens every transaction, the deep ones are left to the replay
+            if (!isJournaled(wallet, tx))
+                journalTransaction(wallet, tx);
+        }
+
+        @Override
+        public void onWalletChanged(Wallet wallet) {
+            Sha256Hash lastSeen = wallet.getLastBlockSeenHash();
+            Protos.Wallet.Builder record = Protos.Wallet.newBuilder();
+            if (lastSeenChanged(lastSeen)) {
+                record.setLastSeenBlockHash(hashToByteString(lastSeen))
+                        .setLastSeenBlockHeight(wallet.getLastBlockSeenHeight())
+                        .setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+            }
+            append(record);
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            // written with the next record, the key chain lock is held here
+            keysChanged = true;
+        }
+
+        @Override
+        public void onReorganize(Wallet wallet) {
+            saver.requestSave();
+        }
+    }
+}
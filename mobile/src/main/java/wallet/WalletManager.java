@@ -1,6 +1,8 @@
 package wallet;
 
 import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.airwirej.core.Address;
 import org.airwirej.core.BlockChain;
@@ -8,8 +10,10 @@ import org.airwirej.core.Coin;
 import org.airwirej.core.InsufficientMoneyException;
 import org.airwirej.core.PeerGroup;
 import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
 import org.airwirej.core.Transaction;
 import org.airwirej.core.TransactionInput;
+import org.airwirej.core.TransactionOutPoint;
 import org.airwirej.core.TransactionOutput;
 import org.airwirej.core.Utils;
 import org.airwirej.core.listeners.TransactionConfidenceEventListener;
@@ -17,14 +21,15 @@ import org.airwirej.crypto.DeterministicKey;
 import org.airwirej.crypto.LinuxSecureRandom;
 import org.airwirej.crypto.MnemonicCode;
 import org.airwirej.crypto.MnemonicException;
+import org.airwirej.wallet.CoinSelector;
 import org.airwirej.wallet.DeterministicKeyChain;
 import org.airwirej.wallet.DeterministicSeed;
 import org.airwirej.wallet.Protos;
 import org.airwirej.wallet.SendRequest;
 import org.airwirej.wallet.UnreadableWalletException;
 import org.airwirej.wallet.Wallet;
-import org.airwirej.wallet.WalletFiles;
 import org.airwirej.wallet.WalletProtobufSerializer;
+import org.airwirej.wallet.WalletTransaction;
 import org.airwirej.wallet.listeners.WalletCoinsReceivedEventListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,8 +49,11 @@ import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 import global.ContextWrapper;
@@ -66,10 +74,24 @@ public class WalletManager {
      */
     private static final int SEED_ENTROPY_EXTRA = 256;
     private static final int ENTROPY_SIZE_DEBUG = -1;
+    /** Time the outputs of a send built stay claimed if it is neither committed nor released */
+    public static final long RESERVATION_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
 
 
     private Wallet wallet;
     private File walletFile;
+    private WalletSaver saver;
+    private WalletJournal journal;
+    private final UnspentReservations reservations = new UnspentReservations(RESERVATION_TIMEOUT_MS);
+    private final UnspentIndex unspents = new UnspentIndex(reservations);
+    private final WalletActivity activity = new WalletActivity();
+    /** Serialized wallet whose transactions wait for the second loading stage */
+    private byte[] historyBytes;
+    private boolean historyPending;
+    /** The transactions are in the wallet, until then it must not be synced or saved over the file */
+    private volatile boolean historyLoaded;
+    /** A save was requested before the history loaded, it runs once it did */
+    private boolean saveAfterHistory;
 
     private WalletConfiguration conf;
     private ContextWrapper contextWrapper;
@@ -82,7 +104,9 @@ public class WalletManager {
     // methods
 
     public Address newFreshReceiveAddress() {
-        return wallet.freshReceiveAddress();
+        Address address = wallet.freshReceiveAddress();
+        journal.keysChanged();
+        return address;
     }
 
     /**
@@ -111,19 +135,143 @@ public class WalletManager {
         return wallet.isAddressWatched(address);
     }
 
+    /**
+     * Complete the transaction with outputs no other send being built has, they stay claimed by its hash until
+     * {@link #commitTx(Transaction)} or {@link #releaseTx(Transaction)}. Works with any coin selector of the request.
+     *
+     * @throws IllegalStateException if an input already in the transaction is claimed by another send.
+     */
     public void completeSend(SendRequest sendRequest) throws InsufficientMoneyException {
-        wallet.completeTx(sendRequest);
+        Transaction transaction = sendRequest.tx;
+        reservations.purgeExpired();
+        if (!reservations.claimAll(getOutPoints(transaction), transaction))
+            throw new IllegalStateException("inputs already claimed by another send");
+        CoinSelector selector = sendRequest.coinSelector != null ? sendRequest.coinSelector : wallet.getCoinSelector();
+        sendRequest.coinSelector = new ReservingCoinSelector(selector, reservations, transaction);
+        boolean completed = false;
+        try {
+            wallet.completeTx(sendRequest);
+            completed = true;
+        } finally {
+            sendRequest.coinSelector = selector;
+            // the outputs selected on the way and left out, everything if it failed
+            reservations.releaseAll(transaction, completed ? getOutPoints(transaction) : null);
+        }
+        // final once signed, a copy read back from bytes releases them
+        reservations.transfer(transaction, transaction.getHash());
+    }
+
+    private static Set<TransactionOutPoint> getOutPoints(Transaction transaction) {
+        Set<TransactionOutPoint> outPoints = new HashSet<>();
+        for (TransactionInput input : transaction.getInputs()) {
+            outPoints.add(input.getOutpoint());
+        }
+        return outPoints;
+    }
+
+    /**
+     * Sign the inputs of a transaction already complete, no input, output or fee is added. Inputs read back from
+     * bytes are connected to the wallet outputs first.
+     */
+    public void signTx(SendRequest sendRequest) {
+        Transaction transaction = sendRequest.tx;
+        Sha256Hash unsigned = transaction.getHash();
+        boolean connected = true;
+        for (TransactionInput input : transaction.getInputs()) {
+            connected &= input.getConnectedOutput() != null;
+        }
+        if (!connected) {
+            List<TransactionInput> inputs = new ArrayList<>(transaction.getInputs());
+            transaction.clearInputs();
+            for (TransactionInput input : inputs) {
+                TransactionOutPoint outPoint = input.getOutpoint();
+                Transaction parent = wallet.getTransaction(outPoint.getHash());
+                if (parent == null)
+                    throw new IllegalStateException("input not in the wallet: " + outPoint);
+                // connected without marking it spent, the commit does
+                transaction.addInput(parent.getOutput(outPoint.getIndex()));
+            }
+        }
+        wallet.signTransaction(sendRequest);
+        // the signatures changed the hash the claims are kept under
+        reservations.transfer(unsigned, transaction.getHash());
+        reservations.transfer(transaction, transaction.getHash());
+    }
+
+    /**
+     * Claim the inputs of a transaction built outside {@link #completeSend(SendRequest)}, by its hash once
+     * {@link #signTx(SendRequest)} signs it.
+     *
+     * @return false if another send has some of them.
+     */
+    public boolean claimInputs(Transaction transaction) {
+        return reservations.claimAll(getOutPoints(transaction), transaction);
+    }
+
+    /**
+     * Move the claims of a send whose outputs were changed after {@link #completeSend(SendRequest)} from the hash it
+     * had to the new one, else a cancel doesn't find them.
+     *
+     * @return false if another send has some of the inputs, the claims of the send are released then.
+     */
+    public boolean moveClaims(Sha256Hash previousHash, Transaction transaction) {
+        Sha256Hash hash = transaction.getHash();
+        reservations.transfer(previousHash, hash);
+        // timed out meanwhile or never claimed
+        if (!reservations.claimAll(getOutPoints(transaction), hash)) {
+            reservations.releaseAll(hash, null);
+            return false;
+        }
+        return true;
     }
 
     // init
 
     public void init() throws IOException {
+        initKeys();
+        initHistory();
+    }
+
+    /**
+     * First loading stage, the wallet is usable for its keys and addresses after it. The balance and the
+     * transactions come with {@link #initHistory()}.
+     */
+    public void initKeys() throws IOException {
         // init mnemonic code first..
         initMnemonicCode();
 
         restoreOrCreateWallet();
     }
 
+    /**
+     * Second loading stage: read the transactions into the wallet, clean it up and check the backup.
+     * The blockchain must not be synced before this. If it fails the wallet stays unsaved, see {@link #isHistoryLoaded()}.
+     */
+    public void initHistory() throws IOException {
+        if (!historyPending)
+            return;
+        historyPending = false;
+        byte[] walletBytes = historyBytes;
+        historyBytes = null;
+        if (walletBytes != null)
+            loadHistory(journal.replay(WalletProtobufSerializer.parseToProto(new ByteArrayInputStream(walletBytes))));
+        afterLoadWallet();
+        synchronized (this) {
+            historyLoaded = true;
+            if (saveAfterHistory) {
+                saveAfterHistory = false;
+                saver.requestSave();
+            }
+        }
+    }
+
+    /**
+     * Whether the wallet has its transactions, a wallet with the keys only would lose them when saved.
+     */
+    public boolean isHistoryLoaded() {
+        return historyLoaded;
+    }
+
     private void initMnemonicCode(){
         try {
             InputStream inputStream = contextWrapper.openAssestsStream(conf.getMnemonicFilename());
@@ -135,6 +283,8 @@ public class WalletManager {
 
     private void restoreOrCreateWallet() throws IOException {
         walletFile = contextWrapper.getFileStreamPath(conf.getWalletProtobufFilename());
+        saver = new WalletSaver(walletFile, conf.getWalletAutosaveDelayMs());
+        journal = saver.getJournal();
         loadWalletFromProtobuf(walletFile);
     }
 
@@ -144,10 +294,14 @@ public class WalletManager {
             FileInputStream walletStream = null;
             try {
                 walletStream = new FileInputStream(walletFile);
-                wallet = new WalletProtobufSerializer().readWallet(walletStream);
+                byte[] walletBytes = ByteStreams.toByteArray(walletStream);
+                // keys only, parsing and connecting the transactions is what takes long on big wallets
+                Protos.Wallet keysProto = journal.replayKeys(WalletJournal.parseWithoutTransactions(walletBytes));
+                wallet = new WalletProtobufSerializer().readWallet(conf.getNetworkParams(), null, keysProto);
 
                 if (!wallet.getParams().equals(conf.getNetworkParams()))
                     throw new UnreadableWalletException("bad wallet network parameters: " + wallet.getParams().getId());
+                historyBytes = walletBytes;
 
             } catch (UnreadableWalletException e) {
                 logger.error("problem loading wallet", e);
@@ -156,6 +310,9 @@ public class WalletManager {
                 logger.error("problem loading wallet", e);
                 //context.toast(e.getClass().getName());
                 wallet = restoreWalletFromBackup();
+            } catch (IOException e) {
+                logger.error("problem loading wallet", e);
+                wallet = restoreWalletFromBackup();
             } finally {
                 if (walletStream != null)
                     try {
@@ -164,20 +321,20 @@ public class WalletManager {
                         //nothing
                     }
             }
-            if (!wallet.isConsistent()) {
-                //contextWrapper.toast("inconsistent wallet: " + walletFile);
-                logger.error("inconsistent wallet " + walletFile);
-                wallet = restoreWalletFromBackup();
-            }
             if (!wallet.getParams().equals(conf.getNetworkParams()))
                 throw new Error("bad wallet network parameters: " + wallet.getParams().getId());
 
-            afterLoadWallet();
+            historyPending = true;
 
         } else {
 
             // generate wallet from random mnemonic
             wallet = generateRandomWallet();
+            historyLoaded = true;
+            journal.reset();
+            journal.attach(wallet);
+            unspents.attach(wallet);
+            activity.attach(wallet);
 
             saveWallet();
             backupWallet();
@@ -185,14 +342,6 @@ public class WalletManager {
 //            config.armBackupReminder();
             logger.info("new wallet created");
         }
-
-        wallet.addCoinsReceivedEventListener(new WalletCoinsReceivedEventListener() {
-            @Override
-            public void onCoinsReceived(Wallet wallet, Transaction transaction, Coin coin, Coin coin1) {
-                org.airwirej.core.Context.propagate(conf.getWalletContext());
-                saveWallet();
-            }
-        });
     }
 
     public Wallet generateRandomWallet(){
@@ -227,14 +376,49 @@ public class WalletManager {
     }
 
 
+    private void loadHistory(Protos.Wallet walletProto) {
+        Wallet history;
+        try {
+            history = new WalletProtobufSerializer().readWallet(conf.getNetworkParams(), null, walletProto);
+        } catch (UnreadableWalletException e) {
+            logger.error("problem loading wallet transactions", e);
+            forgetHistory();
+            return;
+        }
+        if (!history.isConsistent()) {
+            //contextWrapper.toast("inconsistent wallet: " + walletFile);
+            logger.error("inconsistent wallet " + walletFile);
+            forgetHistory();
+            return;
+        }
+        // into the wallet already handed out, the listeners registered on it stay
+        for (WalletTransaction transaction : history.getWalletTransactions()) {
+            wallet.addWalletTransaction(transaction);
+        }
+        history.clearTransactions(0);
+        logger.info("wallet history loaded, {} transactions", wallet.getTransactions(true).size());
+    }
+
+    /**
+     * Keep the keys only, as when restoring from the backup.
+     */
+    private void forgetHistory() {
+        journal.reset();
+        wallet.setLastBlockSeenHash(null);
+        wallet.setLastBlockSeenHeight(-1);
+        wallet.setLastBlockSeenTimeSecs(0);
+    }
+
     private void afterLoadWallet() throws IOException {
-        wallet.autosaveToFile(walletFile, conf.getWalletAutosaveDelayMs(), TimeUnit.MILLISECONDS, new WalletAutosaveEventListener(conf));
+        journal.attach(wallet);
         try {
             // clean up spam
             wallet.cleanup();
         } catch (Exception e) {
             e.printStackTrace();
         }
+        unspents.attach(wallet);
+        activity.attach(wallet);
 
         // make sure there is at least one recent backup
         if (!contextWrapper.getFileStreamPath(conf.getKeyBackupProtobuf()).exists())
@@ -256,6 +440,8 @@ public class WalletManager {
             final Wallet wallet = new WalletProtobufSerializer().readWallet(is, true, null);
             if (!wallet.isConsistent())
                 throw new Error("Inconsistent backup");
+            // the journal belongs to the broken snapshot
+            journal.reset();
             // todo: acá tengo que resetear la wallet
             //resetBlockchain();
             //context.toast("Your wallet was reset!\\\\nIt will take some time to recover.");
@@ -287,30 +473,38 @@ public class WalletManager {
     }
 
     /**
-     * Este metodo puede tener varias implementaciones de guardado distintas.
+     * Full save of the wallet, the journaled changes are folded into the snapshot. Waits for it.
      */
     public void saveWallet() {
+        if (!historyLoaded)
+            throw new IllegalStateException("wallet history not loaded, not saving over it");
+        logger.info("trying to serialize: " + walletFile.getAbsolutePath());
         try {
-            protobufSerializeWallet(wallet);
-        } catch (final IOException x) {
-            throw new RuntimeException(x);
+            saver.saveNow().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
     }
 
     /**
-     * Save wallet file
-     *
-     * @param wallet
-     * @throws IOException
+     * Full save in background, for the changes the journal doesn't keep. Before the history is loaded it waits for
+     * it, the snapshot would lose the transactions otherwise.
      */
-    private void protobufSerializeWallet(final Wallet wallet) throws IOException {
-        logger.info("trying to serialize: " + walletFile.getAbsolutePath());
-        wallet.saveToFile(walletFile);
-        // make wallets world accessible in test mode
-        //if (conf.isTest())
-        //    Io.chmod(walletFile, 0777);
+    public synchronized void requestSave() {
+        if (historyLoaded)
+            saver.requestSave();
+        else
+            saveAfterHistory = true;
+    }
 
-        logger.info("wallet saved to: '{}', took {}", walletFile);
+    /**
+     * Completes once the wallet changes made so far are on disk.
+     */
+    public ListenableFuture<Void> flushWallet() {
+        return saver.flush();
     }
 
 
@@ -397,12 +591,23 @@ public class WalletManager {
         }
     }
 
+    /**
+     * Stop journaling and let the saver thread end, for a manager thrown away without stopping the process.
+     */
+    public void close() {
+        journal.detach();
+        unspents.detach();
+        activity.detach();
+        saver.shutdown();
+    }
+
     public List<Address> getWatchedAddresses() {
         return wallet.getWatchedAddresses();
     }
 
     public void reset() {
         wallet.reset();
+        unspents.rebuild();
     }
 
     public long getEarliestKeyCreationTime() {
@@ -421,10 +626,67 @@ public class WalletManager {
         peerGroup.removeWallet(wallet);
     }
 
+    public void removeWalletFrom(BlockChain blockChain) {
+        blockChain.removeWallet(wallet);
+    }
+
+    /**
+     * Forget the given blocks, top to bottom, down to the split point. Their transactions go back to pending
+     * until the blocks are received again.
+     */
+    public void rewind(StoredBlock splitPoint, List<StoredBlock> blocks) {
+        wallet.reorganize(splitPoint, blocks, new ArrayList<StoredBlock>());
+        wallet.setLastBlockSeenHash(splitPoint.getHeader().getHash());
+        wallet.setLastBlockSeenHeight(splitPoint.getHeight());
+        wallet.setLastBlockSeenTimeSecs(splitPoint.getHeader().getTimeSeconds());
+    }
+
+    /**
+     * Drop the wallet transactions and start again from the given block, when the blocks to rewind are gone.
+     */
+    public void resetTo(StoredBlock from) {
+        wallet.reset();
+        wallet.setLastBlockSeenHash(from.getHeader().getHash());
+        wallet.setLastBlockSeenHeight(from.getHeight());
+        wallet.setLastBlockSeenTimeSecs(from.getHeader().getTimeSeconds());
+        unspents.rebuild();
+    }
+
     public int getLastBlockSeenHeight() {
         return wallet.getLastBlockSeenHeight();
     }
 
+    /**
+     * Time of the newest wallet transaction, 0 if there are none or the transactions are not loaded yet.
+     */
+    public long getLastActivityTime() {
+        return activity.getLastActivityTime();
+    }
+
+    /**
+     * Time the newest transaction sent by this wallet and not in a block yet was sent, 0 if there are none.
+     */
+    public long getNewestPendingOutgoingTime() {
+        long newest = 0;
+        for (Transaction transaction : wallet.getPendingTransactions()) {
+            if (transaction.getUpdateTime() != null && transaction.getValueSentFromMe(wallet).signum() > 0)
+                newest = Math.max(newest, transaction.getUpdateTime().getTime());
+        }
+        return newest;
+    }
+
+    /**
+     * Transactions sent by this wallet that are not in a block yet.
+     */
+    public int getPendingOutgoingCount() {
+        int count = 0;
+        for (Transaction transaction : wallet.getPendingTransactions()) {
+            if (transaction.getValueSentFromMe(wallet).signum() > 0)
+                count++;
+        }
+        return count;
+    }
+
     public Transaction getTransaction(Sha256Hash hash) {
         return wallet.getTransaction(hash);
     }
@@ -433,6 +695,10 @@ public class WalletManager {
         wallet.addCoinsReceivedEventListener(coinReceiverListener);
     }
 
+    public void addCoinsReceivedEventListener(Executor executor, WalletCoinsReceivedEventListener coinReceiverListener) {
+        wallet.addCoinsReceivedEventListener(executor, coinReceiverListener);
+    }
+
     public void removeCoinsReceivedEventListener(WalletCoinsReceivedEventListener coinReceiverListener) {
         wallet.removeCoinsReceivedEventListener(coinReceiverListener);
     }
@@ -481,14 +747,16 @@ public class WalletManager {
     public void replaceWallet(final Wallet newWallet) throws IOException {
         resetBlockchain();
 
-        try {
-            wallet.shutdownAutosaveAndWait();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        journal.detach();
+        journal.reset();
+        unspents.detach();
+        activity.detach();
         wallet = newWallet;
         //conf.maybeIncrementBestChainHeightEver(newWallet.getLastBlockSeenHeight());
         afterLoadWallet();
+        historyLoaded = true;
+        // the snapshot on disk is still the old wallet
+        saveWallet();
 
         // todo: Nadie estaba escuchando esto.. Tengo que ver que deberia hacer despues
 //        final IntentWrapper intentWrapper = new IntentWrapperAndroid(WalletConstants.ACTION_WALLET_REFERENCE_CHANGED);
@@ -537,7 +805,21 @@ public class WalletManager {
     }
 
     public void commitTx(Transaction transaction) {
-        wallet.maybeCommitTx(transaction);
+        try {
+            wallet.maybeCommitTx(transaction);
+        } finally {
+            // spent now, the index drops them
+            releaseTx(transaction);
+        }
+    }
+
+    /**
+     * Release the outputs claimed by a send not committed, a cancelled one for example.
+     */
+    public void releaseTx(Transaction transaction) {
+        reservations.releaseAll(transaction.getHash(), null);
+        // not signed yet
+        reservations.releaseAll(transaction, null);
     }
 
     public Coin getUnspensableBalance() {
@@ -552,6 +834,10 @@ public class WalletManager {
         wallet.addTransactionConfidenceEventListener(transactionConfidenceEventListener);
     }
 
+    public void addOnTransactionsConfidenceChange(Executor executor, TransactionConfidenceEventListener transactionConfidenceEventListener) {
+        wallet.addTransactionConfidenceEventListener(executor, transactionConfidenceEventListener);
+    }
+
     public void removeTransactionConfidenceChange(TransactionConfidenceEventListener transactionConfidenceEventListener) {
         wallet.removeTransactionConfidenceEventListener(transactionConfidenceEventListener);
     }
@@ -566,8 +852,24 @@ public class WalletManager {
         return wallet;
     }
 
+    /**
+     * Unspent outputs, biggest first.
+     */
     public List<TransactionOutput> listUnspent() {
-        return wallet.getUnspents();
+        return unspents.listByValue();
+    }
+
+    /**
+     * Unspents biggest first but the ones claimed by a send being built.
+     */
+    public List<TransactionOutput> listUnclaimedUnspent() {
+        List<TransactionOutput> list = unspents.listByValue();
+        List<TransactionOutput> unclaimed = new ArrayList<>(list.size());
+        for (TransactionOutput output : list) {
+            if (!reservations.isClaimed(output.getOutPointFor()))
+                unclaimed.add(output);
+        }
+        return unclaimed;
     }
 
     public List<String> getMnemonic() {
@@ -594,31 +896,24 @@ public class WalletManager {
         return tx.getOutput(index);
     }
 
+    /**
+     * Unspents not spent by the inputs whose sum goes over the amount, the biggest first.
+     */
     public List<TransactionOutput> getRandomListUnspentNotInListToFullCoins(List<TransactionInput> inputs,Coin amount) throws InsufficientInputsException {
-        List<TransactionOutput> list = new ArrayList<>();
-        Coin total = Coin.ZERO;
-        for (TransactionOutput transactionOutput : wallet.getUnspents()) {
-            boolean found = false;
-            if (inputs!=null) {
-                for (TransactionInput input : inputs) {
-                    if (input.getConnectedOutput().getParentTransactionHash().equals(transactionOutput.getParentTransactionHash())
-                            &&
-                        input.getConnectedOutput().getIndex() == transactionOutput.getIndex()) {
-                        found = true;
-                    }
-                }
-            }
-            if (!found) {
-                if (total.isLessThan(amount)) {
-                    list.add(transactionOutput);
-                    total = total.add(transactionOutput.getValue());
-                }
-                if (total.isGreaterThan(amount)){
-                    return list;
-                }
+        Set<TransactionOutPoint> excluded = new HashSet<>();
+        if (inputs!=null) {
+            for (TransactionInput input : inputs) {
+                excluded.add(input.getOutpoint());
             }
         }
-        throw new InsufficientInputsException("No unspent available",amount.minus(total));
+        List<TransactionOutput> list = unspents.select(amount, excluded);
+        Coin total = Coin.ZERO;
+        for (TransactionOutput transactionOutput : list) {
+            total = total.add(transactionOutput.getValue());
+        }
+        if (!total.isGreaterThan(amount))
+            throw new InsufficientInputsException("No unspent available",amount.minus(total));
+        return list;
     }
 
     public Coin getUnspentValue(Sha256Hash parentTransactionHash, int index) {
@@ -650,7 +945,7 @@ public class WalletManager {
      */
     public Transaction createCleanWalletTx(Address sweepAddress) throws InsufficientMoneyException {
         SendRequest sendRequest = SendRequest.emptyWallet(sweepAddress);
-        wallet.completeTx(sendRequest);
+        completeSend(sendRequest);
         return sendRequest.tx;
     }
 
@@ -658,24 +953,4 @@ public class WalletManager {
         return MnemonicCode.INSTANCE.getWordList();
     }
 
-    private static final class WalletAutosaveEventListener implements WalletFiles.Listener {
-
-        WalletConfiguration conf;
-
-        public WalletAutosaveEventListener(WalletConfiguration walletConfiguration) {
-            conf = walletConfiguration;
-        }
-
-        @Override
-        public void onBeforeAutoSave(final File file) {
-        }
-
-        @Override
-        public void onAfterAutoSave(final File file) {
-            // make wallets world accessible in test mode
-            //if (conf.isTest())
-            //    Io.chmod(file, 0777);
-        }
-    }
-
 }
@@ -0,0 +1,169 @@
+package wallet;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single thread doing every wallet write: the journal records, the full saves and the syncs.
+ *
+ * Save requests arriving within the coalescing window share one full save. The event and network threads only
+ * queue work here, callers that need the wallet on disk, after a send for example, wait on the returned futures.
+ */
+public class WalletSaver implements Executor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WalletSaver.class);
+
+    private final ScheduledExecutorService executor;
+    private final WalletJournal journal;
+    private final long windowMs;
+
+    /** Save requested and not started yet */
+    private SettableFuture<Void> pendingSave;
+    private ScheduledFuture<?> scheduledSave;
+
+    private final Runnable saveTask = new Runnable() {
+        @Override
+        public void run() {
+            SettableFuture<Void> done;
+            synchronized (WalletSaver.this) {
+                done = pendingSave;
+                pendingSave = null;
+                scheduledSave = null;
+            }
+            if (done == null)
+                return;
+            try {
+                long start = System.currentTimeMillis();
+                journal.compact();
+                LOG.info("wallet saved, took {} ms", System.currentTimeMillis() - start);
+                done.set(null);
+            } catch (Exception e) {
+                LOG.error("cannot save the wallet", e);
+                done.setException(e);
+            }
+        }
+    };
+
+    /**
+     * @param walletFile wallet snapshot, the journal is kept next to it.
+     * @param windowMs time a save waits for more requests.
+     */
+    public WalletSaver(File walletFile, long windowMs) {
+        this.windowMs = windowMs;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "wallet-saver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.journal = new WalletJournal(walletFile, this);
+    }
+
+    public WalletJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Run a write on the saver thread, in order with the others. Dropped once the saver is shut down, the wallet
+     * listeners calling it must not fail.
+     */
+    @Override
+    public void execute(final Runnable write) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write.run();
+                    } catch (RuntimeException e) {
+                        LOG.error("wallet write failed", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("wallet saver shut down, write dropped");
+        }
+    }
+
+    /**
+     * Full save once the window passes, requests meanwhile join it.
+     */
+    public synchronized ListenableFuture<Void> requestSave() {
+        if (pendingSave == null) {
+            try {
+                scheduledSave = executor.schedule(saveTask, windowMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                LOG.warn("wallet saver shut down, save dropped");
+                return Futures.immediateFailedFuture(e);
+            }
+            pendingSave = SettableFuture.create();
+        }
+        return pendingSave;
+    }
+
+    /**
+     * Full save as soon as the writes already queued are done.
+     */
+    public synchronized ListenableFuture<Void> saveNow() {
+        ScheduledFuture<?> save;
+        try {
+            save = executor.schedule(saveTask, 0, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("wallet saver shut down, save dropped");
+            return Futures.immediateFailedFuture(e);
+        }
+        if (pendingSave == null)
+            pendingSave = SettableFuture.create();
+        if (scheduledSave != null)
+            scheduledSave.cancel(false);
+        scheduledSave = save;
+        return pendingSave;
+    }
+
+    /**
+     * Completes once the changes journaled so far are synced to the disk.
+     */
+    public ListenableFuture<Void> flush() {
+        final SettableFuture<Void> done = SettableFuture.create();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        journal.sync();
+                        done.set(null);
+                    } catch (Exception e) {
+                        LOG.error("cannot sync the wallet journal", e);
+                        done.setException(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("wallet saver shut down, sync dropped");
+            done.setException(e);
+        }
+        return done;
+    }
+
+    /**
+     * Stop the thread once the queued writes and the requested saves are done, no new work is accepted.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
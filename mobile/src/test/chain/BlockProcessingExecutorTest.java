@@ -0,0 +1,92 @@
+package chain;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockProcessingExecutorTest {
+
+    @Test
+    public void tasksRunInOrderOnTheWorker() throws Exception {
+        BlockProcessingExecutor executor = new BlockProcessingExecutor(100);
+        final Thread submitter = Thread.currentThread();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int task = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    order.add(task);
+                    threads.add(Thread.currentThread());
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) order.get(i));
+            assertTrue(threads.get(i) != submitter);
+        }
+        assertEquals(0, executor.getCallerRuns());
+        executor.shutdown();
+    }
+
+    @Test
+    public void fullQueueRunsOnTheSubmitter() throws Exception {
+        BlockProcessingExecutor executor = new BlockProcessingExecutor(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        // one running, one queued
+        executor.execute(blocked);
+        executor.execute(blocked);
+        final Thread[] ranOn = new Thread[1];
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+            }
+        });
+        assertEquals(Thread.currentThread(), ranOn[0]);
+        assertEquals(1, executor.getCallerRuns());
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void tasksAfterTheShutdownAreDropped() throws Exception {
+        BlockProcessingExecutor executor = new BlockProcessingExecutor(2);
+        executor.shutdown();
+        final boolean[] ran = new boolean[1];
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        });
+        assertEquals(1, executor.getRejected());
+        assertTrue(!ran[0]);
+    }
+}
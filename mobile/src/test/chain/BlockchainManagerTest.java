@@ -0,0 +1,202 @@
+package chain;
+
+import org.airwirej.core.AbstractBlockChain;
+import org.airwirej.core.Coin;
+import org.airwirej.core.Context;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionConfidence.ConfidenceType;
+import org.airwirej.core.TransactionInput;
+import org.airwirej.core.TransactionOutPoint;
+import org.airwirej.wallet.Wallet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import chain.store.Headers;
+import chain.store.HeightIndexedBlockStore;
+import chain.store.PrunableMemoryStore;
+import global.ContextWrapper;
+import global.WalletConfiguration;
+import wallet.WalletManager;
+import wallet.Wallets;
+
+import static chain.BlockchainManager.MIN_PRUNE_KEEP_BLOCKS;
+import static chain.store.Headers.PARAMS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockchainManagerTest {
+
+    private static final int HEAD_HEIGHT = 3000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Indexed store with a chain of {@link #HEAD_HEIGHT} headers a minute apart */
+    private HeightIndexedBlockStore store(List<StoredBlock> chain) throws Exception {
+        PrunableMemoryStore memory = new PrunableMemoryStore();
+        HeightIndexedBlockStore store = new HeightIndexedBlockStore(memory, folder.newFile());
+        chain.addAll(Headers.chain(store.getChainHead(), HEAD_HEIGHT, false));
+        for (StoredBlock block : chain) {
+            store.put(block);
+        }
+        store.setChainHead(chain.get(HEAD_HEIGHT - 1));
+        return store;
+    }
+
+    private static StoredBlock at(List<StoredBlock> chain, int height) {
+        return chain.get(height - 1);
+    }
+
+    private static long time(List<StoredBlock> chain, int height) {
+        return at(chain, height).getHeader().getTimeSeconds();
+    }
+
+    private static void prune(HeightIndexedBlockStore store, List<StoredBlock> chain, int keepBlocks, int birthdayHeight) throws Exception {
+        int keepHeight = BlockchainManager.getKeepHeight(HEAD_HEIGHT, keepBlocks, birthdayHeight);
+        if (keepHeight > 0)
+            BlockchainManager.pruneBelowHeight(store, at(chain, HEAD_HEIGHT), keepHeight);
+    }
+
+    private static void assertKeptFrom(HeightIndexedBlockStore store, List<StoredBlock> chain, int height) throws Exception {
+        assertNull(store.get(at(chain, height - 1).getHeader().getHash()));
+        for (int kept = height; kept <= HEAD_HEIGHT; kept += 97) {
+            assertNotNull(store.get(at(chain, kept).getHeader().getHash()));
+        }
+        assertEquals(at(chain, height), store.getByHeight(height));
+        assertEquals(at(chain, HEAD_HEIGHT), store.getChainHead());
+    }
+
+    @Test
+    public void birthdayIsTheFirstBlockAtItOrItsCheckpoint() throws Exception {
+        List<StoredBlock> chain = new ArrayList<>();
+        HeightIndexedBlockStore store = store(chain);
+        assertEquals(1500, BlockchainManager.findBirthdayHeight(store, HEAD_HEIGHT, time(chain, 1500), 0));
+        assertEquals(1501, BlockchainManager.findBirthdayHeight(store, HEAD_HEIGHT, time(chain, 1500) + 1, 0));
+        assertEquals(1200, BlockchainManager.findBirthdayHeight(store, HEAD_HEIGHT, time(chain, 1500), 1200));
+        store.close();
+    }
+
+    @Test
+    public void birthdayAndItsCheckpointAreKept() throws Exception {
+        List<StoredBlock> chain = new ArrayList<>();
+        HeightIndexedBlockStore store = store(chain);
+        int birthdayHeight = BlockchainManager.findBirthdayHeight(store, HEAD_HEIGHT, time(chain, 1500), 1200);
+        prune(store, chain, 100, birthdayHeight);
+        assertKeptFrom(store, chain, 1200);
+        assertEquals(1200, store.getBaseHeight());
+        store.close();
+    }
+
+    @Test
+    public void recentBlocksAreKeptAboveTheBirthday() throws Exception {
+        List<StoredBlock> chain = new ArrayList<>();
+        HeightIndexedBlockStore store = store(chain);
+        // a birthday inside the window, and a window asked smaller than a reorg could reach
+        prune(store, chain, 10, 2900);
+        assertKeptFrom(store, chain, HEAD_HEIGHT - MIN_PRUNE_KEEP_BLOCKS);
+        store.close();
+    }
+
+    @Test
+    public void unknownBirthdayPrunesNothing() throws Exception {
+        List<StoredBlock> chain = new ArrayList<>();
+        HeightIndexedBlockStore store = store(chain);
+        assertEquals(0, BlockchainManager.getKeepHeight(HEAD_HEIGHT, 100, 0));
+        prune(store, chain, 100, 0);
+        assertNotNull(store.get(at(chain, 1).getHeader().getHash()));
+        assertEquals(at(chain, 1), store.getByHeight(1));
+        store.close();
+    }
+
+    /** Payment to the wallet from outside of it, confirmed in the given block */
+    private static Transaction receive(Wallet wallet, Coin value, StoredBlock block) throws Exception {
+        Transaction transaction = new Transaction(PARAMS);
+        transaction.addInput(new TransactionInput(PARAMS, transaction, new byte[0],
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(value.toString().getBytes()))));
+        transaction.addOutput(value, wallet.freshReceiveAddress());
+        wallet.receiveFromBlock(transaction, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        return transaction;
+    }
+
+    /** Manager started on the store, with the wallet loaded from its file */
+    private BlockchainManager manager(HeightIndexedBlockStore store, WalletManager walletManager,
+                                      ContextWrapper context, WalletConfiguration conf) throws Exception {
+        File dir = folder.newFolder();
+        new File(dir, "blockchain").createNewFile();
+        BlockchainManager manager = new BlockchainManager(context, walletManager, conf);
+        manager.init(store, dir, "blockchain", true);
+        return manager;
+    }
+
+    private static ConfidenceType confidence(WalletManager walletManager, Transaction transaction) {
+        return walletManager.getTransaction(transaction.getHash()).getConfidence().getConfidenceType();
+    }
+
+    @Test
+    public void rescanRewindsTheChainAndTheWallet() throws Exception {
+        Context.propagate(Headers.CONTEXT);
+        List<StoredBlock> chain = new ArrayList<>();
+        HeightIndexedBlockStore store = store(chain);
+        Wallet wallet = new Wallet(PARAMS);
+        Transaction kept = receive(wallet, Coin.COIN, at(chain, 2000));
+        Transaction rewound = receive(wallet, Coin.CENT, at(chain, 2900));
+        wallet.notifyNewBestBlock(at(chain, HEAD_HEIGHT));
+        ContextWrapper context = Wallets.context(folder.newFolder());
+        WalletConfiguration conf = Wallets.configuration(Headers.CONTEXT);
+        WalletManager walletManager = Wallets.load(wallet, context, conf);
+        assertEquals(HEAD_HEIGHT, walletManager.getLastBlockSeenHeight());
+        BlockchainManager manager = manager(store, walletManager, context, conf);
+
+        assertEquals(2500, manager.rescanFrom(2500));
+        assertEquals(2500, walletManager.getLastBlockSeenHeight());
+        assertEquals(at(chain, 2500).getHeader().getHash(), walletManager.getWallet().getLastBlockSeenHash());
+        // the transaction above the new head waits for its block again
+        assertEquals(ConfidenceType.BUILDING, confidence(walletManager, kept));
+        assertEquals(ConfidenceType.PENDING, confidence(walletManager, rewound));
+        assertEquals(1, walletManager.getWallet().getPendingTransactions().size());
+        assertEquals(2, walletManager.listUnspent().size());
+        // the index ends at the new head
+        assertEquals(at(chain, 2500), store.getChainHead());
+        assertEquals(at(chain, 2500), store.getByHeight(2500));
+        assertNull(store.getByHeight(2501));
+        assertEquals(at(chain, 1000), store.getByHeight(1000));
+        walletManager.close();
+        store.close();
+    }
+
+    @Test
+    public void rescanBelowTheStoredBlocksStartsFromScratch() throws Exception {
+        Context.propagate(Headers.CONTEXT);
+        List<StoredBlock> chain = new ArrayList<>();
+        HeightIndexedBlockStore store = store(chain);
+        Wallet wallet = new Wallet(PARAMS);
+        receive(wallet, Coin.COIN, at(chain, 2900));
+        wallet.notifyNewBestBlock(at(chain, HEAD_HEIGHT));
+        ContextWrapper context = Wallets.context(folder.newFolder());
+        WalletConfiguration conf = Wallets.configuration(Headers.CONTEXT);
+        WalletManager walletManager = Wallets.load(wallet, context, conf);
+        BlockchainManager manager = manager(store, walletManager, context, conf);
+        // gone from the store without the manager knowing, as a ring store overwrites them
+        BlockchainManager.pruneBelowHeight(store, at(chain, HEAD_HEIGHT), 2000);
+
+        // no checkpoints in the tests, back to the genesis block
+        assertEquals(0, manager.rescanFrom(1500));
+        assertEquals(0, walletManager.getLastBlockSeenHeight());
+        assertTrue(walletManager.getWallet().getTransactions(true).isEmpty());
+        assertEquals(0, walletManager.listUnspent().size());
+        assertEquals(0, store.getChainHead().getHeight());
+        assertNull(store.getByHeight(2000));
+        walletManager.close();
+        store.close();
+    }
+}
@@ -0,0 +1,66 @@
+package chain;
+
+import org.junit.Test;
+
+import static chain.BloomFilterManager.ELEMENTS_PER_TX;
+import static chain.BloomFilterManager.EVALUATION_BLOCKS;
+import static chain.BloomFilterManager.RETUNE_COOLDOWN_MS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterManagerTest {
+
+    private static final double TARGET = 1e-5;
+    private static final long NOW = 1000000000000L;
+
+    /** A window of blocks with the given transactions and false positives in the last block */
+    private static boolean window(BloomFilterManager manager, long txsPerBlock, int falsePositives, long now) {
+        boolean retune = false;
+        for (int i = 0; i < EVALUATION_BLOCKS; i++) {
+            retune |= manager.onBlock(txsPerBlock, i == EVALUATION_BLOCKS - 1 ? falsePositives : 0, now);
+        }
+        return retune;
+    }
+
+    @Test
+    public void fewFalsePositivesAreNoEvidence() {
+        BloomFilterManager manager = new BloomFilterManager(null, null, TARGET);
+        // far over the target per transaction, but a couple of matches prove nothing
+        assertFalse(window(manager, 10, 2, NOW));
+        assertEquals(-1, manager.getObservedRate(), 0);
+        assertEquals(TARGET, manager.getFilterRate(), 0);
+    }
+
+    @Test
+    public void rateAtTheTargetIsKept() {
+        BloomFilterManager manager = new BloomFilterManager(null, null, TARGET);
+        long txsPerBlock = 1000;
+        long queries = txsPerBlock * EVALUATION_BLOCKS * ELEMENTS_PER_TX;
+        assertFalse(window(manager, txsPerBlock, (int) (queries * TARGET), NOW));
+        assertEquals(TARGET, manager.getObservedRate(), TARGET / 100);
+        assertEquals(0, manager.getRecalculations());
+    }
+
+    @Test
+    public void driftTightensOnceAndWaitsBeforeTheNextRetune() {
+        BloomFilterManager manager = new BloomFilterManager(null, null, TARGET);
+        long txsPerBlock = 1000;
+        long queries = txsPerBlock * EVALUATION_BLOCKS * ELEMENTS_PER_TX;
+        int tooMany = (int) (queries * TARGET * 4);
+        assertTrue(window(manager, txsPerBlock, tooMany, NOW));
+        assertEquals(TARGET / 2, manager.getFilterRate(), 0);
+        // still drifting, but the filter was just sent
+        assertFalse(window(manager, txsPerBlock, tooMany, NOW + RETUNE_COOLDOWN_MS / 2));
+        assertTrue(window(manager, txsPerBlock, tooMany, NOW + RETUNE_COOLDOWN_MS));
+        assertEquals(TARGET / 4, manager.getFilterRate(), 0);
+
+        // quiet again, back to the target and never looser
+        assertTrue(window(manager, txsPerBlock, 0, NOW + 2 * RETUNE_COOLDOWN_MS));
+        assertTrue(window(manager, txsPerBlock, 0, NOW + 3 * RETUNE_COOLDOWN_MS));
+        assertEquals(TARGET, manager.getFilterRate(), 0);
+        assertFalse(window(manager, txsPerBlock, 0, NOW + 4 * RETUNE_COOLDOWN_MS));
+        assertEquals(TARGET, manager.getFilterRate(), 0);
+        assertEquals(4, manager.getRecalculations());
+    }
+}
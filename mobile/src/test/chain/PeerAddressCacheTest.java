@@ -0,0 +1,164 @@
+package chain;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static chain.PeerAddressCache.MAX_AGE_MS;
+import static chain.PeerAddressCache.MAX_ENTRIES;
+import static chain.PeerAddressCache.MAX_FAILED_ATTEMPTS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PeerAddressCacheTest {
+
+    private static final long T0 = 1000000000000L;
+    private static final int PORT = 6520;
+    /** Ping time of a peer that never answered */
+    private static final long NO_PONG = Long.MAX_VALUE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PeerAddressCache newCache() {
+        return new PeerAddressCache(new File(folder.getRoot(), "peers"));
+    }
+
+    private static void session(PeerAddressCache cache, String host, long pingTime, long start, long uptime) {
+        cache.connected(host, PORT, start);
+        cache.disconnected(host, PORT, pingTime, start + uptime);
+    }
+
+    private static List<String> hosts(List<InetSocketAddress> addresses) {
+        List<String> hosts = new ArrayList<>(addresses.size());
+        for (InetSocketAddress address : addresses) {
+            hosts.add(address.getAddress().getHostAddress());
+        }
+        return hosts;
+    }
+
+    @Test
+    public void rankedByLatencyThenUptime() {
+        PeerAddressCache cache = newCache();
+        session(cache, "10.0.0.1", 300, T0, 1000);
+        session(cache, "10.0.0.2", NO_PONG, T0, 1000);
+        session(cache, "10.0.0.3", 100, T0, 1000);
+        session(cache, "10.0.0.4", 100, T0, 5000);
+        assertEquals(Arrays.asList("10.0.0.4", "10.0.0.3", "10.0.0.1", "10.0.0.2"),
+                hosts(cache.getRankedAddresses(10, T0 + 10000)));
+    }
+
+    @Test
+    public void addressesHandedOutGoBehindTheOnesThatConnected() {
+        PeerAddressCache cache = newCache();
+        session(cache, "10.0.0.1", 100, T0, 1000);
+        session(cache, "10.0.0.2", 300, T0, 1000);
+        assertEquals(Arrays.asList("10.0.0.1"), hosts(cache.getRankedAddresses(1, T0 + 10000)));
+        // 10.0.0.1 did not connect since
+        assertEquals(Arrays.asList("10.0.0.2", "10.0.0.1"), hosts(cache.getRankedAddresses(2, T0 + 20000)));
+        // connecting clears the attempts
+        cache.connected("10.0.0.1", PORT, T0 + 30000);
+        cache.disconnected("10.0.0.1", PORT, 100, T0 + 31000);
+        assertEquals("10.0.0.1", hosts(cache.getRankedAddresses(2, T0 + 40000)).get(0));
+    }
+
+    @Test
+    public void latencyIsSmoothed() {
+        PeerAddressCache cache = newCache();
+        session(cache, "10.0.0.1", 100, T0, 1000);
+        session(cache, "10.0.0.2", 150, T0, 1000);
+        // one slow ping doesn't sink a fast peer below a 150 ms one: 0.3 * 200 + 0.7 * 100 = 130
+        session(cache, "10.0.0.1", 200, T0 + 2000, 1000);
+        assertEquals(Arrays.asList("10.0.0.1", "10.0.0.2"), hosts(cache.getRankedAddresses(2, T0 + 10000)));
+    }
+
+    @Test
+    public void failingAddressesAreForgotten() {
+        PeerAddressCache cache = newCache();
+        session(cache, "10.0.0.1", 100, T0, 1000);
+        for (int i = 0; i <= MAX_FAILED_ATTEMPTS; i++) {
+            assertEquals(1, cache.getRankedAddresses(1, T0 + 10000 + i).size());
+        }
+        assertTrue(cache.getRankedAddresses(1, T0 + 20000).isEmpty());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void oldAddressesExpire() {
+        PeerAddressCache cache = newCache();
+        session(cache, "10.0.0.1", 100, T0, 1000);
+        session(cache, "10.0.0.2", 100, T0 + MAX_AGE_MS, 1000);
+        assertEquals(Arrays.asList("10.0.0.2"), hosts(cache.getRankedAddresses(10, T0 + 1000 + MAX_AGE_MS + 1)));
+    }
+
+    @Test
+    public void connectedAddressesNeverExpire() {
+        PeerAddressCache cache = newCache();
+        cache.connected("10.0.0.1", PORT, T0);
+        assertEquals(1, cache.getRankedAddresses(10, T0 + 2 * MAX_AGE_MS).size());
+    }
+
+    @Test
+    public void theWorstAddressesAreEvicted() {
+        PeerAddressCache cache = newCache();
+        int count = MAX_ENTRIES + 10;
+        for (int i = 0; i < count; i++) {
+            session(cache, "10.0." + (i / 250) + "." + (i % 250 + 1), 10 + i, T0, 1000);
+        }
+        List<InetSocketAddress> ranked = cache.getRankedAddresses(count, T0 + 10000);
+        assertEquals(MAX_ENTRIES, ranked.size());
+        assertEquals(MAX_ENTRIES, cache.size());
+        assertEquals("10.0.0.1", ranked.get(0).getAddress().getHostAddress());
+        // the slowest ones are gone
+        assertEquals("10.0.0." + MAX_ENTRIES, ranked.get(MAX_ENTRIES - 1).getAddress().getHostAddress());
+    }
+
+    @Test
+    public void savedAndLoaded() {
+        PeerAddressCache cache = newCache();
+        session(cache, "10.0.0.1", 300, T0, 1000);
+        session(cache, "10.0.0.2", 100, T0, 1000);
+        // still connected, saved with its uptime so far
+        cache.connected("10.0.0.3", PORT, T0);
+        cache.disconnected("10.0.0.3", PORT, 200, T0 + 1000);
+        cache.connected("10.0.0.3", PORT, T0 + 2000);
+        cache.save(T0 + 10000);
+
+        PeerAddressCache loaded = newCache();
+        assertEquals(3, loaded.size());
+        assertEquals(Arrays.asList("10.0.0.2", "10.0.0.3", "10.0.0.1"),
+                hosts(loaded.getRankedAddresses(10, T0 + 20000)));
+        assertEquals(PORT, loaded.getRankedAddresses(1, T0 + 20000).get(0).getPort());
+    }
+
+    @Test
+    public void attemptsAreSaved() {
+        PeerAddressCache cache = newCache();
+        session(cache, "10.0.0.1", 100, T0, 1000);
+        session(cache, "10.0.0.2", 300, T0, 1000);
+        cache.getRankedAddresses(1, T0 + 10000);
+        cache.save(T0 + 10000);
+        assertEquals(Arrays.asList("10.0.0.2", "10.0.0.1"), hosts(newCache().getRankedAddresses(2, T0 + 20000)));
+    }
+
+    @Test
+    public void invalidLinesAreSkipped() throws Exception {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(folder.getRoot(), "peers")), "UTF-8");
+        writer.write("10.0.0.1 6520 100 1000 " + T0 + " 0\n");
+        writer.write("10.0.0.2 port 100 1000 " + T0 + " 0\n");
+        writer.write("10.0.0.3 6520\n");
+        writer.close();
+        PeerAddressCache cache = newCache();
+        assertEquals(1, cache.size());
+        assertEquals(Arrays.asList("10.0.0.1"), hosts(cache.getRankedAddresses(10, T0 + 1000)));
+    }
+}
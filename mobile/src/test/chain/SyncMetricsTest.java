@@ -0,0 +1,104 @@
+package chain;
+
+import org.airwirej.core.Peer;
+import org.airwirej.core.PeerAddress;
+import org.airwirej.core.Ping;
+import org.airwirej.core.VersionMessage;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static chain.SyncMetrics.MESSAGE_HEADER_BYTES;
+import static chain.SyncMetrics.RATE_SMOOTHING;
+import static chain.SyncMetrics.RATE_WINDOW_MS;
+import static chain.SyncMetrics.STALL_THRESHOLD_MS;
+import static chain.store.Headers.PARAMS;
+import static org.junit.Assert.assertEquals;
+
+public class SyncMetricsTest {
+
+    private static final long T0 = 1000000000000L;
+
+    @Test
+    public void messagesAreCountedWithTheirHeader() throws Exception {
+        SyncMetrics metrics = new SyncMetrics();
+        Peer peer = new Peer(PARAMS, new VersionMessage(PARAMS, 0), new PeerAddress(PARAMS, InetAddress.getLoopbackAddress(), 1234), null);
+        Ping ping = new Ping(PARAMS, new byte[8]);
+        metrics.onPreMessageReceived(peer, ping);
+        metrics.onPreMessageReceived(peer, ping);
+        SyncMetrics.Snapshot snapshot = metrics.getSnapshot();
+        assertEquals(2 * (MESSAGE_HEADER_BYTES + 8), snapshot.getBytes());
+        assertEquals(1, snapshot.getPeerBytesPerSecond().size());
+    }
+
+    @Test
+    public void countersByPeer() {
+        SyncMetrics metrics = new SyncMetrics();
+        metrics.reset(T0);
+        metrics.onMessage("a", 1000, T0);
+        metrics.onMessage("b", 500, T0 + 500);
+        metrics.onBlock("a", 2, 10, T0 + 100);
+        metrics.onBlock("a", 0, 9, T0 + 200);
+        metrics.onBlock("b", 1, 8, T0 + 300);
+        SyncMetrics.Snapshot snapshot = metrics.getSnapshot(T0 + 1000);
+        assertEquals(3, snapshot.getBlocks());
+        assertEquals(8, snapshot.getBlocksLeft());
+        assertEquals(3, snapshot.getFilteredTxs());
+        assertEquals(1500, snapshot.getBytes());
+        assertEquals(2L, (long) snapshot.getPeerBlocks().get("a"));
+        assertEquals(1L, (long) snapshot.getPeerBlocks().get("b"));
+        // since the first message of each
+        assertEquals(1000, snapshot.getPeerBytesPerSecond().get("a"), 1e-9);
+        assertEquals(1000, snapshot.getPeerBytesPerSecond().get("b"), 1e-9);
+        assertEquals(1000, snapshot.getElapsedMs());
+
+        metrics.reset(T0 + 2000);
+        snapshot = metrics.getSnapshot(T0 + 2000);
+        assertEquals(0, snapshot.getBlocks());
+        assertEquals(0, snapshot.getBytes());
+        assertEquals(-1, snapshot.getBlocksLeft());
+        assertEquals(-1, snapshot.getEtaMs());
+    }
+
+    @Test
+    public void rateIsSmoothedOverWindows() {
+        SyncMetrics metrics = new SyncMetrics();
+        metrics.reset(T0);
+        int left = 1000;
+        // before the first window the session average
+        for (int i = 1; i <= 10; i++) {
+            metrics.onBlock("a", 0, --left, T0 + i * 100);
+        }
+        assertEquals(5, metrics.getSnapshot(T0 + 2000).getBlocksPerSecond(), 1e-9);
+
+        // 10 blocks in the first window, then 30 in the second
+        metrics.onBlock("a", 0, --left, T0 + RATE_WINDOW_MS);
+        double first = 11 * 1000d / RATE_WINDOW_MS;
+        assertEquals(first, metrics.getSnapshot(T0 + RATE_WINDOW_MS).getBlocksPerSecond(), 1e-9);
+        for (int i = 1; i <= 30; i++) {
+            metrics.onBlock("a", 0, --left, T0 + RATE_WINDOW_MS + i * RATE_WINDOW_MS / 30);
+        }
+        double second = 30 * 1000d / RATE_WINDOW_MS;
+        SyncMetrics.Snapshot snapshot = metrics.getSnapshot(T0 + 2 * RATE_WINDOW_MS);
+        double rate = RATE_SMOOTHING * second + (1 - RATE_SMOOTHING) * first;
+        assertEquals(rate, snapshot.getBlocksPerSecond(), 1e-9);
+        assertEquals((long) (left / rate * 1000), snapshot.getEtaMs());
+    }
+
+    @Test
+    public void gapsWhileBlocksAreLeftAreStalls() {
+        SyncMetrics metrics = new SyncMetrics();
+        metrics.reset(T0);
+        metrics.onBlock("a", 0, 100, T0 + 100);
+        // a short gap is no stall, a long one is
+        metrics.onBlock("a", 0, 99, T0 + 100 + STALL_THRESHOLD_MS);
+        assertEquals(0, metrics.getSnapshot(T0 + 100 + STALL_THRESHOLD_MS).getStallMs());
+        long stalled = T0 + 100 + 3 * STALL_THRESHOLD_MS;
+        metrics.onBlock("a", 0, 0, stalled);
+        assertEquals(2 * STALL_THRESHOLD_MS, metrics.getSnapshot(stalled).getStallMs());
+        // synced, waiting is no stall
+        SyncMetrics.Snapshot snapshot = metrics.getSnapshot(stalled + 10 * STALL_THRESHOLD_MS);
+        assertEquals(2 * STALL_THRESHOLD_MS, snapshot.getStallMs());
+        assertEquals(0, snapshot.getEtaMs());
+    }
+}
@@ -0,0 +1,58 @@
+package chain;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class SyncSchedulePolicyTest {
+
+    private static final long NOW = TimeUnit.DAYS.toMillis(20000);
+    private static final long FRESH_CHAIN = NOW - TimeUnit.MINUTES.toMillis(1);
+    private static final long OLD_ACTIVITY = NOW - TimeUnit.DAYS.toMillis(3);
+
+    @Test
+    public void idleWalletBacksOffUpToTheMaximum() {
+        SyncSchedulePolicy policy = new SyncSchedulePolicy(0);
+        assertEquals(SyncSchedulePolicy.MIN_INTERVAL_MS, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, 0, false));
+        policy.onSyncFinished(false);
+        assertEquals(SyncSchedulePolicy.MIN_INTERVAL_MS * 2, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, 0, false));
+        policy.onSyncFinished(false);
+        assertEquals(SyncSchedulePolicy.MIN_INTERVAL_MS * 4, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, 0, false));
+        for (int i = 0; i < 100; i++) {
+            policy.onSyncFinished(false);
+        }
+        assertEquals(SyncSchedulePolicy.MAX_INTERVAL_MS, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, 0, false));
+        assertEquals(SyncSchedulePolicy.MAX_INTERVAL_MS, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, 0, true));
+
+        policy.onSyncFinished(true);
+        assertEquals(0, policy.getIdleSyncs());
+        assertEquals(SyncSchedulePolicy.MIN_INTERVAL_MS, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, 0, false));
+    }
+
+    @Test
+    public void busyWalletStaysFresh() {
+        SyncSchedulePolicy policy = new SyncSchedulePolicy(6);
+        long idleDelay = policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, 0, false);
+        assertEquals(SyncSchedulePolicy.MIN_INTERVAL_MS * 64, idleDelay);
+        assertEquals(idleDelay * 2, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, 0, true));
+        // pending payment, even on a metered network
+        assertEquals(SyncSchedulePolicy.MIN_INTERVAL_MS, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, NOW - 1000, true));
+        // recent transaction
+        assertEquals(SyncSchedulePolicy.MIN_INTERVAL_MS, policy.getNextSyncDelayMs(NOW, NOW - 1000, FRESH_CHAIN, 0, false));
+        // the last syncs didn't reach the chain tip
+        long staleChain = NOW - SyncSchedulePolicy.STALE_CHAIN_MS - 1;
+        assertEquals(SyncSchedulePolicy.STALE_MAX_INTERVAL_MS, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, staleChain, 0, false));
+    }
+
+    @Test
+    public void stuckPaymentStopsKeepingTheIntervalShort() {
+        SyncSchedulePolicy policy = new SyncSchedulePolicy(6);
+        long idleDelay = policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, 0, false);
+        long justSent = NOW - SyncSchedulePolicy.PENDING_MAX_MS + 1;
+        assertEquals(SyncSchedulePolicy.MIN_INTERVAL_MS, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, justSent, false));
+        long stuck = NOW - SyncSchedulePolicy.PENDING_MAX_MS;
+        assertEquals(idleDelay, policy.getNextSyncDelayMs(NOW, OLD_ACTIVITY, FRESH_CHAIN, stuck, false));
+    }
+}
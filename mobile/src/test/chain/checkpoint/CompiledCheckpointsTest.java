@@ -0,0 +1,118 @@
+package chain.checkpoint;
+
+import org.airwirej.core.Block;
+import org.airwirej.core.CheckpointManager;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.params.MainNetParams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import chain.store.Headers;
+
+import static chain.store.Headers.PARAMS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class CompiledCheckpointsTest {
+
+    /** The shipped checkpoints, from the mobile module directory */
+    private static final File CHECKPOINTS = new File("../app/assets/checkpoints");
+    private static final File COMPILED_CHECKPOINTS = new File("../app/assets/checkpoints" + CompiledCheckpoints.FILE_SUFFIX);
+
+    private static byte[] record(StoredBlock block) {
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(buffer);
+        return buffer.array();
+    }
+
+    private static byte[] binary(List<StoredBlock> checkpoints) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write("CHECKPOINTS 1".getBytes("US-ASCII"));
+        out.writeInt(0);
+        out.writeInt(checkpoints.size());
+        for (StoredBlock checkpoint : checkpoints) {
+            out.write(record(checkpoint));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] textual(List<StoredBlock> checkpoints) {
+        StringBuilder text = new StringBuilder("TXT CHECKPOINTS 1\n0\n").append(checkpoints.size()).append('\n');
+        for (StoredBlock checkpoint : checkpoints) {
+            text.append(CheckpointManager.BASE64.encode(record(checkpoint))).append('\n');
+        }
+        return text.toString().getBytes(Charset.forName("US-ASCII"));
+    }
+
+    private static CompiledCheckpoints compile(byte[] source) throws Exception {
+        ByteArrayOutputStream compiled = new ByteArrayOutputStream();
+        CheckpointCompiler.compile(PARAMS, new ByteArrayInputStream(source), compiled);
+        return CompiledCheckpoints.read(PARAMS, new ByteArrayInputStream(compiled.toByteArray()));
+    }
+
+    @Test
+    public void binaryAndTextualRoundTrip() throws Exception {
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 100, false);
+        List<StoredBlock> checkpoints = Arrays.asList(chain.get(9), chain.get(49), chain.get(99));
+        for (byte[] source : Arrays.asList(binary(checkpoints), textual(checkpoints))) {
+            CompiledCheckpoints compiled = compile(source);
+            assertEquals(3, compiled.size());
+            assertEquals(100, compiled.getLastHeight());
+            for (StoredBlock checkpoint : checkpoints) {
+                assertEquals(checkpoint, compiled.getCheckpointAtHeight(checkpoint.getHeight()));
+                assertEquals(checkpoint.getChainWork(), compiled.getCheckpointAtHeight(checkpoint.getHeight()).getChainWork());
+                assertEquals(checkpoint, compiled.getCheckpointBefore(checkpoint.getHeader().getTimeSeconds()));
+            }
+            assertEquals(chain.get(9), compiled.getCheckpointBefore(chain.get(48).getHeader().getTimeSeconds()));
+            assertEquals(0, compiled.getCheckpointBefore(chain.get(0).getHeader().getTimeSeconds()).getHeight());
+            assertNull(compiled.getCheckpointAtHeight(11));
+            assertEquals(2, compiled.getCheckpointsAfter(10, Long.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    public void checkpointsOfAnotherNetworkAreDropped() throws Exception {
+        // older than the mainnet genesis block, they can't be on its chain
+        Block old = PARAMS.getGenesisBlock().cloneAsHeader();
+        old.setTime(MainNetParams.get().getGenesisBlock().getTimeSeconds() - 24 * 3600);
+        List<StoredBlock> chain = Headers.chain(new StoredBlock(old, old.getWork(), 0), 10, false);
+        ByteArrayOutputStream compiled = new ByteArrayOutputStream();
+        assertEquals(0, CheckpointCompiler.compile(MainNetParams.get(), new ByteArrayInputStream(binary(chain)), compiled));
+        CompiledCheckpoints checkpoints = CompiledCheckpoints.read(MainNetParams.get(), new ByteArrayInputStream(compiled.toByteArray()));
+        assertEquals(-1, checkpoints.getLastHeight());
+        assertEquals(MainNetParams.get().getGenesisBlock().getHash(), checkpoints.getCheckpointBefore(Long.MAX_VALUE).getHeader().getHash());
+    }
+
+    @Test
+    public void shippedIndexIsTheCompiledCheckpoints() throws Exception {
+        assumeTrue(CHECKPOINTS.exists());
+        ByteArrayOutputStream compiled = new ByteArrayOutputStream();
+        InputStream source = new FileInputStream(CHECKPOINTS);
+        try {
+            CheckpointCompiler.compile(MainNetParams.get(), source, compiled);
+        } finally {
+            source.close();
+        }
+        assertArrayEquals(Files.readAllBytes(COMPILED_CHECKPOINTS.toPath()), compiled.toByteArray());
+        CompiledCheckpoints checkpoints = CompiledCheckpoints.read(MainNetParams.get(), new FileInputStream(COMPILED_CHECKPOINTS));
+        long genesisTime = MainNetParams.get().getGenesisBlock().getTimeSeconds();
+        for (StoredBlock checkpoint : checkpoints.getCheckpointsAfter(0, Long.MAX_VALUE)) {
+            assertTrue(checkpoint.getHeader().getTimeSeconds() >= genesisTime);
+        }
+    }
+}
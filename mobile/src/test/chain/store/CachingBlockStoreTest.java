@@ -0,0 +1,87 @@
+package chain.store;
+
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CachingBlockStoreTest {
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        PrunableMemoryStore store = new PrunableMemoryStore();
+        CachingBlockStore cache = new CachingBlockStore(store, 3);
+        List<StoredBlock> chain = Headers.chain(store.getChainHead(), 4, false);
+        for (int i = 0; i < 3; i++) {
+            cache.put(chain.get(i));
+        }
+        // the first is used again, the second is the eldest now
+        cache.get(chain.get(0).getHeader().getHash());
+        cache.put(chain.get(3));
+        assertEquals(3, cache.size());
+        store.reads = 0;
+        assertEquals(chain.get(0), cache.get(chain.get(0).getHeader().getHash()));
+        assertEquals(chain.get(2), cache.get(chain.get(2).getHeader().getHash()));
+        assertEquals(chain.get(3), cache.get(chain.get(3).getHeader().getHash()));
+        assertEquals(0, store.reads);
+        assertEquals(chain.get(1), cache.get(chain.get(1).getHeader().getHash()));
+        assertEquals(1, store.reads);
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void hitsAndMissesAreCounted() throws Exception {
+        PrunableMemoryStore store = new PrunableMemoryStore();
+        List<StoredBlock> chain = Headers.chain(store.getChainHead(), 2, false);
+        store.put(chain.get(0));
+        CachingBlockStore cache = new CachingBlockStore(store, 10);
+        Sha256Hash hash = chain.get(0).getHeader().getHash();
+        cache.get(hash);
+        cache.get(hash);
+        cache.get(hash);
+        // unknown blocks are not cached, every lookup is a miss
+        assertNull(cache.get(chain.get(1).getHeader().getHash()));
+        assertNull(cache.get(chain.get(1).getHeader().getHash()));
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(0.4, cache.getHitRate(), 1e-9);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void writesGoThroughToTheStore() throws Exception {
+        PrunableMemoryStore store = new PrunableMemoryStore();
+        CachingBlockStore cache = new CachingBlockStore(store, 10);
+        List<StoredBlock> chain = Headers.chain(store.getChainHead(), 2, false);
+        cache.put(chain.get(0));
+        cache.put(chain.get(1));
+        cache.setChainHead(chain.get(1));
+        assertEquals(2, store.puts);
+        assertEquals(chain.get(0), store.get(chain.get(0).getHeader().getHash()));
+        assertEquals(chain.get(1), store.getChainHead());
+        store.reads = 0;
+        assertEquals(chain.get(1), cache.getChainHead());
+        assertEquals(chain.get(1), cache.get(chain.get(1).getHeader().getHash()));
+        assertEquals(0, store.reads);
+    }
+
+    @Test
+    public void pruningDropsTheCachedBlocks() throws Exception {
+        PrunableMemoryStore store = new PrunableMemoryStore();
+        CachingBlockStore cache = new CachingBlockStore(store, 100);
+        List<StoredBlock> chain = Headers.chain(store.getChainHead(), 10, false);
+        for (StoredBlock block : chain) {
+            cache.put(block);
+        }
+        cache.setChainHead(chain.get(9));
+        cache.pruneBelow(chain.get(5));
+        assertEquals(0, cache.size());
+        assertNull(cache.get(chain.get(4).getHeader().getHash()));
+        assertEquals(chain.get(5), cache.get(chain.get(5).getHeader().getHash()));
+        assertEquals(chain.get(9), cache.getChainHead());
+    }
+}
@@ -0,0 +1,162 @@
+package chain.store;
+
+import org.airwirej.core.Block;
+import org.airwirej.core.ECKey;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.store.MemoryBlockStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import static chain.store.Headers.PARAMS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class HeaderSnapshotTest {
+
+    private static final ECKey SIGNER = new ECKey();
+    private static final List<ECKey> SIGNERS = Collections.singletonList(SIGNER);
+
+    /** Offset of the first header in a snapshot */
+    private static final int HEADERS_OFFSET = 4 + 4 + 32 + 4 + StoredBlock.CHAIN_WORK_BYTES + 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File export(List<StoredBlock> chain, ECKey signingKey) throws Exception {
+        MemoryBlockStore source = new MemoryBlockStore(PARAMS);
+        for (StoredBlock block : chain) {
+            source.put(block);
+        }
+        source.setChainHead(chain.get(chain.size() - 1));
+        HeightIndexedBlockStore store = new HeightIndexedBlockStore(source, folder.newFile());
+        File file = folder.newFile();
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            assertEquals(chain.size() + 1, HeaderSnapshot.export(store, 0, outputStream, signingKey));
+        } finally {
+            outputStream.close();
+        }
+        store.close();
+        return file;
+    }
+
+    private static StoredBlock importInto(MemoryBlockStore store, File file, List<ECKey> signers) throws Exception {
+        return HeaderSnapshot.importInto(store, file, null, signers, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /** The import must fail without writing anything */
+    private static void assertRejected(File file, List<ECKey> signers, List<StoredBlock> chain) throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore(PARAMS);
+        StoredBlock genesis = store.getChainHead();
+        try {
+            importInto(store, file, signers);
+            fail("snapshot imported");
+        } catch (IOException expected) {
+            // rejected
+        }
+        assertEquals(genesis, store.getChainHead());
+        for (StoredBlock block : chain) {
+            assertNull(store.get(block.getHeader().getHash()));
+        }
+    }
+
+    /** Solved header on top of the given one with its target */
+    private static StoredBlock next(StoredBlock prev, long difficultyTarget) {
+        Block header = Headers.next(prev, false).getHeader();
+        header.setDifficultyTarget(difficultyTarget);
+        Headers.solve(header);
+        return prev.build(header);
+    }
+
+    @Test
+    public void signedSnapshotIsImported() throws Exception {
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 50, true);
+        File file = export(chain, SIGNER);
+        MemoryBlockStore store = new MemoryBlockStore(PARAMS);
+        StoredBlock head = importInto(store, file, SIGNERS);
+        assertEquals(chain.get(49), head);
+        assertEquals(chain.get(49), store.getChainHead());
+        assertEquals(chain.get(49).getChainWork(), store.getChainHead().getChainWork());
+        assertEquals(chain.get(0), store.get(chain.get(0).getHeader().getHash()));
+    }
+
+    @Test
+    public void newHeadersAreVerifiedButNotImported() throws Exception {
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 20, true);
+        File file = export(chain, SIGNER);
+        MemoryBlockStore store = new MemoryBlockStore(PARAMS);
+        long maxTime = chain.get(9).getHeader().getTimeSeconds();
+        StoredBlock head = HeaderSnapshot.importInto(store, file, null, SIGNERS, Integer.MAX_VALUE, maxTime);
+        assertEquals(chain.get(9), head);
+        assertNull(store.get(chain.get(10).getHeader().getHash()));
+    }
+
+    @Test
+    public void unsignedSnapshotIsRejected() throws Exception {
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 10, true);
+        assertRejected(export(chain, null), SIGNERS, chain);
+    }
+
+    @Test
+    public void snapshotOfAnUnknownSignerIsRejected() throws Exception {
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 10, true);
+        File file = export(chain, new ECKey());
+        assertRejected(file, SIGNERS, chain);
+        // nobody to trust, nothing is accepted
+        assertRejected(file, Collections.<ECKey>emptyList(), chain);
+    }
+
+    @Test
+    public void tamperedSnapshotIsRejected() throws Exception {
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 10, true);
+        File file = export(chain, SIGNER);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the time of the last header
+            long position = HEADERS_OFFSET + 10 * Block.HEADER_SIZE + 68;
+            raf.seek(position);
+            int time = raf.read();
+            raf.seek(position);
+            raf.write(time + 1);
+        } finally {
+            raf.close();
+        }
+        assertRejected(file, SIGNERS, chain);
+    }
+
+    @Test
+    public void headersWithoutWorkAreRejected() throws Exception {
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 10, true);
+        // a header whose hash is over its target
+        Block header = Headers.next(chain.get(9), false).getHeader();
+        while (header.getHash().toBigInteger().compareTo(header.getDifficultyTargetAsInteger()) <= 0) {
+            header.setNonce(header.getNonce() + 1);
+        }
+        chain.add(chain.get(9).build(header));
+        chain.addAll(Headers.chain(chain.get(10), 5, true));
+        File file = export(chain, SIGNER);
+        assertRejected(file, SIGNERS, chain);
+
+        // over the proof of work blocks it's accepted
+        MemoryBlockStore store = new MemoryBlockStore(PARAMS);
+        assertEquals(chain.get(15), HeaderSnapshot.importInto(store, file, null, SIGNERS, 10, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void difficultyJumpsAreRejected() throws Exception {
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 30, true);
+        // the easiest target divided by 16, four times harder than the retarget allows
+        chain.add(next(chain.get(29), 0x2007ffffL));
+        assertRejected(export(chain, SIGNER), SIGNERS, chain);
+    }
+}
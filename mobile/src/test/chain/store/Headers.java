@@ -0,0 +1,62 @@
+package chain.store;
+
+import org.airwirej.core.Block;
+import org.airwirej.core.Context;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.core.Transaction;
+import org.airwirej.params.UnitTestParams;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chains of headers for the store tests, with the easiest difficulty so they can be solved.
+ */
+public class Headers {
+
+    public static final NetworkParameters PARAMS = UnitTestParams.get();
+    public static final Context CONTEXT = new Context(PARAMS);
+
+    public static StoredBlock genesis() {
+        Block genesis = PARAMS.getGenesisBlock().cloneAsHeader();
+        return new StoredBlock(genesis, genesis.getWork(), 0);
+    }
+
+    /** Header on top of the given one, solved if asked */
+    public static StoredBlock next(StoredBlock prev, boolean solve) {
+        Block header = new Block(
+                PARAMS,
+                Block.BLOCK_VERSION_GENESIS,
+                prev.getHeader().getHash(),
+                Sha256Hash.ZERO_HASH,
+                prev.getHeader().getTimeSeconds() + 60,
+                Block.EASIEST_DIFFICULTY_TARGET,
+                0,
+                Collections.<Transaction>emptyList()
+        );
+        if (solve)
+            solve(header);
+        return prev.build(header);
+    }
+
+    /** Find a nonce meeting the target, the library doesn't check the work when solving */
+    public static void solve(Block header) {
+        while (header.getHash().toBigInteger().compareTo(header.getDifficultyTargetAsInteger()) > 0) {
+            header.setNonce(header.getNonce() + 1);
+        }
+    }
+
+    /** The given amount of headers on top of the first one, not included */
+    public static List<StoredBlock> chain(StoredBlock first, int count, boolean solve) {
+        List<StoredBlock> chain = new ArrayList<>(count);
+        StoredBlock block = first;
+        for (int i = 0; i < count; i++) {
+            block = next(block, solve);
+            chain.add(block);
+        }
+        return chain;
+    }
+}
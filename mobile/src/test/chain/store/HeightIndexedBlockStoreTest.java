@@ -0,0 +1,120 @@
+package chain.store;
+
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.store.BlockStoreException;
+import org.airwirej.store.MemoryBlockStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static chain.store.Headers.PARAMS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HeightIndexedBlockStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Counts the reads reaching the store */
+    private static class CountingStore extends MemoryBlockStore {
+
+        private int reads;
+
+        private CountingStore() {
+            super(PARAMS);
+        }
+
+        @Override
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            reads++;
+            return super.get(hash);
+        }
+    }
+
+    private static StoredBlock putAll(MemoryBlockStore store, List<StoredBlock> chain) throws BlockStoreException {
+        for (StoredBlock block : chain) {
+            store.put(block);
+        }
+        StoredBlock head = chain.get(chain.size() - 1);
+        store.setChainHead(head);
+        return head;
+    }
+
+    @Test
+    public void followsNewBlocksWithoutReadingTheStore() throws Exception {
+        CountingStore store = new CountingStore();
+        HeightIndexedBlockStore indexed = new HeightIndexedBlockStore(store, folder.newFile());
+        List<StoredBlock> chain = Headers.chain(store.getChainHead(), 20, false);
+        store.reads = 0;
+        for (StoredBlock block : chain) {
+            indexed.put(block);
+            indexed.setChainHead(block);
+        }
+        assertEquals(0, store.reads);
+        assertEquals(chain.get(9).getHeader().getHash(), indexed.getHashAtHeight(10));
+
+        // a reorg of 5 blocks is walked back
+        List<StoredBlock> fork = Headers.chain(chain.get(14), 7, false);
+        for (StoredBlock block : fork) {
+            indexed.put(block);
+        }
+        indexed.setChainHead(fork.get(6));
+        assertEquals(fork.get(0).getHeader().getHash(), indexed.getHashAtHeight(16));
+        assertEquals(chain.get(14).getHeader().getHash(), indexed.getHashAtHeight(15));
+        assertEquals(fork.get(6).getHeader().getHash(), indexed.getHashAtHeight(22));
+        indexed.close();
+    }
+
+    @Test
+    public void missingIndexIsRebuiltFromTheChain() throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore(PARAMS);
+        List<StoredBlock> chain = Headers.chain(store.getChainHead(), 3000, false);
+        putAll(store, chain);
+        HeightIndexedBlockStore indexed = new HeightIndexedBlockStore(store, folder.newFile());
+        assertEquals(0, indexed.getBaseHeight());
+        for (int height = 1; height <= 3000; height += 111) {
+            assertEquals(chain.get(height - 1), indexed.getByHeight(height));
+        }
+        assertEquals(chain.get(2999), indexed.getByHeight(3000));
+        indexed.close();
+    }
+
+    @Test
+    public void rebuildStartsAtTheOldestBlockStored() throws Exception {
+        MemoryBlockStore store = new MemoryBlockStore(PARAMS);
+        List<StoredBlock> chain = Headers.chain(store.getChainHead(), 2500, false);
+        // checkpointed at height 1200
+        putAll(store, chain.subList(1199, 2500));
+        HeightIndexedBlockStore indexed = new HeightIndexedBlockStore(store, folder.newFile());
+        assertEquals(1200, indexed.getBaseHeight());
+        assertNull(indexed.getHashAtHeight(1199));
+        assertEquals(chain.get(1199), indexed.getByHeight(1200));
+        assertEquals(chain.get(2000), indexed.getByHeight(2001));
+        assertEquals(chain.get(2499), indexed.getByHeight(2500));
+        indexed.close();
+    }
+
+    @Test
+    public void indexOfAnotherChainIsRebuilt() throws Exception {
+        File file = folder.newFile();
+        MemoryBlockStore store = new MemoryBlockStore(PARAMS);
+        putAll(store, Headers.chain(store.getChainHead(), 10, false));
+        new HeightIndexedBlockStore(store, file).close();
+
+        MemoryBlockStore other = new MemoryBlockStore(PARAMS);
+        StoredBlock otherFirst = Headers.next(Headers.next(other.getChainHead(), false), false);
+        List<StoredBlock> otherChain = Headers.chain(otherFirst, 20, false);
+        otherChain.add(0, otherFirst);
+        StoredBlock head = putAll(other, otherChain);
+        HeightIndexedBlockStore indexed = new HeightIndexedBlockStore(other, file);
+        assertEquals(head.getHeader().getHash(), indexed.getHashAtHeight(head.getHeight()));
+        assertEquals(otherFirst, indexed.getByHeight(otherFirst.getHeight()));
+        assertNull(indexed.getHashAtHeight(1));
+        indexed.close();
+    }
+}
@@ -0,0 +1,69 @@
+package chain.store;
+
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.store.BlockStoreException;
+import org.airwirej.store.MemoryBlockStore;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static chain.store.Headers.PARAMS;
+
+/**
+ * Memory block store that can be pruned, counting the reads and writes reaching it.
+ */
+public class PrunableMemoryStore implements PrunableBlockStore {
+
+    private final MemoryBlockStore store = new MemoryBlockStore(PARAMS);
+    /** Blocks pruned, the memory store can't delete */
+    private final Set<Sha256Hash> pruned = new HashSet<>();
+    public int reads;
+    public int puts;
+
+    @Override
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        reads++;
+        return pruned.contains(hash) ? null : store.get(hash);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        puts++;
+        pruned.remove(block.getHeader().getHash());
+        store.put(block);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        store.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return PARAMS;
+    }
+
+    @Override
+    public synchronized long pruneBelow(StoredBlock oldestKept) throws BlockStoreException {
+        long reclaimed = 0;
+        StoredBlock block = get(oldestKept.getHeader().getPrevBlockHash());
+        while (block != null) {
+            pruned.add(block.getHeader().getHash());
+            reclaimed += StoredBlock.COMPACT_SERIALIZED_SIZE;
+            block = get(block.getHeader().getPrevBlockHash());
+        }
+        return reclaimed;
+    }
+}
@@ -0,0 +1,111 @@
+package chain.store;
+
+import org.airwirej.core.StoredBlock;
+import org.airwirej.store.MemoryBlockStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static chain.store.Headers.PARAMS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferBlockStoreTest {
+
+    private static final int CAPACITY = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void putAll(RingBufferBlockStore store, List<StoredBlock> chain, boolean setHead) throws Exception {
+        for (StoredBlock block : chain) {
+            store.put(block);
+            if (setHead)
+                store.setChainHead(block);
+        }
+    }
+
+    @Test
+    public void wrapsAroundKeepingTheRecentBlocks() throws Exception {
+        RingBufferBlockStore store = new RingBufferBlockStore(PARAMS, folder.newFile(), CAPACITY);
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 40, false);
+        putAll(store, chain, true);
+        StoredBlock head = chain.get(39);
+        assertEquals(CAPACITY, store.size());
+        assertEquals(head, store.getChainHead());
+        assertNull(store.getByHeight(10));
+        assertNull(store.get(chain.get(0).getHeader().getHash()));
+        for (int height = 40 - CAPACITY + 1; height <= 40; height++) {
+            assertEquals(chain.get(height - 1), store.getByHeight(height));
+        }
+        store.close();
+    }
+
+    @Test
+    public void headAndPinnedBlocksAreNeverOverwritten() throws Exception {
+        RingBufferBlockStore store = new RingBufferBlockStore(PARAMS, folder.newFile(), CAPACITY);
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 3, false);
+        putAll(store, chain, true);
+        StoredBlock checkpoint = chain.get(0);
+        StoredBlock head = chain.get(2);
+        store.pin(checkpoint);
+        // a big import, the head moves only at the end
+        putAll(store, Headers.chain(head, 3 * CAPACITY, false), false);
+        assertEquals(head, store.getChainHead());
+        assertEquals(head, store.get(head.getHeader().getHash()));
+        assertEquals(checkpoint, store.get(checkpoint.getHeader().getHash()));
+        assertTrue(store.isPinned(checkpoint.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void reopenKeepsHeadIndexesAndPins() throws Exception {
+        File file = folder.newFile();
+        RingBufferBlockStore store = new RingBufferBlockStore(PARAMS, file, CAPACITY);
+        List<StoredBlock> chain = Headers.chain(Headers.genesis(), 30, false);
+        putAll(store, chain.subList(0, 1), true);
+        store.pin(chain.get(0));
+        putAll(store, chain.subList(1, 30), true);
+        store.close();
+
+        // a different capacity is ignored, the file keeps its own
+        store = new RingBufferBlockStore(PARAMS, file, CAPACITY * 2);
+        assertEquals(CAPACITY, store.getCapacity());
+        assertEquals(chain.get(29), store.getChainHead());
+        assertEquals(chain.get(25), store.getByHeight(26));
+        assertEquals(chain.get(0), store.get(chain.get(0).getHeader().getHash()));
+
+        // the cursor goes on where it was
+        List<StoredBlock> more = Headers.chain(chain.get(29), 5, false);
+        putAll(store, more, true);
+        assertEquals(chain.get(0), store.get(chain.get(0).getHeader().getHash()));
+        assertEquals(more.get(4), store.getByHeight(35));
+        assertEquals(CAPACITY, store.size());
+        store.close();
+    }
+
+    @Test
+    public void copiesTheRecentChainOfAnotherStore() throws Exception {
+        MemoryBlockStore source = new MemoryBlockStore(PARAMS);
+        List<StoredBlock> chain = Headers.chain(source.getChainHead(), 40, false);
+        for (StoredBlock block : chain) {
+            source.put(block);
+        }
+        source.setChainHead(chain.get(39));
+
+        RingBufferBlockStore store = new RingBufferBlockStore(PARAMS, folder.newFile(), CAPACITY);
+        int copied = store.copyFrom(source);
+        assertTrue(copied > 0 && copied < CAPACITY);
+        assertEquals(chain.get(39), store.getChainHead());
+        StoredBlock oldest = chain.get(40 - copied);
+        assertTrue(store.isPinned(oldest.getHeader().getHash()));
+        assertNotNull(store.getByHeight(oldest.getHeight()));
+        assertNull(store.getByHeight(oldest.getHeight() - 1));
+        store.close();
+    }
+}
@@ -0,0 +1,105 @@
+package global;
+
+import org.airwirej.core.Peer;
+import org.airwirej.core.PeerAddress;
+import org.airwirej.core.Ping;
+import org.airwirej.core.VersionMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import global.BandwidthBudget.NetworkType;
+
+import static chain.SyncMetrics.MESSAGE_HEADER_BYTES;
+import static chain.store.Headers.PARAMS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthBudgetTest {
+
+    /** Midday, far from a day change */
+    private static final long T0 = TimeUnit.DAYS.toMillis(20000) + TimeUnit.HOURS.toMillis(12);
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+    private static final long METERED_BUDGET = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void usageIsCountedOnTheCurrentNetwork() {
+        BandwidthBudget budget = new BandwidthBudget(null, 0, METERED_BUDGET, T0);
+        budget.record(100, T0);
+        budget.setNetworkType(NetworkType.METERED);
+        budget.record(300, T0);
+        budget.record(50, T0);
+        assertEquals(100, budget.getUsedToday(NetworkType.UNMETERED, T0));
+        assertEquals(350, budget.getUsedToday(NetworkType.METERED, T0));
+        assertEquals(METERED_BUDGET - 350, budget.getRemaining(T0));
+        // back on Wi-Fi, no budget there
+        budget.setNetworkType(NetworkType.UNMETERED);
+        assertEquals(Long.MAX_VALUE, budget.getRemaining(T0));
+    }
+
+    @Test
+    public void tightBelowAQuarterLeftAndExhaustedAtZero() {
+        BandwidthBudget budget = new BandwidthBudget(null, 0, METERED_BUDGET, T0);
+        budget.setNetworkType(NetworkType.METERED);
+        budget.record(750, T0);
+        assertFalse(budget.isTight(T0));
+        budget.record(1, T0);
+        assertTrue(budget.isTight(T0));
+        assertFalse(budget.isExhausted(T0));
+        budget.record(500, T0);
+        assertTrue(budget.isExhausted(T0));
+        assertEquals(0, budget.getRemaining(T0));
+        // the metered usage doesn't count on Wi-Fi
+        budget.setNetworkType(NetworkType.UNMETERED);
+        budget.record(1000000, T0);
+        assertFalse(budget.isTight(T0));
+        assertFalse(budget.isExhausted(T0));
+    }
+
+    @Test
+    public void usageStartsAgainTheNextDay() {
+        BandwidthBudget budget = new BandwidthBudget(null, 0, METERED_BUDGET, T0);
+        budget.record(100, T0);
+        budget.setNetworkType(NetworkType.METERED);
+        budget.record(METERED_BUDGET, T0);
+        assertTrue(budget.isExhausted(T0 + DAY_MS / 4));
+        long nextDay = (T0 / DAY_MS + 1) * DAY_MS;
+        assertFalse(budget.isExhausted(nextDay));
+        assertFalse(budget.isTight(nextDay));
+        assertEquals(0, budget.getUsedToday(NetworkType.METERED, nextDay));
+        assertEquals(0, budget.getUsedToday(NetworkType.UNMETERED, nextDay));
+    }
+
+    @Test
+    public void usageOfTheDayIsSaved() {
+        File file = new File(folder.getRoot(), "bandwidth");
+        BandwidthBudget budget = new BandwidthBudget(file, 0, METERED_BUDGET, T0);
+        budget.record(100, T0);
+        budget.setNetworkType(NetworkType.METERED);
+        budget.record(300, T0);
+        budget.save(T0);
+
+        BandwidthBudget sameDay = new BandwidthBudget(file, 0, METERED_BUDGET, T0 + 1000);
+        assertEquals(100, sameDay.getUsedToday(NetworkType.UNMETERED, T0 + 1000));
+        assertEquals(300, sameDay.getUsedToday(NetworkType.METERED, T0 + 1000));
+        BandwidthBudget nextDay = new BandwidthBudget(file, 0, METERED_BUDGET, T0 + DAY_MS);
+        assertEquals(0, nextDay.getUsedToday(NetworkType.UNMETERED, T0 + DAY_MS));
+        assertEquals(0, nextDay.getUsedToday(NetworkType.METERED, T0 + DAY_MS));
+    }
+
+    @Test
+    public void messagesAreCountedWithTheirHeader() throws Exception {
+        BandwidthBudget budget = new BandwidthBudget(null, 0, 0);
+        Peer peer = new Peer(PARAMS, new VersionMessage(PARAMS, 0), new PeerAddress(PARAMS, InetAddress.getLoopbackAddress(), 1234), null);
+        budget.onPreMessageReceived(peer, new Ping(PARAMS, new byte[8]));
+        assertEquals(MESSAGE_HEADER_BYTES + 8, budget.getUsedToday(NetworkType.UNMETERED));
+    }
+}
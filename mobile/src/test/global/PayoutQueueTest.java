@@ -0,0 +1,245 @@
+package global;
+
+import org.airwirej.core.Address;
+import org.airwirej.core.Coin;
+import org.airwirej.core.InsufficientMoneyException;
+import org.airwirej.core.Transaction;
+import org.airwirej.wallet.Wallet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static wallet.Outputs.PARAMS;
+import static wallet.Outputs.address;
+
+public class PayoutQueueTest {
+
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Pays anything up to the balance and the size, keeps what it sends */
+    private static class FakeSender implements PayoutQueue.Sender {
+
+        private Coin balance;
+        private int maxOutputs = Integer.MAX_VALUE;
+        private RuntimeException sendFailure;
+        private int changeAddresses;
+        private final List<Transaction> sent = new ArrayList<>();
+        private final List<Transaction> released = new ArrayList<>();
+
+        private FakeSender(Coin balance) {
+            this.balance = balance;
+        }
+
+        @Override
+        public Address getChangeAddress() {
+            changeAddresses++;
+            return address(changeAddresses);
+        }
+
+        @Override
+        public Transaction complete(Transaction transaction, Coin feePerKb, Address changeAddress) throws InsufficientMoneyException {
+            Coin total = transaction.getOutputSum().add(feePerKb);
+            if (total.isGreaterThan(balance))
+                throw new InsufficientMoneyException(total.subtract(balance));
+            if (transaction.getOutputs().size() > maxOutputs)
+                throw new Wallet.ExceededMaxTransactionSize();
+            return transaction;
+        }
+
+        @Override
+        public synchronized void send(Transaction transaction) {
+            if (sendFailure != null)
+                throw sendFailure;
+            balance = balance.subtract(transaction.getOutputSum());
+            sent.add(transaction);
+        }
+
+        @Override
+        public void release(Transaction transaction) {
+            released.add(transaction);
+        }
+    }
+
+    @Test
+    public void batchesUpToMaxOutputs() {
+        FakeSender sender = new FakeSender(Coin.COIN.multiply(100));
+        PayoutQueue queue = new PayoutQueue(PARAMS, sender, Coin.CENT, 4, HOUR_MS);
+        List<PayoutQueue.Payment> payments = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            payments.add(queue.enqueue(address(i), Coin.COIN));
+        }
+        List<Transaction> sent = queue.flush();
+        assertEquals(1, sent.size());
+        assertEquals(3, sent.get(0).getOutputs().size());
+        for (int i = 0; i < payments.size(); i++) {
+            PayoutQueue.Payment payment = payments.get(i);
+            assertEquals(PayoutQueue.Status.SENT, payment.getStatus());
+            assertEquals(sent.get(0).getHash(), payment.getTxHash());
+            assertEquals(i, payment.getOutputIndex());
+        }
+        assertTrue(queue.listPending().isEmpty());
+        queue.shutdown();
+    }
+
+    @Test
+    public void sizeTriggerSendsInBackground() throws Exception {
+        FakeSender sender = new FakeSender(Coin.COIN.multiply(100));
+        PayoutQueue queue = new PayoutQueue(PARAMS, sender, Coin.CENT, 5, HOUR_MS);
+        final CountDownLatch latch = new CountDownLatch(5);
+        queue.addListener(new PayoutQueue.Listener() {
+            @Override
+            public void onPaymentStatusChanged(PayoutQueue.Payment payment) {
+                if (payment.getStatus() == PayoutQueue.Status.SENT)
+                    latch.countDown();
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(address(i), Coin.COIN);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, sender.sent.size());
+        assertEquals(5, sender.sent.get(0).getOutputs().size());
+        queue.shutdown();
+    }
+
+    @Test
+    public void notEnoughBalanceSendsPartOfTheBatch() {
+        FakeSender sender = new FakeSender(Coin.parseCoin("3.1"));
+        PayoutQueue queue = new PayoutQueue(PARAMS, sender, Coin.CENT, 10, HOUR_MS);
+        for (int i = 0; i < 4; i++) {
+            queue.enqueue(address(i), Coin.COIN);
+        }
+        PayoutQueue.Payment tooBig = queue.enqueue(address(9), Coin.COIN.multiply(5));
+        List<Transaction> sent = queue.flush();
+        // half of the batch, the rest waits
+        assertEquals(1, sent.size());
+        assertEquals(2, sent.get(0).getOutputs().size());
+        assertEquals(3, queue.listPending().size());
+
+        // one more fits
+        sent = queue.flush();
+        assertEquals(1, sent.size());
+        assertEquals(1, sent.get(0).getOutputs().size());
+
+        // the next one can't be paid alone, the ones after it wait
+        assertTrue(queue.flush().isEmpty());
+        assertEquals(PayoutQueue.Status.FAILED, queue.listPayments().get(3).getStatus());
+        assertEquals(PayoutQueue.Status.PENDING, tooBig.getStatus());
+        queue.shutdown();
+    }
+
+    @Test
+    public void cancelOnlyWhilePending() {
+        FakeSender sender = new FakeSender(Coin.COIN.multiply(10));
+        PayoutQueue queue = new PayoutQueue(PARAMS, sender, Coin.CENT, 10, HOUR_MS);
+        PayoutQueue.Payment cancelled = queue.enqueue(address(0), Coin.COIN);
+        PayoutQueue.Payment paid = queue.enqueue(address(1), Coin.COIN);
+        assertTrue(queue.cancel(cancelled.getId()));
+        queue.flush();
+        assertFalse(queue.cancel(paid.getId()));
+        assertEquals(PayoutQueue.Status.CANCELLED, cancelled.getStatus());
+        assertNull(cancelled.getTxHash());
+        assertEquals(PayoutQueue.Status.SENT, paid.getStatus());
+        assertEquals(1, sender.sent.get(0).getOutputs().size());
+        queue.purgeDone();
+        assertTrue(queue.listPayments().isEmpty());
+        queue.shutdown();
+    }
+
+    @Test
+    public void tooBigBatchIsHalvedWithOneChangeAddress() {
+        FakeSender sender = new FakeSender(Coin.COIN.multiply(100));
+        sender.maxOutputs = 3;
+        PayoutQueue queue = new PayoutQueue(PARAMS, sender, Coin.CENT, 10, HOUR_MS);
+        for (int i = 0; i < 8; i++) {
+            queue.enqueue(address(i), Coin.COIN);
+        }
+        // 8 and 4 are too big, 2 go, then 3 of the 6 left and the last 3
+        List<Transaction> sent = queue.flush();
+        assertEquals(3, sent.size());
+        assertEquals(2, sent.get(0).getOutputs().size());
+        assertEquals(3, sent.get(1).getOutputs().size());
+        assertEquals(3, sent.get(2).getOutputs().size());
+        assertTrue(queue.listPending().isEmpty());
+        assertEquals(1, sender.changeAddresses);
+        queue.shutdown();
+    }
+
+    @Test
+    public void sendFailureLeavesThePaymentsUnknown() {
+        FakeSender sender = new FakeSender(Coin.COIN.multiply(10));
+        sender.sendFailure = new IllegalStateException("broadcast failed");
+        PayoutQueue queue = new PayoutQueue(PARAMS, sender, Coin.CENT, 10, HOUR_MS);
+        PayoutQueue.Payment payment = queue.enqueue(address(0), Coin.COIN);
+        assertTrue(queue.flush().isEmpty());
+        // maybe committed, never queued again
+        assertEquals(PayoutQueue.Status.UNKNOWN, payment.getStatus());
+        assertEquals(0, payment.getOutputIndex());
+        assertEquals(1, sender.released.size());
+        assertEquals(sender.released.get(0).getHash(), payment.getTxHash());
+        assertTrue(queue.listPending().isEmpty());
+        queue.shutdown();
+    }
+
+    @Test
+    public void paymentsAreLoadedBack() throws Exception {
+        File file = new File(folder.getRoot(), "payout_queue");
+        FakeSender sender = new FakeSender(Coin.COIN.multiply(10));
+        PayoutQueue queue = new PayoutQueue(PARAMS, sender, Coin.CENT, 10, HOUR_MS, file);
+        PayoutQueue.Payment paid = queue.enqueue(address(0), Coin.COIN);
+        queue.flush();
+        PayoutQueue.Payment cancelled = queue.enqueue(address(1), Coin.COIN);
+        queue.cancel(cancelled.getId());
+        PayoutQueue.Payment waiting = queue.enqueue(address(2), Coin.CENT);
+        queue.shutdown();
+
+        PayoutQueue loaded = new PayoutQueue(PARAMS, sender, Coin.CENT, 10, HOUR_MS, file);
+        assertEquals(3, loaded.listPayments().size());
+        assertEquals(PayoutQueue.Status.SENT, loaded.getPayment(paid.getId()).getStatus());
+        assertEquals(paid.getTxHash(), loaded.getPayment(paid.getId()).getTxHash());
+        assertEquals(PayoutQueue.Status.CANCELLED, loaded.getPayment(cancelled.getId()).getStatus());
+        assertEquals(1, loaded.listPending().size());
+        PayoutQueue.Payment restored = loaded.listPending().get(0);
+        assertEquals(waiting.getId(), restored.getId());
+        assertEquals(waiting.getAddress(), restored.getAddress());
+        assertEquals(Coin.CENT, restored.getAmount());
+        assertEquals(waiting.getId() + 1, loaded.enqueue(address(3), Coin.COIN).getId());
+        loaded.shutdown();
+    }
+
+    @Test
+    public void paymentsBeingSentAreLoadedUnknown() throws Exception {
+        final File file = new File(folder.getRoot(), "payout_queue");
+        final List<PayoutQueue.Payment> loaded = new ArrayList<>();
+        FakeSender sender = new FakeSender(Coin.COIN.multiply(10)) {
+            @Override
+            public synchronized void send(Transaction transaction) {
+                // the process dies here
+                PayoutQueue restarted = new PayoutQueue(PARAMS, this, Coin.CENT, 10, HOUR_MS, file);
+                loaded.addAll(restarted.listPayments());
+                restarted.shutdown();
+                super.send(transaction);
+            }
+        };
+        PayoutQueue queue = new PayoutQueue(PARAMS, sender, Coin.CENT, 10, HOUR_MS, file);
+        queue.enqueue(address(0), Coin.COIN);
+        queue.flush();
+        assertEquals(1, loaded.size());
+        assertEquals(PayoutQueue.Status.UNKNOWN, loaded.get(0).getStatus());
+        assertEquals(sender.sent.get(0).getHash(), loaded.get(0).getTxHash());
+        queue.shutdown();
+    }
+}
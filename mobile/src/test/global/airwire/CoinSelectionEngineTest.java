@@ -0,0 +1,132 @@
+package global.airwire;
+
+import org.airwirej.core.Address;
+import org.airwirej.core.Coin;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.wallet.CoinSelection;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static wallet.Outputs.ADDRESS;
+import static wallet.Outputs.PARAMS;
+import static wallet.Outputs.address;
+import static wallet.Outputs.output;
+
+public class CoinSelectionEngineTest {
+
+    private static final Coin FEE_PER_KB = Coin.valueOf(10000);
+    private static final Address OTHER_ADDRESS = address(1);
+
+    private static CoinSelectionEngine engine(CoinSelectionEngine.Mode mode, List<TransactionOutput> used) {
+        return new CoinSelectionEngine(used, mode, FEE_PER_KB, CoinSelectionEngine.DEFAULT_TIME_BUDGET_MS, 1);
+    }
+
+    private static List<TransactionOutput> outputs(String... values) {
+        List<TransactionOutput> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(output(Coin.parseCoin(value)));
+        }
+        return list;
+    }
+
+    @Test
+    public void exactMatchLeavesNoChange() {
+        List<TransactionOutput> candidates = outputs("5", "3", "2.5", "1.2", "0.7");
+        CoinSelection selection = engine(CoinSelectionEngine.Mode.EXACT_FIRST, Collections.<TransactionOutput>emptyList())
+                .select(Coin.parseCoin("3.7"), candidates);
+        assertEquals(Coin.parseCoin("3.7"), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+    }
+
+    @Test
+    public void knapsackWithoutExactMatch() {
+        List<TransactionOutput> candidates = outputs("5", "3", "2.5", "1.2", "0.7");
+        Coin target = Coin.parseCoin("4.15");
+        CoinSelection selection = engine(CoinSelectionEngine.Mode.EXACT_FIRST, Collections.<TransactionOutput>emptyList())
+                .select(target, candidates);
+        assertTrue(selection.valueGathered.compareTo(target) >= 0);
+        // 3 + 1.2, the least over the target
+        assertEquals(Coin.parseCoin("4.2"), selection.valueGathered);
+    }
+
+    @Test
+    public void notEnoughGivesEverything() {
+        List<TransactionOutput> candidates = outputs("1", "2");
+        CoinSelection selection = engine(CoinSelectionEngine.Mode.EXACT_FIRST, Collections.<TransactionOutput>emptyList())
+                .select(Coin.parseCoin("4"), candidates);
+        assertEquals(Coin.parseCoin("3"), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+    }
+
+    @Test
+    public void usedOutputsAreSkipped() {
+        List<TransactionOutput> candidates = outputs("3", "0.7", "2", "1.7");
+        CoinSelection selection = engine(CoinSelectionEngine.Mode.EXACT_FIRST, candidates.subList(0, 2))
+                .select(Coin.parseCoin("3.7"), candidates);
+        assertFalse(selection.gathered.contains(candidates.get(0)));
+        assertFalse(selection.gathered.contains(candidates.get(1)));
+        assertEquals(Coin.parseCoin("3.7"), selection.valueGathered);
+    }
+
+    @Test
+    public void consolidationSpendsAddressesWhole() {
+        List<TransactionOutput> candidates = new ArrayList<>();
+        candidates.add(output(Coin.parseCoin("6"), OTHER_ADDRESS, 10));
+        for (int i = 0; i < 5; i++) {
+            candidates.add(output(Coin.parseCoin("1")));
+        }
+        CoinSelection selection = engine(CoinSelectionEngine.Mode.CONSOLIDATE, Collections.<TransactionOutput>emptyList())
+                .select(Coin.parseCoin("2"), candidates);
+        // the five outputs of the address, not two of them nor the bigger one
+        assertEquals(5, selection.gathered.size());
+        for (TransactionOutput output : selection.gathered) {
+            assertEquals(ADDRESS, output.getAddressFromP2PKHScript(PARAMS));
+        }
+    }
+
+    @Test
+    public void manyCandidatesStayWithinBudget() {
+        Random random = new Random(7);
+        List<TransactionOutput> candidates = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            candidates.add(output(Coin.valueOf(100000 + random.nextInt(100000000))));
+        }
+        Coin target = Coin.parseCoin("123.456789");
+        long start = System.currentTimeMillis();
+        CoinSelection selection = engine(CoinSelectionEngine.Mode.EXACT_FIRST, Collections.<TransactionOutput>emptyList())
+                .select(target, candidates);
+        long took = System.currentTimeMillis() - start;
+        assertTrue(selection.valueGathered.compareTo(target) >= 0);
+        Set<TransactionOutput> distinct = new HashSet<>(selection.gathered);
+        assertEquals(selection.gathered.size(), distinct.size());
+        assertTrue("took " + took + " ms", took < 2000);
+    }
+
+    @Test
+    public void sameCandidatesGiveTheSameSelection() {
+        // many subsets reach the target with the same value, the knapsack draws one
+        Random random = new Random(1);
+        List<TransactionOutput> candidates = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            candidates.add(output(Coin.CENT.multiply(1 + random.nextInt(20))));
+        }
+        Coin target = Coin.valueOf(60012345);
+        CoinSelectionEngine engine = new CoinSelectionEngine(Collections.<TransactionOutput>emptyList(), CoinSelectionEngine.Mode.EXACT_FIRST, FEE_PER_KB);
+        CoinSelection first = engine.select(target, candidates);
+        // again on the pool kept, and on another selector as the send would
+        CoinSelection again = engine.select(target, candidates);
+        CoinSelection other = new CoinSelectionEngine(Collections.<TransactionOutput>emptyList(), CoinSelectionEngine.Mode.EXACT_FIRST, FEE_PER_KB)
+                .select(target, new ArrayList<>(candidates));
+        assertEquals(new HashSet<>(first.gathered), new HashSet<>(again.gathered));
+        assertEquals(new HashSet<>(first.gathered), new HashSet<>(other.gathered));
+    }
+}
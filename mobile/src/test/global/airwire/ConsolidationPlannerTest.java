@@ -0,0 +1,68 @@
+package global.airwire;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.TransactionOutput;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static wallet.Outputs.PARAMS;
+import static wallet.Outputs.output;
+import static wallet.Outputs.reward;
+
+public class ConsolidationPlannerTest {
+
+    private static final Coin FEE_PER_KB = Coin.valueOf(10000);
+
+    private static List<TransactionOutput> small(int count) {
+        List<TransactionOutput> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            list.add(output(Coin.CENT.multiply(1 + i), 10));
+        }
+        return list;
+    }
+
+    @Test
+    public void fewOutputsAreLeftAlone() {
+        ConsolidationPlanner planner = new ConsolidationPlanner(PARAMS, FEE_PER_KB, Coin.COIN);
+        assertTrue(planner.plan(small(ConsolidationPlanner.MIN_OUTPUTS - 1)).isEmpty());
+    }
+
+    @Test
+    public void mergesOnlyMatureSmallOutputs() {
+        List<TransactionOutput> unspents = small(30);
+        unspents.add(output(Coin.COIN.multiply(5), 10));
+        unspents.add(output(Coin.CENT, ConsolidationPlanner.MIN_DEPTH - 1));
+        unspents.add(reward(Coin.CENT, PARAMS.getSpendableCoinbaseDepth() - 1));
+        TransactionOutput matureReward = reward(Coin.CENT, PARAMS.getSpendableCoinbaseDepth());
+        unspents.add(matureReward);
+        // worth less than its input fee
+        unspents.add(output(Coin.valueOf(1000), 10));
+
+        ConsolidationPlanner.Plan plan = new ConsolidationPlanner(PARAMS, FEE_PER_KB, Coin.COIN).plan(unspents);
+        assertEquals(1, plan.getBatches().size());
+        ConsolidationPlanner.Batch batch = plan.getBatches().get(0);
+        assertEquals(31, batch.getInputs().size());
+        assertTrue(batch.getInputs().contains(matureReward));
+        assertEquals(plan.getFee(), batch.getFee());
+        assertEquals(batch.getValue(), batch.getOutputValue().add(batch.getFee()));
+    }
+
+    @Test
+    public void feeBudgetLimitsThePlan() {
+        ConsolidationPlanner fees = new ConsolidationPlanner(PARAMS, FEE_PER_KB, Coin.ZERO);
+        // two full batches and a third one limited by the budget
+        long budget = fees.fee(ConsolidationPlanner.MAX_INPUTS) * 2 + fees.fee(50);
+        ConsolidationPlanner planner = new ConsolidationPlanner(PARAMS, FEE_PER_KB, Coin.valueOf(budget), Coin.COIN.multiply(100));
+        ConsolidationPlanner.Plan plan = planner.plan(small(500));
+        assertEquals(3, plan.getBatches().size());
+        assertEquals(ConsolidationPlanner.MAX_INPUTS * 2 + 50, plan.getMergedOutputs());
+        assertFalse(plan.getFee().isGreaterThan(Coin.valueOf(budget)));
+        // smallest first
+        assertEquals(Coin.CENT, plan.getBatches().get(0).getInputs().get(0).getValue());
+    }
+}
@@ -0,0 +1,75 @@
+package global.airwire;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionOutput;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static wallet.Outputs.KEY;
+import static wallet.Outputs.PARAMS;
+import static wallet.Outputs.address;
+import static wallet.Outputs.output;
+
+public class FeePreviewTest {
+
+    private static final Coin FEE_PER_KB = Coin.valueOf(10000);
+
+    private static Transaction payment(Coin amount) {
+        Transaction transaction = new Transaction(PARAMS);
+        transaction.addOutput(amount, address(1000));
+        return transaction;
+    }
+
+    private static CoinSelectionEngine selector() {
+        return new CoinSelectionEngine(Collections.<TransactionOutput>emptyList(), CoinSelectionEngine.Mode.EXACT_FIRST, FEE_PER_KB);
+    }
+
+    @Test
+    public void estimateCoversTheSignedSize() {
+        List<TransactionOutput> inputs = new ArrayList<>();
+        Transaction transaction = payment(Coin.COIN);
+        for (int i = 0; i < 3; i++) {
+            TransactionOutput input = output(Coin.COIN);
+            inputs.add(input);
+            transaction.addSignedInput(input.getOutPointFor(), input.getScriptPubKey(), KEY);
+        }
+        int estimated = TxSizeEstimator.estimateSize(inputs, payment(Coin.COIN).getOutputs(), 0);
+        int signed = transaction.unsafeBitcoinSerialize().length;
+        // signatures are 71 or 72 bytes, the estimate takes the biggest
+        assertTrue(estimated >= signed);
+        assertTrue(estimated - signed <= inputs.size());
+        // signed already, its real size
+        assertEquals(signed, TxSizeEstimator.estimateSignedSize(transaction));
+    }
+
+    @Test
+    public void previewPaysTheChangeOrTheDust() {
+        List<TransactionOutput> unspents = Collections.singletonList(output(Coin.COIN));
+        FeePreview withChange = FeePreview.estimate(payment(Coin.CENT), FEE_PER_KB, selector(), unspents);
+        assertTrue(withChange.isEnough());
+        assertEquals(1, withChange.getInputs());
+        assertEquals(Coin.COIN.subtract(Coin.CENT).subtract(withChange.getFee()), withChange.getChange());
+
+        // what is left over the amount is less than dust, it's paid as fee
+        Coin amount = Coin.COIN.subtract(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE).subtract(Coin.SATOSHI.multiply(100));
+        FeePreview noChange = FeePreview.estimate(payment(amount), FEE_PER_KB, selector(), unspents);
+        assertTrue(noChange.isEnough());
+        assertTrue(noChange.getChange().isZero());
+        assertEquals(Coin.COIN.subtract(amount), noChange.getFee());
+    }
+
+    @Test
+    public void previewReportsWhatIsMissing() {
+        List<TransactionOutput> unspents = Collections.singletonList(output(Coin.COIN));
+        FeePreview preview = FeePreview.estimate(payment(Coin.COIN), FEE_PER_KB, selector(), unspents);
+        assertFalse(preview.isEnough());
+        assertEquals(preview.getFee(), preview.getMissing());
+    }
+}
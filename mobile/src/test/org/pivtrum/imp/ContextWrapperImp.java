@@ -62,6 +62,11 @@ public class ContextWrapperImp implements ContextWrapper {
         return false;
     }
 
+    @Override
+    public boolean isNetworkMetered() {
+        return false;
+    }
+
     @Override
     public String getVersionName() {
         return null;
@@ -1,9 +1,14 @@
 package org.pivtrum.imp;
 
+import org.airwirej.core.Coin;
 import org.airwirej.core.Context;
+import org.airwirej.core.ECKey;
 import org.airwirej.core.NetworkParameters;
 import org.airwirej.params.TestNet3Params;
 
+import java.util.Collections;
+import java.util.List;
+
 import global.WalletConfiguration;
 
 /**
@@ -40,6 +45,16 @@ public class WalletConfigurationsImp implements WalletConfiguration {
         return 0;
     }
 
+    @Override
+    public int getIdleSyncCount() {
+        return 0;
+    }
+
+    @Override
+    public void saveIdleSyncCount(int count) {
+
+    }
+
     @Override
     public String getMnemonicFilename() {
         return null;
@@ -95,6 +110,51 @@ public class WalletConfigurationsImp implements WalletConfiguration {
         return 0;
     }
 
+    @Override
+    public int getBlockCacheSize() {
+        return 0;
+    }
+
+    @Override
+    public int getBlockStoreKeepBlocks() {
+        return 0;
+    }
+
+    @Override
+    public List<ECKey> getHeaderSnapshotSigners() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public double getBloomFilterFalsePositiveRate() {
+        return 0;
+    }
+
+    @Override
+    public long getDailyBandwidthBudget(boolean metered) {
+        return 0;
+    }
+
+    @Override
+    public void saveDailyBandwidthBudget(boolean metered, long bytes) {
+
+    }
+
+    @Override
+    public boolean isAutoConsolidationEnabled() {
+        return false;
+    }
+
+    @Override
+    public void saveAutoConsolidationEnabled(boolean enabled) {
+
+    }
+
+    @Override
+    public Coin getConsolidationFeeBudget() {
+        return Coin.ZERO;
+    }
+
     @Override
     public long getBackupMaxChars() {
         return 0;
@@ -0,0 +1,65 @@
+package wallet;
+
+import org.airwirej.core.Address;
+import org.airwirej.core.Coin;
+import org.airwirej.core.ECKey;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionInput;
+import org.airwirej.core.TransactionOutPoint;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.wallet.Wallet;
+import org.pivtrum.imp.WalletConfigurationsImp;
+
+import java.math.BigInteger;
+
+/**
+ * Outputs and payments for the coin selection and spending tests, to fixed keys so the runs repeat.
+ */
+public class Outputs {
+
+    public static final NetworkParameters PARAMS = WalletConfigurationsImp.networkParameters;
+    public static final ECKey KEY = ECKey.fromPrivate(BigInteger.valueOf(1000));
+    public static final Address ADDRESS = KEY.toAddress(PARAMS);
+
+    /** Address of another fixed key, the one of {@link #KEY} for 0 */
+    public static Address address(int i) {
+        return ECKey.fromPrivate(BigInteger.valueOf(1000 + i)).toAddress(PARAMS);
+    }
+
+    /** Output to the address of a transaction confirmed at the given depth */
+    public static TransactionOutput output(Coin value, Address address, int depth) {
+        Transaction transaction = new Transaction(PARAMS);
+        TransactionOutput output = transaction.addOutput(value, address);
+        transaction.getConfidence().setAppearedAtChainHeight(100);
+        transaction.getConfidence().setDepthInBlocks(depth);
+        return output;
+    }
+
+    public static TransactionOutput output(Coin value, int depth) {
+        return output(value, ADDRESS, depth);
+    }
+
+    public static TransactionOutput output(Coin value) {
+        return output(value, ADDRESS, 10);
+    }
+
+    /** Pay to public key output to {@link #KEY}, as the stake rewards */
+    public static TransactionOutput reward(Coin value, int depth) {
+        Transaction transaction = new Transaction(PARAMS);
+        TransactionOutput output = transaction.addOutput(value, KEY);
+        transaction.getConfidence().setAppearedAtChainHeight(100);
+        transaction.getConfidence().setDepthInBlocks(depth);
+        return output;
+    }
+
+    /** Payment to the wallet spending an output from outside of it, to be received as pending */
+    public static Transaction payment(Wallet wallet, Coin value) {
+        Transaction transaction = new Transaction(PARAMS);
+        transaction.addInput(new TransactionInput(PARAMS, transaction, new byte[0],
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(wallet.freshReceiveAddress().getHash160()))));
+        transaction.addOutput(value, wallet.freshReceiveAddress());
+        return transaction;
+    }
+}
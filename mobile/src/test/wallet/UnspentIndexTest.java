@@ -0,0 +1,171 @@
+package wallet;
+
+import org.airwirej.core.AbstractBlockChain;
+import org.airwirej.core.Block;
+import org.airwirej.core.Coin;
+import org.airwirej.core.Context;
+import org.airwirej.core.ECKey;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionConfidence.ConfidenceType;
+import org.airwirej.core.TransactionInput;
+import org.airwirej.core.TransactionOutPoint;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.wallet.Wallet;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import chain.store.Headers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static wallet.Outputs.PARAMS;
+import static wallet.Outputs.payment;
+
+public class UnspentIndexTest {
+
+    @Test
+    public void followsTheWalletAndRebuildsFromIt() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        Wallet wallet = new Wallet(PARAMS);
+        wallet.receivePending(payment(wallet, Coin.CENT), null);
+        UnspentIndex index = new UnspentIndex(new UnspentReservations(60000));
+        index.attach(wallet);
+        assertEquals(1, index.size());
+
+        wallet.receivePending(payment(wallet, Coin.COIN), null);
+        assertEquals(2, index.size());
+        assertEquals(Coin.COIN.add(Coin.CENT), index.getTotal());
+
+        index.rebuild();
+        assertEquals(2, index.size());
+        assertEquals(wallet.getUnspents().size(), index.listByValue().size());
+        index.detach();
+        assertEquals(0, index.size());
+    }
+
+    /** Payment to the wallet spending the given output from outside of it, confirmed in the block */
+    private static Transaction receive(Wallet wallet, Coin value, TransactionOutPoint from, StoredBlock block,
+                                       AbstractBlockChain.NewBlockType type) throws Exception {
+        Transaction transaction = new Transaction(Headers.PARAMS);
+        transaction.addInput(new TransactionInput(Headers.PARAMS, transaction, new byte[0], from));
+        transaction.addOutput(value, wallet.freshReceiveAddress());
+        wallet.receiveFromBlock(transaction, block, type, 0);
+        return transaction;
+    }
+
+    private static TransactionOutPoint outside(String name) {
+        return new TransactionOutPoint(Headers.PARAMS, 0, Sha256Hash.of(name.getBytes()));
+    }
+
+    private static Set<TransactionOutPoint> outPoints(List<TransactionOutput> outputs) {
+        Set<TransactionOutPoint> outPoints = new HashSet<>();
+        for (TransactionOutput output : outputs) {
+            outPoints.add(output.getOutPointFor());
+        }
+        return outPoints;
+    }
+
+    private static void assertSameAsTheWallet(UnspentIndex index, Wallet wallet) {
+        assertEquals(outPoints(wallet.getUnspents()), outPoints(index.listByValue()));
+    }
+
+    /** Block on top of the given one, another one for each nonce */
+    private static StoredBlock next(StoredBlock prev, long nonce) {
+        Block header = Headers.next(prev, false).getHeader();
+        header.setNonce(nonce);
+        return prev.build(header);
+    }
+
+    @Test
+    public void sentCoinsAreRemoved() throws Exception {
+        Context.propagate(Headers.CONTEXT);
+        Wallet wallet = new Wallet(Headers.PARAMS);
+        StoredBlock block = Headers.next(Headers.genesis(), false);
+        Transaction received = receive(wallet, Coin.COIN, outside("a"), block, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction kept = receive(wallet, Coin.CENT, outside("b"), block, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(block);
+        UnspentIndex index = new UnspentIndex(new UnspentReservations(60000));
+        index.attach(wallet);
+        assertEquals(2, index.size());
+
+        // no change, only the coins sent event
+        Transaction spend = new Transaction(Headers.PARAMS);
+        spend.addInput(received.getOutput(0));
+        spend.addOutput(Coin.CENT.multiply(99), new ECKey().toAddress(Headers.PARAMS));
+        wallet.commitTx(spend);
+
+        assertFalse(index.contains(received.getOutput(0).getOutPointFor()));
+        assertTrue(index.contains(kept.getOutput(0).getOutPointFor()));
+        assertEquals(Coin.CENT, index.getTotal());
+        assertSameAsTheWallet(index, wallet);
+        index.detach();
+    }
+
+    @Test
+    public void deadTransactionGivesBackItsInputs() throws Exception {
+        Context.propagate(Headers.CONTEXT);
+        Wallet wallet = new Wallet(Headers.PARAMS);
+        StoredBlock block = Headers.next(Headers.genesis(), false);
+        Transaction received = receive(wallet, Coin.COIN, outside("a"), block, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(block);
+        UnspentIndex index = new UnspentIndex(new UnspentReservations(60000));
+        index.attach(wallet);
+
+        // spends an outside output too, which is spent again in a block
+        Transaction spend = new Transaction(Headers.PARAMS);
+        spend.addInput(received.getOutput(0));
+        spend.addInput(new TransactionInput(Headers.PARAMS, spend, new byte[0], outside("b")));
+        spend.addOutput(Coin.CENT.multiply(90), new ECKey().toAddress(Headers.PARAMS));
+        TransactionOutput change = spend.addOutput(Coin.CENT.multiply(9), wallet.freshReceiveAddress());
+        wallet.commitTx(spend);
+        assertEquals(1, index.size());
+        assertTrue(index.contains(change.getOutPointFor()));
+
+        Transaction doubleSpend = new Transaction(Headers.PARAMS);
+        doubleSpend.addInput(new TransactionInput(Headers.PARAMS, doubleSpend, new byte[0], outside("b")));
+        doubleSpend.addOutput(Coin.COIN, new ECKey().toAddress(Headers.PARAMS));
+        StoredBlock next = Headers.next(block, false);
+        wallet.receiveFromBlock(doubleSpend, next, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(next);
+
+        assertEquals(ConfidenceType.DEAD, spend.getConfidence().getConfidenceType());
+        assertFalse(index.contains(change.getOutPointFor()));
+        assertTrue(index.contains(received.getOutput(0).getOutPointFor()));
+        assertEquals(Coin.COIN, index.getTotal());
+        assertSameAsTheWallet(index, wallet);
+        index.detach();
+    }
+
+    @Test
+    public void reorganizeFollowsTheNewChain() throws Exception {
+        Context.propagate(Headers.CONTEXT);
+        Wallet wallet = new Wallet(Headers.PARAMS);
+        StoredBlock split = Headers.next(Headers.genesis(), false);
+        wallet.notifyNewBestBlock(split);
+        StoredBlock oldBlock = next(split, 1);
+        StoredBlock newBlock = next(split, 2);
+        // two payments spending the same outside output, one in each branch
+        Transaction oldPayment = receive(wallet, Coin.COIN, outside("a"), oldBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(oldBlock);
+        UnspentIndex index = new UnspentIndex(new UnspentReservations(60000));
+        index.attach(wallet);
+        Transaction newPayment = receive(wallet, Coin.CENT, outside("a"), newBlock, AbstractBlockChain.NewBlockType.SIDE_CHAIN);
+
+        wallet.reorganize(split, Collections.singletonList(oldBlock), Collections.singletonList(newBlock));
+
+        assertEquals(ConfidenceType.DEAD, oldPayment.getConfidence().getConfidenceType());
+        assertEquals(ConfidenceType.BUILDING, newPayment.getConfidence().getConfidenceType());
+        assertFalse(index.contains(oldPayment.getOutput(0).getOutPointFor()));
+        assertTrue(index.contains(newPayment.getOutput(0).getOutPointFor()));
+        assertEquals(Coin.CENT, index.getTotal());
+        assertSameAsTheWallet(index, wallet);
+        index.detach();
+    }
+}
@@ -0,0 +1,137 @@
+package wallet;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionOutPoint;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.utils.ContextPropagatingThreadFactory;
+import org.airwirej.wallet.CoinSelection;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import global.airwire.CoinSelectionEngine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static wallet.Outputs.ADDRESS;
+import static wallet.Outputs.PARAMS;
+import static wallet.Outputs.output;
+
+public class UnspentReservationsTest {
+
+    private static final long TIMEOUT_MS = 60000;
+
+    private static List<TransactionOutput> outputs(int count) {
+        List<TransactionOutput> list = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            list.add(output(Coin.CENT.multiply(1 + i)));
+        }
+        return list;
+    }
+
+    private static TransactionOutPoint outPoint(TransactionOutput output) {
+        return output.getOutPointFor();
+    }
+
+    @Test
+    public void claimAllIsAllOrNothing() {
+        UnspentReservations reservations = new UnspentReservations(TIMEOUT_MS);
+        List<TransactionOutput> outputs = outputs(3);
+        Object first = new Object();
+        Object second = new Object();
+        assertTrue(reservations.claim(outPoint(outputs.get(2)), first));
+
+        assertFalse(reservations.claimAll(Arrays.asList(outPoint(outputs.get(0)), outPoint(outputs.get(1)), outPoint(outputs.get(2))), second));
+        assertFalse(reservations.isClaimed(outPoint(outputs.get(0))));
+        assertFalse(reservations.isClaimed(outPoint(outputs.get(1))));
+
+        // claiming again keeps what was held
+        assertTrue(reservations.claimAll(Arrays.asList(outPoint(outputs.get(2))), first));
+        reservations.releaseAll(first, null);
+        assertTrue(reservations.claimAll(Arrays.asList(outPoint(outputs.get(0)), outPoint(outputs.get(2))), second));
+        assertTrue(reservations.isClaimedByOther(outPoint(outputs.get(2)), first));
+        assertFalse(reservations.isClaimedByOther(outPoint(outputs.get(2)), second));
+    }
+
+    @Test
+    public void expiredClaimsAreTakenOver() {
+        UnspentReservations reservations = new UnspentReservations(0);
+        TransactionOutPoint outPoint = outPoint(outputs(1).get(0));
+        assertTrue(reservations.claim(outPoint, new Object()));
+        assertFalse(reservations.isClaimed(outPoint));
+        assertTrue(reservations.claim(outPoint, new Object()));
+        reservations.purgeExpired();
+        assertEquals(0, reservations.size());
+    }
+
+    @Test
+    public void claimsHandedToTheHashAreReleasedByACopy() {
+        UnspentReservations reservations = new UnspentReservations(TIMEOUT_MS);
+        List<TransactionOutput> outputs = outputs(2);
+        Transaction transaction = new Transaction(PARAMS);
+        transaction.addInput(outputs.get(0));
+        transaction.addInput(outputs.get(1));
+        transaction.addOutput(Coin.CENT, ADDRESS);
+        assertTrue(reservations.claimAll(Arrays.asList(outPoint(outputs.get(0)), outPoint(outputs.get(1))), transaction));
+        reservations.transfer(transaction, transaction.getHash());
+        assertFalse(reservations.isClaimedByOther(outPoint(outputs.get(0)), transaction.getHash()));
+
+        // the send screen recreated, the transaction read back from its bytes
+        Transaction copy = new Transaction(PARAMS, transaction.bitcoinSerialize());
+        assertFalse(reservations.claim(outPoint(outputs.get(0)), copy));
+        reservations.releaseAll(copy.getHash(), null);
+        assertEquals(0, reservations.size());
+    }
+
+    @Test
+    public void selectorSkipsOtherClaims() {
+        UnspentReservations reservations = new UnspentReservations(TIMEOUT_MS);
+        List<TransactionOutput> outputs = outputs(5);
+        Object other = new Object();
+        // the biggest one, 0.05
+        reservations.claim(outPoint(outputs.get(4)), other);
+        Object owner = new Object();
+        CoinSelectionEngine engine = new CoinSelectionEngine(Collections.<TransactionOutput>emptyList(), CoinSelectionEngine.Mode.EXACT_FIRST, Coin.valueOf(10000));
+        CoinSelection selection = new ReservingCoinSelector(engine, reservations, owner).select(Coin.CENT.multiply(5), outputs);
+        assertFalse(selection.gathered.contains(outputs.get(4)));
+        assertFalse(selection.valueGathered.isLessThan(Coin.CENT.multiply(5)));
+        for (TransactionOutput output : selection.gathered) {
+            assertTrue(reservations.isClaimedByOther(outPoint(output), other));
+        }
+    }
+
+    @Test
+    public void concurrentSelectionsNeverShareOutputs() throws Exception {
+        final UnspentReservations reservations = new UnspentReservations(TIMEOUT_MS);
+        final List<TransactionOutput> outputs = outputs(200);
+        ExecutorService executor = Executors.newFixedThreadPool(8, new ContextPropagatingThreadFactory("selection"));
+        List<Future<CoinSelection>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            futures.add(executor.submit(new Callable<CoinSelection>() {
+                @Override
+                public CoinSelection call() {
+                    CoinSelectionEngine engine = new CoinSelectionEngine(Collections.<TransactionOutput>emptyList(), CoinSelectionEngine.Mode.EXACT_FIRST, Coin.valueOf(10000));
+                    return new ReservingCoinSelector(engine, reservations, new Object()).select(Coin.COIN, outputs);
+                }
+            }));
+        }
+        Set<TransactionOutput> used = new HashSet<>();
+        for (Future<CoinSelection> future : futures) {
+            for (TransactionOutput output : future.get().gathered) {
+                assertTrue("selected twice: " + output, used.add(output));
+            }
+        }
+        executor.shutdown();
+    }
+}
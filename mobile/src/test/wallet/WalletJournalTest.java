@@ -0,0 +1,89 @@
+package wallet;
+
+import org.airwirej.core.Coin;
+import org.airwirej.core.Context;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.Transaction;
+import org.airwirej.wallet.Protos;
+import org.airwirej.wallet.Wallet;
+import org.airwirej.wallet.WalletProtobufSerializer;
+import org.airwirej.wallet.WalletTransaction;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static wallet.Outputs.PARAMS;
+import static wallet.Outputs.payment;
+
+public class WalletJournalTest {
+
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Wallet walletWithHistory() {
+        Context.propagate(new Context(PARAMS));
+        Wallet wallet = new Wallet(PARAMS);
+        for (int i = 0; i < 3; i++) {
+            wallet.receivePending(payment(wallet, Coin.CENT), null);
+        }
+        return wallet;
+    }
+
+    @Test
+    public void keysAreParsedWithoutTheTransactions() throws Exception {
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(walletWithHistory());
+        assertEquals(3, proto.getTransactionCount());
+        assertEquals(proto.toBuilder().clearTransaction().build(), WalletJournal.parseWithoutTransactions(proto.toByteArray()));
+    }
+
+    @Test
+    public void journaledKeysAreReplayedWithoutTheTransactions() throws Exception {
+        Wallet wallet = walletWithHistory();
+        File walletFile = folder.newFile();
+        WalletSaver saver = new WalletSaver(walletFile, 0);
+        WalletJournal journal = saver.getJournal();
+        Protos.Wallet snapshot = new WalletProtobufSerializer().walletToProto(wallet);
+        journal.attach(wallet);
+        // the new keys and the new transaction
+        wallet.receivePending(payment(wallet, Coin.COIN), null);
+        saver.flush().get();
+
+        Protos.Wallet keys = journal.replayKeys(WalletJournal.parseWithoutTransactions(snapshot.toByteArray()));
+        assertEquals(0, keys.getTransactionCount());
+        assertTrue(keys.getKeyCount() > snapshot.getKeyCount());
+        assertEquals(4, journal.replay(snapshot).getTransactionCount());
+        saver.shutdown();
+    }
+
+    @Test
+    public void transactionsAreEncodedByTheSerializer() {
+        // without it every transaction costs a full save, a library update must keep it
+        assertNotNull("WalletProtobufSerializer.makeTxProto not found", WalletJournal.MAKE_TX_PROTO);
+        Wallet wallet = walletWithHistory();
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(wallet);
+        for (Protos.Transaction expected : proto.getTransactionList()) {
+            Transaction transaction = wallet.getTransaction(Sha256Hash.wrap(expected.getHash().toByteArray()));
+            assertEquals(expected, WalletJournal.toProto(transaction, WalletTransaction.Pool.PENDING));
+        }
+    }
+
+    @Test
+    public void saveWithoutAWalletFails() throws Exception {
+        WalletSaver saver = new WalletSaver(folder.newFile(), 0);
+        try {
+            saver.saveNow().get();
+            fail("saved without a wallet");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        saver.shutdown();
+    }
+}
@@ -0,0 +1,110 @@
+package wallet;
+
+import org.airwirej.core.AbstractBlockChain;
+import org.airwirej.core.Address;
+import org.airwirej.core.Coin;
+import org.airwirej.core.Context;
+import org.airwirej.core.ECKey;
+import org.airwirej.core.Sha256Hash;
+import org.airwirej.core.StoredBlock;
+import org.airwirej.core.Transaction;
+import org.airwirej.core.TransactionInput;
+import org.airwirej.core.TransactionOutPoint;
+import org.airwirej.core.TransactionOutput;
+import org.airwirej.wallet.SendRequest;
+import org.airwirej.wallet.Wallet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import chain.store.Headers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WalletManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Manager of a wallet with two confirmed payments */
+    private WalletManager walletManager() throws Exception {
+        Context.propagate(Headers.CONTEXT);
+        Wallet wallet = new Wallet(Headers.PARAMS);
+        StoredBlock block = Headers.next(Headers.genesis(), false);
+        for (Coin value : new Coin[]{Coin.COIN, Coin.CENT}) {
+            Transaction transaction = new Transaction(Headers.PARAMS);
+            transaction.addInput(new TransactionInput(Headers.PARAMS, transaction, new byte[0],
+                    new TransactionOutPoint(Headers.PARAMS, 0, Sha256Hash.of(value.toString().getBytes()))));
+            transaction.addOutput(value, wallet.freshReceiveAddress());
+            wallet.receiveFromBlock(transaction, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        }
+        wallet.notifyNewBestBlock(block);
+        return Wallets.load(wallet, Wallets.context(folder.newFolder()), Wallets.configuration(Headers.CONTEXT));
+    }
+
+    /** Send of the amount completed as the send screen does, signed once confirmed */
+    private static Transaction completeSend(WalletManager walletManager, Coin amount, Address changeAddress) throws Exception {
+        SendRequest sendRequest = SendRequest.to(new ECKey().toAddress(Headers.PARAMS), amount);
+        sendRequest.signInputs = false;
+        sendRequest.shuffleOutputs = false;
+        sendRequest.changeAddress = changeAddress;
+        walletManager.completeSend(sendRequest);
+        return sendRequest.tx;
+    }
+
+    /** The change sent to another address of the wallet, as the send screen does for the origin address */
+    private static void moveChange(Transaction transaction, Address changeAddress, Address newAddress) {
+        List<TransactionOutput> outputs = new ArrayList<>(transaction.getOutputs());
+        transaction.clearOutputs();
+        for (TransactionOutput output : outputs) {
+            if (output.getScriptPubKey().getToAddress(Headers.PARAMS, true).equals(changeAddress))
+                transaction.addOutput(output.getValue(), newAddress);
+            else
+                transaction.addOutput(output);
+        }
+    }
+
+    @Test
+    public void claimsFollowTheOutputsRewrittenAndACancelReleasesThem() throws Exception {
+        WalletManager walletManager = walletManager();
+        Address changeAddress = walletManager.newFreshReceiveAddress();
+        Transaction transaction = completeSend(walletManager, Coin.CENT.multiply(50), changeAddress);
+        assertEquals(1, walletManager.listUnclaimedUnspent().size());
+
+        Sha256Hash completedHash = transaction.getHash();
+        moveChange(transaction, changeAddress, walletManager.newFreshReceiveAddress());
+        assertNotEquals(completedHash, transaction.getHash());
+        assertTrue(walletManager.moveClaims(completedHash, transaction));
+        assertEquals(1, walletManager.listUnclaimedUnspent().size());
+
+        // cancelled on the confirmation screen, with the copy it got
+        walletManager.releaseTx(new Transaction(Headers.PARAMS, transaction.bitcoinSerialize()));
+        assertEquals(2, walletManager.listUnclaimedUnspent().size());
+        walletManager.close();
+    }
+
+    @Test
+    public void claimsOfARewrittenSendAreLostToAnotherSend() throws Exception {
+        WalletManager walletManager = walletManager();
+        Address changeAddress = walletManager.newFreshReceiveAddress();
+        Transaction transaction = completeSend(walletManager, Coin.CENT.multiply(50), changeAddress);
+        Sha256Hash completedHash = transaction.getHash();
+        // gone, as if they timed out, and taken by another send
+        walletManager.releaseTx(transaction);
+        Transaction other = new Transaction(Headers.PARAMS);
+        other.addInput(transaction.getInput(0).getConnectedOutput());
+        assertTrue(walletManager.claimInputs(other));
+
+        moveChange(transaction, changeAddress, walletManager.newFreshReceiveAddress());
+        assertFalse(walletManager.moveClaims(completedHash, transaction));
+        walletManager.releaseTx(other);
+        assertEquals(2, walletManager.listUnclaimedUnspent().size());
+        walletManager.close();
+    }
+}
@@ -0,0 +1,45 @@
+package wallet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WalletSaverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void workAfterTheShutdownIsDropped() throws Exception {
+        WalletSaver saver = new WalletSaver(folder.newFile(), 0);
+        saver.shutdown();
+        final boolean[] ran = new boolean[1];
+        // from a wallet listener, must not throw
+        saver.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        });
+        assertTrue(!ran[0]);
+        assertRejected(saver.requestSave());
+        assertRejected(saver.saveNow());
+        assertRejected(saver.flush());
+    }
+
+    private static void assertRejected(Future<Void> future) throws Exception {
+        try {
+            future.get();
+            fail("done after the shutdown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package wallet;
+
+import org.airwirej.core.Context;
+import org.airwirej.core.NetworkParameters;
+import org.airwirej.wallet.Wallet;
+import org.airwirej.wallet.WalletProtobufSerializer;
+import org.pivtrum.imp.ContextWrapperImp;
+import org.pivtrum.imp.WalletConfigurationsImp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import global.ContextWrapper;
+import global.WalletConfiguration;
+
+/**
+ * Wallet managers loaded from a wallet file as on a start, for the tests going through the manager.
+ */
+public class Wallets {
+
+    /** Configuration of the tests for the network of the context, the mnemonic words are read from the library */
+    public static WalletConfiguration configuration(final Context walletContext) {
+        WalletConfiguration conf = new WalletConfigurationsImp() {
+            @Override
+            public NetworkParameters getNetworkParams() {
+                return walletContext.getParams();
+            }
+
+            @Override
+            public Context getWalletContext() {
+                return walletContext;
+            }
+
+            @Override
+            public String getMnemonicFilename() {
+                return "org/airwirej/crypto/mnemonic/wordlist/english.txt";
+            }
+        };
+        // the test configuration creates its own context when first loaded
+        Context.propagate(walletContext);
+        return conf;
+    }
+
+    /** Files in the given directory, assets from the class path */
+    public static ContextWrapper context(final File dir) {
+        return new ContextWrapperImp() {
+            @Override
+            public FileOutputStream openFileOutputPrivateMode(String name) throws IOException {
+                return new FileOutputStream(new File(dir, name));
+            }
+
+            @Override
+            public FileInputStream openFileInput(String name) throws IOException {
+                return new FileInputStream(new File(dir, name));
+            }
+
+            @Override
+            public File getFileStreamPath(String name) {
+                return new File(dir, name);
+            }
+
+            @Override
+            public InputStream openAssestsStream(String name) throws IOException {
+                InputStream stream = name != null ? Wallets.class.getClassLoader().getResourceAsStream(name) : null;
+                if (stream == null)
+                    throw new FileNotFoundException(name);
+                return stream;
+            }
+        };
+    }
+
+    /** Save the wallet where the manager looks for it and load it, keys and history */
+    public static WalletManager load(Wallet wallet, ContextWrapper context, WalletConfiguration conf) throws IOException {
+        FileOutputStream out = new FileOutputStream(context.getFileStreamPath(conf.getWalletProtobufFilename()));
+        try {
+            new WalletProtobufSerializer().writeWallet(wallet, out);
+        } finally {
+            out.close();
+        }
+        WalletManager walletManager = new WalletManager(context, conf);
+        walletManager.init();
+        return walletManager;
+    }
+}